@@ -1,7 +1,15 @@
 package com.hbakkum.rundeck.plugins.hipchat;
 
+import com.hbakkum.rundeck.plugins.hipchat.http.HttpResponse;
+
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Loads and manages API Auth tokens for HipChat rooms. Loads auth token for a room from a string representation:
@@ -23,36 +31,214 @@ import java.util.Map;
  * For HipChat API v1 use, a single notification level token will work for every room and thus only a single default token needs to be specified.
  * For HipChat API v2 use, a 'room notification' token may need to be generated for each target room
  *
+ * Several tokens can be given for a room (or as the default) by separating them with '|', spreading the room's
+ * notifications across the rate limits of all of them:
+ *
+ * 12345:TT0Xj1dPMP4rOKbza4hqP2GNEgbtv9BZWisDavy0|P2GNEgbtv9BZWisDavy0TT0Xj1dPMP4rOKbza4hq
+ *
+ * Tokens of a pool are used in turn. A token that HipChat rejects as invalid (401) or rate limited (429) is left out
+ * of its pools for a while, its turns going to the other tokens, unless every token of the pool is left out. Token
+ * health is shared by all managers, and token lookups take no locks.
+ *
+ * A room name ending in '*' gives tokens for every room starting with the rest of the name:
+ *
+ * ops-*:TT0Xj1dPMP4rOKbza4hqP2GNEgbtv9BZWisDavy0, ops-db-*:P2GNEgbtv9BZWisDavy0TT0Xj1dPMP4rOKbza4hq
+ *
+ * A room's own tokens are used before any pattern's, and of the patterns matching a room the longest is used, so
+ * ops-db-primary gets the second token above and ops-web the first. Patterns are compiled into a trie when the
+ * configuration is loaded, so a lookup walks the room name once whatever the number of patterns.
+ *
  * @author hbakkum
  */
 public class HipChatApiAuthTokenManager {
 
-    private final Map<String, String> roomApiAuthTokenAssociations = new HashMap<String, String>();
+    private static final long INVALID_TOKEN_EXCLUSION_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    private static final long RATE_LIMITED_TOKEN_EXCLUSION_MILLIS = TimeUnit.MINUTES.toMillis(1);
 
-    private String defaultApiAuthToken;
+    private static final ConcurrentMap<String, HipChatApiAuthTokenManager> TOKEN_MANAGERS = new ConcurrentHashMap<String, HipChatApiAuthTokenManager>();
+
+    private static final ConcurrentMap<String, TokenHealth> TOKEN_HEALTH = new ConcurrentHashMap<String, TokenHealth>();
+
+    private final Map<String, TokenPool> roomApiAuthTokenPools = new HashMap<String, TokenPool>();
+
+    private RoomPatternTrie<TokenPool> roomPatternApiAuthTokenPools;
+
+    private TokenPool defaultApiAuthTokenPool;
 
     public HipChatApiAuthTokenManager(final String apiAuthTokenData) {
         load(apiAuthTokenData);
     }
 
+    /**
+     * Returns the manager for the given token configuration, parsing it on first use only. Round robin positions are
+     * kept by the manager, so the same manager should be used for every notification with that configuration.
+     */
+    public static HipChatApiAuthTokenManager forApiAuthTokenData(final String apiAuthTokenData) {
+        HipChatApiAuthTokenManager tokenManager = TOKEN_MANAGERS.get(apiAuthTokenData);
+        if (tokenManager == null) {
+            final HipChatApiAuthTokenManager newTokenManager = new HipChatApiAuthTokenManager(apiAuthTokenData);
+            tokenManager = TOKEN_MANAGERS.putIfAbsent(apiAuthTokenData, newTokenManager);
+            if (tokenManager == null) {
+                tokenManager = newTokenManager;
+            }
+        }
+        return tokenManager;
+    }
+
     public String getApiAuthTokenForRoom(final String room) {
-        if (roomApiAuthTokenAssociations.containsKey(room)) {
-            return roomApiAuthTokenAssociations.get(room);
-        } else {
-            return defaultApiAuthToken;
+        final TokenPool tokenPool = getTokenPool(room);
+        return tokenPool == null ? null : tokenPool.select();
+    }
+
+    /**
+     * @return number of tokens that may be used for the room
+     */
+    public int getApiAuthTokenCountForRoom(final String room) {
+        final TokenPool tokenPool = getTokenPool(room);
+        return tokenPool == null ? 0 : tokenPool.tokens.length;
+    }
+
+    /**
+     * Leaves the token out of its pools for a while after HipChat rejected it with the given response code.
+     */
+    public static void reportApiAuthTokenRejected(final String apiAuthToken, final int responseCode) {
+        reportApiAuthTokenRejected(apiAuthToken, responseCode, System.currentTimeMillis());
+    }
+
+    static void reportApiAuthTokenRejected(final String apiAuthToken, final int responseCode, final long rejectedMillis) {
+        final long exclusionMillis = responseCode == HttpResponse.STATUS__TOO_MANY_REQUESTS ? RATE_LIMITED_TOKEN_EXCLUSION_MILLIS : INVALID_TOKEN_EXCLUSION_MILLIS;
+
+        final TokenHealth tokenHealth = getTokenHealth(apiAuthToken);
+        tokenHealth.lastRejectedMillis = rejectedMillis;
+        tokenHealth.excludedUntilMillis = rejectedMillis + exclusionMillis;
+    }
+
+    private TokenPool getTokenPool(final String room) {
+        TokenPool tokenPool = roomApiAuthTokenPools.get(room);
+        if (tokenPool == null && roomPatternApiAuthTokenPools != null) {
+            tokenPool = roomPatternApiAuthTokenPools.match(room);
+        }
+        return tokenPool == null ? defaultApiAuthTokenPool : tokenPool;
+    }
+
+    private static TokenHealth getTokenHealth(final String apiAuthToken) {
+        TokenHealth tokenHealth = TOKEN_HEALTH.get(apiAuthToken);
+        if (tokenHealth == null) {
+            final TokenHealth newTokenHealth = new TokenHealth();
+            tokenHealth = TOKEN_HEALTH.putIfAbsent(apiAuthToken, newTokenHealth);
+            if (tokenHealth == null) {
+                tokenHealth = newTokenHealth;
+            }
         }
+        return tokenHealth;
     }
 
     private void load(final String apiAuthTokenData) {
+        final RoomPatternTrie<TokenPool> roomPatterns = new RoomPatternTrie<TokenPool>();
         final String[] apiAuthTokens = apiAuthTokenData.trim().split("\\s*,\\s*");
         for (final String apiAuthToken : apiAuthTokens) {
             final String[] apiAuthTokenParts = apiAuthToken.split(":");
-            if (apiAuthTokenParts.length == 2) {
-                roomApiAuthTokenAssociations.put(apiAuthTokenParts[0], apiAuthTokenParts[1]);
+            final TokenPool tokenPool = TokenPool.parse(apiAuthTokenParts[apiAuthTokenParts.length == 2 ? 1 : 0]);
+            if (tokenPool == null) {
+                continue;
+            }
+            if (apiAuthTokenParts.length == 2 && RoomPatternTrie.isPrefixPattern(apiAuthTokenParts[0])) {
+                roomPatterns.put(apiAuthTokenParts[0], tokenPool);
+            } else if (apiAuthTokenParts.length == 2) {
+                roomApiAuthTokenPools.put(apiAuthTokenParts[0], tokenPool);
             } else {
-                defaultApiAuthToken = apiAuthTokenParts[0];
+                defaultApiAuthTokenPool = tokenPool;
+            }
+        }
+
+        if (!roomPatterns.isEmpty()) {
+            roomPatterns.compile();
+            roomPatternApiAuthTokenPools = roomPatterns;
+        }
+    }
+
+    /**
+     * When a token was last rejected by HipChat, and until when it should not be used.
+     */
+    private static final class TokenHealth {
+
+        private volatile long lastRejectedMillis;
+
+        private volatile long excludedUntilMillis;
+
+    }
+
+    private static final class TokenPool {
+
+        private final String[] tokens;
+
+        private final TokenHealth[] tokenHealth;
+
+        private final AtomicInteger nextIndex = new AtomicInteger();
+
+        private TokenPool(final String[] tokens) {
+            this.tokens = tokens;
+            this.tokenHealth = new TokenHealth[tokens.length];
+            for (int i = 0; i < tokens.length; i++) {
+                tokenHealth[i] = getTokenHealth(tokens[i]);
+            }
+        }
+
+        /**
+         * @return pool of the '|' separated tokens, or null if there are none
+         */
+        private static TokenPool parse(final String tokenData) {
+            final List<String> tokens = new ArrayList<String>();
+            for (final String token : tokenData.split("\\|")) {
+                if (!token.trim().isEmpty()) {
+                    tokens.add(token.trim());
+                }
+            }
+            return tokens.isEmpty() ? null : new TokenPool(tokens.toArray(new String[tokens.size()]));
+        }
+
+        /**
+         * Picks the next usable token in turn, so that load is spread evenly over the usable tokens; a token that is
+         * left out doesn't pass its turn on to the token after it. If no token is usable, picks the one that becomes
+         * usable first, or of those the one that was rejected longest ago.
+         */
+        private String select() {
+            if (tokens.length == 1) {
+                return tokens[0];
+            }
+
+            final long nowMillis = System.currentTimeMillis();
+            while (true) {
+                final int cursor = nextIndex.get();
+
+                int selected = -1;
+                long soonestUsableMillis = Long.MAX_VALUE;
+                long soonestUsableLastRejectedMillis = Long.MAX_VALUE;
+                for (int i = 0; i < tokens.length; i++) {
+                    final int index = (cursor + i) % tokens.length;
+                    final TokenHealth health = tokenHealth[index];
+                    final long excludedUntilMillis = health.excludedUntilMillis;
+                    if (excludedUntilMillis <= nowMillis) {
+                        selected = index;
+                        break;
+                    }
+
+                    final long lastRejectedMillis = health.lastRejectedMillis;
+                    if (excludedUntilMillis < soonestUsableMillis
+                            || (excludedUntilMillis == soonestUsableMillis && lastRejectedMillis < soonestUsableLastRejectedMillis)) {
+                        selected = index;
+                        soonestUsableMillis = excludedUntilMillis;
+                        soonestUsableLastRejectedMillis = lastRejectedMillis;
+                    }
+                }
+
+                // the turn moves past the selected token, unless another caller took this turn meanwhile
+                if (nextIndex.compareAndSet(cursor, (selected + 1) % tokens.length)) {
+                    return tokens[selected];
+                }
             }
         }
+
     }
 
 }
@@ -0,0 +1,26 @@
+package com.hbakkum.rundeck.plugins.hipchat;
+
+/**
+ * Thrown when the HipChat API refuses a request because of the API auth token used: the token is not valid (401) or
+ * has exceeded its rate limit (429). The same request may succeed with another token.
+ */
+public class HipChatApiAuthTokenRejectedException extends HipChatNotificationPluginException {
+
+    private final int responseCode;
+
+    /**
+     * Constructor.
+     *
+     * @param message error message
+     * @param responseCode HTTP response code returned by the HipChat API
+     */
+    public HipChatApiAuthTokenRejectedException(String message, int responseCode) {
+        super(message);
+        this.responseCode = responseCode;
+    }
+
+    public int getResponseCode() {
+        return responseCode;
+    }
+
+}
@@ -1,69 +1,219 @@
 package com.hbakkum.rundeck.plugins.hipchat;
 
+import com.hbakkum.rundeck.plugins.hipchat.template.BudgetedArithmeticEngine;
+import com.hbakkum.rundeck.plugins.hipchat.template.BudgetedObjectWrapper;
+import com.hbakkum.rundeck.plugins.hipchat.template.BudgetedTemplateProcessor;
+import com.hbakkum.rundeck.plugins.hipchat.template.DefaultMessageTemplateRenderer;
+import com.hbakkum.rundeck.plugins.hipchat.template.RemoteTemplateLoader;
+import com.hbakkum.rundeck.plugins.hipchat.template.SummarizeNodesMethod;
+import com.hbakkum.rundeck.plugins.hipchat.template.TemplateBudgetTracker;
+import com.hbakkum.rundeck.plugins.hipchat.template.TemplateExecutionBudget;
+import freemarker.core.TemplateClassResolver;
 import freemarker.template.Configuration;
 import freemarker.template.Template;
 import freemarker.template.TemplateException;
+import freemarker.template.TemplateExceptionHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.StringWriter;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * @author Hayden Bakkum
  */
 public class HipChatNotificationMessageGenerator {
 
+    private static final Logger LOG = LoggerFactory.getLogger(HipChatNotificationMessageGenerator.class);
+
+    private static final String CLASSPATH_TEMPLATES_KEY = "classpath:/templates";
+
+    private static final int INITIAL_MESSAGE_BUFFER_SIZE = 1024;
+
+    private static final ConcurrentMap<String, Configuration> FREEMARKER_CONFIGURATIONS = new ConcurrentHashMap<String, Configuration>();
+
     public String generateMessage(
             final String messageTemplateLocation,
             final String defaultMessageTemplateName,
             final String trigger,
             final Map executionData,
             final Map config) {
-        final Configuration freeMarkerCfg = new Configuration();
+        return generateMessage(new NotificationMessageRequest(messageTemplateLocation, defaultMessageTemplateName, trigger, executionData, config));
+    }
+
+    /**
+     * Generates a notification message, merging the template within the request's execution budget. If a custom
+     * message template exhausts the budget, or is an http(s) template that hasn't been fetched yet, the message is
+     * generated from the default template instead, within the default budget - so that a tight budget meant for the
+     * custom template can't fail the fallback too. The bundled
+     * default template is rendered by {@link DefaultMessageTemplateRenderer} rather than FreeMarker whenever it can be.
+     */
+    public String generateMessage(final NotificationMessageRequest request) {
+        return generateMessage(request.getMessageTemplateLocation(), request, request.getBudget());
+    }
+
+    private String generateMessage(
+            final String messageTemplateLocation,
+            final NotificationMessageRequest request,
+            final TemplateExecutionBudget budget) {
+        if ((messageTemplateLocation == null || messageTemplateLocation.length() == 0)
+                && DefaultMessageTemplateRenderer.TEMPLATE_NAME.equals(request.getDefaultMessageTemplateName())) {
+            final String message = DefaultMessageTemplateRenderer.INSTANCE.render(request.getTrigger(), request.getExecutionData(),
+                    request.getLogExcerpt(), request.getDurationAssessment(), budget.getMaxOutputChars());
+            if (message != null) {
+                return message;
+            }
+        }
 
-        final String templateName = determineTemplateName(messageTemplateLocation, defaultMessageTemplateName, freeMarkerCfg);
+        if (RemoteTemplateLoader.isRemoteTemplateLocation(messageTemplateLocation)
+                && !getRemoteTemplateLoader(messageTemplateLocation, request).isTemplateAvailable(getRemoteTemplateName(messageTemplateLocation))) {
+            LOG.debug("HipChat notification message template [{}] hasn't been fetched yet, using the default template.", messageTemplateLocation);
+            return generateMessage(null, request, TemplateExecutionBudget.DEFAULT);
+        }
 
         final Map<String, Object> model = new HashMap();
-        model.put("trigger", trigger);
-        model.put("execution", executionData);
-        model.put("config", config);
+        model.put("trigger", request.getTrigger());
+        model.put("execution", request.getExecutionData());
+        model.put("config", request.getConfig());
+        model.put("logExcerpt", request.getLogExcerpt());
+        model.put("summarizeNodes", SummarizeNodesMethod.INSTANCE);
+        model.put("durationPercentile", request.getDurationAssessment().getDurationPercentile());
+        model.put("isSlowRun", request.getDurationAssessment().isSlowRun());
+
+        final TemplateBudgetTracker budgetTracker = budget.start();
+        final String message = mergeTemplate(messageTemplateLocation, request, model, budgetTracker);
+        if (!budgetTracker.isExhausted()) {
+            return message;
+        }
 
-        final StringWriter sw = new StringWriter();
+        if (messageTemplateLocation == null || messageTemplateLocation.length() == 0) {
+            throw new HipChatNotificationPluginException("Default HipChat notification message template exceeded its execution budget: [" + budgetTracker.getExhaustedReason() + "].");
+        }
+
+        LOG.warn("HipChat notification message template [{}] exceeded its execution budget ({}), falling back to the default template.",
+                messageTemplateLocation, budgetTracker.getExhaustedReason());
+        return generateMessage(null, request, TemplateExecutionBudget.DEFAULT);
+    }
+
+    private String mergeTemplate(
+            final String messageTemplateLocation,
+            final NotificationMessageRequest request,
+            final Map<String, Object> model,
+            final TemplateBudgetTracker budgetTracker) {
+        final String templateName;
+        final Configuration freeMarkerCfg;
+        if (RemoteTemplateLoader.isRemoteTemplateLocation(messageTemplateLocation)) {
+            templateName = getRemoteTemplateName(messageTemplateLocation);
+            freeMarkerCfg = getRemoteFreeMarkerConfiguration(messageTemplateLocation, request);
+        } else if (messageTemplateLocation != null && messageTemplateLocation.length() > 0) {
+            final File messageTemplateFile = new File(messageTemplateLocation);
+            templateName = messageTemplateFile.getName();
+            freeMarkerCfg = getFreeMarkerConfiguration(messageTemplateFile.getParentFile());
+        } else {
+            templateName = request.getDefaultMessageTemplateName();
+            freeMarkerCfg = getFreeMarkerConfiguration(null);
+        }
+
+        final StringWriter sw = new StringWriter(INITIAL_MESSAGE_BUFFER_SIZE);
         try {
             final Template template = freeMarkerCfg.getTemplate(templateName);
-            template.process(model,sw);
+            if (messageTemplateLocation != null && messageTemplateLocation.length() > 0) {
+                BudgetedTemplateProcessor.INSTANCE.process(template, model, sw, budgetTracker);
+            } else {
+                BudgetedTemplateProcessor.INSTANCE.processInCallerThread(template, model, sw, budgetTracker);
+            }
 
         } catch (IOException ioEx) {
+            if (budgetTracker.isExhausted()) {
+                return null;
+            }
             throw new HipChatNotificationPluginException("Error loading HipChat notification message template: [" + ioEx.getMessage() + "].", ioEx);
         } catch (TemplateException templateEx) {
+            if (budgetTracker.isExhausted()) {
+                return null;
+            }
             throw new HipChatNotificationPluginException("Error merging HipChat notification message template: [" + templateEx.getMessage() + "].", templateEx);
         }
 
         return sw.toString();
     }
 
-    private String determineTemplateName(final String messageTemplateLocation,
-                                         final String defaultMessageTemplateName,
-                                         final Configuration freeMarkerCfg) {
-        String templateName;
+    /**
+     * Returns the shared FreeMarker configuration for templates in the given directory, or for the bundled templates
+     * if no directory is given. Each configuration caches its parsed templates, re-checking the source for changes at
+     * most every few seconds.
+     */
+    private static Configuration getFreeMarkerConfiguration(final File templateDirectory) {
+        final String key = templateDirectory == null ? CLASSPATH_TEMPLATES_KEY : templateDirectory.getPath();
+        Configuration freeMarkerCfg = FREEMARKER_CONFIGURATIONS.get(key);
+        if (freeMarkerCfg != null) {
+            return freeMarkerCfg;
+        }
 
-        if (messageTemplateLocation != null && messageTemplateLocation.length() > 0) {
-            final File messageTemplateFile = new File(messageTemplateLocation);
+        final Configuration newFreeMarkerCfg = new Configuration();
+        newFreeMarkerCfg.setObjectWrapper(BudgetedObjectWrapper.INSTANCE);
+        newFreeMarkerCfg.setArithmeticEngine(BudgetedArithmeticEngine.INSTANCE);
+        newFreeMarkerCfg.setTemplateExceptionHandler(TemplateExceptionHandler.RETHROW_HANDLER);
+        if (templateDirectory == null) {
+            newFreeMarkerCfg.setClassForTemplateLoading(HipChatNotificationPlugin.class, "/templates");
+        } else {
             try {
-                freeMarkerCfg.setDirectoryForTemplateLoading(messageTemplateFile.getParentFile());
+                newFreeMarkerCfg.setDirectoryForTemplateLoading(templateDirectory);
             } catch (IOException ioEx) {
                 throw new HipChatNotificationPluginException("Error setting FreeMarker template loading directory: [" + ioEx.getMessage() + "].", ioEx);
             }
-            templateName = messageTemplateFile.getName();
+        }
 
-        } else {
-            freeMarkerCfg.setClassForTemplateLoading(HipChatNotificationPlugin.class, "/templates");
-            templateName = defaultMessageTemplateName;
+        freeMarkerCfg = FREEMARKER_CONFIGURATIONS.putIfAbsent(key, newFreeMarkerCfg);
+        return freeMarkerCfg == null ? newFreeMarkerCfg : freeMarkerCfg;
+    }
+
+    /**
+     * Returns the shared FreeMarker configuration for templates under the http(s) base URL of the given template.
+     * Templates are fetched and then revalidated in the background by {@link RemoteTemplateLoader}, so merging a
+     * template never waits on the server. Whoever controls the server controls the template, so remote templates
+     * can't instantiate arbitrary classes with ?new.
+     */
+    private static Configuration getRemoteFreeMarkerConfiguration(final String messageTemplateLocation, final NotificationMessageRequest request) {
+        final String key = RemoteTemplateLoader.getLoaderKey(
+                getRemoteTemplateBaseUrl(messageTemplateLocation), request.getProxyHost(), request.getProxyPort());
+        Configuration freeMarkerCfg = FREEMARKER_CONFIGURATIONS.get(key);
+        if (freeMarkerCfg != null) {
+            return freeMarkerCfg;
+        }
+
+        final Configuration newFreeMarkerCfg = new Configuration();
+        newFreeMarkerCfg.setObjectWrapper(BudgetedObjectWrapper.INSTANCE);
+        newFreeMarkerCfg.setArithmeticEngine(BudgetedArithmeticEngine.INSTANCE);
+        newFreeMarkerCfg.setTemplateExceptionHandler(TemplateExceptionHandler.RETHROW_HANDLER);
+        // each localized name tried would be another request to the server
+        newFreeMarkerCfg.setLocalizedLookup(false);
+        newFreeMarkerCfg.setNewBuiltinClassResolver(TemplateClassResolver.SAFER_RESOLVER);
+        newFreeMarkerCfg.setTemplateLoader(getRemoteTemplateLoader(messageTemplateLocation, request));
+
+        freeMarkerCfg = FREEMARKER_CONFIGURATIONS.putIfAbsent(key, newFreeMarkerCfg);
+        if (freeMarkerCfg == null && messageTemplateLocation.startsWith("http://")) {
+            LOG.warn("HipChat notification message template [{}] is fetched over plain http, so anyone who can intercept the " +
+                    "connection can change the notification messages. Use an https URL.", messageTemplateLocation);
         }
+        return freeMarkerCfg == null ? newFreeMarkerCfg : freeMarkerCfg;
+    }
+
+    private static RemoteTemplateLoader getRemoteTemplateLoader(final String messageTemplateLocation, final NotificationMessageRequest request) {
+        return RemoteTemplateLoader.forBaseUrl(getRemoteTemplateBaseUrl(messageTemplateLocation), request.getProxyHost(), request.getProxyPort());
+    }
+
+    private static String getRemoteTemplateBaseUrl(final String messageTemplateLocation) {
+        return messageTemplateLocation.substring(0, messageTemplateLocation.lastIndexOf('/') + 1);
+    }
 
-        return templateName;
+    private static String getRemoteTemplateName(final String messageTemplateLocation) {
+        return messageTemplateLocation.substring(messageTemplateLocation.lastIndexOf('/') + 1);
     }
 
 }
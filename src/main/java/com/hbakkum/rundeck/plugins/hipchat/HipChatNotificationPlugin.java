@@ -21,14 +21,45 @@ import com.dtolabs.rundeck.core.plugins.configuration.PropertyScope;
 import com.dtolabs.rundeck.plugins.descriptions.PluginDescription;
 import com.dtolabs.rundeck.plugins.descriptions.PluginProperty;
 import com.dtolabs.rundeck.plugins.notification.NotificationPlugin;
+import com.hbakkum.rundeck.plugins.hipchat.capture.WorkloadCaptureWriter;
+import com.hbakkum.rundeck.plugins.hipchat.capture.WorkloadSnapshot;
+import com.hbakkum.rundeck.plugins.hipchat.cluster.NotificationLeaseManager;
+import com.hbakkum.rundeck.plugins.hipchat.delivery.DeferredStartNotifications;
+import com.hbakkum.rundeck.plugins.hipchat.delivery.ProjectFairDeliveryScheduler;
+import com.hbakkum.rundeck.plugins.hipchat.duration.DurationAssessment;
+import com.hbakkum.rundeck.plugins.hipchat.duration.JobDurationStats;
+import com.hbakkum.rundeck.plugins.hipchat.history.DeliveryHistory;
+import com.hbakkum.rundeck.plugins.hipchat.http.ConcurrencyLimitingHttpRequestExecutor;
+import com.hbakkum.rundeck.plugins.hipchat.http.ConnectionRacer;
+import com.hbakkum.rundeck.plugins.hipchat.http.UrlConnectionHttpRequestExecutor;
+import com.hbakkum.rundeck.plugins.hipchat.keystorage.KeyStorageTokenCache;
+import com.hbakkum.rundeck.plugins.hipchat.logtail.ExecutionLogExcerpt;
+import com.hbakkum.rundeck.plugins.hipchat.logtail.ReverseLogTailReader;
+import com.hbakkum.rundeck.plugins.hipchat.roomnotifier.FailoverRoomNotifier;
+import com.hbakkum.rundeck.plugins.hipchat.template.TemplateExecutionBudget;
 import com.hbakkum.rundeck.plugins.hipchat.roomnotifier.HipChatRoomNotifier;
 import com.hbakkum.rundeck.plugins.hipchat.roomnotifier.HipChatRoomNotifierFactory;
+import com.hbakkum.rundeck.plugins.hipchat.roomnotifier.NegativeCachingRoomNotifier;
+import com.hbakkum.rundeck.plugins.hipchat.sidecar.SidecarConnection;
+import com.hbakkum.rundeck.plugins.hipchat.sidecar.SidecarRoomNotifier;
+import com.hbakkum.rundeck.plugins.hipchat.state.JobOutcomeStore;
+import com.hbakkum.rundeck.plugins.hipchat.trace.NotificationTrace;
 import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static org.apache.commons.lang.StringUtils.isBlank;
 
@@ -52,6 +83,17 @@ public class HipChatNotificationPlugin implements NotificationPlugin {
 
     private static final String HIPCHAT_MESSAGE_DEFAULT_TEMPLATE = "hipchat-message.ftl";
 
+    private static final String SLOW_NOTIFICATION_DEFAULT_THRESHOLD_MILLIS = "5000";
+
+    private static final String START_NOTIFICATION_DEFAULT_DELAY_SECONDS = "0";
+
+    private static final String STILL_FAILING_DEFAULT_REMINDER_INTERVAL = "0";
+
+    private static final AtomicBoolean OUTCOME_CHANGE_WITHOUT_SUCCESS_WARNED = new AtomicBoolean();
+
+    private static final String LOG_EXCERPT_DEFAULT_LINES = "20";
+    private static final String LOG_EXCERPT_DEFAULT_MAX_BYTES = "65536";
+
     private static final String TRIGGER_START = "start";
     private static final String TRIGGER_SUCCESS = "success";
     private static final String TRIGGER_FAILURE = "failure";
@@ -71,7 +113,8 @@ public class HipChatNotificationPlugin implements NotificationPlugin {
 
     @PluginProperty(
             title = "HipChat Server Base URL",
-            description = "Base URL of HipChat Server",
+            description = "Base URL of HipChat Server. To specify mirrored endpoints of the same server, separate base URLs with a comma in order of preference - " +
+                    "the next endpoint is used whenever an endpoint is unavailable",
             required = false,
             defaultValue = HIPCHAT_API_DEFAULT_BASE_URL,
             scope = PropertyScope.Project)
@@ -87,7 +130,7 @@ public class HipChatNotificationPlugin implements NotificationPlugin {
 
     @PluginProperty(
             title = "API Auth Token(s)",
-            description = "HipChat API authentication token(s). For HipChat API v1, a single notification level token will do. For HipChat API v2, a token per room may be required - see user guide for more information",
+            description = "HipChat API authentication token(s). For HipChat API v1, a single notification level token will do. For HipChat API v2, a token per room may be required - see user guide for more information. Several tokens separated by '|' spread a room's notifications across their rate limits. A room name ending in '*' (e.g. ops-*:TOKEN) gives tokens for every room starting with it. A token starting with 'keys/' is read from that Rundeck Key Storage path",
             required = true,
             scope = PropertyScope.Project)
     private String apiAuthToken;
@@ -95,12 +138,39 @@ public class HipChatNotificationPlugin implements NotificationPlugin {
     @PluginProperty(
             title = "Notification Message Template",
             description =
-                    "Absolute path to a FreeMarker template that will be used to generate the notification message. " +
-                    "If unspecified a default message template will be used.",
+                    "Absolute path or http(s) URL of a FreeMarker template that will be used to generate the notification message. " +
+                    "A template at a URL is fetched in the background, through the proxy if one is configured, and the default message " +
+                    "template is used until it has been fetched. It is then revalidated in the background every minute, keeping the last " +
+                    "version fetched if the server can't be reached. If unspecified a default message template will be used.",
             required = false,
             scope = PropertyScope.Project)
     private String messageTemplateLocation;
 
+    @PluginProperty(
+            title = "Message Template Time Limit (ms)",
+            description = "Maximum time a notification message template may take to generate a message. " +
+                    "A custom template exceeding any of its limits is replaced by the default message template.",
+            required = false,
+            defaultValue = "" + TemplateExecutionBudget.DEFAULT_MAX_DURATION_MILLIS,
+            scope = PropertyScope.Project)
+    private String messageTemplateTimeLimitMillis;
+
+    @PluginProperty(
+            title = "Message Template Output Limit",
+            description = "Maximum number of characters a notification message template may generate.",
+            required = false,
+            defaultValue = "" + TemplateExecutionBudget.DEFAULT_MAX_OUTPUT_CHARS,
+            scope = PropertyScope.Project)
+    private String messageTemplateOutputLimit;
+
+    @PluginProperty(
+            title = "Message Template Loop Iteration Limit",
+            description = "Maximum number of elements a notification message template may iterate over in total.",
+            required = false,
+            defaultValue = "" + TemplateExecutionBudget.DEFAULT_MAX_LOOP_ITERATIONS,
+            scope = PropertyScope.Project)
+    private String messageTemplateLoopIterationLimit;
+
     @PluginProperty(
             title = "Proxy Host",
             description = "Proxy host to use when communicating to the HipChat API.",
@@ -134,6 +204,314 @@ public class HipChatNotificationPlugin implements NotificationPlugin {
             scope = PropertyScope.InstanceOnly)
     private String apiAuthTokenOverride;
 
+    @PluginProperty(
+            title = "Cluster Lease Directory",
+            description = "Directory on a filesystem shared by all Rundeck cluster members. When set, only the first cluster member to " +
+                    "claim a notification for an execution, trigger and room will send it. Leave blank when not running in cluster mode.",
+            required = false,
+            defaultValue = "",
+            scope = PropertyScope.Project)
+    private String clusterLeaseDirectory;
+
+    @PluginProperty(
+            title = "Slow Notification Threshold (ms)",
+            description = "Notifications taking longer than this many milliseconds are logged as a warning with a breakdown of " +
+                    "where the time was spent (template rendering, token resolution, each HTTP request). Set to -1 to disable.",
+            required = false,
+            defaultValue = SLOW_NOTIFICATION_DEFAULT_THRESHOLD_MILLIS,
+            scope = PropertyScope.Project)
+    private String slowNotificationThresholdMillis;
+
+    @PluginProperty(
+            title = "Asynchronous Delivery",
+            description = "Return to Rundeck as soon as messages are queued for delivery rather than waiting for HipChat to accept them. " +
+                    "Messages to the same room are still delivered in order. Delivery failures are logged but not reported back to Rundeck.",
+            required = false,
+            defaultValue = "false",
+            scope = PropertyScope.Project)
+    private boolean asynchronousDelivery;
+
+    @PluginProperty(
+            title = "Hedged Delivery",
+            description = "When multiple HipChat Server base URLs are configured, also send a notification to the next endpoint if the first has not answered " +
+                    "within its usual (95th percentile) response time. Reduces latency caused by a slow endpoint, but may occasionally deliver a message twice.",
+            required = false,
+            defaultValue = "false",
+            scope = PropertyScope.Project)
+    private boolean hedgedDelivery;
+
+    @PluginProperty(
+            title = "Min Concurrent Requests",
+            description = "Floor of the adaptive limit on concurrent requests to each HipChat server.",
+            required = false,
+            defaultValue = "" + ConcurrencyLimitingHttpRequestExecutor.DEFAULT_MIN_LIMIT,
+            scope = PropertyScope.Framework)
+    private String minConcurrentRequests;
+
+    @PluginProperty(
+            title = "Max Concurrent Requests",
+            description = "Ceiling of the adaptive limit on concurrent requests to each HipChat server. The limit grows towards this value while " +
+                    "the server responds promptly, and shrinks when requests fail or slow down.",
+            required = false,
+            defaultValue = "" + ConcurrencyLimitingHttpRequestExecutor.DEFAULT_MAX_LIMIT,
+            scope = PropertyScope.Framework)
+    private String maxConcurrentRequests;
+
+    @PluginProperty(
+            title = "Concurrency Limit Queue Timeout (ms)",
+            description = "How long a request over the concurrency limit waits for a free slot before failing. Set to 0 to fail immediately.",
+            required = false,
+            defaultValue = "" + ConcurrencyLimitingHttpRequestExecutor.DEFAULT_QUEUE_TIMEOUT_MILLIS,
+            scope = PropertyScope.Framework)
+    private String concurrencyLimitQueueTimeoutMillis;
+
+    @PluginProperty(
+            title = "Project Delivery Weights",
+            description = "Share of delivery capacity given to each project while notifications are queued, as comma separated ${project}:${weight} pairs. " +
+                    "A weight without a project applies to all other projects, e.g. 'ops:4, 1'.",
+            required = false,
+            defaultValue = "" + ProjectFairDeliveryScheduler.DEFAULT_PROJECT_WEIGHT,
+            scope = PropertyScope.Framework)
+    private String projectDeliveryWeights;
+
+    @PluginProperty(
+            title = "Project Delivery Queue Capacities",
+            description = "Maximum number of notifications queued for each project before further notifications are dropped, as comma separated " +
+                    "${project}:${capacity} pairs. A capacity without a project applies to all other projects.",
+            required = false,
+            defaultValue = "" + ProjectFairDeliveryScheduler.DEFAULT_PROJECT_QUEUE_CAPACITY,
+            scope = PropertyScope.Framework)
+    private String projectDeliveryQueueCapacities;
+
+    @PluginProperty(
+            title = "Execution Log Path Pattern",
+            description = "Location of execution log files, used to include the end of the log in failure notifications. " +
+                    "${project}, ${jobId} and ${execId} are replaced with the values for the execution, " +
+                    "e.g. /var/lib/rundeck/logs/rundeck/${project}/job/${jobId}/logs/${execId}.rdlog. Leave blank to not include log output.",
+            required = false,
+            defaultValue = "",
+            scope = PropertyScope.Framework)
+    private String executionLogPathPattern;
+
+    @PluginProperty(
+            title = "Log Excerpt Lines",
+            description = "Number of lines from the end of the execution log to include in failure notifications.",
+            required = false,
+            defaultValue = LOG_EXCERPT_DEFAULT_LINES,
+            scope = PropertyScope.Project)
+    private String logExcerptLines;
+
+    @PluginProperty(
+            title = "Log Excerpt Max Bytes",
+            description = "Maximum number of bytes read from the end of the execution log for the log excerpt.",
+            required = false,
+            defaultValue = LOG_EXCERPT_DEFAULT_MAX_BYTES,
+            scope = PropertyScope.Project)
+    private String logExcerptMaxBytes;
+
+    @PluginProperty(
+            title = "Start Notification Delay (s)",
+            description = "Hold back 'start' notifications for this many seconds, and drop them if the job succeeds or fails within that time " +
+                    "(the final notification is sent as usual). Start notifications are only sent for jobs still running after the delay. " +
+                    "Set to 0 to send start notifications immediately.",
+            required = false,
+            defaultValue = START_NOTIFICATION_DEFAULT_DELAY_SECONDS,
+            scope = PropertyScope.Project)
+    private String startNotificationDelaySeconds;
+
+    @PluginProperty(
+            title = "Notify On Outcome Change Only",
+            description = "Only send success and failure notifications when a job's outcome differs from its previous execution. " +
+                    "Configure this notification for both success and failure so that every outcome is seen; repeated failures are " +
+                    "only suppressed once the job has been seen to succeed.",
+            required = false,
+            defaultValue = "false",
+            scope = PropertyScope.Project)
+    private boolean notifyOnOutcomeChangeOnly;
+
+    @PluginProperty(
+            title = "Still Failing Reminder Interval",
+            description = "When notifying on outcome change only, also notify every this many consecutive failures after the first. Set to 0 for no reminders.",
+            required = false,
+            defaultValue = STILL_FAILING_DEFAULT_REMINDER_INTERVAL,
+            scope = PropertyScope.Project)
+    private String stillFailingReminderInterval;
+
+    @PluginProperty(
+            title = "Job Outcome State File",
+            description = "File the last outcome of each job is saved to, so that outcome changes are detected across restarts. " +
+                    "Leave blank to keep outcomes in memory only.",
+            required = false,
+            defaultValue = "",
+            scope = PropertyScope.Framework)
+    private String jobOutcomeStateFile;
+
+    @PluginProperty(
+            title = "Workload Capture File",
+            description = "File a scrubbed snapshot of each notification (trigger, execution data with credentials masked, room count, message length " +
+                    "and phase timings) is appended to, for replaying with the workload benchmark. Leave blank to disable capture.",
+            required = false,
+            defaultValue = "",
+            scope = PropertyScope.Framework)
+    private String workloadCaptureFile;
+
+    @PluginProperty(
+            title = "Workload Capture Max File Size",
+            description = "Size in bytes at which the workload capture file is rolled over.",
+            required = false,
+            defaultValue = "" + WorkloadCaptureWriter.DEFAULT_MAX_FILE_BYTES,
+            scope = PropertyScope.Framework)
+    private String workloadCaptureMaxFileBytes;
+
+    @PluginProperty(
+            title = "Workload Capture Max Files",
+            description = "Number of workload capture files kept, including the current one.",
+            required = false,
+            defaultValue = "" + WorkloadCaptureWriter.DEFAULT_MAX_FILES,
+            scope = PropertyScope.Framework)
+    private String workloadCaptureMaxFiles;
+
+    @PluginProperty(
+            title = "Delivery History File",
+            description = "File every attempt to send a notification is recorded in (time, room, API version, outcome, latency and size), " +
+                    "for trending delivery success rate and latency across restarts with the DeliveryHistoryReader tool. Leave blank to disable.",
+            required = false,
+            defaultValue = "",
+            scope = PropertyScope.Framework)
+    private String deliveryHistoryFile;
+
+    @PluginProperty(
+            title = "Delivery History Capacity",
+            description = "Number of send attempts kept in a new delivery history file before the oldest are overwritten. Each takes 32 bytes.",
+            required = false,
+            defaultValue = "" + DeliveryHistory.DEFAULT_CAPACITY,
+            scope = PropertyScope.Framework)
+    private String deliveryHistoryCapacity;
+
+    @PluginProperty(
+            title = "DNS Cache TTL (seconds)",
+            description = "How long the addresses HipChat server host names resolve to are cached. If resolving fails, addresses resolved " +
+                    "earlier keep being used for up to ten times this long.",
+            required = false,
+            defaultValue = "60",
+            scope = PropertyScope.Framework)
+    private String dnsCacheTtlSeconds;
+
+    @PluginProperty(
+            title = "Connection Attempt Delay (ms)",
+            description = "When a HipChat server host name resolves to several addresses, how long to wait on a connection attempt " +
+                    "before also trying the next address. The first connection made is used. Only applies to https base URLs: http base " +
+                    "URLs try each address in turn, waiting out the operating system's connect timeout on an unreachable one. " +
+                    "Set to -1 to only try the first address.",
+            required = false,
+            defaultValue = "" + ConnectionRacer.DEFAULT_ATTEMPT_DELAY_MILLIS,
+            scope = PropertyScope.Framework)
+    private String connectionAttemptDelayMillis;
+
+    @PluginProperty(
+            title = "Request Timeout (ms)",
+            description = "How long a request to a HipChat server waits to connect, and then for each part of the response, before failing. " +
+                    "A delivery still running after this long stops holding up the deliveries queued behind it, and jobs waiting on " +
+                    "synchronous delivery wait at most twice this long.",
+            required = false,
+            defaultValue = "" + UrlConnectionHttpRequestExecutor.DEFAULT_REQUEST_TIMEOUT_MILLIS,
+            scope = PropertyScope.Framework)
+    private String requestTimeoutMillis;
+
+    @PluginProperty(
+            title = "Connection Prewarm Interval (seconds)",
+            description = "How often to connect to the configured HipChat server base URLs ahead of notifications, so that they can reuse " +
+                    "an idle connection or resume a TLS session. Idle connections are only kept if this is shorter than the server's " +
+                    "keep-alive timeout. Set to 0 to disable.",
+            required = false,
+            defaultValue = "0",
+            scope = PropertyScope.Framework)
+    private String connectionPrewarmIntervalSeconds;
+
+    @PluginProperty(
+            title = "Rejected Room Suppression (seconds)",
+            description = "When HipChat rejects a room's notification permanently (the room doesn't exist or the API auth token is invalid), " +
+                    "further notifications to it with the same token fail without being sent for this long, doubling each time the " +
+                    "rejection is repeated. Changing the API auth tokens lifts all suppressions. Set to 0 to disable.",
+            required = false,
+            defaultValue = "300",
+            scope = PropertyScope.Framework)
+    private String rejectedRoomSuppressionSeconds;
+
+    @PluginProperty(
+            title = "Slow Run Percentile",
+            description = "A finished execution is flagged as a slow run (\"isSlowRun\" in message templates) when it took longer than this " +
+                    "percentile of the job's recent successful executions. At least 10 are needed before any execution is flagged.",
+            required = false,
+            defaultValue = "" + JobDurationStats.DEFAULT_SLOW_RUN_PERCENTILE,
+            scope = PropertyScope.Project)
+    private String slowRunPercentile;
+
+    @PluginProperty(
+            title = "Job Duration Stats File",
+            description = "File the duration history of each job is saved to every few minutes, so that slow runs are recognised across " +
+                    "restarts. Leave blank to keep duration history in memory only.",
+            required = false,
+            defaultValue = "",
+            scope = PropertyScope.Framework)
+    private String jobDurationStatsFile;
+
+    @PluginProperty(
+            title = "Key Storage Directory",
+            description = "Base directory of Rundeck's file Key Storage provider (rundeck.storage.provider.N.config.baseDir), from which " +
+                    "API auth tokens given as Key Storage paths (e.g. 12345:keys/hipchat/ops-token) are read. Keys encrypted by a " +
+                    "storage converter can't be read.",
+            required = false,
+            defaultValue = KeyStorageTokenCache.DEFAULT_STORAGE_DIR,
+            scope = PropertyScope.Framework)
+    private String keyStorageDir;
+
+    @PluginProperty(
+            title = "Key Storage Token Path Prefix",
+            description = "Key Storage path prefix (e.g. keys/hipchat/) that API auth tokens given as Key Storage paths must be under. " +
+                    "Keys are read straight from the Key Storage directory, bypassing Key Storage access rules, so only password keys " +
+                    "under this prefix are read. Leave blank to not read API auth tokens from Key Storage.",
+            required = false,
+            defaultValue = "",
+            scope = PropertyScope.Framework)
+    private String keyStorageTokenPathPrefix;
+
+    @PluginProperty(
+            title = "Key Storage Token TTL (seconds)",
+            description = "How long API auth tokens read from Key Storage are cached for. Tokens in use are read again in the background " +
+                    "once half of this has passed, so notifications don't wait on Key Storage.",
+            required = false,
+            defaultValue = "300",
+            scope = PropertyScope.Framework)
+    private String keyStorageTokenTtlSeconds;
+
+    @PluginProperty(
+            title = "Sender Sidecar Socket",
+            description = "Unix domain socket of a HipChat sender sidecar process (see SenderSidecar), which then delivers notifications " +
+                    "outside the Rundeck JVM. Notifications are sent in process whenever the sidecar can't take them. Requires Java 16 " +
+                    "or later. Leave blank to always send in process.",
+            required = false,
+            defaultValue = "",
+            scope = PropertyScope.Framework)
+    private String senderSidecarSocket;
+
+    @PluginProperty(
+            title = "Sender Sidecar Max In Flight",
+            description = "Most notifications handed to the sender sidecar and not yet acknowledged. Further notifications wait for one to " +
+                    "be acknowledged, up to the acknowledgement timeout, and are then sent in process.",
+            required = false,
+            defaultValue = "" + SidecarConnection.DEFAULT_MAX_IN_FLIGHT,
+            scope = PropertyScope.Framework)
+    private String senderSidecarMaxInFlight;
+
+    @PluginProperty(
+            title = "Sender Sidecar Acknowledgement Timeout (ms)",
+            description = "How long to wait for the sender sidecar to acknowledge the delivery of a notification.",
+            required = false,
+            defaultValue = "" + SidecarConnection.DEFAULT_ACK_TIMEOUT_MILLIS,
+            scope = PropertyScope.Framework)
+    private String senderSidecarAckTimeoutMillis;
+
     /**
      * Sends a message to a HipChat room when a job notification event is raised by Rundeck.
      *
@@ -149,41 +527,399 @@ public class HipChatNotificationPlugin implements NotificationPlugin {
             throw new IllegalArgumentException("Unknown trigger type: [" + trigger + "].");
         }
 
-        final HipChatRoomNotifier hipChatRoomNotifier = HipChatRoomNotifierFactory.get(apiVersion, proxyHost, proxyPort);
-        final HipChatApiAuthTokenManager hipChatApiAuthTokenManager = new HipChatApiAuthTokenManager(isBlank(apiAuthTokenOverride) ? apiAuthToken : apiAuthTokenOverride);
-        final HipChatNotificationMessageGenerator hipChatNotificationMessageGenerator = new HipChatNotificationMessageGenerator();
+        // recorded even if the notification is skipped, so that the history covers every execution
+        final DurationAssessment durationAssessment = assessDuration(trigger, executionData);
+
+        // cancelled before anything else, so that a finished execution never gets a late start notification
+        final String deferredStartNotificationKey = getExecutionId(executionData) + "|" + hipchatServerBaseUrl + "|" + room;
+        if (!TRIGGER_START.equals(trigger) && DeferredStartNotifications.getInstance().cancel(deferredStartNotificationKey)) {
+            LOG.debug("Dropped deferred start notification for execution [{}] as it has already finished.", getExecutionId(executionData));
+        }
+
+        if (notifyOnOutcomeChangeOnly && !TRIGGER_START.equals(trigger) && !isOutcomeWorthNotifying(trigger, executionData)) {
+            LOG.debug("Skipping [{}] notification for execution [{}] as the job outcome has not changed.", trigger, getExecutionId(executionData));
+            return true;
+        }
+
+        final NotificationTrace trace = NotificationTrace.begin(trigger, getExecutionId(executionData));
+        int messageLength = -1;
+        try {
+            HipChatRoomNotifierFactory.setConcurrencyLimits(
+                    (int) parseLong(minConcurrentRequests, "" + ConcurrencyLimitingHttpRequestExecutor.DEFAULT_MIN_LIMIT),
+                    (int) parseLong(maxConcurrentRequests, "" + ConcurrencyLimitingHttpRequestExecutor.DEFAULT_MAX_LIMIT),
+                    parseLong(concurrencyLimitQueueTimeoutMillis, "" + ConcurrencyLimitingHttpRequestExecutor.DEFAULT_QUEUE_TIMEOUT_MILLIS));
+            HipChatRoomNotifierFactory.setDeliveryHistory(isBlank(deliveryHistoryFile) ? null : DeliveryHistory.forFile(
+                    deliveryHistoryFile.trim(), (int) parseLong(deliveryHistoryCapacity, "" + DeliveryHistory.DEFAULT_CAPACITY)));
+            HipChatRoomNotifierFactory.setConnectionSettings(
+                    TimeUnit.SECONDS.toMillis(parseLong(dnsCacheTtlSeconds, "60")),
+                    parseLong(connectionAttemptDelayMillis, "" + ConnectionRacer.DEFAULT_ATTEMPT_DELAY_MILLIS),
+                    getRequestTimeoutMillis());
+            HipChatRoomNotifierFactory.setConnectionPrewarming(hipchatServerBaseUrl,
+                    TimeUnit.SECONDS.toMillis(parseLong(connectionPrewarmIntervalSeconds, "0")));
+            final String apiAuthTokenData = isBlank(apiAuthTokenOverride) ? apiAuthToken : apiAuthTokenOverride;
+            HipChatRoomNotifierFactory.setPermanentFailureCache(
+                    TimeUnit.SECONDS.toMillis(parseLong(rejectedRoomSuppressionSeconds, "300")),
+                    hipchatServerBaseUrl, getProject(executionData) + '/' + getJobId(executionData) + '/' + trigger, apiAuthTokenData);
+            final HipChatRoomNotifier hipChatRoomNotifier = createRoomNotifier();
 
-        final String color = TRIGGER_MESSAGE_COLORS.get(trigger);
-        final String message = hipChatNotificationMessageGenerator.generateMessage(messageTemplateLocation, HIPCHAT_MESSAGE_DEFAULT_TEMPLATE, trigger, executionData, config);
+            final long tokenResolutionStartNanos = System.nanoTime();
+            final HipChatApiAuthTokenManager hipChatApiAuthTokenManager = HipChatApiAuthTokenManager.forApiAuthTokenData(apiAuthTokenData);
+            trace.recordPhase(NotificationTrace.PHASE_TOKEN_RESOLUTION, null, tokenResolutionStartNanos);
 
-        return sendRoomNotifications(hipChatRoomNotifier, hipChatApiAuthTokenManager, message, color);
+            final HipChatNotificationMessageGenerator hipChatNotificationMessageGenerator = new HipChatNotificationMessageGenerator();
+
+            final long templateRenderStartNanos = System.nanoTime();
+            final String color = TRIGGER_MESSAGE_COLORS.get(trigger);
+            final TemplateExecutionBudget templateExecutionBudget = new TemplateExecutionBudget(
+                    parseLong(messageTemplateTimeLimitMillis, "" + TemplateExecutionBudget.DEFAULT_MAX_DURATION_MILLIS),
+                    (int) parseLong(messageTemplateOutputLimit, "" + TemplateExecutionBudget.DEFAULT_MAX_OUTPUT_CHARS),
+                    (int) parseLong(messageTemplateLoopIterationLimit, "" + TemplateExecutionBudget.DEFAULT_MAX_LOOP_ITERATIONS));
+            final String message = hipChatNotificationMessageGenerator.generateMessage(
+                    new NotificationMessageRequest(messageTemplateLocation, HIPCHAT_MESSAGE_DEFAULT_TEMPLATE, trigger, executionData, config)
+                            .withBudget(templateExecutionBudget)
+                            .withLogExcerpt(createExecutionLogExcerpt(executionData))
+                            .withDurationAssessment(durationAssessment)
+                            .withProxy(proxyHost, proxyPort));
+            trace.recordPhase(NotificationTrace.PHASE_TEMPLATE_RENDER, messageTemplateLocation, templateRenderStartNanos);
+            messageLength = message.length();
+
+            if (TRIGGER_START.equals(trigger)) {
+                final long startNotificationDelayMillis = TimeUnit.SECONDS.toMillis(parseLong(startNotificationDelaySeconds, START_NOTIFICATION_DEFAULT_DELAY_SECONDS));
+                if (startNotificationDelayMillis > 0) {
+                    DeferredStartNotifications.getInstance().defer(deferredStartNotificationKey, new Runnable() {
+                        @Override
+                        public void run() {
+                            sendRoomNotifications(hipChatRoomNotifier, hipChatApiAuthTokenManager, trigger, executionData, message, color, false);
+                        }
+                    }, startNotificationDelayMillis);
+                    return true;
+                }
+            }
+
+            return sendRoomNotifications(hipChatRoomNotifier, hipChatApiAuthTokenManager, trigger, executionData, message, color, !asynchronousDelivery);
+
+        } finally {
+            trace.end(parseLong(slowNotificationThresholdMillis, SLOW_NOTIFICATION_DEFAULT_THRESHOLD_MILLIS));
+            if (!isBlank(workloadCaptureFile)) {
+                captureWorkload(trace, trigger, executionData, config, messageLength);
+            }
+        }
+    }
+
+    private void captureWorkload(
+            final NotificationTrace trace,
+            final String trigger,
+            final Map executionData,
+            final Map config,
+            final int messageLength) {
+        try {
+            final String snapshot = new WorkloadSnapshot(trigger, messageTemplateLocation)
+                    .setDelivery(room.trim().split("\\s*,\\s*").length, messageLength)
+                    .setTimings(trace.getElapsedMillis(), trace.getPhaseMillis())
+                    .setExecutionData(executionData, config)
+                    .toJson();
+            WorkloadCaptureWriter.forFile(
+                    workloadCaptureFile.trim(),
+                    parseLong(workloadCaptureMaxFileBytes, "" + WorkloadCaptureWriter.DEFAULT_MAX_FILE_BYTES),
+                    (int) parseLong(workloadCaptureMaxFiles, "" + WorkloadCaptureWriter.DEFAULT_MAX_FILES)).append(snapshot);
+        } catch (RuntimeException ex) {
+            // capture is diagnostic only and must never fail a notification
+            LOG.debug("Unable to capture workload snapshot for execution [{}].", getExecutionId(executionData), ex);
+        }
     }
 
     private boolean sendRoomNotifications(
             final HipChatRoomNotifier hipChatRoomNotifier,
             final HipChatApiAuthTokenManager hipChatApiAuthTokenManager,
+            final String trigger,
+            final Map executionData,
             final String message,
-            final String color) {
+            final String color,
+            final boolean waitForDelivery) {
         boolean didAllNotificationsSendSuccessfully = true;
 
+        final NotificationLeaseManager notificationLeaseManager = isBlank(clusterLeaseDirectory) ? null : NotificationLeaseManager.forDirectory(clusterLeaseDirectory.trim());
+        final String executionId = getExecutionId(executionData);
+        final String project = getProject(executionData);
+
+        final long requestTimeoutMillis = getRequestTimeoutMillis();
+        final ProjectFairDeliveryScheduler deliveryScheduler = ProjectFairDeliveryScheduler.getInstance();
+        deliveryScheduler.configure(projectDeliveryWeights, projectDeliveryQueueCapacities);
+        deliveryScheduler.setSlotTimeout(requestTimeoutMillis);
+
+        final List<Future<Boolean>> roomNotificationResults = new ArrayList<Future<Boolean>>();
+
         final String[] rooms = this.room.trim().split("\\s*,\\s*");
         for (final String room : rooms) {
-            final String apiAuthTokenForRoom = hipChatApiAuthTokenManager.getApiAuthTokenForRoom(room);
-            if (apiAuthTokenForRoom == null || apiAuthTokenForRoom.isEmpty()) {
+            if (hipChatApiAuthTokenManager.getApiAuthTokenCountForRoom(room) == 0) {
                 LOG.error("Cannot send notification to room [{}] as no API Auth Token found for this room.", room);
                 continue;
             }
 
-            try {
-                hipChatRoomNotifier.sendRoomNotification(hipchatServerBaseUrl, room, message, color, apiAuthTokenForRoom, sendUserNotification);
+            if (!isOwnedByThisClusterMember(notificationLeaseManager, executionId, trigger, room)) {
+                LOG.debug("Skipping notification to room [{}] for execution [{}] as it is owned by another cluster member.", room, executionId);
+                continue;
+            }
 
-            } catch (Exception ex) {
-                LOG.error("Error sending HipChat notification to room: [{}]", room, ex);
+            try {
+                roomNotificationResults.add(deliveryScheduler.submit(project, hipchatServerBaseUrl + "|" + room,
+                        new RoomNotificationDelivery(hipChatRoomNotifier, room, message, color, hipChatApiAuthTokenManager, NotificationTrace.current())));
+            } catch (HipChatNotificationPluginException ex) {
+                LOG.error("Unable to queue HipChat notification to room: [{}]", room, ex);
                 didAllNotificationsSendSuccessfully = false;
             }
         }
 
+        if (!waitForDelivery) {
+            return didAllNotificationsSendSuccessfully;
+        }
+
+        // one request timeout for a delivery to get its place in the scheduler's window, and one for its requests
+        final long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(2 * requestTimeoutMillis);
+        for (final Future<Boolean> roomNotificationResult : roomNotificationResults) {
+            didAllNotificationsSendSuccessfully &= awaitRoomNotificationResult(roomNotificationResult, deadlineNanos);
+        }
+
         return didAllNotificationsSendSuccessfully;
     }
 
+    private static boolean awaitRoomNotificationResult(final Future<Boolean> roomNotificationResult, final long deadlineNanos) {
+        try {
+            return roomNotificationResult.get(Math.max(0, deadlineNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException interruptedEx) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException executionEx) {
+            LOG.error("Error delivering HipChat notification", executionEx.getCause());
+            return false;
+        } catch (TimeoutException timeoutEx) {
+            LOG.error("Timed out waiting for HipChat notification delivery; it carries on in the background.");
+            return false;
+        }
+    }
+
+    private long getRequestTimeoutMillis() {
+        return Math.max(1, parseLong(requestTimeoutMillis, "" + UrlConnectionHttpRequestExecutor.DEFAULT_REQUEST_TIMEOUT_MILLIS));
+    }
+
+    private static String getExecutionId(final Map executionData) {
+        return String.valueOf(executionData.get("id"));
+    }
+
+    /**
+     * Records the outcome of the execution, and decides whether it should be notified: when it differs from the
+     * previous outcome of the job, or is a due "still failing" reminder.
+     *
+     * Successes are only seen if this notification is also configured for success, so repeated failures are only
+     * suppressed once a success has been recorded. Otherwise a notification configured for failure alone would never
+     * see the job recover, and would suppress every failure after the first.
+     */
+    private boolean isOutcomeWorthNotifying(final String trigger, final Map executionData) {
+        final Object jobId = getJobId(executionData);
+        if (jobId == null) {
+            // ad hoc executions have no history to compare with
+            return true;
+        }
+
+        final JobOutcomeStore jobOutcomeStore = JobOutcomeStore.forFile(isBlank(jobOutcomeStateFile) ? "" : jobOutcomeStateFile.trim());
+        final boolean failed = TRIGGER_FAILURE.equals(trigger);
+        final String destination = hipchatServerBaseUrl + "|" + room;
+        final int consecutiveCount = jobOutcomeStore.recordOutcome(jobId.toString(), destination,
+                failed ? JobOutcomeStore.OUTCOME_FAILURE : JobOutcomeStore.OUTCOME_SUCCESS);
+        if (consecutiveCount == 1) {
+            return true;
+        }
+        if (failed && !jobOutcomeStore.hasSucceeded(jobId.toString(), destination)) {
+            if (OUTCOME_CHANGE_WITHOUT_SUCCESS_WARNED.compareAndSet(false, true)) {
+                LOG.warn("Notifying repeated failure of job [{}] as no success of it has been seen. Notify On Outcome Change Only needs " +
+                        "the notification to be configured for both success and failure.", jobId);
+            }
+            return true;
+        }
+
+        final long reminderInterval = parseLong(stillFailingReminderInterval, STILL_FAILING_DEFAULT_REMINDER_INTERVAL);
+        return failed && reminderInterval > 0 && (consecutiveCount - 1) % reminderInterval == 0;
+    }
+
+    /**
+     * Compares the duration of a finished execution with the job's earlier executions, and records it.
+     */
+    private DurationAssessment assessDuration(final String trigger, final Map executionData) {
+        final Object jobId = getJobId(executionData);
+        final long durationMillis = getDurationMillis(executionData);
+        if (TRIGGER_START.equals(trigger) || jobId == null || durationMillis < 0) {
+            return DurationAssessment.UNKNOWN;
+        }
+
+        final JobDurationStats jobDurationStats = JobDurationStats.forFile(isBlank(jobDurationStatsFile) ? "" : jobDurationStatsFile.trim());
+        return jobDurationStats.recordExecution(jobId.toString(), getExecutionId(executionData), durationMillis,
+                TRIGGER_SUCCESS.equals(trigger), (int) parseLong(slowRunPercentile, "" + JobDurationStats.DEFAULT_SLOW_RUN_PERCENTILE));
+    }
+
+    /**
+     * @return how long the execution ran for, or -1 if that isn't known
+     */
+    private static long getDurationMillis(final Map executionData) {
+        final long startedMillis = toEpochMillis(executionData.get("dateStarted"));
+        final long endedMillis = toEpochMillis(executionData.get("dateEnded"));
+        return startedMillis < 0 || endedMillis < startedMillis ? -1 : endedMillis - startedMillis;
+    }
+
+    private static long toEpochMillis(final Object date) {
+        if (date instanceof Date) {
+            return ((Date) date).getTime();
+        }
+        return date instanceof Number ? ((Number) date).longValue() : -1;
+    }
+
+    /**
+     * @return the notifier to send room notifications with: through the sender sidecar if one is configured and can
+     * be used, otherwise in process
+     */
+    private HipChatRoomNotifier createRoomNotifier() {
+        final HipChatRoomNotifier inProcessRoomNotifier = new FailoverRoomNotifier(HipChatRoomNotifierFactory.get(apiVersion, proxyHost, proxyPort), hedgedDelivery);
+        if (isBlank(senderSidecarSocket)) {
+            return inProcessRoomNotifier;
+        }
+
+        final SidecarConnection sidecarConnection = SidecarConnection.forSocket(senderSidecarSocket.trim(),
+                (int) parseLong(senderSidecarMaxInFlight, "" + SidecarConnection.DEFAULT_MAX_IN_FLIGHT));
+        return sidecarConnection == null ? inProcessRoomNotifier : new SidecarRoomNotifier(sidecarConnection, inProcessRoomNotifier,
+                apiVersion, proxyHost, proxyPort, parseLong(senderSidecarAckTimeoutMillis, "" + SidecarConnection.DEFAULT_ACK_TIMEOUT_MILLIS));
+    }
+
+    private KeyStorageTokenCache getKeyStorageTokenCache() {
+        final KeyStorageTokenCache keyStorageTokenCache = KeyStorageTokenCache.forStorageDir(
+                isBlank(keyStorageDir) ? KeyStorageTokenCache.DEFAULT_STORAGE_DIR : keyStorageDir.trim(),
+                isBlank(keyStorageTokenPathPrefix) ? "" : keyStorageTokenPathPrefix.trim());
+        keyStorageTokenCache.setTtlMillis(TimeUnit.SECONDS.toMillis(parseLong(keyStorageTokenTtlSeconds, "300")));
+        return keyStorageTokenCache;
+    }
+
+    private ExecutionLogExcerpt createExecutionLogExcerpt(final Map executionData) {
+        if (isBlank(executionLogPathPattern)) {
+            return null;
+        }
+
+        final Object jobId = getJobId(executionData);
+        final String executionLogPath = StringUtils.replaceEach(executionLogPathPattern.trim(),
+                new String[]{"${project}", "${jobId}", "${execId}"},
+                new String[]{getProject(executionData), String.valueOf(jobId), getExecutionId(executionData)});
+
+        final ReverseLogTailReader tailReader = new ReverseLogTailReader(
+                (int) parseLong(logExcerptLines, LOG_EXCERPT_DEFAULT_LINES),
+                (int) parseLong(logExcerptMaxBytes, LOG_EXCERPT_DEFAULT_MAX_BYTES));
+        return new ExecutionLogExcerpt(new File(executionLogPath), tailReader);
+    }
+
+    private static Object getJobId(final Map executionData) {
+        final Object job = executionData.get("job");
+        return job instanceof Map ? ((Map) job).get("id") : null;
+    }
+
+    private static String getProject(final Map executionData) {
+        final Object project = executionData.get("project");
+        return project == null ? "" : project.toString();
+    }
+
+    private static long parseLong(final String value, final String defaultValue) {
+        try {
+            return Long.parseLong(isBlank(value) ? defaultValue : value.trim());
+        } catch (NumberFormatException nfEx) {
+            LOG.warn("Invalid numeric plugin property value [{}], using default [{}].", value, defaultValue);
+            return Long.parseLong(defaultValue);
+        }
+    }
+
+    private boolean isOwnedByThisClusterMember(
+            final NotificationLeaseManager notificationLeaseManager,
+            final String executionId,
+            final String trigger,
+            final String room) {
+        if (notificationLeaseManager == null) {
+            return true;
+        }
+
+        try {
+            return notificationLeaseManager.tryAcquire(executionId, trigger, room);
+        } catch (HipChatNotificationPluginException ex) {
+            // a possible duplicate message is preferable to a lost one
+            LOG.warn("Unable to acquire notification lease for room [{}], sending anyway.", room, ex);
+            return true;
+        }
+    }
+
+    /**
+     * Sends a notification to a single room on a delivery engine worker thread. The API auth token is picked from the
+     * room's token pool when the notification is sent, and if HipChat rejects it, the next token of the pool is tried.
+     */
+    private final class RoomNotificationDelivery implements Callable<Boolean> {
+
+        private final HipChatRoomNotifier hipChatRoomNotifier;
+        private final String room;
+        private final String message;
+        private final String color;
+        private final HipChatApiAuthTokenManager hipChatApiAuthTokenManager;
+        private final NotificationTrace trace;
+
+        private RoomNotificationDelivery(
+                final HipChatRoomNotifier hipChatRoomNotifier,
+                final String room,
+                final String message,
+                final String color,
+                final HipChatApiAuthTokenManager hipChatApiAuthTokenManager,
+                final NotificationTrace trace) {
+            this.hipChatRoomNotifier = hipChatRoomNotifier;
+            this.room = room;
+            this.message = message;
+            this.color = color;
+            this.hipChatApiAuthTokenManager = hipChatApiAuthTokenManager;
+            this.trace = trace;
+        }
+
+        @Override
+        public Boolean call() {
+            if (trace != null) {
+                trace.attach();
+            }
+            try {
+                final int apiAuthTokenCount = hipChatApiAuthTokenManager.getApiAuthTokenCountForRoom(room);
+                final KeyStorageTokenCache keyStorageTokenCache = getKeyStorageTokenCache();
+                for (int attempt = 1; ; attempt++) {
+                    // token health is kept by the configured token, which may be a Key Storage path
+                    final String configuredApiAuthToken = hipChatApiAuthTokenManager.getApiAuthTokenForRoom(room);
+                    final String apiAuthToken = keyStorageTokenCache.resolve(configuredApiAuthToken);
+                    try {
+                        hipChatRoomNotifier.sendRoomNotification(hipchatServerBaseUrl, room, message, color, apiAuthToken, sendUserNotification);
+                        return true;
+
+                    } catch (HipChatApiAuthTokenRejectedException tokenRejectedEx) {
+                        HipChatApiAuthTokenManager.reportApiAuthTokenRejected(configuredApiAuthToken, tokenRejectedEx.getResponseCode());
+                        if (attempt >= apiAuthTokenCount) {
+                            throw tokenRejectedEx;
+                        }
+                        if (NegativeCachingRoomNotifier.isSuppressed(tokenRejectedEx)) {
+                            continue;
+                        }
+                        LOG.warn("HipChat rejected an API Auth Token for room [{}] with response code [{}], trying another token from the pool.",
+                                room, tokenRejectedEx.getResponseCode());
+                    }
+                }
+
+            } catch (Exception ex) {
+                if (NegativeCachingRoomNotifier.isSuppressed(ex)) {
+                    // the cache warns about these itself
+                    LOG.debug("HipChat notification to room [{}] suppressed: {}", room, ex.getMessage());
+                } else {
+                    LOG.error("Error sending HipChat notification to room: [{}]", room, ex);
+                }
+                return false;
+
+            } finally {
+                NotificationTrace.detach();
+            }
+        }
+
+    }
+
 }
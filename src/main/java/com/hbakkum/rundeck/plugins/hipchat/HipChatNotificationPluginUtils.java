@@ -1,15 +1,22 @@
 package com.hbakkum.rundeck.plugins.hipchat;
 
+import com.hbakkum.rundeck.plugins.hipchat.http.HttpResponse;
+
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
 import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.util.UUID;
+import java.util.regex.Pattern;
 
 /**
  * @author Hayden Bakkum
  */
 public final class HipChatNotificationPluginUtils {
 
+    private static final Pattern AUTH_TOKEN_PARAMETER = Pattern.compile("(auth_token=)[^&\\s\\]]*");
+
     public static String urlEncode(String s) {
         try {
             return URLEncoder.encode(s, "UTF-8").replace("+", "%20");
@@ -22,7 +29,33 @@ public final class HipChatNotificationPluginUtils {
         try {
             return connection.getResponseCode();
         } catch (IOException ioEx) {
-            throw new HipChatNotificationPluginException("Failed to obtain HTTP response from HipChat server: [" + ioEx.getMessage() + "].", ioEx);
+            throw new HipChatServerUnavailableException("Failed to obtain HTTP response from HipChat server: [" + redactAuthToken(ioEx.getMessage()) + "].", ioEx);
+        }
+    }
+
+    /**
+     * @return the text with the value of any auth_token URL parameter in it replaced, so that it can be logged
+     */
+    public static String redactAuthToken(final String text) {
+        return text == null ? null : AUTH_TOKEN_PARAMETER.matcher(text).replaceAll("$1REDACTED");
+    }
+
+    /**
+     * @return true, if the response shows the API auth token was invalid or rate limited rather than the request
+     */
+    public static boolean isAuthTokenRejected(final HttpResponse httpResponse) {
+        return httpResponse.getResponseCode() == HttpResponse.STATUS__UNAUTHORIZED
+                || httpResponse.getResponseCode() == HttpResponse.STATUS__TOO_MANY_REQUESTS;
+    }
+
+    /**
+     * @return the job's UUID, or a UUID derived from the job ID if it isn't one
+     */
+    public static UUID toJobUuid(final String jobId) {
+        try {
+            return UUID.fromString(jobId);
+        } catch (IllegalArgumentException notUuidEx) {
+            return UUID.nameUUIDFromBytes(jobId.getBytes(Charset.forName("UTF-8")));
         }
     }
 
@@ -0,0 +1,18 @@
+package com.hbakkum.rundeck.plugins.hipchat;
+
+/**
+ * Thrown when the HipChat API reports that the room to notify does not exist (404), e.g. because it was deleted or
+ * renamed. Retrying won't help until the room or the plugin configuration changes.
+ */
+public class HipChatRoomNotFoundException extends HipChatNotificationPluginException {
+
+    /**
+     * Constructor.
+     *
+     * @param message error message
+     */
+    public HipChatRoomNotFoundException(String message) {
+        super(message);
+    }
+
+}
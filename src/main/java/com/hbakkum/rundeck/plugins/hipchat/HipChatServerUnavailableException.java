@@ -0,0 +1,29 @@
+package com.hbakkum.rundeck.plugins.hipchat;
+
+/**
+ * Thrown when the HipChat server could not be reached or failed to process a request (connection failure or 5xx
+ * response), as opposed to rejecting the request itself. Only errors of this type count against the health of a
+ * HipChat endpoint.
+ */
+public class HipChatServerUnavailableException extends HipChatNotificationPluginException {
+
+    /**
+     * Constructor.
+     *
+     * @param message error message
+     */
+    public HipChatServerUnavailableException(String message) {
+        super(message);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param message error message
+     * @param cause exception cause
+     */
+    public HipChatServerUnavailableException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+}
@@ -0,0 +1,122 @@
+package com.hbakkum.rundeck.plugins.hipchat;
+
+import com.hbakkum.rundeck.plugins.hipchat.duration.DurationAssessment;
+import com.hbakkum.rundeck.plugins.hipchat.logtail.ExecutionLogExcerpt;
+import com.hbakkum.rundeck.plugins.hipchat.template.TemplateExecutionBudget;
+
+import java.util.Map;
+
+/**
+ * Everything {@link HipChatNotificationMessageGenerator} needs to generate a notification message. The template and
+ * the execution are given up front; everything else is optional and defaults to no log excerpt, an unknown duration
+ * assessment, the default template execution budget and no proxy.
+ */
+public class NotificationMessageRequest {
+
+    private final String messageTemplateLocation;
+
+    private final String defaultMessageTemplateName;
+
+    private final String trigger;
+
+    private final Map executionData;
+
+    private final Map config;
+
+    private TemplateExecutionBudget budget = TemplateExecutionBudget.DEFAULT;
+
+    private ExecutionLogExcerpt logExcerpt = ExecutionLogExcerpt.EMPTY;
+
+    private DurationAssessment durationAssessment = DurationAssessment.UNKNOWN;
+
+    private String proxyHost;
+
+    private String proxyPort;
+
+    /**
+     * @param messageTemplateLocation custom message template file or http(s) URL, or null to use the default template
+     */
+    public NotificationMessageRequest(
+            final String messageTemplateLocation,
+            final String defaultMessageTemplateName,
+            final String trigger,
+            final Map executionData,
+            final Map config) {
+        this.messageTemplateLocation = messageTemplateLocation;
+        this.defaultMessageTemplateName = defaultMessageTemplateName;
+        this.trigger = trigger;
+        this.executionData = executionData;
+        this.config = config;
+    }
+
+    public NotificationMessageRequest withBudget(final TemplateExecutionBudget budget) {
+        this.budget = budget;
+        return this;
+    }
+
+    /**
+     * @param logExcerpt tail of the execution log, available to the template as "logExcerpt"; may be null
+     */
+    public NotificationMessageRequest withLogExcerpt(final ExecutionLogExcerpt logExcerpt) {
+        this.logExcerpt = logExcerpt == null ? ExecutionLogExcerpt.EMPTY : logExcerpt;
+        return this;
+    }
+
+    /**
+     * @param durationAssessment available to the template as "durationPercentile" and "isSlowRun"
+     */
+    public NotificationMessageRequest withDurationAssessment(final DurationAssessment durationAssessment) {
+        this.durationAssessment = durationAssessment;
+        return this;
+    }
+
+    /**
+     * @param proxyHost proxy that an http(s) message template is fetched through, if both host and port are given
+     */
+    public NotificationMessageRequest withProxy(final String proxyHost, final String proxyPort) {
+        this.proxyHost = proxyHost;
+        this.proxyPort = proxyPort;
+        return this;
+    }
+
+    public String getMessageTemplateLocation() {
+        return messageTemplateLocation;
+    }
+
+    public String getDefaultMessageTemplateName() {
+        return defaultMessageTemplateName;
+    }
+
+    public String getTrigger() {
+        return trigger;
+    }
+
+    public Map getExecutionData() {
+        return executionData;
+    }
+
+    public Map getConfig() {
+        return config;
+    }
+
+    public TemplateExecutionBudget getBudget() {
+        return budget;
+    }
+
+    public ExecutionLogExcerpt getLogExcerpt() {
+        return logExcerpt;
+    }
+
+    public DurationAssessment getDurationAssessment() {
+        return durationAssessment;
+    }
+
+    public String getProxyHost() {
+        return proxyHost;
+    }
+
+    public String getProxyPort() {
+        return proxyPort;
+    }
+
+}
@@ -0,0 +1,134 @@
+package com.hbakkum.rundeck.plugins.hipchat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Matches room names against prefix patterns ("ops-*"), picking the value of the longest pattern that matches.
+ *
+ * Patterns are added to a build tree and then compiled into arrays, one sorted array of child characters per node,
+ * so that a match walks the room name once, binary searching each node's children, and allocates nothing.
+ *
+ * @param <V> type of value matched
+ */
+final class RoomPatternTrie<V> {
+
+    private final BuildNode root = new BuildNode();
+
+    private char[][] childKeys;
+
+    private int[][] childNodes;
+
+    private Object[] values;
+
+    private int patternCount;
+
+    /**
+     * @return true, if the room pattern is a prefix pattern, i.e. ends with '*'
+     */
+    static boolean isPrefixPattern(final String roomPattern) {
+        return roomPattern.endsWith("*");
+    }
+
+    /**
+     * Adds a prefix pattern. A later pattern replaces an earlier one with the same prefix.
+     */
+    void put(final String roomPattern, final V value) {
+        BuildNode node = root;
+        for (int i = 0; i < roomPattern.length() - 1; i++) {
+            final char c = roomPattern.charAt(i);
+            BuildNode child = node.children.get(c);
+            if (child == null) {
+                child = new BuildNode();
+                node.children.put(c, child);
+            }
+            node = child;
+        }
+        node.value = value;
+        patternCount++;
+        childKeys = null;
+    }
+
+    boolean isEmpty() {
+        return patternCount == 0;
+    }
+
+    /**
+     * Compiles the patterns added so far. Must be called before {@link #match(String)}.
+     */
+    void compile() {
+        final List<BuildNode> nodes = new ArrayList<BuildNode>();
+        nodes.add(root);
+        // breadth first, numbering nodes in the order they are reached
+        for (int i = 0; i < nodes.size(); i++) {
+            nodes.get(i).index = i;
+            nodes.addAll(nodes.get(i).children.values());
+        }
+
+        childKeys = new char[nodes.size()][];
+        childNodes = new int[nodes.size()][];
+        values = new Object[nodes.size()];
+        for (final BuildNode node : nodes) {
+            final char[] keys = new char[node.children.size()];
+            final int[] children = new int[node.children.size()];
+            int i = 0;
+            for (final Map.Entry<Character, BuildNode> child : node.children.entrySet()) {
+                keys[i] = child.getKey();
+                children[i] = child.getValue().index;
+                i++;
+            }
+            childKeys[node.index] = keys;
+            childNodes[node.index] = children;
+            values[node.index] = node.value;
+        }
+    }
+
+    /**
+     * @return value of the longest pattern matching the room, or null if none does
+     */
+    @SuppressWarnings("unchecked")
+    V match(final String room) {
+        int node = 0;
+        Object matched = values[0];
+        for (int i = 0; i < room.length(); i++) {
+            node = child(node, room.charAt(i));
+            if (node < 0) {
+                break;
+            }
+            if (values[node] != null) {
+                matched = values[node];
+            }
+        }
+        return (V) matched;
+    }
+
+    private int child(final int node, final char c) {
+        final char[] keys = childKeys[node];
+        int low = 0;
+        int high = keys.length - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            if (keys[mid] < c) {
+                low = mid + 1;
+            } else if (keys[mid] > c) {
+                high = mid - 1;
+            } else {
+                return childNodes[node][mid];
+            }
+        }
+        return -1;
+    }
+
+    private static final class BuildNode {
+
+        private final TreeMap<Character, BuildNode> children = new TreeMap<Character, BuildNode>();
+
+        private Object value;
+
+        private int index;
+
+    }
+
+}
@@ -0,0 +1,221 @@
+package com.hbakkum.rundeck.plugins.hipchat.capture;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Appends workload snapshots to a rolling capture file from a background thread, so that capturing never blocks a
+ * notification. Snapshots are queued without waiting; when the queue is full (the disk can't keep up) the snapshot is
+ * dropped and counted instead.
+ *
+ * Once the capture file reaches its maximum size it is renamed to capture-file.1, shifting older files up to the
+ * maximum number kept, and a new capture file is started.
+ */
+public class WorkloadCaptureWriter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WorkloadCaptureWriter.class);
+
+    public static final long DEFAULT_MAX_FILE_BYTES = 10 * 1024 * 1024;
+    public static final int DEFAULT_MAX_FILES = 5;
+
+    private static final int QUEUE_CAPACITY = 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final ConcurrentMap<String, WorkloadCaptureWriter> WRITERS = new ConcurrentHashMap<String, WorkloadCaptureWriter>();
+
+    private final File captureFile;
+
+    private final BlockingQueue<String> queuedSnapshots = new ArrayBlockingQueue<String>(QUEUE_CAPACITY);
+
+    private final AtomicLong writtenCount = new AtomicLong();
+
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    private final Thread writerThread;
+
+    private volatile long maxFileBytes;
+
+    private volatile int maxFiles;
+
+    private volatile boolean closed;
+
+    // accessed by the writer thread only
+    private Writer captureFileWriter;
+
+    private long captureFileBytes;
+
+    private int unflushedCount;
+
+    WorkloadCaptureWriter(final File captureFile, final long maxFileBytes, final int maxFiles) {
+        this.captureFile = captureFile;
+        configure(maxFileBytes, maxFiles);
+
+        this.writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeQueuedSnapshots();
+            }
+        }, "hipchat-workload-capture");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    /**
+     * Returns the writer for the given capture file, creating it on first use.
+     */
+    public static WorkloadCaptureWriter forFile(final String captureFilePath, final long maxFileBytes, final int maxFiles) {
+        WorkloadCaptureWriter writer = WRITERS.get(captureFilePath);
+        if (writer == null) {
+            final WorkloadCaptureWriter newWriter = new WorkloadCaptureWriter(new File(captureFilePath), maxFileBytes, maxFiles);
+            writer = WRITERS.putIfAbsent(captureFilePath, newWriter);
+            if (writer == null) {
+                writer = newWriter;
+            } else {
+                newWriter.close();
+            }
+        }
+        writer.configure(maxFileBytes, maxFiles);
+        return writer;
+    }
+
+    public void configure(final long maxFileBytes, final int maxFiles) {
+        this.maxFileBytes = Math.max(1, maxFileBytes);
+        this.maxFiles = Math.max(1, maxFiles);
+    }
+
+    /**
+     * Queues a snapshot, a single line of JSON, to be written to the capture file.
+     *
+     * @return false, if the snapshot was dropped because the queue is full
+     */
+    public boolean append(final String snapshot) {
+        if (closed || !queuedSnapshots.offer(snapshot)) {
+            droppedCount.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    public long getWrittenCount() {
+        return writtenCount.get();
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * Stops the writer thread once the snapshots already queued are written.
+     */
+    void close() {
+        closed = true;
+        writerThread.interrupt();
+    }
+
+    private void writeQueuedSnapshots() {
+        try {
+            while (!closed || !queuedSnapshots.isEmpty()) {
+                String snapshot;
+                try {
+                    snapshot = queuedSnapshots.poll(1, TimeUnit.SECONDS);
+                } catch (InterruptedException interruptedEx) {
+                    snapshot = queuedSnapshots.poll();
+                }
+                if (snapshot == null) {
+                    continue;
+                }
+
+                write(snapshot);
+                // write everything already queued before flushing
+                while ((snapshot = queuedSnapshots.poll()) != null) {
+                    write(snapshot);
+                }
+                flush();
+            }
+        } finally {
+            closeCaptureFile();
+        }
+    }
+
+    private void write(final String snapshot) {
+        try {
+            if (captureFileWriter != null && captureFileBytes >= maxFileBytes) {
+                roll();
+            }
+            if (captureFileWriter == null) {
+                captureFileBytes = captureFile.length();
+                captureFileWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(captureFile, true), UTF_8));
+            }
+
+            captureFileWriter.write(snapshot);
+            captureFileWriter.write('\n');
+            // counts chars rather than encoded bytes, close enough to decide when to roll
+            captureFileBytes += snapshot.length() + 1;
+            unflushedCount++;
+
+        } catch (IOException ioEx) {
+            LOG.warn("Unable to write workload snapshot to [{}].", captureFile, ioEx);
+            droppedCount.incrementAndGet();
+            flush();
+        }
+    }
+
+    private void flush() {
+        if (captureFileWriter == null) {
+            return;
+        }
+        try {
+            captureFileWriter.flush();
+            writtenCount.addAndGet(unflushedCount);
+        } catch (IOException ioEx) {
+            LOG.warn("Unable to flush workload capture file [{}].", captureFile, ioEx);
+            droppedCount.addAndGet(unflushedCount);
+            closeCaptureFile();
+        }
+        unflushedCount = 0;
+    }
+
+    private void roll() {
+        flush();
+        closeCaptureFile();
+
+        final int maxFiles = this.maxFiles;
+        new File(captureFile.getPath() + "." + (maxFiles - 1)).delete();
+        for (int i = maxFiles - 2; i >= 1; i--) {
+            new File(captureFile.getPath() + "." + i).renameTo(new File(captureFile.getPath() + "." + (i + 1)));
+        }
+        if (maxFiles > 1) {
+            captureFile.renameTo(new File(captureFile.getPath() + ".1"));
+        } else {
+            captureFile.delete();
+        }
+    }
+
+    private void closeCaptureFile() {
+        if (captureFileWriter == null) {
+            return;
+        }
+        try {
+            captureFileWriter.close();
+        } catch (IOException ioEx) {
+            LOG.debug("Error closing workload capture file [{}].", captureFile, ioEx);
+        }
+        captureFileWriter = null;
+    }
+
+}
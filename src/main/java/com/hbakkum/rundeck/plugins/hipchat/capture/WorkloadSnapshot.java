@@ -0,0 +1,185 @@
+package com.hbakkum.rundeck.plugins.hipchat.capture;
+
+import org.codehaus.jackson.node.ArrayNode;
+import org.codehaus.jackson.node.JsonNodeFactory;
+import org.codehaus.jackson.node.ObjectNode;
+
+import java.lang.reflect.Array;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Builds the JSON snapshot of a single notification that is written to the workload capture file:
+ *
+ * {"capturedAt": 1400000000000, "trigger": "failure", "templateLocation": "...", "roomCount": 2, "messageLength": 812,
+ *  "totalMillis": 240, "phaseMillis": {"token-resolution": 0, "template-render": 12, "http-request": 220},
+ *  "execution": {...}, "config": {...}}
+ *
+ * Execution data and config are scrubbed: values of keys that look like credentials are masked, long strings are cut
+ * short (keeping their original length), and large or deeply nested collections are trimmed. A snapshot that is still
+ * larger than the maximum size has its execution data and config replaced with a note of their size.
+ */
+public class WorkloadSnapshot {
+
+    public static final int MAX_SNAPSHOT_CHARS = 64 * 1024;
+
+    static final String MASKED_VALUE = "****";
+
+    private static final Pattern SENSITIVE_KEY = Pattern.compile("(?i).*(password|passwd|secret|token|credential|private|authorization).*");
+
+    private static final int MAX_STRING_LENGTH = 256;
+    private static final int MAX_COLLECTION_SIZE = 200;
+    private static final int MAX_DEPTH = 8;
+
+    private final ObjectNode snapshot = JsonNodeFactory.instance.objectNode();
+
+    public WorkloadSnapshot(final String trigger, final String templateLocation) {
+        snapshot.put("capturedAt", System.currentTimeMillis());
+        snapshot.put("trigger", trigger);
+        snapshot.put("templateLocation", templateLocation);
+    }
+
+    public WorkloadSnapshot setDelivery(final int roomCount, final int messageLength) {
+        snapshot.put("roomCount", roomCount);
+        snapshot.put("messageLength", messageLength);
+        return this;
+    }
+
+    public WorkloadSnapshot setTimings(final long totalMillis, final Map<String, Long> phaseMillis) {
+        snapshot.put("totalMillis", totalMillis);
+        final ObjectNode phases = snapshot.putObject("phaseMillis");
+        for (final Map.Entry<String, Long> phase : phaseMillis.entrySet()) {
+            phases.put(phase.getKey(), phase.getValue());
+        }
+        return this;
+    }
+
+    public WorkloadSnapshot setExecutionData(final Map executionData, final Map config) {
+        snapshot.put("execution", scrub(executionData, 0));
+        snapshot.put("config", scrub(config, 0));
+        return this;
+    }
+
+    /**
+     * @return the snapshot as a single line of JSON, no longer than {@link #MAX_SNAPSHOT_CHARS}
+     */
+    public String toJson() {
+        final String json = snapshot.toString();
+        if (json.length() <= MAX_SNAPSHOT_CHARS) {
+            return json;
+        }
+
+        final ObjectNode truncatedSnapshot = JsonNodeFactory.instance.objectNode();
+        truncatedSnapshot.putAll(snapshot);
+        truncatedSnapshot.remove("execution");
+        truncatedSnapshot.remove("config");
+        truncatedSnapshot.put("truncatedChars", json.length());
+        return truncatedSnapshot.toString();
+    }
+
+    private static ObjectNode scrub(final Map map, final int depth) {
+        final ObjectNode node = JsonNodeFactory.instance.objectNode();
+        if (map == null) {
+            return node;
+        }
+
+        int entries = 0;
+        for (final Object entryObject : map.entrySet()) {
+            final Map.Entry entry = (Map.Entry) entryObject;
+            if (entries++ == MAX_COLLECTION_SIZE) {
+                node.put("...", map.size() - MAX_COLLECTION_SIZE);
+                break;
+            }
+
+            final String key = String.valueOf(entry.getKey());
+            if (entry.getValue() != null && SENSITIVE_KEY.matcher(key).matches()) {
+                node.put(key, MASKED_VALUE);
+            } else {
+                putValue(node, key, entry.getValue(), depth + 1);
+            }
+        }
+        return node;
+    }
+
+    private static ArrayNode scrub(final Iterator<?> values, final int size, final int depth) {
+        final ArrayNode node = JsonNodeFactory.instance.arrayNode();
+        int entries = 0;
+        while (values.hasNext()) {
+            if (entries++ == MAX_COLLECTION_SIZE) {
+                node.add("... " + (size - MAX_COLLECTION_SIZE) + " more");
+                break;
+            }
+            addValue(node, values.next(), depth + 1);
+        }
+        return node;
+    }
+
+    private static void putValue(final ObjectNode node, final String key, final Object value, final int depth) {
+        if (value == null) {
+            node.putNull(key);
+        } else if (value instanceof Boolean) {
+            node.put(key, ((Boolean) value).booleanValue());
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            node.put(key, ((Number) value).longValue());
+        } else if (value instanceof Number) {
+            node.put(key, ((Number) value).doubleValue());
+        } else if (value instanceof Date) {
+            node.put(key, ((Date) value).getTime());
+        } else if (depth > MAX_DEPTH) {
+            node.put(key, "...");
+        } else if (value instanceof Map) {
+            node.put(key, scrub((Map) value, depth));
+        } else if (value instanceof Collection) {
+            node.put(key, scrub(((Collection<?>) value).iterator(), ((Collection<?>) value).size(), depth));
+        } else if (value.getClass().isArray()) {
+            node.put(key, scrub(new ArrayIterator(value), Array.getLength(value), depth));
+        } else {
+            node.put(key, truncate(value.toString()));
+        }
+    }
+
+    private static void addValue(final ArrayNode node, final Object value, final int depth) {
+        // reuse the object rules through a single entry holder, keeping one place that knows how values are scrubbed
+        final ObjectNode holder = JsonNodeFactory.instance.objectNode();
+        putValue(holder, "value", value, depth);
+        node.add(holder.get("value"));
+    }
+
+    private static String truncate(final String value) {
+        if (value.length() <= MAX_STRING_LENGTH) {
+            return value;
+        }
+        return value.substring(0, MAX_STRING_LENGTH) + "...[" + value.length() + " chars]";
+    }
+
+    private static final class ArrayIterator implements Iterator<Object> {
+
+        private final Object array;
+
+        private int index;
+
+        private ArrayIterator(final Object array) {
+            this.array = array;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return index < Array.getLength(array);
+        }
+
+        @Override
+        public Object next() {
+            return Array.get(array, index++);
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+    }
+
+}
@@ -0,0 +1,19 @@
+package com.hbakkum.rundeck.plugins.hipchat.circuitbreaker;
+
+import com.hbakkum.rundeck.plugins.hipchat.HipChatServerUnavailableException;
+
+/**
+ * Thrown instead of calling a HipChat endpoint when its circuit breaker is open or its bulkhead is full.
+ */
+public class CallNotPermittedException extends HipChatServerUnavailableException {
+
+    /**
+     * Constructor.
+     *
+     * @param message error message
+     */
+    public CallNotPermittedException(String message) {
+        super(message);
+    }
+
+}
@@ -0,0 +1,218 @@
+package com.hbakkum.rundeck.plugins.hipchat.circuitbreaker;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Count based circuit breaker. Outcomes of the most recent calls are kept in a fixed size window; once the window
+ * holds enough calls and either the failure rate or the slow call rate reaches its threshold, the breaker opens and
+ * rejects calls until the open duration has passed. It then lets a limited number of trial calls through
+ * (half-open) and closes again only if those calls are healthy.
+ *
+ * A call that is still running once it has taken longer than the slow call duration can be recorded as slow straight
+ * away, so that hung calls count against the endpoint and a hung half-open trial call can't keep the breaker from
+ * deciding.
+ */
+public class CircuitBreaker {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private static final byte OUTCOME_FAILED = 1;
+    private static final byte OUTCOME_SLOW = 2;
+
+    private final String name;
+
+    private final int minimumCalls;
+
+    private final int failureRateThreshold;
+
+    private final long slowCallDurationNanos;
+
+    private final int slowCallRateThreshold;
+
+    private final long openDurationNanos;
+
+    private final int halfOpenPermittedCalls;
+
+    // ring buffer of call outcomes, one bit flag set per outcome
+    private final byte[] outcomes;
+
+    private int outcomeIndex;
+
+    private int recordedCalls;
+
+    private int failedCalls;
+
+    private int slowCalls;
+
+    private State state = State.CLOSED;
+
+    private long openedAtNanos;
+
+    private int halfOpenCallsPermitted;
+
+    private int halfOpenCallsCompleted;
+
+    public CircuitBreaker(
+            final String name,
+            final int windowSize,
+            final int minimumCalls,
+            final int failureRateThreshold,
+            final long slowCallDurationMillis,
+            final int slowCallRateThreshold,
+            final long openDurationMillis,
+            final int halfOpenPermittedCalls) {
+        this.name = name;
+        this.outcomes = new byte[windowSize];
+        this.minimumCalls = Math.min(minimumCalls, windowSize);
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallDurationNanos = TimeUnit.MILLISECONDS.toNanos(slowCallDurationMillis);
+        this.slowCallRateThreshold = slowCallRateThreshold;
+        this.openDurationNanos = TimeUnit.MILLISECONDS.toNanos(openDurationMillis);
+        this.halfOpenPermittedCalls = halfOpenPermittedCalls;
+    }
+
+    /**
+     * @return true, if a call may be made now. Every permitted call must be followed by {@link #onSuccess(long)},
+     * {@link #onFailure(long)} or {@link #onSlowCallInFlight()}.
+     */
+    public synchronized boolean tryAcquirePermission() {
+        if (state == State.OPEN) {
+            if (System.nanoTime() - openedAtNanos < openDurationNanos) {
+                return false;
+            }
+            transitionTo(State.HALF_OPEN);
+        }
+
+        if (state == State.HALF_OPEN) {
+            if (halfOpenCallsPermitted >= halfOpenPermittedCalls) {
+                return false;
+            }
+            halfOpenCallsPermitted++;
+        }
+
+        return true;
+    }
+
+    /**
+     * Gives back the permission for a call that never reached the endpoint, without recording an outcome.
+     */
+    public synchronized void releasePermission() {
+        if (state == State.HALF_OPEN && halfOpenCallsPermitted > 0) {
+            halfOpenCallsPermitted--;
+        }
+    }
+
+    public void onSuccess(final long durationNanos) {
+        onCallCompleted(false, durationNanos);
+    }
+
+    public void onFailure(final long durationNanos) {
+        onCallCompleted(true, durationNanos);
+    }
+
+    /**
+     * Records a call that has taken longer than the slow call duration and is still running, as a slow call that
+     * didn't fail. The call's eventual outcome must then not be recorded.
+     */
+    public void onSlowCallInFlight() {
+        onCallCompleted(false, slowCallDurationNanos);
+    }
+
+    public long getSlowCallDurationMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(slowCallDurationNanos);
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    private synchronized void onCallCompleted(final boolean failed, final long durationNanos) {
+        if (state == State.OPEN) {
+            // call was permitted before the breaker opened, its outcome is already accounted for
+            return;
+        }
+
+        recordOutcome(failed, durationNanos >= slowCallDurationNanos);
+
+        if (state == State.HALF_OPEN) {
+            halfOpenCallsCompleted++;
+            if (isThresholdExceeded(halfOpenCallsCompleted)) {
+                transitionTo(State.OPEN);
+            } else if (halfOpenCallsCompleted >= halfOpenPermittedCalls) {
+                transitionTo(State.CLOSED);
+            }
+        } else if (recordedCalls >= minimumCalls && isThresholdExceeded(recordedCalls)) {
+            transitionTo(State.OPEN);
+        }
+    }
+
+    private void recordOutcome(final boolean failed, final boolean slow) {
+        final byte outcome = (byte) ((failed ? OUTCOME_FAILED : 0) | (slow ? OUTCOME_SLOW : 0));
+
+        if (recordedCalls == outcomes.length) {
+            final byte evictedOutcome = outcomes[outcomeIndex];
+            if ((evictedOutcome & OUTCOME_FAILED) != 0) {
+                failedCalls--;
+            }
+            if ((evictedOutcome & OUTCOME_SLOW) != 0) {
+                slowCalls--;
+            }
+        } else {
+            recordedCalls++;
+        }
+
+        outcomes[outcomeIndex] = outcome;
+        outcomeIndex = (outcomeIndex + 1) % outcomes.length;
+        if (failed) {
+            failedCalls++;
+        }
+        if (slow) {
+            slowCalls++;
+        }
+    }
+
+    private boolean isThresholdExceeded(final int calls) {
+        return failedCalls * 100 >= failureRateThreshold * calls
+                || slowCalls * 100 >= slowCallRateThreshold * calls;
+    }
+
+    private void transitionTo(final State newState) {
+        final State previousState = state;
+        final int failureRate = recordedCalls == 0 ? 0 : failedCalls * 100 / recordedCalls;
+        final int slowCallRate = recordedCalls == 0 ? 0 : slowCalls * 100 / recordedCalls;
+
+        state = newState;
+        if (newState == State.OPEN) {
+            openedAtNanos = System.nanoTime();
+        }
+        halfOpenCallsPermitted = 0;
+        halfOpenCallsCompleted = 0;
+        if (newState != State.OPEN) {
+            resetWindow();
+        }
+
+        if (newState == State.OPEN) {
+            LOG.warn("Circuit breaker [{}] changed from {} to OPEN (failure rate {}%, slow call rate {}%), failing calls fast for {}ms.",
+                    new Object[] { name, previousState, failureRate, slowCallRate, TimeUnit.NANOSECONDS.toMillis(openDurationNanos) });
+        } else {
+            LOG.info("Circuit breaker [{}] changed from {} to {}.", new Object[] { name, previousState, newState });
+        }
+    }
+
+    private void resetWindow() {
+        outcomeIndex = 0;
+        recordedCalls = 0;
+        failedCalls = 0;
+        slowCalls = 0;
+    }
+
+}
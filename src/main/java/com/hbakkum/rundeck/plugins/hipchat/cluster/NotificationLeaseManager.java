@@ -0,0 +1,123 @@
+package com.hbakkum.rundeck.plugins.hipchat.cluster;
+
+import com.hbakkum.rundeck.plugins.hipchat.HipChatNotificationPluginException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coordinates which Rundeck cluster member sends a given room notification. Members share a lease directory
+ * (e.g. an NFS mount) and the first member to create the lease file for an (execution id, trigger, room) tuple
+ * owns that notification - all other members skip it.
+ *
+ * Lease files are empty and created with an atomic create-if-absent, so acquiring a lease is a single metadata
+ * operation with no data written or synced. Leases older than the lease TTL are swept lazily by whichever member
+ * next acquires a lease once the sweep interval has passed.
+ */
+public class NotificationLeaseManager {
+
+    private static final Logger LOG = LoggerFactory.getLogger(NotificationLeaseManager.class);
+
+    private static final long DEFAULT_LEASE_TTL_MILLIS = TimeUnit.HOURS.toMillis(24);
+
+    private static final String LEASE_FILE_SUFFIX = ".lease";
+
+    private static final ConcurrentMap<String, NotificationLeaseManager> LEASE_MANAGERS = new ConcurrentHashMap<String, NotificationLeaseManager>();
+
+    private final File leaseDirectory;
+
+    private final long leaseTtlMillis;
+
+    private final AtomicLong nextSweepTimeMillis;
+
+    public NotificationLeaseManager(final File leaseDirectory, final long leaseTtlMillis) {
+        this.leaseDirectory = leaseDirectory;
+        this.leaseTtlMillis = leaseTtlMillis;
+        this.nextSweepTimeMillis = new AtomicLong(System.currentTimeMillis() + leaseTtlMillis);
+
+        if (!leaseDirectory.isDirectory() && !leaseDirectory.mkdirs() && !leaseDirectory.isDirectory()) {
+            throw new HipChatNotificationPluginException("Unable to create notification lease directory: [" + leaseDirectory + "].");
+        }
+    }
+
+    /**
+     * Returns the lease manager for the given shared directory, creating it on first use.
+     */
+    public static NotificationLeaseManager forDirectory(final String leaseDirectory) {
+        NotificationLeaseManager leaseManager = LEASE_MANAGERS.get(leaseDirectory);
+        if (leaseManager == null) {
+            final NotificationLeaseManager newLeaseManager = new NotificationLeaseManager(new File(leaseDirectory), DEFAULT_LEASE_TTL_MILLIS);
+            leaseManager = LEASE_MANAGERS.putIfAbsent(leaseDirectory, newLeaseManager);
+            if (leaseManager == null) {
+                leaseManager = newLeaseManager;
+            }
+        }
+        return leaseManager;
+    }
+
+    /**
+     * Attempts to take ownership of sending the notification for the given execution, trigger and room.
+     *
+     * @return true, if this member now owns the notification and should send it
+     */
+    public boolean tryAcquire(final String executionId, final String trigger, final String room) {
+        sweepExpiredLeasesIfDue();
+
+        final File leaseFile = new File(leaseDirectory, toLeaseFileName(executionId, trigger, room));
+        try {
+            return leaseFile.createNewFile();
+        } catch (IOException ioEx) {
+            throw new HipChatNotificationPluginException("Error acquiring notification lease: [" + leaseFile + "].", ioEx);
+        }
+    }
+
+    static String toLeaseFileName(final String executionId, final String trigger, final String room) {
+        // room names are user supplied and may contain characters that aren't safe in a file name. Escapes are a
+        // fixed 4 hex digits, so that no two room names map to the same file name
+        final StringBuilder leaseFileName = new StringBuilder(64)
+                .append(executionId)
+                .append('-')
+                .append(trigger)
+                .append('-');
+        for (int i = 0; i < room.length(); i++) {
+            final char c = room.charAt(i);
+            if (Character.isLetterOrDigit(c) || c == '-' || c == '_') {
+                leaseFileName.append(c);
+            } else {
+                leaseFileName.append(String.format("%%%04x", (int) c));
+            }
+        }
+        return leaseFileName.append(LEASE_FILE_SUFFIX).toString();
+    }
+
+    void sweepExpiredLeases() {
+        final long expiryTimeMillis = System.currentTimeMillis() - leaseTtlMillis;
+        final File[] leaseFiles = leaseDirectory.listFiles();
+        if (leaseFiles == null) {
+            return;
+        }
+
+        for (final File leaseFile : leaseFiles) {
+            if (leaseFile.getName().endsWith(LEASE_FILE_SUFFIX) && leaseFile.lastModified() < expiryTimeMillis) {
+                if (!leaseFile.delete() && leaseFile.exists()) {
+                    LOG.debug("Unable to delete expired notification lease: [{}]", leaseFile);
+                }
+            }
+        }
+    }
+
+    private void sweepExpiredLeasesIfDue() {
+        final long now = System.currentTimeMillis();
+        final long sweepTimeMillis = nextSweepTimeMillis.get();
+        if (now >= sweepTimeMillis && nextSweepTimeMillis.compareAndSet(sweepTimeMillis, now + leaseTtlMillis)) {
+            sweepExpiredLeases();
+        }
+    }
+
+}
@@ -0,0 +1,82 @@
+package com.hbakkum.rundeck.plugins.hipchat.delivery;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds back "start" notifications for a while, so that the start message of a job that finishes quickly can be
+ * dropped in favour of its success or failure message.
+ *
+ * Deferred notifications are keyed by execution and destination. If the final notification for the same key arrives
+ * before the delay expires, it cancels the deferred one; otherwise the start notification is sent when the delay
+ * expires.
+ */
+public class DeferredStartNotifications {
+
+    private static final DeferredStartNotifications INSTANCE = new DeferredStartNotifications(new HashedWheelTimer(100, TimeUnit.MILLISECONDS, 512));
+
+    private final HashedWheelTimer timer;
+
+    private final ConcurrentMap<String, HashedWheelTimer.Timeout> deferredNotifications = new ConcurrentHashMap<String, HashedWheelTimer.Timeout>();
+
+    public DeferredStartNotifications(final HashedWheelTimer timer) {
+        this.timer = timer;
+    }
+
+    public static DeferredStartNotifications getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Sends a start notification once the delay has passed, unless {@link #cancel(String)} is called for the same key
+     * first. The notification runs on the timer thread, so it should only queue its deliveries.
+     */
+    public void defer(final String key, final Runnable startNotification, final long delayMillis) {
+        final DeferredNotification deferredNotification = new DeferredNotification(key, startNotification);
+        final HashedWheelTimer.Timeout timeout = timer.schedule(deferredNotification, delayMillis, TimeUnit.MILLISECONDS);
+        deferredNotification.timeout = timeout;
+
+        final HashedWheelTimer.Timeout replacedTimeout = deferredNotifications.put(key, timeout);
+        if (replacedTimeout != null) {
+            replacedTimeout.cancel();
+        }
+    }
+
+    /**
+     * @return true, if a start notification for the key was still waiting and will now never be sent
+     */
+    public boolean cancel(final String key) {
+        final HashedWheelTimer.Timeout timeout = deferredNotifications.remove(key);
+        return timeout != null && timeout.cancel();
+    }
+
+    public int getPendingCount() {
+        return deferredNotifications.size();
+    }
+
+    private final class DeferredNotification implements Runnable {
+
+        private final String key;
+
+        private final Runnable startNotification;
+
+        private volatile HashedWheelTimer.Timeout timeout;
+
+        private DeferredNotification(final String key, final Runnable startNotification) {
+            this.key = key;
+            this.startNotification = startNotification;
+        }
+
+        @Override
+        public void run() {
+            final HashedWheelTimer.Timeout timeout = this.timeout;
+            if (timeout != null) {
+                deferredNotifications.remove(key, timeout);
+            }
+            startNotification.run();
+        }
+
+    }
+
+}
@@ -0,0 +1,249 @@
+package com.hbakkum.rundeck.plugins.hipchat.delivery;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs tasks after a delay using a hashed timer wheel, making scheduling and cancelling O(1) regardless of how many
+ * tasks are pending - suitable for large numbers of timeouts that are mostly cancelled before they expire.
+ *
+ * The wheel is an array of buckets, one per tick. A task is placed in the bucket its deadline falls into, along with
+ * the number of full turns of the wheel still to go. A single worker thread advances one bucket per tick, running the
+ * tasks whose last turn it is, so tasks run up to one tick late. Tasks run on the worker thread and must be quick.
+ */
+public class HashedWheelTimer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(HashedWheelTimer.class);
+
+    private static final int STATE_PENDING = 0;
+    private static final int STATE_CANCELLED = 1;
+    private static final int STATE_EXPIRED = 2;
+
+    private static final AtomicInteger TIMER_COUNT = new AtomicInteger();
+
+    private final long tickNanos;
+
+    private final Bucket[] wheel;
+
+    private final int wheelMask;
+
+    // timeouts scheduled since the worker last looked, so that only the worker touches the buckets
+    private final Queue<Timeout> scheduledTimeouts = new ConcurrentLinkedQueue<Timeout>();
+
+    private final AtomicBoolean started = new AtomicBoolean();
+
+    private final Thread workerThread;
+
+    private volatile boolean stopped;
+
+    private volatile long startNanos;
+
+    // accessed by the worker thread only
+    private long tick;
+
+    public HashedWheelTimer(final long tickDuration, final TimeUnit unit, final int ticksPerWheel) {
+        this.tickNanos = Math.max(1, unit.toNanos(tickDuration));
+        final int wheelSize = ticksPerWheel <= 1 ? 1 : Integer.highestOneBit(ticksPerWheel - 1) << 1;
+        this.wheel = new Bucket[wheelSize];
+        for (int i = 0; i < wheelSize; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.wheelMask = wheelSize - 1;
+
+        this.workerThread = new Thread(new Worker(), "hipchat-timer-" + TIMER_COUNT.incrementAndGet());
+        this.workerThread.setDaemon(true);
+    }
+
+    /**
+     * Runs the given task once the delay has passed, unless the returned timeout is cancelled first.
+     */
+    public Timeout schedule(final Runnable task, final long delay, final TimeUnit unit) {
+        if (stopped) {
+            throw new IllegalStateException("Timer has been stopped.");
+        }
+        start();
+
+        final Timeout timeout = new Timeout(task, System.nanoTime() - startNanos + unit.toNanos(delay));
+        scheduledTimeouts.add(timeout);
+        return timeout;
+    }
+
+    public void stop() {
+        stopped = true;
+        workerThread.interrupt();
+    }
+
+    private void start() {
+        if (started.get()) {
+            return;
+        }
+        synchronized (this) {
+            if (!started.get()) {
+                startNanos = System.nanoTime();
+                workerThread.start();
+                // published after startNanos, so any thread that sees the timer started sees its start time
+                started.set(true);
+            }
+        }
+    }
+
+    /**
+     * A scheduled task, which can be cancelled until it starts running.
+     */
+    public static final class Timeout {
+
+        private final Runnable task;
+
+        // nanoseconds after the timer started
+        private final long deadlineNanos;
+
+        private final AtomicInteger state = new AtomicInteger(STATE_PENDING);
+
+        private long remainingRounds;
+
+        private Timeout previous;
+
+        private Timeout next;
+
+        private Timeout(final Runnable task, final long deadlineNanos) {
+            this.task = task;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        /**
+         * @return true, if the task was cancelled before it started to run
+         */
+        public boolean cancel() {
+            // the worker unlinks cancelled timeouts when it next visits their bucket
+            return state.compareAndSet(STATE_PENDING, STATE_CANCELLED);
+        }
+
+        public boolean isCancelled() {
+            return state.get() == STATE_CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state.get() == STATE_EXPIRED;
+        }
+
+        private void expire() {
+            if (!state.compareAndSet(STATE_PENDING, STATE_EXPIRED)) {
+                return;
+            }
+            try {
+                task.run();
+            } catch (Throwable t) {
+                LOG.error("Error running timer task", t);
+            }
+        }
+
+    }
+
+    private static final class Bucket {
+
+        private Timeout head;
+
+        private Timeout tail;
+
+        private void add(final Timeout timeout) {
+            if (head == null) {
+                head = timeout;
+                tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.previous = tail;
+                tail = timeout;
+            }
+        }
+
+        private void expireTimeouts(final long nowNanos) {
+            Timeout timeout = head;
+            while (timeout != null) {
+                final Timeout next = timeout.next;
+                if (timeout.isCancelled()) {
+                    remove(timeout);
+                } else if (timeout.remainingRounds <= 0 && timeout.deadlineNanos <= nowNanos) {
+                    remove(timeout);
+                    timeout.expire();
+                } else {
+                    timeout.remainingRounds--;
+                }
+                timeout = next;
+            }
+        }
+
+        private void remove(final Timeout timeout) {
+            if (timeout.previous != null) {
+                timeout.previous.next = timeout.next;
+            } else {
+                head = timeout.next;
+            }
+            if (timeout.next != null) {
+                timeout.next.previous = timeout.previous;
+            } else {
+                tail = timeout.previous;
+            }
+            timeout.previous = null;
+            timeout.next = null;
+        }
+
+    }
+
+    private final class Worker implements Runnable {
+
+        @Override
+        public void run() {
+            while (!stopped) {
+                final long nowNanos = waitForNextTick();
+                if (nowNanos < 0) {
+                    return;
+                }
+                transferScheduledTimeouts();
+                wheel[(int) (tick & wheelMask)].expireTimeouts(nowNanos);
+                tick++;
+            }
+        }
+
+        private void transferScheduledTimeouts() {
+            Timeout timeout;
+            while ((timeout = scheduledTimeouts.poll()) != null) {
+                if (timeout.isCancelled()) {
+                    continue;
+                }
+                // a deadline in the past goes in the current bucket so that it expires on this tick
+                final long deadlineTick = Math.max(tick, timeout.deadlineNanos / tickNanos);
+                timeout.remainingRounds = (deadlineTick - tick) / wheel.length;
+                wheel[(int) (deadlineTick & wheelMask)].add(timeout);
+            }
+        }
+
+        /**
+         * @return nanoseconds since the timer started at the end of the tick, or -1 if the timer was stopped
+         */
+        private long waitForNextTick() {
+            final long tickEndNanos = tickNanos * (tick + 1);
+            while (true) {
+                final long nowNanos = System.nanoTime() - startNanos;
+                final long sleepNanos = tickEndNanos - nowNanos;
+                if (sleepNanos <= 0) {
+                    return nowNanos;
+                }
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException interruptedEx) {
+                    if (stopped) {
+                        return -1;
+                    }
+                }
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,351 @@
+package com.hbakkum.rundeck.plugins.hipchat.delivery;
+
+import com.hbakkum.rundeck.plugins.hipchat.HipChatNotificationPluginException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Shares the delivery capacity of a {@link StripedDeliveryEngine} fairly between Rundeck projects, so that one busy
+ * project cannot starve the notifications of others.
+ *
+ * Deliveries wait in a queue per project and are released to the engine, at most a fixed number at a time, by
+ * deficit round robin: each time a project's turn comes round it earns credit equal to its weight and may release
+ * one delivery per unit of credit. Over any busy period a project therefore gets a share of deliveries in proportion
+ * to its weight, however many deliveries it queues. Deliveries of the same project are released in submission
+ * order, so the engine still keeps notifications to a room in order.
+ *
+ * Project weights and queue capacities are configured as comma separated ${project}:${value} pairs. A value without a
+ * project sets the default for projects not listed, e.g. "ops:4, nightly-reports:1, 2".
+ *
+ * A delivery gives up its place in the window once it has run for longer than the slot timeout, so that a few hung
+ * requests can't stop deliveries of every project. It still runs to completion in its lane of the engine.
+ */
+public class ProjectFairDeliveryScheduler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ProjectFairDeliveryScheduler.class);
+
+    public static final int DEFAULT_PROJECT_WEIGHT = 1;
+    public static final int DEFAULT_PROJECT_QUEUE_CAPACITY = 1000;
+
+    private static final int DEFAULT_MAX_IN_FLIGHT = 8;
+
+    // slot timeouts are almost always cancelled by the delivery completing first
+    private static final HashedWheelTimer SLOT_TIMEOUT_TIMER = new HashedWheelTimer(100, TimeUnit.MILLISECONDS, 512);
+
+    private static final ProjectFairDeliveryScheduler INSTANCE = new ProjectFairDeliveryScheduler(StripedDeliveryEngine.getInstance(), DEFAULT_MAX_IN_FLIGHT);
+
+    private final StripedDeliveryEngine deliveryEngine;
+
+    private final int maxInFlight;
+
+    private final Map<String, ProjectQueue> projectQueues = new HashMap<String, ProjectQueue>();
+
+    // projects with queued deliveries, in the order they take their turns
+    private final Queue<ProjectQueue> activeProjectQueues = new ArrayDeque<ProjectQueue>();
+
+    private int inFlight;
+
+    private long slotTimeoutMillis = Long.MAX_VALUE;
+
+    private long slotTimeoutCount;
+
+    private String projectWeightsSpec = "";
+    private Map<String, Integer> projectWeights = Collections.emptyMap();
+    private int defaultProjectWeight = DEFAULT_PROJECT_WEIGHT;
+
+    private String projectQueueCapacitiesSpec = "";
+    private Map<String, Integer> projectQueueCapacities = Collections.emptyMap();
+    private int defaultProjectQueueCapacity = DEFAULT_PROJECT_QUEUE_CAPACITY;
+
+    /**
+     * @param deliveryEngine engine that runs the released deliveries
+     * @param maxInFlight number of deliveries released to the engine at once; a small window keeps fairness decisions
+     *                    with this scheduler rather than with the engine's lanes
+     */
+    public ProjectFairDeliveryScheduler(final StripedDeliveryEngine deliveryEngine, final int maxInFlight) {
+        this.deliveryEngine = deliveryEngine;
+        this.maxInFlight = Math.max(1, maxInFlight);
+    }
+
+    public static ProjectFairDeliveryScheduler getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Sets how long a released delivery may hold its place in the window before the next delivery is released in its
+     * place; this should be a little over the longest a delivery's requests are expected to take.
+     */
+    public synchronized void setSlotTimeout(final long slotTimeoutMillis) {
+        this.slotTimeoutMillis = Math.max(1, slotTimeoutMillis);
+    }
+
+    /**
+     * Sets the weight and queue capacity of each project. Each spec is only parsed when it differs from the last
+     * one configured.
+     */
+    public synchronized void configure(final String projectWeightsSpec, final String projectQueueCapacitiesSpec) {
+        final String weightsSpec = projectWeightsSpec == null ? "" : projectWeightsSpec.trim();
+        if (!weightsSpec.equals(this.projectWeightsSpec)) {
+            final Map<String, Integer> weights = parseProjectSettings(weightsSpec);
+            this.projectWeights = weights;
+            this.defaultProjectWeight = weights.containsKey("") ? weights.get("") : DEFAULT_PROJECT_WEIGHT;
+            this.projectWeightsSpec = weightsSpec;
+            for (final ProjectQueue projectQueue : projectQueues.values()) {
+                projectQueue.weight = getProjectWeight(projectQueue.project);
+            }
+        }
+
+        final String capacitiesSpec = projectQueueCapacitiesSpec == null ? "" : projectQueueCapacitiesSpec.trim();
+        if (!capacitiesSpec.equals(this.projectQueueCapacitiesSpec)) {
+            final Map<String, Integer> capacities = parseProjectSettings(capacitiesSpec);
+            this.projectQueueCapacities = capacities;
+            this.defaultProjectQueueCapacity = capacities.containsKey("") ? capacities.get("") : DEFAULT_PROJECT_QUEUE_CAPACITY;
+            this.projectQueueCapacitiesSpec = capacitiesSpec;
+            for (final ProjectQueue projectQueue : projectQueues.values()) {
+                projectQueue.capacity = getProjectQueueCapacity(projectQueue.project);
+            }
+        }
+    }
+
+    /**
+     * Queues a delivery for the given project, to be released to the delivery engine in its fair turn.
+     *
+     * @param project project the delivery belongs to
+     * @param deliveryKey key identifying the destination whose deliveries must stay in order
+     * @param delivery the delivery to run
+     * @return future completing with the result of the delivery
+     * @throws HipChatNotificationPluginException if the project's queue is full
+     */
+    public <T> Future<T> submit(final String project, final String deliveryKey, final Callable<T> delivery) {
+        final FutureTask<T> deliveryTask = new FutureTask<T>(delivery);
+
+        synchronized (this) {
+            final ProjectQueue projectQueue = getProjectQueue(project == null ? "" : project);
+            if (projectQueue.deliveries.size() >= projectQueue.capacity) {
+                projectQueue.rejectedCount++;
+                throw new HipChatNotificationPluginException("Delivery queue for project [" + project + "] is full (capacity " + projectQueue.capacity + ").");
+            }
+
+            projectQueue.deliveries.add(new QueuedDelivery(deliveryKey, deliveryTask));
+            if (!projectQueue.active) {
+                projectQueue.active = true;
+                projectQueue.deficit = 0;
+                projectQueue.creditedThisTurn = false;
+                activeProjectQueues.add(projectQueue);
+            }
+            releaseDeliveries();
+        }
+
+        return deliveryTask;
+    }
+
+    /**
+     * @return number of deliveries waiting for release for the given project
+     */
+    public synchronized int getQueueDepth(final String project) {
+        final ProjectQueue projectQueue = projectQueues.get(project);
+        return projectQueue == null ? 0 : projectQueue.deliveries.size();
+    }
+
+    /**
+     * @return number of deliveries waiting for release for each project seen so far, keyed by project
+     */
+    public synchronized Map<String, Integer> getQueueDepths() {
+        final Map<String, Integer> queueDepths = new HashMap<String, Integer>();
+        for (final ProjectQueue projectQueue : projectQueues.values()) {
+            queueDepths.put(projectQueue.project, projectQueue.deliveries.size());
+        }
+        return queueDepths;
+    }
+
+    /**
+     * @return number of deliveries of the given project rejected because its queue was full
+     */
+    public synchronized long getRejectedCount(final String project) {
+        final ProjectQueue projectQueue = projectQueues.get(project);
+        return projectQueue == null ? 0 : projectQueue.rejectedCount;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * @return number of deliveries that gave up their place in the window because they ran past the slot timeout
+     */
+    public synchronized long getSlotTimeoutCount() {
+        return slotTimeoutCount;
+    }
+
+    // must hold the monitor
+    private void releaseDeliveries() {
+        while (inFlight < maxInFlight && !activeProjectQueues.isEmpty()) {
+            final ProjectQueue projectQueue = activeProjectQueues.peek();
+            if (!projectQueue.creditedThisTurn) {
+                projectQueue.deficit += projectQueue.weight;
+                projectQueue.creditedThisTurn = true;
+            }
+
+            while (projectQueue.deficit > 0 && inFlight < maxInFlight && !projectQueue.deliveries.isEmpty()) {
+                release(projectQueue.deliveries.poll());
+                projectQueue.deficit--;
+            }
+
+            if (projectQueue.deliveries.isEmpty()) {
+                // an idle project does not bank credit for later
+                activeProjectQueues.poll();
+                projectQueue.active = false;
+                projectQueue.deficit = 0;
+            } else if (projectQueue.deficit == 0) {
+                activeProjectQueues.add(activeProjectQueues.poll());
+                projectQueue.creditedThisTurn = false;
+            }
+            // otherwise the window is full and the project keeps its turn and remaining credit
+        }
+    }
+
+    // must hold the monitor
+    private void release(final QueuedDelivery queuedDelivery) {
+        inFlight++;
+        final AtomicBoolean slotHeld = new AtomicBoolean(true);
+        final long slotTimeoutMillis = this.slotTimeoutMillis;
+        final HashedWheelTimer.Timeout slotTimeout = slotTimeoutMillis == Long.MAX_VALUE ? null : SLOT_TIMEOUT_TIMER.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (slotHeld.compareAndSet(true, false)) {
+                    LOG.warn("Delivery to [{}] is still running after {}ms; releasing the next delivery in its place.",
+                            queuedDelivery.deliveryKey, slotTimeoutMillis);
+                    onSlotFreed(true);
+                }
+            }
+        }, slotTimeoutMillis, TimeUnit.MILLISECONDS);
+
+        try {
+            deliveryEngine.submit(queuedDelivery.deliveryKey, new Callable<Void>() {
+                @Override
+                public Void call() {
+                    try {
+                        queuedDelivery.deliveryTask.run();
+                    } finally {
+                        if (slotTimeout != null) {
+                            slotTimeout.cancel();
+                        }
+                        if (slotHeld.compareAndSet(true, false)) {
+                            onSlotFreed(false);
+                        }
+                    }
+                    return null;
+                }
+            });
+        } catch (RuntimeException ex) {
+            if (slotTimeout != null) {
+                slotTimeout.cancel();
+            }
+            if (slotHeld.compareAndSet(true, false)) {
+                inFlight--;
+            }
+            LOG.error("Unable to release delivery to [{}]", queuedDelivery.deliveryKey, ex);
+            queuedDelivery.deliveryTask.cancel(false);
+        }
+    }
+
+    private synchronized void onSlotFreed(final boolean timedOut) {
+        inFlight--;
+        if (timedOut) {
+            slotTimeoutCount++;
+        }
+        releaseDeliveries();
+    }
+
+    private ProjectQueue getProjectQueue(final String project) {
+        ProjectQueue projectQueue = projectQueues.get(project);
+        if (projectQueue == null) {
+            projectQueue = new ProjectQueue(project, getProjectWeight(project), getProjectQueueCapacity(project));
+            projectQueues.put(project, projectQueue);
+        }
+        return projectQueue;
+    }
+
+    private int getProjectWeight(final String project) {
+        final Integer weight = projectWeights.get(project);
+        return weight == null ? defaultProjectWeight : weight;
+    }
+
+    private int getProjectQueueCapacity(final String project) {
+        final Integer capacity = projectQueueCapacities.get(project);
+        return capacity == null ? defaultProjectQueueCapacity : capacity;
+    }
+
+    /**
+     * Parses ${project}:${value} pairs; a value without a project is stored under the empty key.
+     */
+    static Map<String, Integer> parseProjectSettings(final String spec) {
+        final Map<String, Integer> projectSettings = new HashMap<String, Integer>();
+        if (spec.length() == 0) {
+            return projectSettings;
+        }
+
+        for (final String projectSetting : spec.split("\\s*,\\s*")) {
+            final int separatorIndex = projectSetting.lastIndexOf(':');
+            final String project = separatorIndex < 0 ? "" : projectSetting.substring(0, separatorIndex).trim();
+            final String value = projectSetting.substring(separatorIndex + 1).trim();
+            try {
+                projectSettings.put(project, Math.max(1, Integer.parseInt(value)));
+            } catch (NumberFormatException nfEx) {
+                LOG.warn("Ignoring invalid project delivery setting [{}].", projectSetting);
+            }
+        }
+        return projectSettings;
+    }
+
+    private static final class ProjectQueue {
+
+        private final String project;
+
+        private final Queue<QueuedDelivery> deliveries = new ArrayDeque<QueuedDelivery>();
+
+        private int weight;
+
+        private int capacity;
+
+        private int deficit;
+
+        private boolean creditedThisTurn;
+
+        private boolean active;
+
+        private long rejectedCount;
+
+        private ProjectQueue(final String project, final int weight, final int capacity) {
+            this.project = project;
+            this.weight = weight;
+            this.capacity = capacity;
+        }
+
+    }
+
+    private static final class QueuedDelivery {
+
+        private final String deliveryKey;
+
+        private final FutureTask<?> deliveryTask;
+
+        private QueuedDelivery(final String deliveryKey, final FutureTask<?> deliveryTask) {
+            this.deliveryKey = deliveryKey;
+            this.deliveryTask = deliveryTask;
+        }
+
+    }
+
+}
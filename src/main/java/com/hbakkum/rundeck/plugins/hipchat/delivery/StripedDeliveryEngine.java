@@ -0,0 +1,186 @@
+package com.hbakkum.rundeck.plugins.hipchat.delivery;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Delivers room notifications off the calling thread while preserving the order of notifications to the same room.
+ *
+ * Each delivery key (e.g. base URL and room) hashes to one of a fixed number of lanes. A lane is only ever
+ * consumed by one worker at a time, so deliveries sharing a lane complete in submission order, while deliveries on
+ * different lanes proceed in parallel. Lanes with pending work are run on a fixed size work-stealing pool, so an
+ * idle worker picks up any ready lane rather than waiting on lanes assigned to it.
+ */
+public class StripedDeliveryEngine {
+
+    private static final Logger LOG = LoggerFactory.getLogger(StripedDeliveryEngine.class);
+
+    public static final String WORKER_THREAD_NAME_PREFIX = "hipchat-delivery-";
+
+    private static final int DEFAULT_LANE_COUNT = 64;
+    private static final int DEFAULT_WORKER_COUNT = 8;
+
+    // deliveries drained from a lane before it yields its worker to other ready lanes
+    private static final int MAX_DELIVERIES_PER_LANE_RUN = 16;
+
+    private static final StripedDeliveryEngine INSTANCE = new StripedDeliveryEngine(DEFAULT_LANE_COUNT, DEFAULT_WORKER_COUNT);
+
+    private final Lane[] lanes;
+
+    private final int laneMask;
+
+    private final ForkJoinPool workerPool;
+
+    public StripedDeliveryEngine(final int laneCount, final int workerCount) {
+        final int roundedLaneCount = laneCount <= 1 ? 1 : Integer.highestOneBit(laneCount - 1) << 1;
+        this.lanes = new Lane[roundedLaneCount];
+        for (int i = 0; i < roundedLaneCount; i++) {
+            lanes[i] = new Lane(i);
+        }
+        this.laneMask = roundedLaneCount - 1;
+        this.workerPool = new ForkJoinPool(workerCount, new DeliveryWorkerThreadFactory(), null, true);
+    }
+
+    public static StripedDeliveryEngine getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Queues a delivery on the lane for the given key.
+     *
+     * @param deliveryKey key identifying the destination whose deliveries must stay in order
+     * @param delivery the delivery to run
+     * @return future completing with the result of the delivery
+     */
+    public <T> Future<T> submit(final String deliveryKey, final Callable<T> delivery) {
+        final FutureTask<T> deliveryTask = new FutureTask<T>(delivery);
+        laneFor(deliveryKey).enqueue(deliveryTask);
+        return deliveryTask;
+    }
+
+    public int getLaneCount() {
+        return lanes.length;
+    }
+
+    /**
+     * @return number of deliveries waiting on the given lane, excluding any currently running
+     */
+    public int getQueueDepth(final int lane) {
+        return lanes[lane].queueDepth.get();
+    }
+
+    /**
+     * @return number of deliveries waiting on each lane, indexed by lane
+     */
+    public int[] getQueueDepths() {
+        final int[] queueDepths = new int[lanes.length];
+        for (int i = 0; i < lanes.length; i++) {
+            queueDepths[i] = lanes[i].queueDepth.get();
+        }
+        return queueDepths;
+    }
+
+    public int getTotalQueueDepth() {
+        int totalQueueDepth = 0;
+        for (final Lane lane : lanes) {
+            totalQueueDepth += lane.queueDepth.get();
+        }
+        return totalQueueDepth;
+    }
+
+    public void shutdown() {
+        workerPool.shutdown();
+    }
+
+    int laneIndexFor(final String deliveryKey) {
+        final int hash = deliveryKey.hashCode();
+        return (hash ^ (hash >>> 16)) & laneMask;
+    }
+
+    private Lane laneFor(final String deliveryKey) {
+        return lanes[laneIndexFor(deliveryKey)];
+    }
+
+    private final class Lane implements Runnable {
+
+        private final int index;
+
+        private final Queue<Runnable> deliveries = new ConcurrentLinkedQueue<Runnable>();
+
+        private final AtomicInteger queueDepth = new AtomicInteger();
+
+        // set while the lane is queued on or running in the worker pool, guaranteeing a single consumer
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        private Lane(final int index) {
+            this.index = index;
+        }
+
+        private void enqueue(final Runnable delivery) {
+            deliveries.add(delivery);
+            queueDepth.incrementAndGet();
+            scheduleIfIdle();
+        }
+
+        private void scheduleIfIdle() {
+            if (scheduled.compareAndSet(false, true)) {
+                workerPool.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (int i = 0; i < MAX_DELIVERIES_PER_LANE_RUN; i++) {
+                    final Runnable delivery = deliveries.poll();
+                    if (delivery == null) {
+                        break;
+                    }
+                    queueDepth.decrementAndGet();
+                    runDelivery(delivery);
+                }
+            } finally {
+                scheduled.set(false);
+                // a delivery may have been enqueued after the last poll but before the lane was released
+                if (!deliveries.isEmpty()) {
+                    scheduleIfIdle();
+                }
+            }
+        }
+
+        private void runDelivery(final Runnable delivery) {
+            try {
+                delivery.run();
+            } catch (RuntimeException ex) {
+                // deliveries are FutureTasks, so this only guards against a lane dying on an unexpected error
+                LOG.error("Unexpected error running delivery on lane [{}]", index, ex);
+            }
+        }
+
+    }
+
+    private static final class DeliveryWorkerThreadFactory implements ForkJoinPool.ForkJoinWorkerThreadFactory {
+
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        @Override
+        public ForkJoinWorkerThread newThread(final ForkJoinPool pool) {
+            final ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName(WORKER_THREAD_NAME_PREFIX + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+
+    }
+
+}
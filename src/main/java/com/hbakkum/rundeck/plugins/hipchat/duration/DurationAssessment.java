@@ -0,0 +1,34 @@
+package com.hbakkum.rundeck.plugins.hipchat.duration;
+
+/**
+ * How an execution's duration compares with earlier successful executions of the same job, as exposed to message
+ * templates: "durationPercentile" (share of earlier executions that were faster, or -1 if there isn't enough history)
+ * and "isSlowRun".
+ */
+public class DurationAssessment {
+
+    public static final DurationAssessment UNKNOWN = new DurationAssessment(-1, false);
+
+    private final int durationPercentile;
+
+    private final boolean slowRun;
+
+    public DurationAssessment(final int durationPercentile, final boolean slowRun) {
+        this.durationPercentile = durationPercentile;
+        this.slowRun = slowRun;
+    }
+
+    public int getDurationPercentile() {
+        return durationPercentile;
+    }
+
+    public boolean isSlowRun() {
+        return slowRun;
+    }
+
+    @Override
+    public String toString() {
+        return "DurationAssessment [durationPercentile = " + durationPercentile + ", slowRun = " + slowRun + "]";
+    }
+
+}
@@ -0,0 +1,186 @@
+package com.hbakkum.rundeck.plugins.hipchat.duration;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * A streaming quantile sketch of execution durations with bounded relative error. Durations are counted in log scale
+ * buckets, 16 per power of two, so any quantile is accurate to within 6.25% of the true duration however many
+ * durations have been added.
+ *
+ * Only the run of buckets between the shortest and longest duration seen is kept, which for a typical job is a few
+ * dozen counts. Once {@value #MAX_WEIGHT} durations have been counted all counts are halved, so older executions
+ * weigh less and a job that has become permanently slower stops being reported as slow.
+ */
+public class DurationSketch {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // durations below this many millis get a bucket each
+    private static final int LINEAR_BUCKETS = 2 * SUB_BUCKETS;
+
+    static final int MAX_WEIGHT = 1024;
+
+    // index of the bucket counts[0] counts
+    private int offset;
+
+    private int[] counts = new int[0];
+
+    private long weight;
+
+    public void add(final long durationMillis) {
+        final int index = bucketIndex(durationMillis);
+        if (counts.length == 0) {
+            offset = index;
+            counts = new int[1];
+        } else if (index < offset) {
+            final int[] grown = new int[counts.length + offset - index];
+            System.arraycopy(counts, 0, grown, offset - index, counts.length);
+            counts = grown;
+            offset = index;
+        } else if (index >= offset + counts.length) {
+            final int[] grown = new int[index - offset + 1];
+            System.arraycopy(counts, 0, grown, 0, counts.length);
+            counts = grown;
+        }
+
+        counts[index - offset]++;
+        if (++weight >= MAX_WEIGHT) {
+            halve();
+        }
+    }
+
+    /**
+     * @return the (weighted) number of durations counted
+     */
+    public long getWeight() {
+        return weight;
+    }
+
+    /**
+     * @return the share, in percent, of durations counted that were shorter than the given one - by more than the
+     * sketch's error
+     */
+    public int getPercentileOf(final long durationMillis) {
+        if (weight == 0) {
+            return 0;
+        }
+        final int index = bucketIndex(durationMillis);
+        long shorter = 0;
+        for (int i = 0; i < counts.length && offset + i < index; i++) {
+            shorter += counts[i];
+        }
+        return (int) (shorter * 100 / weight);
+    }
+
+    /**
+     * @param quantile between 0 and 1
+     * @return true, if the given duration is longer than the quantile of the durations counted, by more than the
+     * sketch's error
+     */
+    public boolean isLongerThanQuantile(final long durationMillis, final double quantile) {
+        return weight > 0 && bucketIndex(durationMillis) > getQuantileBucketIndex(quantile);
+    }
+
+    /**
+     * @param quantile between 0 and 1
+     * @return an estimate of the quantile of the durations counted, or -1 if none were
+     */
+    public long getQuantileMillis(final double quantile) {
+        if (weight == 0) {
+            return -1;
+        }
+        final int index = getQuantileBucketIndex(quantile);
+        return (bucketLowerBoundMillis(index) + bucketLowerBoundMillis(index + 1) - 1) / 2;
+    }
+
+    public void writeTo(final DataOutput out) throws IOException {
+        out.writeShort(offset);
+        out.writeShort(counts.length);
+        for (final int count : counts) {
+            // counts are small, so most take a byte
+            int value = count;
+            while ((value & ~0x7F) != 0) {
+                out.writeByte((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out.writeByte(value);
+        }
+    }
+
+    public static DurationSketch readFrom(final DataInput in) throws IOException {
+        final DurationSketch sketch = new DurationSketch();
+        sketch.offset = in.readUnsignedShort();
+        sketch.counts = new int[in.readUnsignedShort()];
+        for (int i = 0; i < sketch.counts.length; i++) {
+            int count = 0;
+            for (int shift = 0; ; shift += 7) {
+                final int b = in.readUnsignedByte();
+                count |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0 || shift > 28) {
+                    break;
+                }
+            }
+            sketch.counts[i] = count;
+            sketch.weight += count;
+        }
+        return sketch;
+    }
+
+    private int getQuantileBucketIndex(final double quantile) {
+        final long rank = Math.max(1, (long) Math.ceil(quantile * weight));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return offset + i;
+            }
+        }
+        return offset + counts.length - 1;
+    }
+
+    private void halve() {
+        weight = 0;
+        int first = -1;
+        int last = -1;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] >>>= 1;
+            weight += counts[i];
+            if (counts[i] > 0) {
+                if (first < 0) {
+                    first = i;
+                }
+                last = i;
+            }
+        }
+
+        if (first < 0) {
+            counts = new int[0];
+        } else if (first > 0 || last < counts.length - 1) {
+            final int[] trimmed = new int[last - first + 1];
+            System.arraycopy(counts, first, trimmed, 0, trimmed.length);
+            counts = trimmed;
+            offset += first;
+        }
+    }
+
+    static int bucketIndex(final long durationMillis) {
+        if (durationMillis < LINEAR_BUCKETS) {
+            return (int) Math.max(0, durationMillis);
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(durationMillis);
+        final int subBucket = (int) (durationMillis >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR_BUCKETS + (exponent - SUB_BUCKET_BITS - 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long bucketLowerBoundMillis(final int bucketIndex) {
+        if (bucketIndex < LINEAR_BUCKETS) {
+            return bucketIndex;
+        }
+        final int exponent = (bucketIndex - LINEAR_BUCKETS) / SUB_BUCKETS + SUB_BUCKET_BITS + 1;
+        final int subBucket = (bucketIndex - LINEAR_BUCKETS) % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+    }
+
+}
@@ -0,0 +1,243 @@
+package com.hbakkum.rundeck.plugins.hipchat.duration;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import static com.hbakkum.rundeck.plugins.hipchat.HipChatNotificationPluginUtils.toJobUuid;
+
+/**
+ * Keeps a {@link DurationSketch} of the successful execution durations of each job, and assesses how the duration
+ * of each finished execution compares with them.
+ *
+ * Jobs are keyed by their UUID and the least recently executed jobs are evicted beyond {@link #DEFAULT_MAX_JOBS}, so
+ * memory stays bounded however many jobs come and go. If a snapshot file is given, the sketches are written to it
+ * every few minutes (when they have changed) and read back on startup.
+ */
+public class JobDurationStats {
+
+    private static final Logger LOG = LoggerFactory.getLogger(JobDurationStats.class);
+
+    public static final int DEFAULT_MAX_JOBS = 10000;
+
+    public static final int DEFAULT_SLOW_RUN_PERCENTILE = 95;
+
+    // fewer successful executions than this say too little about what is usual for a job
+    static final int MIN_EXECUTIONS_FOR_ASSESSMENT = 10;
+
+    static final long SNAPSHOT_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private static final int SNAPSHOT_MAGIC = 0x4A445348;
+    private static final int SNAPSHOT_VERSION = 1;
+
+    private static final ConcurrentMap<String, JobDurationStats> STATS = new ConcurrentHashMap<String, JobDurationStats>();
+
+    private static final ScheduledExecutorService SNAPSHOT_SCHEDULER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, "hipchat-job-duration-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final File snapshotFile;
+
+    private final Map<UUID, JobHistory> jobs;
+
+    private boolean changed;
+
+    /**
+     * @param snapshotFile file the sketches are saved to, or null to keep them in memory only
+     */
+    JobDurationStats(final File snapshotFile, final int maxJobs) {
+        this.snapshotFile = snapshotFile;
+        this.jobs = new LinkedHashMap<UUID, JobHistory>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<UUID, JobHistory> eldest) {
+                return size() > maxJobs;
+            }
+        };
+        if (snapshotFile != null) {
+            load();
+        }
+    }
+
+    /**
+     * Returns the stats saved to the given file, creating them on first use. A blank path gives stats that are kept
+     * in memory only.
+     */
+    public static JobDurationStats forFile(final String snapshotFilePath) {
+        JobDurationStats stats = STATS.get(snapshotFilePath);
+        if (stats == null) {
+            final JobDurationStats newStats = new JobDurationStats(
+                    snapshotFilePath.length() == 0 ? null : new File(snapshotFilePath), DEFAULT_MAX_JOBS);
+            stats = STATS.putIfAbsent(snapshotFilePath, newStats);
+            if (stats == null) {
+                stats = newStats;
+                if (newStats.snapshotFile != null) {
+                    SNAPSHOT_SCHEDULER.scheduleWithFixedDelay(new Runnable() {
+                        @Override
+                        public void run() {
+                            newStats.snapshot();
+                        }
+                    }, SNAPSHOT_INTERVAL_MILLIS, SNAPSHOT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Assesses the duration of a finished execution against the job's earlier successful executions, then adds it to
+     * them if the execution succeeded. Recording the same execution again returns the first assessment.
+     *
+     * @param slowRunPercentile percentile of earlier durations beyond which the execution is considered slow
+     */
+    public synchronized DurationAssessment recordExecution(
+            final String jobId,
+            final String executionId,
+            final long durationMillis,
+            final boolean successful,
+            final int slowRunPercentile) {
+        final UUID jobUuid = toJobUuid(jobId);
+        JobHistory jobHistory = jobs.get(jobUuid);
+        if (jobHistory == null) {
+            jobHistory = new JobHistory(new DurationSketch());
+            jobs.put(jobUuid, jobHistory);
+        } else if (executionId.equals(jobHistory.lastExecutionId)) {
+            return jobHistory.lastAssessment;
+        }
+
+        final DurationSketch sketch = jobHistory.sketch;
+        final DurationAssessment assessment = sketch.getWeight() < MIN_EXECUTIONS_FOR_ASSESSMENT
+                ? DurationAssessment.UNKNOWN
+                : new DurationAssessment(sketch.getPercentileOf(durationMillis),
+                        sketch.isLongerThanQuantile(durationMillis, slowRunPercentile / 100.0));
+
+        // failed executions often stop early, and would make slow runs look usual
+        if (successful) {
+            sketch.add(durationMillis);
+            changed = true;
+        }
+        jobHistory.lastExecutionId = executionId;
+        jobHistory.lastAssessment = assessment;
+        return assessment;
+    }
+
+    public synchronized int size() {
+        return jobs.size();
+    }
+
+    /**
+     * Writes the sketches to the snapshot file if they have changed since the last snapshot. The file is replaced
+     * atomically, so a crash mid-write leaves the previous snapshot intact.
+     */
+    void snapshot() {
+        final byte[] snapshot;
+        synchronized (this) {
+            if (snapshotFile == null || !changed) {
+                return;
+            }
+            try {
+                snapshot = serialize();
+            } catch (IOException ioEx) {
+                LOG.warn("Unable to serialize job duration stats.", ioEx);
+                return;
+            }
+            changed = false;
+        }
+
+        final File newSnapshotFile = new File(snapshotFile.getPath() + ".new");
+        try {
+            final OutputStream out = new FileOutputStream(newSnapshotFile);
+            try {
+                out.write(snapshot);
+            } finally {
+                out.close();
+            }
+            if (!newSnapshotFile.renameTo(snapshotFile) && !(snapshotFile.delete() && newSnapshotFile.renameTo(snapshotFile))) {
+                throw new IOException("Unable to replace snapshot file with [" + newSnapshotFile + "].");
+            }
+        } catch (IOException ioEx) {
+            LOG.warn("Unable to save job duration stats to [{}].", snapshotFile, ioEx);
+            synchronized (this) {
+                changed = true;
+            }
+        }
+    }
+
+    private byte[] serialize() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + jobs.size() * 64);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(SNAPSHOT_MAGIC);
+        out.writeByte(SNAPSHOT_VERSION);
+        out.writeInt(jobs.size());
+        // least recently executed first, so that loading restores the eviction order
+        for (final Map.Entry<UUID, JobHistory> job : jobs.entrySet()) {
+            out.writeLong(job.getKey().getMostSignificantBits());
+            out.writeLong(job.getKey().getLeastSignificantBits());
+            job.getValue().sketch.writeTo(out);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private void load() {
+        if (!snapshotFile.isFile()) {
+            return;
+        }
+
+        try {
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshotFile)));
+            try {
+                if (in.readInt() != SNAPSHOT_MAGIC || in.readByte() != SNAPSHOT_VERSION) {
+                    throw new IOException("Not a job duration stats snapshot.");
+                }
+                final int jobCount = in.readInt();
+                for (int i = 0; i < jobCount; i++) {
+                    final UUID jobUuid = new UUID(in.readLong(), in.readLong());
+                    jobs.put(jobUuid, new JobHistory(DurationSketch.readFrom(in)));
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException ioEx) {
+            LOG.warn("Unable to load job duration stats from [{}], earlier durations are forgotten.", snapshotFile, ioEx);
+            jobs.clear();
+        }
+    }
+
+    private static final class JobHistory {
+
+        private final DurationSketch sketch;
+
+        private String lastExecutionId;
+
+        private DurationAssessment lastAssessment;
+
+        private JobHistory(final DurationSketch sketch) {
+            this.sketch = sketch;
+        }
+
+    }
+
+}
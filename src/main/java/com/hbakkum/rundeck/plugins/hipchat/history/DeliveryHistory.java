@@ -0,0 +1,202 @@
+package com.hbakkum.rundeck.plugins.hipchat.history;
+
+import com.hbakkum.rundeck.plugins.hipchat.HipChatNotificationPluginException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fixed size history of send attempts, kept in a memory mapped file so that delivery success rates and latencies
+ * survive restarts. The file is a ring buffer of fixed width records; once full, each new record overwrites the
+ * oldest.
+ *
+ * File layout (big endian):
+ *
+ * header (32 bytes): magic (int), format version (int), record size (int), capacity in records (int), reserved
+ * record (32 bytes): commit sequence (long), timestamp millis (long), room hash (int), latency micros (int),
+ *                    message bytes (int), API version (byte), status (byte), reserved (2 bytes)
+ *
+ * A writer claims the next sequence number with a single atomic increment and fills in its slot with absolute puts,
+ * so recording takes no locks and allocates nothing. The commit sequence (sequence + 1) is written last; it is zeroed
+ * while the slot is being filled in, so readers skip records that were cut short. On startup the next sequence is
+ * recovered from the highest commit sequence in the file. A non-empty file that doesn't have this layout is never
+ * overwritten; history is disabled instead.
+ */
+public class DeliveryHistory {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DeliveryHistory.class);
+
+    public static final int DEFAULT_CAPACITY = 1000000;
+
+    public static final int STATUS_SENT = 1;
+    public static final int STATUS_REJECTED = 2;
+    public static final int STATUS_UNAVAILABLE = 3;
+    public static final int STATUS_NOT_PERMITTED = 4;
+
+    static final int MAGIC = 0x48434448;
+    static final int FORMAT_VERSION = 1;
+    static final int HEADER_SIZE = 32;
+    static final int RECORD_SIZE = 32;
+
+    static final int COMMIT_OFFSET = 0;
+    static final int TIMESTAMP_OFFSET = 8;
+    static final int ROOM_HASH_OFFSET = 16;
+    static final int LATENCY_OFFSET = 20;
+    static final int BYTES_OFFSET = 24;
+    static final int API_VERSION_OFFSET = 28;
+    static final int STATUS_OFFSET = 29;
+
+    // a single mapping is limited to 2GB
+    private static final int MAX_CAPACITY = (Integer.MAX_VALUE - HEADER_SIZE) / RECORD_SIZE;
+
+    private static final ConcurrentMap<String, DeliveryHistory> HISTORIES = new ConcurrentHashMap<String, DeliveryHistory>();
+
+    private static final Set<String> UNAVAILABLE_FILES = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private final MappedByteBuffer buffer;
+
+    private final int capacity;
+
+    private final AtomicLong nextSequence;
+
+    DeliveryHistory(final File historyFile, final int capacity) {
+        try {
+            final RandomAccessFile file = new RandomAccessFile(historyFile, "rw");
+            try {
+                final int existingCapacity = readCapacity(file);
+                this.capacity = existingCapacity > 0 ? existingCapacity : Math.max(1, Math.min(MAX_CAPACITY, capacity));
+                if (existingCapacity > 0 && existingCapacity != capacity) {
+                    LOG.info("Delivery history file [{}] keeps its existing capacity of {} records.", historyFile, existingCapacity);
+                }
+
+                final long fileSize = HEADER_SIZE + (long) this.capacity * RECORD_SIZE;
+                file.setLength(fileSize);
+                this.buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+            } finally {
+                // the mapping stays valid after the file is closed
+                file.close();
+            }
+        } catch (IOException ioEx) {
+            throw new HipChatNotificationPluginException("Unable to open delivery history file [" + historyFile + "]: [" + ioEx.getMessage() + "].", ioEx);
+        }
+
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, FORMAT_VERSION);
+        buffer.putInt(8, RECORD_SIZE);
+        buffer.putInt(12, this.capacity);
+        this.nextSequence = new AtomicLong(recoverNextSequence());
+    }
+
+    /**
+     * Returns the history kept in the given file, creating it on first use. The capacity only applies to new files.
+     *
+     * @return the history, or null if the file can't be opened - notifications are then sent without history. The
+     * failure is logged once, and the file isn't tried again until Rundeck restarts.
+     */
+    public static DeliveryHistory forFile(final String historyFilePath, final int capacity) {
+        DeliveryHistory history = HISTORIES.get(historyFilePath);
+        if (history == null) {
+            if (UNAVAILABLE_FILES.contains(historyFilePath)) {
+                return null;
+            }
+            final DeliveryHistory newHistory;
+            try {
+                newHistory = new DeliveryHistory(new File(historyFilePath), capacity);
+            } catch (HipChatNotificationPluginException openEx) {
+                if (UNAVAILABLE_FILES.add(historyFilePath)) {
+                    LOG.warn("Delivery history is disabled, notifications are sent without it.", openEx);
+                }
+                return null;
+            }
+            history = HISTORIES.putIfAbsent(historyFilePath, newHistory);
+            if (history == null) {
+                history = newHistory;
+            }
+        }
+        return history;
+    }
+
+    /**
+     * Records a single send attempt.
+     *
+     * @param apiVersion HipChat API version number, e.g. 2
+     */
+    public void record(
+            final long timestampMillis,
+            final int roomHash,
+            final int apiVersion,
+            final int status,
+            final long latencyNanos,
+            final int messageBytes) {
+        final long sequence = nextSequence.getAndIncrement();
+        final int position = HEADER_SIZE + (int) (sequence % capacity) * RECORD_SIZE;
+
+        buffer.putLong(position + COMMIT_OFFSET, 0);
+        buffer.putLong(position + TIMESTAMP_OFFSET, timestampMillis);
+        buffer.putInt(position + ROOM_HASH_OFFSET, roomHash);
+        buffer.putInt(position + LATENCY_OFFSET, (int) Math.min(Integer.MAX_VALUE, TimeUnit.NANOSECONDS.toMicros(latencyNanos)));
+        buffer.putInt(position + BYTES_OFFSET, messageBytes);
+        buffer.put(position + API_VERSION_OFFSET, (byte) apiVersion);
+        buffer.put(position + STATUS_OFFSET, (byte) status);
+        buffer.putLong(position + COMMIT_OFFSET, sequence + 1);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getRecordCount() {
+        return nextSequence.get();
+    }
+
+    /**
+     * Forces recorded attempts out to the file, e.g. before the file is read by another process.
+     */
+    public void force() {
+        buffer.force();
+    }
+
+    /**
+     * @return the capacity of an existing history file, or 0 if the file is empty
+     * @throws IOException if the file isn't empty but isn't a delivery history file of this format, e.g. because the
+     *                     configured path points at some other file; it is left untouched
+     */
+    private static int readCapacity(final RandomAccessFile file) throws IOException {
+        if (file.length() == 0) {
+            return 0;
+        }
+        if (file.length() < HEADER_SIZE) {
+            throw new IOException("File is too short to be a delivery history file, refusing to overwrite it");
+        }
+        file.seek(0);
+        final int magic = file.readInt();
+        final int formatVersion = file.readInt();
+        final int recordSize = file.readInt();
+        final int capacity = file.readInt();
+        if (magic != MAGIC || formatVersion != FORMAT_VERSION || recordSize != RECORD_SIZE || capacity <= 0 || capacity > MAX_CAPACITY
+                || file.length() != HEADER_SIZE + (long) capacity * RECORD_SIZE) {
+            throw new IOException("File is not a delivery history file of format version " + FORMAT_VERSION + ", refusing to overwrite it");
+        }
+        return capacity;
+    }
+
+    private long recoverNextSequence() {
+        long maxCommitSequence = 0;
+        for (int i = 0; i < capacity; i++) {
+            maxCommitSequence = Math.max(maxCommitSequence, buffer.getLong(HEADER_SIZE + i * RECORD_SIZE + COMMIT_OFFSET));
+        }
+        return maxCommitSequence;
+    }
+
+}
@@ -0,0 +1,206 @@
+package com.hbakkum.rundeck.plugins.hipchat.history;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.hbakkum.rundeck.plugins.hipchat.replay.CommandLineOptions.getOption;
+import static com.hbakkum.rundeck.plugins.hipchat.replay.CommandLineOptions.parseOptions;
+
+/**
+ * Summarises the send attempts in a {@link DeliveryHistory} file over a time window: how many attempts there were,
+ * what share succeeded, and latency percentiles of the attempts HipChat answered. Usage:
+ *
+ * java -cp rundeck-hipchat-plugin.jar:lib/*:slf4j-api.jar com.hbakkum.rundeck.plugins.hipchat.history.DeliveryHistoryReader
+ *      --file delivery-history.dat [--hours 24 | --from epochMillis --to epochMillis]
+ *
+ * The file is mapped read only and scanned record by record, so memory use doesn't depend on the file size.
+ * Latencies are counted in log scale buckets (8 per power of two) rather than kept, so percentiles are accurate to
+ * within 12.5%.
+ */
+public class DeliveryHistoryReader {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // latencies below this many micros get a bucket each
+    private static final int LINEAR_BUCKETS = 2 * SUB_BUCKETS;
+    private static final int BUCKET_COUNT = LINEAR_BUCKETS + (32 - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+
+    private final File historyFile;
+
+    public DeliveryHistoryReader(final File historyFile) {
+        this.historyFile = historyFile;
+    }
+
+    public static void main(final String[] args) throws IOException {
+        final Map<String, String> options = parseOptions(args);
+        if (!options.containsKey("file")) {
+            System.err.println("Usage: DeliveryHistoryReader --file <file> [--hours <n> | --from <epochMillis> --to <epochMillis>]");
+            System.exit(2);
+        }
+
+        final long fromMillis = options.containsKey("from")
+                ? Long.parseLong(options.get("from"))
+                : System.currentTimeMillis() - TimeUnit.HOURS.toMillis(Long.parseLong(getOption(options, "hours", "24")));
+        final long toMillis = Long.parseLong(getOption(options, "to", String.valueOf(Long.MAX_VALUE)));
+
+        System.out.println(new DeliveryHistoryReader(new File(options.get("file"))).summarize(fromMillis, toMillis));
+    }
+
+    /**
+     * Summarises the attempts made from (inclusive) and to (exclusive) the given times.
+     */
+    public Summary summarize(final long fromMillis, final long toMillis) throws IOException {
+        final Summary summary = new Summary(fromMillis, toMillis);
+
+        final RandomAccessFile file = new RandomAccessFile(historyFile, "r");
+        try {
+            if (file.length() < DeliveryHistory.HEADER_SIZE) {
+                return summary;
+            }
+            final MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            if (buffer.getInt(0) != DeliveryHistory.MAGIC || buffer.getInt(8) != DeliveryHistory.RECORD_SIZE) {
+                throw new IOException("Not a delivery history file: [" + historyFile + "].");
+            }
+
+            final int capacity = (int) Math.min(buffer.getInt(12), (file.length() - DeliveryHistory.HEADER_SIZE) / DeliveryHistory.RECORD_SIZE);
+            for (int i = 0; i < capacity; i++) {
+                final int position = DeliveryHistory.HEADER_SIZE + i * DeliveryHistory.RECORD_SIZE;
+                final long commitSequence = buffer.getLong(position + DeliveryHistory.COMMIT_OFFSET);
+                if (commitSequence == 0) {
+                    continue;
+                }
+                final long timestampMillis = buffer.getLong(position + DeliveryHistory.TIMESTAMP_OFFSET);
+                final int status = buffer.get(position + DeliveryHistory.STATUS_OFFSET);
+                final int latencyMicros = buffer.getInt(position + DeliveryHistory.LATENCY_OFFSET);
+                final int bytes = buffer.getInt(position + DeliveryHistory.BYTES_OFFSET);
+                // a writer that reused the slot while its fields were read would have changed the commit sequence
+                if (buffer.getLong(position + DeliveryHistory.COMMIT_OFFSET) != commitSequence) {
+                    continue;
+                }
+                if (timestampMillis < fromMillis || timestampMillis >= toMillis) {
+                    continue;
+                }
+                summary.add(status, latencyMicros, bytes);
+            }
+        } finally {
+            file.close();
+        }
+        return summary;
+    }
+
+    static int bucketIndex(final long latencyMicros) {
+        if (latencyMicros < LINEAR_BUCKETS) {
+            return (int) Math.max(0, latencyMicros);
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(latencyMicros);
+        final int subBucket = (int) (latencyMicros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return Math.min(BUCKET_COUNT - 1, LINEAR_BUCKETS + (exponent - SUB_BUCKET_BITS - 1) * SUB_BUCKETS + subBucket);
+    }
+
+    /**
+     * @return the highest latency that falls into the given bucket
+     */
+    static long bucketUpperBoundMicros(final int bucketIndex) {
+        if (bucketIndex < LINEAR_BUCKETS) {
+            return bucketIndex;
+        }
+        final int exponent = (bucketIndex - LINEAR_BUCKETS) / SUB_BUCKETS + SUB_BUCKET_BITS + 1;
+        final int subBucket = (bucketIndex - LINEAR_BUCKETS) % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    /**
+     * Delivery statistics of a time window.
+     */
+    public static class Summary {
+
+        private final long fromMillis;
+
+        private final long toMillis;
+
+        private final long[] statusCounts = new long[DeliveryHistory.STATUS_NOT_PERMITTED + 1];
+
+        private final long[] latencyBuckets = new long[BUCKET_COUNT];
+
+        private long attempts;
+
+        private long answered;
+
+        private long messageBytes;
+
+        private Summary(final long fromMillis, final long toMillis) {
+            this.fromMillis = fromMillis;
+            this.toMillis = toMillis;
+        }
+
+        private void add(final int status, final int latencyMicros, final int bytes) {
+            attempts++;
+            messageBytes += bytes;
+            if (status > 0 && status < statusCounts.length) {
+                statusCounts[status]++;
+            }
+            // attempts that never reached HipChat would skew the latencies
+            if (status == DeliveryHistory.STATUS_SENT || status == DeliveryHistory.STATUS_REJECTED) {
+                answered++;
+                latencyBuckets[bucketIndex(latencyMicros)]++;
+            }
+        }
+
+        public long getAttempts() {
+            return attempts;
+        }
+
+        public long getCount(final int status) {
+            return statusCounts[status];
+        }
+
+        /**
+         * @return share of attempts that were sent successfully, or 1 if there were no attempts
+         */
+        public double getSuccessRate() {
+            return attempts == 0 ? 1 : (double) statusCounts[DeliveryHistory.STATUS_SENT] / attempts;
+        }
+
+        /**
+         * @return latency below which the given percentage of answered attempts fall, or -1 if none were answered
+         */
+        public long getLatencyPercentileMillis(final double percentile) {
+            if (answered == 0) {
+                return -1;
+            }
+            final long rank = Math.max(1, (long) Math.ceil(percentile / 100 * answered));
+            long seen = 0;
+            for (int i = 0; i < latencyBuckets.length; i++) {
+                seen += latencyBuckets[i];
+                if (seen >= rank) {
+                    return TimeUnit.MICROSECONDS.toMillis(bucketUpperBoundMicros(i));
+                }
+            }
+            return TimeUnit.MICROSECONDS.toMillis(bucketUpperBoundMicros(latencyBuckets.length - 1));
+        }
+
+        @Override
+        public String toString() {
+            return new StringBuilder(256)
+                    .append("window=[").append(fromMillis).append(", ").append(toMillis == Long.MAX_VALUE ? "now" : String.valueOf(toMillis)).append(')')
+                    .append(" attempts=").append(attempts)
+                    .append(" successRate=").append(String.format("%.4f", getSuccessRate()))
+                    .append(" sent=").append(statusCounts[DeliveryHistory.STATUS_SENT])
+                    .append(" rejected=").append(statusCounts[DeliveryHistory.STATUS_REJECTED])
+                    .append(" unavailable=").append(statusCounts[DeliveryHistory.STATUS_UNAVAILABLE])
+                    .append(" notPermitted=").append(statusCounts[DeliveryHistory.STATUS_NOT_PERMITTED])
+                    .append(" avgBytes=").append(attempts == 0 ? 0 : messageBytes / attempts)
+                    .append(" p50=").append(getLatencyPercentileMillis(50)).append("ms")
+                    .append(" p95=").append(getLatencyPercentileMillis(95)).append("ms")
+                    .append(" p99=").append(getLatencyPercentileMillis(99)).append("ms")
+                    .toString();
+        }
+
+    }
+
+}
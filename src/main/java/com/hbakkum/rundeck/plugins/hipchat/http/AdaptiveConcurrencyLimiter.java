@@ -0,0 +1,151 @@
+package com.hbakkum.rundeck.plugins.hipchat.http;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the number of requests in flight to a HipChat server, adapting the limit to how the server is coping.
+ *
+ * The limit follows an AIMD scheme: every request that completes without a sign of congestion grows the limit by
+ * 1/limit (roughly one per limit's worth of requests), while a failed request, or the smoothed round trip time
+ * exceeding twice the recently observed minimum, shrinks it multiplicatively. Round trip times are smoothed with an
+ * exponentially weighted moving average so that a single slow request doesn't count as congestion, and latency
+ * shrinks the limit at most once per limit's worth of requests, so that the limit sees the effect of one backoff
+ * before the next. The limit always stays within the configured floor and ceiling.
+ */
+public class AdaptiveConcurrencyLimiter {
+
+    private static final double BACKOFF_RATIO = 0.75;
+
+    // a smoothed round trip time this many times the no-load round trip time signals congestion
+    private static final double RTT_TOLERANCE = 2.0;
+
+    // weight of each new sample in the smoothed round trip time, about a 10 sample window
+    private static final double RTT_SMOOTHING = 0.1;
+
+    // the no-load round trip time is re-learnt after this many samples so that it can drift upwards
+    private static final int MIN_RTT_RESET_SAMPLES = 500;
+
+    private final String name;
+
+    private int minLimit;
+
+    private int maxLimit;
+
+    private long queueTimeoutNanos;
+
+    private double limit;
+
+    private int inFlight;
+
+    private long minRttNanos = Long.MAX_VALUE;
+
+    private int minRttSamples;
+
+    private double smoothedRttNanos;
+
+    private int samplesSinceBackoff;
+
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    public AdaptiveConcurrencyLimiter(final String name, final int minLimit, final int maxLimit, final long queueTimeoutMillis) {
+        this.name = name;
+        this.limit = maxLimit;
+        configure(minLimit, maxLimit, queueTimeoutMillis);
+    }
+
+    public synchronized void configure(final int minLimit, final int maxLimit, final long queueTimeoutMillis) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.queueTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, queueTimeoutMillis));
+        this.limit = clamp(limit);
+        notifyAll();
+    }
+
+    /**
+     * Waits, for up to the configured queue timeout, for a slot under the current limit. Each successful acquire must
+     * be followed by {@link #onSuccess(long)} or {@link #onDropped()}.
+     *
+     * @return true, if the request may proceed
+     */
+    public synchronized boolean tryAcquire() throws InterruptedException {
+        if (inFlight < (int) limit) {
+            inFlight++;
+            return true;
+        }
+
+        long remainingNanos = queueTimeoutNanos;
+        while (remainingNanos > 0) {
+            final long waitStartNanos = System.nanoTime();
+            TimeUnit.NANOSECONDS.timedWait(this, remainingNanos);
+            if (inFlight < (int) limit) {
+                inFlight++;
+                return true;
+            }
+            remainingNanos -= System.nanoTime() - waitStartNanos;
+        }
+
+        rejectedCount.incrementAndGet();
+        return false;
+    }
+
+    public synchronized void onSuccess(final long rttNanos) {
+        inFlight--;
+
+        if (++minRttSamples > MIN_RTT_RESET_SAMPLES) {
+            minRttNanos = Long.MAX_VALUE;
+            minRttSamples = 0;
+        }
+        minRttNanos = Math.min(minRttNanos, rttNanos);
+        smoothedRttNanos = smoothedRttNanos == 0 ? rttNanos : smoothedRttNanos + RTT_SMOOTHING * (rttNanos - smoothedRttNanos);
+        samplesSinceBackoff++;
+
+        if (smoothedRttNanos > minRttNanos * RTT_TOLERANCE) {
+            if (samplesSinceBackoff >= (int) limit) {
+                limit = clamp(limit * BACKOFF_RATIO);
+                samplesSinceBackoff = 0;
+            }
+        } else {
+            limit = clamp(limit + 1 / limit);
+        }
+        notifyAll();
+    }
+
+    public synchronized void onDropped() {
+        inFlight--;
+        limit = clamp(limit * BACKOFF_RATIO);
+        notifyAll();
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    private double clamp(final double value) {
+        return Math.max(minLimit, Math.min(maxLimit, value));
+    }
+
+    @Override
+    public String toString() {
+        return
+                "AdaptiveConcurrencyLimiter ["+
+                        "name = "+name+","+
+                        "limit = "+getLimit()+","+
+                        "inFlight = "+getInFlight()+","+
+                        "rejected = "+getRejectedCount()+
+                "]";
+    }
+
+}
@@ -0,0 +1,22 @@
+package com.hbakkum.rundeck.plugins.hipchat.http;
+
+import com.hbakkum.rundeck.plugins.hipchat.HipChatNotificationPluginException;
+
+/**
+ * Thrown when a request waited for the queue timeout without getting a slot under the concurrency limit for its
+ * HipChat server. The request was never sent, so this says nothing about the health of the server: it is not a
+ * {@link com.hbakkum.rundeck.plugins.hipchat.HipChatServerUnavailableException}, and doesn't trip circuit breakers or
+ * cause failover.
+ */
+public class ConcurrencyLimitExceededException extends HipChatNotificationPluginException {
+
+    /**
+     * Constructor.
+     *
+     * @param message error message
+     */
+    public ConcurrencyLimitExceededException(String message) {
+        super(message);
+    }
+
+}
@@ -0,0 +1,135 @@
+package com.hbakkum.rundeck.plugins.hipchat.http;
+
+import com.hbakkum.rundeck.plugins.hipchat.HipChatNotificationPluginException;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Applies an {@link AdaptiveConcurrencyLimiter} per HipChat server host to the requests of another executor.
+ * Requests over the limit wait for up to the configured queue timeout and are then rejected with a
+ * {@link ConcurrencyLimitExceededException}.
+ */
+public class ConcurrencyLimitingHttpRequestExecutor implements HttpRequestExecutor {
+
+    public static final int DEFAULT_MIN_LIMIT = 2;
+    public static final int DEFAULT_MAX_LIMIT = 20;
+    public static final long DEFAULT_QUEUE_TIMEOUT_MILLIS = 1000;
+
+    private volatile HttpRequestExecutor delegate;
+
+    private final ConcurrentMap<String, AdaptiveConcurrencyLimiter> limiters = new ConcurrentHashMap<String, AdaptiveConcurrencyLimiter>();
+
+    private volatile int minLimit = DEFAULT_MIN_LIMIT;
+
+    private volatile int maxLimit = DEFAULT_MAX_LIMIT;
+
+    private volatile long queueTimeoutMillis = DEFAULT_QUEUE_TIMEOUT_MILLIS;
+
+    public ConcurrencyLimitingHttpRequestExecutor(final HttpRequestExecutor delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * Replaces the executor that performs the requests. Requests already in flight complete on the previous one.
+     */
+    public void setDelegate(final HttpRequestExecutor delegate) {
+        this.delegate = delegate;
+    }
+
+    public HttpRequestExecutor getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public void setProxy(final String proxyHost, final int proxyPort) {
+        delegate.setProxy(proxyHost, proxyPort);
+    }
+
+    /**
+     * Sets the floor and ceiling of the adaptive limit, and how long a request over the limit waits before being
+     * rejected (0 to reject immediately).
+     */
+    public void setConcurrencyLimits(final int minLimit, final int maxLimit, final long queueTimeoutMillis) {
+        if (minLimit == this.minLimit && maxLimit == this.maxLimit && queueTimeoutMillis == this.queueTimeoutMillis) {
+            return;
+        }
+
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.queueTimeoutMillis = queueTimeoutMillis;
+        for (final AdaptiveConcurrencyLimiter limiter : limiters.values()) {
+            limiter.configure(minLimit, maxLimit, queueTimeoutMillis);
+        }
+    }
+
+    @Override
+    public HttpResponse execute(final String url) {
+        return execute(url, null);
+    }
+
+    @Override
+    public HttpResponse execute(final String url, final String jsonRequestBody) {
+        final AdaptiveConcurrencyLimiter limiter = getLimiter(getHost(url));
+        acquire(limiter);
+
+        final HttpRequestExecutor delegate = this.delegate;
+        final long startNanos = System.nanoTime();
+        try {
+            final HttpResponse httpResponse = jsonRequestBody == null ? delegate.execute(url) : delegate.execute(url, jsonRequestBody);
+            if (httpResponse.isServerError()) {
+                limiter.onDropped();
+            } else {
+                limiter.onSuccess(System.nanoTime() - startNanos);
+            }
+            return httpResponse;
+
+        } catch (RuntimeException ex) {
+            limiter.onDropped();
+            throw ex;
+        }
+    }
+
+    /**
+     * @return the concurrency limiter for each HipChat server host requested so far, keyed by host
+     */
+    public Map<String, AdaptiveConcurrencyLimiter> getLimiters() {
+        return Collections.<String, AdaptiveConcurrencyLimiter>unmodifiableMap(limiters);
+    }
+
+    private void acquire(final AdaptiveConcurrencyLimiter limiter) {
+        try {
+            if (!limiter.tryAcquire()) {
+                throw new ConcurrencyLimitExceededException("Concurrency limit reached for HipChat server [" + limiter + "].");
+            }
+        } catch (InterruptedException interruptedEx) {
+            Thread.currentThread().interrupt();
+            throw new HipChatNotificationPluginException("Interrupted while waiting to send HipChat request.", interruptedEx);
+        }
+    }
+
+    private AdaptiveConcurrencyLimiter getLimiter(final String host) {
+        AdaptiveConcurrencyLimiter limiter = limiters.get(host);
+        if (limiter == null) {
+            final AdaptiveConcurrencyLimiter newLimiter = new AdaptiveConcurrencyLimiter(host, minLimit, maxLimit, queueTimeoutMillis);
+            limiter = limiters.putIfAbsent(host, newLimiter);
+            if (limiter == null) {
+                limiter = newLimiter;
+            }
+        }
+        return limiter;
+    }
+
+    static String getHost(final String url) {
+        final int schemeEnd = url.indexOf("://");
+        final int hostStart = schemeEnd < 0 ? 0 : schemeEnd + 3;
+        int hostEnd = url.indexOf('/', hostStart);
+        if (hostEnd < 0) {
+            hostEnd = url.indexOf('?', hostStart);
+        }
+        return hostEnd < 0 ? url.substring(hostStart) : url.substring(hostStart, hostEnd);
+    }
+
+}
@@ -0,0 +1,100 @@
+package com.hbakkum.rundeck.plugins.hipchat.http;
+
+import com.hbakkum.rundeck.plugins.hipchat.HipChatNotificationPluginException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a connection to each registered HipChat base URL warm by requesting it periodically, so that notifications
+ * find the host resolved, a TLS session to resume and, if the interval is shorter than the server's keep-alive
+ * timeout, an idle connection to reuse.
+ */
+public class ConnectionPrewarmer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ConnectionPrewarmer.class);
+
+    private final HttpRequestExecutor httpRequestExecutor;
+
+    private final Set<String> baseUrls = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, "hipchat-connection-prewarmer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private ScheduledFuture<?> prewarmTask;
+
+    private long intervalMillis;
+
+    public ConnectionPrewarmer(final HttpRequestExecutor httpRequestExecutor) {
+        this.httpRequestExecutor = httpRequestExecutor;
+    }
+
+    /**
+     * Starts keeping connections to the given base URLs warm, or stops keeping any warm if the interval isn't
+     * positive.
+     *
+     * @param baseUrls comma separated base URLs
+     */
+    public synchronized void prewarm(final String baseUrls, final long intervalMillis) {
+        if (intervalMillis <= 0) {
+            stop();
+            return;
+        }
+
+        for (final String baseUrl : baseUrls.trim().split("\\s*,\\s*")) {
+            if (!baseUrl.isEmpty()) {
+                this.baseUrls.add(baseUrl);
+            }
+        }
+
+        if (prewarmTask == null || this.intervalMillis != intervalMillis) {
+            if (prewarmTask != null) {
+                prewarmTask.cancel(false);
+            }
+            this.intervalMillis = intervalMillis;
+            prewarmTask = scheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    prewarmNow();
+                }
+            }, 0, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public synchronized void stop() {
+        if (prewarmTask != null) {
+            prewarmTask.cancel(false);
+            prewarmTask = null;
+        }
+        intervalMillis = 0;
+        baseUrls.clear();
+    }
+
+    /**
+     * Requests each registered base URL once. The response doesn't matter, only that the connection was made.
+     */
+    void prewarmNow() {
+        for (final String baseUrl : baseUrls) {
+            try {
+                httpRequestExecutor.execute(baseUrl);
+            } catch (HipChatNotificationPluginException prewarmEx) {
+                LOG.debug("Unable to prewarm connection to [{}]: {}", baseUrl, prewarmEx.getMessage());
+            }
+        }
+    }
+
+}
@@ -0,0 +1,210 @@
+package com.hbakkum.rundeck.plugins.hipchat.http;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Connects to a host that resolves to several addresses by racing connection attempts (Happy Eyeballs, RFC 8305).
+ * The first address is tried straight away, and each further address is tried once the attempts before it have
+ * failed or have been left waiting for the attempt delay. The first connection established wins and the others are
+ * closed, so a black-holed address costs one attempt delay rather than a full connect timeout.
+ */
+public class ConnectionRacer {
+
+    public static final long DEFAULT_ATTEMPT_DELAY_MILLIS = 250;
+
+    public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 10000;
+
+    private static final ExecutorService CONNECT_EXECUTOR = Executors.newCachedThreadPool(new ConnectThreadFactory());
+
+    private final HostAddressCache hostAddressCache;
+
+    private volatile long attemptDelayMillis;
+
+    public ConnectionRacer(final HostAddressCache hostAddressCache, final long attemptDelayMillis) {
+        this.hostAddressCache = hostAddressCache;
+        this.attemptDelayMillis = attemptDelayMillis;
+    }
+
+    public void setAttemptDelayMillis(final long attemptDelayMillis) {
+        this.attemptDelayMillis = attemptDelayMillis;
+    }
+
+    public HostAddressCache getHostAddressCache() {
+        return hostAddressCache;
+    }
+
+    /**
+     * @param timeoutMillis time allowed for the whole race, or 0 for the default
+     * @return a socket connected to one of the host's addresses
+     */
+    public Socket connect(final String host, final int port, final int timeoutMillis) throws IOException {
+        final InetAddress[] addresses = hostAddressCache.resolve(host);
+        final Socket socket = connect(addresses, port, timeoutMillis > 0 ? timeoutMillis : DEFAULT_CONNECT_TIMEOUT_MILLIS);
+        hostAddressCache.preferAddress(host, socket.getInetAddress());
+        return socket;
+    }
+
+    Socket connect(final InetAddress[] addresses, final int port, final int timeoutMillis) throws IOException {
+        if (addresses.length == 1) {
+            final Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(addresses[0], port), timeoutMillis);
+            } catch (IOException ioEx) {
+                socket.close();
+                throw ioEx;
+            }
+            return socket;
+        }
+
+        final long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        final CompletionService<Socket> attempts = new ExecutorCompletionService<Socket>(CONNECT_EXECUTOR);
+        final Future<?>[] attemptFutures = new Future<?>[addresses.length];
+        int started = 0;
+        int finished = 0;
+        IOException lastConnectEx = null;
+        try {
+            while (finished < addresses.length) {
+                if (started < addresses.length && started == finished) {
+                    // nothing in flight, so there's no reason to wait before the next attempt
+                    attemptFutures[started] = attempts.submit(new ConnectAttempt(addresses[started], port, remainingMillis(deadlineNanos)));
+                    started++;
+                }
+
+                final long remainingNanos = deadlineNanos - System.nanoTime();
+                if (remainingNanos <= 0) {
+                    break;
+                }
+                final long waitNanos = started < addresses.length
+                        ? Math.min(remainingNanos, TimeUnit.MILLISECONDS.toNanos(attemptDelayMillis))
+                        : remainingNanos;
+                final Future<Socket> attempt = attempts.poll(waitNanos, TimeUnit.NANOSECONDS);
+
+                if (attempt == null) {
+                    if (started < addresses.length) {
+                        attemptFutures[started] = attempts.submit(new ConnectAttempt(addresses[started], port, remainingMillis(deadlineNanos)));
+                        started++;
+                    }
+                    continue;
+                }
+
+                finished++;
+                try {
+                    final Socket socket = attempt.get();
+                    closeRemainingAttempts(attempts, attemptFutures, started - finished);
+                    return socket;
+                } catch (ExecutionException executionEx) {
+                    lastConnectEx = executionEx.getCause() instanceof IOException
+                            ? (IOException) executionEx.getCause()
+                            : new IOException(executionEx.getCause());
+                }
+            }
+
+        } catch (InterruptedException interruptedEx) {
+            Thread.currentThread().interrupt();
+            closeRemainingAttempts(attempts, attemptFutures, started - finished);
+            throw new IOException("Interrupted while connecting.", interruptedEx);
+        }
+
+        closeRemainingAttempts(attempts, attemptFutures, started - finished);
+        if (lastConnectEx != null && finished == addresses.length) {
+            throw lastConnectEx;
+        }
+        throw new SocketTimeoutException("Timed out connecting to any of " + addresses.length + " addresses after " + timeoutMillis + "ms.");
+    }
+
+    private static int remainingMillis(final long deadlineNanos) {
+        return (int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime()));
+    }
+
+    /**
+     * Stops waiting for the attempts still in flight, closing any that connect anyway.
+     */
+    private static void closeRemainingAttempts(final CompletionService<Socket> attempts, final Future<?>[] attemptFutures, final int inFlight) {
+        for (final Future<?> attemptFuture : attemptFutures) {
+            if (attemptFuture != null) {
+                // interrupting doesn't abort a blocking connect, the attempts time out by themselves
+                attemptFuture.cancel(false);
+            }
+        }
+        if (inFlight > 0) {
+            CONNECT_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < inFlight; i++) {
+                        try {
+                            closeQuietly(attempts.take().get());
+                        } catch (InterruptedException interruptedEx) {
+                            return;
+                        } catch (Exception ignored) {
+                            // a losing attempt failed or was cancelled before it started, nothing to close
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    private static void closeQuietly(final Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+            // nothing more can be done with a losing connection
+        }
+    }
+
+    private static final class ConnectAttempt implements Callable<Socket> {
+
+        private final InetAddress address;
+
+        private final int port;
+
+        private final int timeoutMillis;
+
+        private ConnectAttempt(final InetAddress address, final int port, final int timeoutMillis) {
+            this.address = address;
+            this.port = port;
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        @Override
+        public Socket call() throws IOException {
+            final Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(address, port), timeoutMillis);
+            } catch (IOException ioEx) {
+                socket.close();
+                throw ioEx;
+            }
+            return socket;
+        }
+
+    }
+
+    private static final class ConnectThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, "hipchat-connect-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+
+    }
+
+}
@@ -0,0 +1,134 @@
+package com.hbakkum.rundeck.plugins.hipchat.http;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caches every address a host name resolves to for a bounded time, independently of the JVM wide DNS cache
+ * settings. If resolving fails once an entry has expired, the expired addresses keep being used for a while longer so
+ * that a DNS outage doesn't also take out notifications.
+ *
+ * Addresses are ordered as recommended for Happy Eyeballs (RFC 8305): alternating between IPv6 and IPv4, starting
+ * with the family of the first address returned by the resolver. The address that last connected successfully is
+ * moved to the front.
+ */
+public class HostAddressCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(HostAddressCache.class);
+
+    public static final long DEFAULT_TTL_MILLIS = TimeUnit.SECONDS.toMillis(60);
+
+    private static final int STALE_TTL_MULTIPLIER = 10;
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    private volatile long ttlMillis;
+
+    public HostAddressCache(final long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    public void setTtlMillis(final long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * @return the addresses of the host, in the order connections should be attempted
+     */
+    public InetAddress[] resolve(final String host) throws UnknownHostException {
+        final long nowMillis = System.currentTimeMillis();
+        final Entry entry = entries.get(host);
+        if (entry != null && nowMillis < entry.resolvedAtMillis + ttlMillis) {
+            return entry.addresses;
+        }
+
+        try {
+            final InetAddress[] addresses = interleaveAddressFamilies(lookup(host));
+            entries.put(host, new Entry(addresses, nowMillis));
+            return addresses;
+
+        } catch (UnknownHostException unknownHostEx) {
+            if (entry != null && nowMillis < entry.resolvedAtMillis + ttlMillis * STALE_TTL_MULTIPLIER) {
+                LOG.warn("Unable to resolve [{}] ({}), using addresses resolved earlier.", host, unknownHostEx.getMessage());
+                return entry.addresses;
+            }
+            throw unknownHostEx;
+        }
+    }
+
+    /**
+     * Moves the given address to the front of the host's addresses, so that it is tried first next time.
+     */
+    public void preferAddress(final String host, final InetAddress address) {
+        final Entry entry = entries.get(host);
+        if (entry == null || entry.addresses[0].equals(address)) {
+            return;
+        }
+
+        final InetAddress[] addresses = new InetAddress[entry.addresses.length];
+        addresses[0] = address;
+        int i = 1;
+        for (final InetAddress entryAddress : entry.addresses) {
+            if (!entryAddress.equals(address)) {
+                if (i == addresses.length) {
+                    // the address isn't one of the host's (any more)
+                    return;
+                }
+                addresses[i++] = entryAddress;
+            }
+        }
+        entries.replace(host, entry, new Entry(addresses, entry.resolvedAtMillis));
+    }
+
+    protected InetAddress[] lookup(final String host) throws UnknownHostException {
+        return InetAddress.getAllByName(host);
+    }
+
+    static InetAddress[] interleaveAddressFamilies(final InetAddress[] addresses) {
+        if (addresses.length < 2) {
+            return addresses;
+        }
+
+        final boolean firstIsIpv6 = addresses[0] instanceof Inet6Address;
+        final List<InetAddress> firstFamily = new ArrayList<InetAddress>();
+        final List<InetAddress> otherFamily = new ArrayList<InetAddress>();
+        for (final InetAddress address : addresses) {
+            ((address instanceof Inet6Address) == firstIsIpv6 ? firstFamily : otherFamily).add(address);
+        }
+
+        final InetAddress[] interleaved = new InetAddress[addresses.length];
+        int i = 0;
+        for (int j = 0; j < Math.max(firstFamily.size(), otherFamily.size()); j++) {
+            if (j < firstFamily.size()) {
+                interleaved[i++] = firstFamily.get(j);
+            }
+            if (j < otherFamily.size()) {
+                interleaved[i++] = otherFamily.get(j);
+            }
+        }
+        return interleaved;
+    }
+
+    private static final class Entry {
+
+        private final InetAddress[] addresses;
+
+        private final long resolvedAtMillis;
+
+        private Entry(final InetAddress[] addresses, final long resolvedAtMillis) {
+            this.addresses = addresses;
+            this.resolvedAtMillis = resolvedAtMillis;
+        }
+
+    }
+
+}
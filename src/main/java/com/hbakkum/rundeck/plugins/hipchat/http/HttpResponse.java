@@ -6,6 +6,10 @@ package com.hbakkum.rundeck.plugins.hipchat.http;
 public class HttpResponse {
 
     public static final int STATUS__NO_CONTENT = 204;
+    public static final int STATUS__UNAUTHORIZED = 401;
+    public static final int STATUS__NOT_FOUND = 404;
+    public static final int STATUS__TOO_MANY_REQUESTS = 429;
+    public static final int STATUS__INTERNAL_SERVER_ERROR = 500;
 
     public static final String CONTENT_TYPE__JSON = "application/json";
 
@@ -33,6 +37,10 @@ public class HttpResponse {
         return responseBody;
     }
 
+    public boolean isServerError() {
+        return responseCode >= STATUS__INTERNAL_SERVER_ERROR;
+    }
+
     @Override
     public String toString() {
         return
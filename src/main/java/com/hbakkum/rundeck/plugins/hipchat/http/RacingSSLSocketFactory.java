@@ -0,0 +1,292 @@
+package com.hbakkum.rundeck.plugins.hipchat.http;
+
+import javax.net.ssl.SSLSocketFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.channels.SocketChannel;
+
+/**
+ * An SSL socket factory that establishes the underlying TCP connection with a {@link ConnectionRacer}.
+ *
+ * {@link javax.net.ssl.HttpsURLConnection} asks its socket factory for an unconnected socket, connects it to the
+ * host and then layers TLS over it using the same factory. The unconnected socket handed out here races all of the
+ * host's addresses when asked to connect, and then passes everything through to the winning connection. TLS is
+ * layered using the host name, so server name indication and host name verification are unaffected.
+ *
+ * Use a single instance per executor: HttpsURLConnection only reuses kept alive connections made by the same
+ * factory.
+ */
+public class RacingSSLSocketFactory extends SSLSocketFactory {
+
+    private final SSLSocketFactory delegate;
+
+    private final ConnectionRacer connectionRacer;
+
+    public RacingSSLSocketFactory(final SSLSocketFactory delegate, final ConnectionRacer connectionRacer) {
+        this.delegate = delegate;
+        this.connectionRacer = connectionRacer;
+    }
+
+    @Override
+    public Socket createSocket() {
+        return new RacedSocket(connectionRacer);
+    }
+
+    @Override
+    public Socket createSocket(final Socket socket, final String host, final int port, final boolean autoClose) throws IOException {
+        return delegate.createSocket(socket, host, port, autoClose);
+    }
+
+    @Override
+    public Socket createSocket(final String host, final int port) throws IOException {
+        return delegate.createSocket(connectionRacer.connect(host, port, 0), host, port, true);
+    }
+
+    @Override
+    public Socket createSocket(final String host, final int port, final InetAddress localAddress, final int localPort) throws IOException {
+        return delegate.createSocket(host, port, localAddress, localPort);
+    }
+
+    @Override
+    public Socket createSocket(final InetAddress address, final int port) throws IOException {
+        return delegate.createSocket(address, port);
+    }
+
+    @Override
+    public Socket createSocket(final InetAddress address, final int port, final InetAddress localAddress, final int localPort) throws IOException {
+        return delegate.createSocket(address, port, localAddress, localPort);
+    }
+
+    @Override
+    public String[] getDefaultCipherSuites() {
+        return delegate.getDefaultCipherSuites();
+    }
+
+    @Override
+    public String[] getSupportedCipherSuites() {
+        return delegate.getSupportedCipherSuites();
+    }
+
+    /**
+     * An unconnected socket that races the addresses of the host it is asked to connect to, and then delegates to the
+     * winning connection. Options set before connecting are applied to the winning connection.
+     */
+    static final class RacedSocket extends Socket {
+
+        private final ConnectionRacer connectionRacer;
+
+        private volatile Socket connection;
+
+        private volatile boolean closed;
+
+        private int soTimeout;
+
+        private boolean tcpNoDelay;
+
+        RacedSocket(final ConnectionRacer connectionRacer) {
+            this.connectionRacer = connectionRacer;
+        }
+
+        @Override
+        public void connect(final SocketAddress endpoint) throws IOException {
+            connect(endpoint, 0);
+        }
+
+        @Override
+        public void connect(final SocketAddress endpoint, final int timeout) throws IOException {
+            if (closed) {
+                throw new SocketException("Socket is closed");
+            }
+            if (connection != null) {
+                throw new SocketException("Already connected");
+            }
+            final InetSocketAddress socketAddress = (InetSocketAddress) endpoint;
+            // getHostName() would look up the name of an IP literal base URL on every connect
+            final Socket connection = connectionRacer.connect(socketAddress.getHostString(), socketAddress.getPort(), timeout);
+            synchronized (this) {
+                if (closed) {
+                    connection.close();
+                    throw new SocketException("Socket is closed");
+                }
+                connection.setSoTimeout(soTimeout);
+                connection.setTcpNoDelay(tcpNoDelay);
+                this.connection = connection;
+            }
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return getConnection().getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return getConnection().getOutputStream();
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            closed = true;
+            if (connection != null) {
+                connection.close();
+            }
+        }
+
+        @Override
+        public boolean isConnected() {
+            return connection != null && connection.isConnected();
+        }
+
+        @Override
+        public boolean isBound() {
+            return connection != null && connection.isBound();
+        }
+
+        @Override
+        public boolean isClosed() {
+            return closed || (connection != null && connection.isClosed());
+        }
+
+        @Override
+        public InetAddress getInetAddress() {
+            return connection == null ? null : connection.getInetAddress();
+        }
+
+        @Override
+        public int getPort() {
+            return connection == null ? 0 : connection.getPort();
+        }
+
+        @Override
+        public InetAddress getLocalAddress() {
+            return connection == null ? null : connection.getLocalAddress();
+        }
+
+        @Override
+        public int getLocalPort() {
+            return connection == null ? -1 : connection.getLocalPort();
+        }
+
+        @Override
+        public SocketAddress getRemoteSocketAddress() {
+            return connection == null ? null : connection.getRemoteSocketAddress();
+        }
+
+        @Override
+        public SocketAddress getLocalSocketAddress() {
+            return connection == null ? null : connection.getLocalSocketAddress();
+        }
+
+        @Override
+        public SocketChannel getChannel() {
+            return null;
+        }
+
+        @Override
+        public synchronized void setSoTimeout(final int timeout) throws SocketException {
+            soTimeout = timeout;
+            if (connection != null) {
+                connection.setSoTimeout(timeout);
+            }
+        }
+
+        @Override
+        public synchronized int getSoTimeout() throws SocketException {
+            return connection == null ? soTimeout : connection.getSoTimeout();
+        }
+
+        @Override
+        public synchronized void setTcpNoDelay(final boolean on) throws SocketException {
+            tcpNoDelay = on;
+            if (connection != null) {
+                connection.setTcpNoDelay(on);
+            }
+        }
+
+        @Override
+        public synchronized boolean getTcpNoDelay() throws SocketException {
+            return connection == null ? tcpNoDelay : connection.getTcpNoDelay();
+        }
+
+        @Override
+        public void setKeepAlive(final boolean on) throws SocketException {
+            getConnection().setKeepAlive(on);
+        }
+
+        @Override
+        public boolean getKeepAlive() throws SocketException {
+            return getConnection().getKeepAlive();
+        }
+
+        @Override
+        public void setSoLinger(final boolean on, final int linger) throws SocketException {
+            getConnection().setSoLinger(on, linger);
+        }
+
+        @Override
+        public int getSoLinger() throws SocketException {
+            return getConnection().getSoLinger();
+        }
+
+        @Override
+        public void setSendBufferSize(final int size) throws SocketException {
+            getConnection().setSendBufferSize(size);
+        }
+
+        @Override
+        public int getSendBufferSize() throws SocketException {
+            return getConnection().getSendBufferSize();
+        }
+
+        @Override
+        public void setReceiveBufferSize(final int size) throws SocketException {
+            getConnection().setReceiveBufferSize(size);
+        }
+
+        @Override
+        public int getReceiveBufferSize() throws SocketException {
+            return getConnection().getReceiveBufferSize();
+        }
+
+        @Override
+        public void shutdownInput() throws IOException {
+            getConnection().shutdownInput();
+        }
+
+        @Override
+        public void shutdownOutput() throws IOException {
+            getConnection().shutdownOutput();
+        }
+
+        @Override
+        public boolean isInputShutdown() {
+            return connection != null && connection.isInputShutdown();
+        }
+
+        @Override
+        public boolean isOutputShutdown() {
+            return connection != null && connection.isOutputShutdown();
+        }
+
+        @Override
+        public String toString() {
+            return connection == null ? "RacedSocket[unconnected]" : connection.toString();
+        }
+
+        private Socket getConnection() throws SocketException {
+            final Socket connection = this.connection;
+            if (connection == null) {
+                throw new SocketException(closed ? "Socket is closed" : "Socket is not connected");
+            }
+            return connection;
+        }
+
+    }
+
+}
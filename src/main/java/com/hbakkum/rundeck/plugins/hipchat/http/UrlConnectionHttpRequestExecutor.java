@@ -0,0 +1,181 @@
+package com.hbakkum.rundeck.plugins.hipchat.http;
+
+import com.hbakkum.rundeck.plugins.hipchat.HipChatServerUnavailableException;
+import com.hbakkum.rundeck.plugins.hipchat.trace.NotificationTrace;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.Proxy;
+import java.net.URL;
+import java.nio.charset.Charset;
+
+import static com.hbakkum.rundeck.plugins.hipchat.HipChatNotificationPluginUtils.getResponseCode;
+import static com.hbakkum.rundeck.plugins.hipchat.HipChatNotificationPluginUtils.isNotEmpty;
+import static com.hbakkum.rundeck.plugins.hipchat.HipChatNotificationPluginUtils.redactAuthToken;
+
+/**
+ * Executes requests directly on {@link HttpURLConnection} so that connection establishment (DNS, TCP, TLS and
+ * any proxy hop) and time to first response byte can be timed separately for each request.
+ *
+ * Response bodies are read to the end so that connections are returned to the JVM's keep-alive cache for reuse.
+ * When a {@link ConnectionRacer} is set, HTTPS connections race the addresses of their host rather than waiting for
+ * the first address to time out. HttpURLConnection has no socket factory hook for plain HTTP, so HTTP connections
+ * aren't raced.
+ *
+ * Every request has a connect and a read timeout, so that an unresponsive server can't hold a delivery thread
+ * forever. The read timeout bounds each wait for response bytes rather than the whole response.
+ */
+public class UrlConnectionHttpRequestExecutor implements HttpRequestExecutor {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String USER_AGENT = "rundeck-hipchat-plugin";
+
+    public static final long DEFAULT_REQUEST_TIMEOUT_MILLIS = 30000;
+
+    private volatile Proxy proxy = Proxy.NO_PROXY;
+
+    private volatile int connectTimeoutMillis = (int) DEFAULT_REQUEST_TIMEOUT_MILLIS;
+
+    private volatile int readTimeoutMillis = (int) DEFAULT_REQUEST_TIMEOUT_MILLIS;
+
+    private ConnectionRacer connectionRacer;
+
+    private volatile SSLSocketFactory sslSocketFactory;
+
+    @Override
+    public void setProxy(final String proxyHost, final int proxyPort) {
+        if (isNotEmpty(proxyHost) && proxyPort > -1) {
+            this.proxy = new Proxy(Proxy.Type.HTTP, new InetSocketAddress(proxyHost, proxyPort));
+        } else {
+            this.proxy = Proxy.NO_PROXY;
+        }
+    }
+
+    /**
+     * Sets how long a request waits to connect, and then for each read of the response, before failing. Values
+     * below 1 are raised to 1, as HttpURLConnection would take 0 to mean no timeout.
+     */
+    public void setTimeouts(final long connectTimeoutMillis, final long readTimeoutMillis) {
+        this.connectTimeoutMillis = (int) Math.max(1, Math.min(Integer.MAX_VALUE, connectTimeoutMillis));
+        this.readTimeoutMillis = (int) Math.max(1, Math.min(Integer.MAX_VALUE, readTimeoutMillis));
+    }
+
+    /**
+     * @param connectionRacer racer to establish HTTPS connections with, or null to connect to the first address only
+     */
+    public synchronized void setConnectionRacer(final ConnectionRacer connectionRacer) {
+        // kept alive connections are only reused by the factory that made them, so keep the current one if possible
+        if (connectionRacer == this.connectionRacer) {
+            return;
+        }
+        this.connectionRacer = connectionRacer;
+        this.sslSocketFactory = connectionRacer == null
+                ? null
+                : new RacingSSLSocketFactory(HttpsURLConnection.getDefaultSSLSocketFactory(), connectionRacer);
+    }
+
+    @Override
+    public HttpResponse execute(final String url) {
+        return execute(url, null);
+    }
+
+    @Override
+    public HttpResponse execute(final String url, final String jsonRequestBody) {
+        final long startNanos = System.nanoTime();
+        HttpURLConnection httpConnection = null;
+        try {
+            httpConnection = (HttpURLConnection) new URL(url).openConnection(proxy);
+            final SSLSocketFactory sslSocketFactory = this.sslSocketFactory;
+            if (sslSocketFactory != null && httpConnection instanceof HttpsURLConnection) {
+                ((HttpsURLConnection) httpConnection).setSSLSocketFactory(sslSocketFactory);
+            }
+            httpConnection.setConnectTimeout(connectTimeoutMillis);
+            httpConnection.setReadTimeout(readTimeoutMillis);
+            httpConnection.setRequestProperty("User-Agent", USER_AGENT);
+            httpConnection.setRequestProperty("Accept", HttpResponse.CONTENT_TYPE__JSON + ", text/*");
+
+            byte[] requestBody = null;
+            if (jsonRequestBody != null) {
+                requestBody = jsonRequestBody.getBytes(UTF_8);
+                httpConnection.setRequestMethod("POST");
+                httpConnection.setDoOutput(true);
+                httpConnection.setRequestProperty("Content-Type", HttpResponse.CONTENT_TYPE__JSON + "; charset=UTF-8");
+            }
+
+            httpConnection.connect();
+            final long connectedNanos = System.nanoTime();
+
+            if (requestBody != null) {
+                final OutputStream outputStream = httpConnection.getOutputStream();
+                try {
+                    outputStream.write(requestBody);
+                } finally {
+                    outputStream.close();
+                }
+            }
+
+            final int responseCode = getResponseCode(httpConnection);
+            final long firstByteNanos = System.nanoTime();
+
+            final HttpResponse httpResponse = new HttpResponse(responseCode, httpConnection.getHeaderField("content-type"), readResponseBody(httpConnection));
+
+            NotificationTrace.recordHttpRequest(httpConnection.getURL().getHost(), responseCode,
+                    connectedNanos - startNanos, firstByteNanos - connectedNanos, System.nanoTime() - startNanos);
+
+            return httpResponse;
+
+        } catch (IOException ioEx) {
+            // the URL carries the auth token, so only its host is traced, and it is redacted from the error
+            NotificationTrace.recordHttpRequest(httpConnection == null ? getHost(url) : httpConnection.getURL().getHost(), -1,
+                    0, 0, System.nanoTime() - startNanos);
+            // the connection is in an unknown state, so it mustn't be reused
+            if (httpConnection != null) {
+                httpConnection.disconnect();
+            }
+            final IOException redactedEx = new IOException(ioEx.getClass().getName() + ": " + redactAuthToken(ioEx.getMessage()));
+            redactedEx.setStackTrace(ioEx.getStackTrace());
+            throw new HipChatServerUnavailableException("Error opening connection to HipChat URL: [" + redactAuthToken(ioEx.getMessage()) + "].",
+                    redactedEx);
+        }
+    }
+
+    private static String getHost(final String url) {
+        try {
+            return new URL(url).getHost();
+        } catch (MalformedURLException malformedUrlEx) {
+            return "unknown";
+        }
+    }
+
+    private String readResponseBody(final HttpURLConnection httpConnection) throws IOException {
+        final InputStream inputStream = httpConnection.getResponseCode() >= HttpURLConnection.HTTP_BAD_REQUEST
+                ? httpConnection.getErrorStream()
+                : httpConnection.getInputStream();
+        if (inputStream == null) {
+            return "";
+        }
+
+        final StringBuilder responseBody = new StringBuilder(256);
+        final Reader reader = new InputStreamReader(inputStream, UTF_8);
+        try {
+            final char[] buffer = new char[1024];
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                responseBody.append(buffer, 0, read);
+            }
+        } finally {
+            reader.close();
+        }
+        return responseBody.toString();
+    }
+
+}
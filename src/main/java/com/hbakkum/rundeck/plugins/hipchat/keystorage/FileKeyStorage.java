@@ -0,0 +1,117 @@
+package com.hbakkum.rundeck.plugins.hipchat.keystorage;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads keys from Rundeck's file Key Storage provider, which keeps the content of the key at path P in the file
+ * content/P under its base directory (rundeck.storage.provider.N.config.baseDir), and its metadata in meta/P.
+ *
+ * Reading the files directly bypasses Key Storage's access rules, so only keys under an allowed path prefix can be
+ * read, and only if their metadata marks them as passwords; other keys (e.g. SSH keys) are never read. Keys
+ * encrypted by a storage converter plugin can't be read this way.
+ */
+public class FileKeyStorage implements KeyStorage {
+
+    // API auth tokens are tens of bytes, anything much larger isn't one
+    static final int MAX_KEY_BYTES = 64 * 1024;
+
+    static final String PASSWORD_CONTENT_TYPE = "application/x-rundeck-data-password";
+
+    static final String PASSWORD_DATA_TYPE = "password";
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private final File contentDir;
+
+    private final File metaDir;
+
+    private final String allowedPathPrefix;
+
+    /**
+     * @param allowedPathPrefix Key Storage path prefix that keys must be under to be read, e.g. keys/hipchat/; or
+     *                          null or blank to not read any keys
+     */
+    public FileKeyStorage(final File baseDir, final String allowedPathPrefix) {
+        this.contentDir = new File(baseDir, "content");
+        this.metaDir = new File(baseDir, "meta");
+        this.allowedPathPrefix = toAllowedPathPrefix(allowedPathPrefix);
+    }
+
+    @Override
+    public String readKey(final String path) throws IOException {
+        checkPathIsAllowed(path);
+
+        final File keyFile = new File(contentDir, path);
+        if (!keyFile.isFile()) {
+            throw new FileNotFoundException("No key found at Key Storage path [" + path + "].");
+        }
+        checkKeyIsPassword(path);
+
+        final InputStream in = new FileInputStream(keyFile);
+        try {
+            final ByteArrayOutputStream content = new ByteArrayOutputStream(64);
+            final byte[] buffer = new byte[1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                content.write(buffer, 0, read);
+                if (content.size() > MAX_KEY_BYTES) {
+                    throw new IOException("Key at Key Storage path [" + path + "] is larger than [" + MAX_KEY_BYTES + "] bytes.");
+                }
+            }
+            return content.toString("UTF-8").trim();
+        } finally {
+            in.close();
+        }
+    }
+
+    private void checkPathIsAllowed(final String path) throws IOException {
+        if (allowedPathPrefix == null) {
+            throw new IOException("Reading API auth tokens from Key Storage is disabled, as no Key Storage token path prefix is configured.");
+        }
+        if (!path.startsWith(allowedPathPrefix)) {
+            throw new IOException("Key Storage path [" + path + "] is not under the allowed prefix [" + allowedPathPrefix + "].");
+        }
+        // split with a negative limit keeps trailing empty parts, so that "keys/hipchat/" is rejected too
+        for (final String pathPart : path.split("/", -1)) {
+            if (pathPart.isEmpty() || pathPart.equals(".") || pathPart.equals("..")) {
+                throw new IOException("Key Storage path [" + path + "] must not contain empty, '.' or '..' parts.");
+            }
+        }
+    }
+
+    /**
+     * @throws IOException if the key's metadata can't be read or doesn't mark it as a password
+     */
+    private void checkKeyIsPassword(final String path) throws IOException {
+        final File metaFile = new File(metaDir, path);
+        if (!metaFile.isFile()) {
+            throw new IOException("No metadata found for Key Storage path [" + path + "], so it can't be confirmed to be a password.");
+        }
+
+        final JsonNode meta = OBJECT_MAPPER.readTree(metaFile);
+        final boolean password = meta != null
+                && (PASSWORD_DATA_TYPE.equals(meta.path("Rundeck-data-type").getTextValue())
+                || PASSWORD_CONTENT_TYPE.equals(meta.path("Rundeck-content-type").getTextValue()));
+        if (!password) {
+            throw new IOException("Key at Key Storage path [" + path + "] is not a password.");
+        }
+    }
+
+    private static String toAllowedPathPrefix(final String allowedPathPrefix) {
+        if (allowedPathPrefix == null || allowedPathPrefix.trim().isEmpty()) {
+            return null;
+        }
+        final String prefix = allowedPathPrefix.trim();
+        // a prefix covers whole path parts, so that keys/hipchat doesn't allow keys/hipchat-other
+        return prefix.endsWith("/") ? prefix : prefix + "/";
+    }
+
+}
@@ -0,0 +1,18 @@
+package com.hbakkum.rundeck.plugins.hipchat.keystorage;
+
+import java.io.IOException;
+
+/**
+ * Read access to Rundeck Key Storage.
+ */
+public interface KeyStorage {
+
+    /**
+     * @param path Key Storage path of the key, e.g. keys/hipchat/ops-token
+     * @return the key's content
+     * @throws java.io.FileNotFoundException if there is no key at the path
+     * @throws IOException if the key can't be read
+     */
+    String readKey(String path) throws IOException;
+
+}
@@ -0,0 +1,191 @@
+package com.hbakkum.rundeck.plugins.hipchat.keystorage;
+
+import com.hbakkum.rundeck.plugins.hipchat.HipChatNotificationPluginException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Resolves API auth tokens configured as Key Storage paths (anything starting with {@value #KEY_STORAGE_PATH_PREFIX})
+ * to the tokens stored there, caching them for the TTL.
+ *
+ * Once a token has been cached for half the TTL, the next lookup still returns it but also starts reading it again in
+ * the background, so a token in regular use is refreshed before it expires and a notification only waits on Key
+ * Storage the first time a token is used, or after it went unused for longer than the TTL. If a read fails, the token
+ * last read is used until a read succeeds. The least recently used tokens are dropped beyond
+ * {@link #DEFAULT_MAX_ENTRIES}.
+ */
+public class KeyStorageTokenCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(KeyStorageTokenCache.class);
+
+    public static final String KEY_STORAGE_PATH_PREFIX = "keys/";
+
+    public static final String DEFAULT_STORAGE_DIR = "/var/lib/rundeck/var/storage";
+
+    public static final long DEFAULT_TTL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    static final int DEFAULT_MAX_ENTRIES = 1024;
+
+    private static final ConcurrentMap<String, KeyStorageTokenCache> CACHES = new ConcurrentHashMap<String, KeyStorageTokenCache>();
+
+    private static final ExecutorService REFRESH_EXECUTOR = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, "hipchat-key-storage-refresh");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final KeyStorage keyStorage;
+
+    private final Executor refreshExecutor;
+
+    private final Map<String, CachedToken> tokens;
+
+    private volatile long ttlMillis;
+
+    KeyStorageTokenCache(final KeyStorage keyStorage, final long ttlMillis, final int maxEntries, final Executor refreshExecutor) {
+        this.keyStorage = keyStorage;
+        this.ttlMillis = ttlMillis;
+        this.refreshExecutor = refreshExecutor;
+        this.tokens = new LinkedHashMap<String, CachedToken>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, CachedToken> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns the cache for the file Key Storage at the given base directory, creating it on first use.
+     *
+     * @param allowedPathPrefix Key Storage path prefix that tokens must be under, or blank to not read any tokens
+     * @see FileKeyStorage
+     */
+    public static KeyStorageTokenCache forStorageDir(final String storageDir, final String allowedPathPrefix) {
+        final String cacheKey = storageDir + '\n' + allowedPathPrefix;
+        KeyStorageTokenCache cache = CACHES.get(cacheKey);
+        if (cache == null) {
+            final KeyStorageTokenCache newCache = new KeyStorageTokenCache(
+                    new FileKeyStorage(new File(storageDir), allowedPathPrefix), DEFAULT_TTL_MILLIS, DEFAULT_MAX_ENTRIES, REFRESH_EXECUTOR);
+            cache = CACHES.putIfAbsent(cacheKey, newCache);
+            if (cache == null) {
+                cache = newCache;
+            }
+        }
+        return cache;
+    }
+
+    public static boolean isKeyStoragePath(final String apiAuthToken) {
+        return apiAuthToken != null && apiAuthToken.startsWith(KEY_STORAGE_PATH_PREFIX);
+    }
+
+    public void setTtlMillis(final long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * @return the token stored at the path if the given token is a Key Storage path, otherwise the given token
+     * @throws HipChatNotificationPluginException if the token has never been read and can't be read now
+     */
+    public String resolve(final String apiAuthToken) {
+        if (!isKeyStoragePath(apiAuthToken)) {
+            return apiAuthToken;
+        }
+
+        final CachedToken cachedToken;
+        synchronized (tokens) {
+            cachedToken = tokens.get(apiAuthToken);
+        }
+
+        final long ageMillis = cachedToken == null ? Long.MAX_VALUE : System.currentTimeMillis() - cachedToken.readAtMillis;
+        final long ttlMillis = this.ttlMillis;
+        if (ageMillis < ttlMillis / 2) {
+            return cachedToken.token;
+        }
+        if (ageMillis < ttlMillis) {
+            refreshInBackground(apiAuthToken, cachedToken);
+            return cachedToken.token;
+        }
+
+        try {
+            return read(apiAuthToken);
+        } catch (IOException ioEx) {
+            if (cachedToken == null) {
+                throw new HipChatNotificationPluginException("Unable to read API auth token from Key Storage path [" + apiAuthToken + "].", ioEx);
+            }
+            LOG.warn("Unable to read API auth token from Key Storage path [{}], using the token read before: {}", apiAuthToken, ioEx.getMessage());
+            return cachedToken.token;
+        }
+    }
+
+    int size() {
+        synchronized (tokens) {
+            return tokens.size();
+        }
+    }
+
+    private void refreshInBackground(final String path, final CachedToken cachedToken) {
+        if (!cachedToken.refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            refreshExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        read(path);
+                    } catch (IOException ioEx) {
+                        LOG.warn("Unable to refresh API auth token from Key Storage path [{}]: {}", path, ioEx.getMessage());
+                    } finally {
+                        cachedToken.refreshing.set(false);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException rejectedEx) {
+            cachedToken.refreshing.set(false);
+        }
+    }
+
+    private String read(final String path) throws IOException {
+        final String token = keyStorage.readKey(path);
+        if (token.isEmpty()) {
+            throw new IOException("Key at Key Storage path [" + path + "] is empty.");
+        }
+        synchronized (tokens) {
+            tokens.put(path, new CachedToken(token, System.currentTimeMillis()));
+        }
+        return token;
+    }
+
+    private static final class CachedToken {
+
+        private final String token;
+
+        private final long readAtMillis;
+
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+
+        private CachedToken(final String token, final long readAtMillis) {
+            this.token = token;
+            this.readAtMillis = readAtMillis;
+        }
+
+    }
+
+}
@@ -0,0 +1,59 @@
+package com.hbakkum.rundeck.plugins.hipchat.logtail;
+
+import freemarker.template.TemplateScalarModel;
+import org.apache.commons.lang.StringEscapeUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * The HTML escaped tail of an execution's log, exposed to message templates as a string. The log is only read the
+ * first time a template asks for the value, so templates that never reference it pay nothing.
+ *
+ * For Rundeck's own log format (.rdlog) only the text of log output is included, without the event framing or
+ * events such as step and node boundaries. Those lines still count towards the number of lines read.
+ */
+public class ExecutionLogExcerpt implements TemplateScalarModel {
+
+    public static final ExecutionLogExcerpt EMPTY = new ExecutionLogExcerpt(null, null);
+
+    private static final Logger LOG = LoggerFactory.getLogger(ExecutionLogExcerpt.class);
+
+    private final File logFile;
+
+    private final ReverseLogTailReader tailReader;
+
+    private String excerpt;
+
+    public ExecutionLogExcerpt(final File logFile, final ReverseLogTailReader tailReader) {
+        this.logFile = logFile;
+        this.tailReader = tailReader;
+    }
+
+    @Override
+    public synchronized String getAsString() {
+        if (excerpt == null) {
+            excerpt = readExcerpt();
+        }
+        return excerpt;
+    }
+
+    private String readExcerpt() {
+        if (logFile == null || !logFile.isFile()) {
+            return "";
+        }
+
+        try {
+            final String lastLines = tailReader.readLastLines(logFile);
+            return StringEscapeUtils.escapeHtml(logFile.getName().endsWith(RundeckLogFormat.FILE_EXTENSION)
+                    ? RundeckLogFormat.extractLogMessages(lastLines)
+                    : lastLines);
+        } catch (IOException ioEx) {
+            LOG.warn("Unable to read execution log excerpt from [{}].", logFile, ioEx);
+            return "";
+        }
+    }
+
+}
@@ -0,0 +1,116 @@
+package com.hbakkum.rundeck.plugins.hipchat.logtail;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Reads the last lines of a (possibly very large) log file by scanning backwards from its end, so that the cost
+ * depends only on the size of the lines returned and never on the size of the file.
+ *
+ * At most a fixed number of bytes is read from the end of the file. If that limit is reached before enough lines
+ * have been found, the partial line at the start of the bytes read is dropped.
+ */
+public class ReverseLogTailReader {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int CHUNK_SIZE = 8192;
+
+    private final int maxLines;
+
+    private final int maxBytes;
+
+    public ReverseLogTailReader(final int maxLines, final int maxBytes) {
+        this.maxLines = maxLines;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return the last lines of the file, separated by '\n' and without a trailing line break
+     */
+    public String readLastLines(final File file) throws IOException {
+        if (maxLines <= 0 || maxBytes <= 0) {
+            return "";
+        }
+
+        final FileInputStream in = new FileInputStream(file);
+        try {
+            return readLastLines(in.getChannel());
+        } finally {
+            in.close();
+        }
+    }
+
+    String readLastLines(final FileChannel channel) throws IOException {
+        final long fileSize = channel.size();
+        final int window = (int) Math.min(fileSize, maxBytes);
+        final byte[] tail = new byte[window];
+        final ByteBuffer chunk = ByteBuffer.allocate(Math.min(CHUNK_SIZE, Math.max(1, window)));
+
+        // index in tail of the last byte that belongs to the excerpt, ignoring line breaks that end the file
+        int end = window;
+        int lineBreaksFound = 0;
+        int start = -1;
+        int filled = 0;
+
+        while (filled < window && start < 0) {
+            final int chunkLength = Math.min(chunk.capacity(), window - filled);
+            final int chunkStart = window - filled - chunkLength;
+            readFully(channel, chunk, chunkLength, fileSize - window + chunkStart);
+            chunk.flip();
+            chunk.get(tail, chunkStart, chunkLength);
+            filled += chunkLength;
+
+            for (int i = chunkStart + chunkLength - 1; i >= chunkStart; i--) {
+                if (tail[i] != '\n') {
+                    continue;
+                }
+                if (i == end - 1 && lineBreaksFound == 0) {
+                    // trailing line break(s) at the end of the file
+                    end = i > 0 && tail[i - 1] == '\r' ? i - 1 : i;
+                    continue;
+                }
+                if (++lineBreaksFound == maxLines) {
+                    start = i + 1;
+                    break;
+                }
+            }
+        }
+
+        if (start < 0) {
+            if (window == fileSize) {
+                start = 0;
+            } else {
+                // the byte cap cut the oldest line short; drop the fragment
+                start = indexOfLineBreak(tail, 0, end);
+                start = start < 0 ? end : start + 1;
+            }
+        }
+
+        return start >= end ? "" : new String(tail, start, end - start, UTF_8).replace("\r\n", "\n");
+    }
+
+    private static void readFully(final FileChannel channel, final ByteBuffer chunk, final int length, final long position) throws IOException {
+        chunk.clear();
+        chunk.limit(length);
+        while (chunk.hasRemaining()) {
+            if (channel.read(chunk, position + chunk.position()) < 0) {
+                throw new IOException("Log file was truncated while being read.");
+            }
+        }
+    }
+
+    private static int indexOfLineBreak(final byte[] bytes, final int from, final int to) {
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+}
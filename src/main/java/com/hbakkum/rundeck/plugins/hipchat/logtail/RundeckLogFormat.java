@@ -0,0 +1,109 @@
+package com.hbakkum.rundeck.plugins.hipchat.logtail;
+
+import org.apache.commons.lang.StringUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the message text out of Rundeck's execution log format (.rdlog). Each event in such a log is written as
+ *
+ * ^timestamp|eventType|level|{meta}^message^
+ *
+ * where eventType is empty for log output, and '^' and '\' in the message are escaped with '\'. A message may span
+ * several lines, in which case only its first line carries the framing. The log starts with a format header and ends
+ * with ^END^.
+ */
+final class RundeckLogFormat {
+
+    static final String FILE_EXTENSION = ".rdlog";
+
+    private static final char FRAME_DELIMITER = '^';
+
+    private static final String META_END = "}^";
+
+    private static final String HEADER_PREFIX = "^text/x-rundeck-log";
+
+    private static final String END_LINE = "^END^";
+
+    private RundeckLogFormat() {}
+
+    /**
+     * @param lines consecutive lines of an rdlog, separated by '\n'; the first may be part way through a message
+     * @return the text of the log output events in the lines, one line per message line, without the framing of
+     * the events and without events other than log output
+     */
+    static String extractLogMessages(final String lines) {
+        final List<String> messages = new ArrayList<String>();
+        // a message is continued until a line ends with an unescaped '^', and lines before the first event may be the
+        // end of a message whose start wasn't read. A continued line can't start with an unescaped '^'.
+        boolean inMessage = true;
+        boolean logMessage = true;
+
+        for (final String line : lines.split("\n", -1)) {
+            if (line.startsWith(HEADER_PREFIX) || line.equals(END_LINE)) {
+                inMessage = false;
+                continue;
+            }
+
+            final int metaEnd = line.indexOf(META_END);
+            String text;
+            boolean messageEnds;
+            if (line.length() > 0 && line.charAt(0) == FRAME_DELIMITER && metaEnd > 0) {
+                logMessage = isLogOutputEvent(line.substring(1, metaEnd));
+                text = line.substring(metaEnd + META_END.length());
+                messageEnds = text.length() == 0 || endsWithUnescapedDelimiter(text);
+            } else if (inMessage) {
+                text = line;
+                messageEnds = text.length() > 0 && endsWithUnescapedDelimiter(text);
+            } else {
+                // not part of an event; kept rather than lose output
+                messages.add(line);
+                continue;
+            }
+
+            if (messageEnds && text.length() > 0) {
+                text = text.substring(0, text.length() - 1);
+            }
+            if (logMessage) {
+                messages.add(unescape(text));
+            }
+            inMessage = !messageEnds;
+        }
+        return StringUtils.join(messages, '\n');
+    }
+
+    private static boolean isLogOutputEvent(final String eventHeader) {
+        // timestamp|eventType|level|{meta
+        final int eventTypeStart = eventHeader.indexOf('|') + 1;
+        return eventTypeStart > 0 && eventTypeStart < eventHeader.length() && eventHeader.charAt(eventTypeStart) == '|';
+    }
+
+    private static boolean endsWithUnescapedDelimiter(final String text) {
+        if (text.charAt(text.length() - 1) != FRAME_DELIMITER) {
+            return false;
+        }
+        int backslashes = 0;
+        for (int i = text.length() - 2; i >= 0 && text.charAt(i) == '\\'; i--) {
+            backslashes++;
+        }
+        return backslashes % 2 == 0;
+    }
+
+    private static String unescape(final String text) {
+        if (text.indexOf('\\') < 0) {
+            return text;
+        }
+        final StringBuilder unescaped = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            final char c = text.charAt(i);
+            if (c == '\\' && i + 1 < text.length() && (text.charAt(i + 1) == FRAME_DELIMITER || text.charAt(i + 1) == '\\')) {
+                unescaped.append(text.charAt(++i));
+            } else {
+                unescaped.append(c);
+            }
+        }
+        return unescaped.toString();
+    }
+
+}
@@ -0,0 +1,35 @@
+package com.hbakkum.rundeck.plugins.hipchat.replay;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Parses the "--option value" arguments of the command line tools shipped with the plugin.
+ */
+public final class CommandLineOptions {
+
+    private CommandLineOptions() {}
+
+    /**
+     * @return the value of each option, keyed by its name without the leading "--"
+     * @throws IllegalArgumentException if an argument isn't an option, or an option has no value
+     */
+    public static Map<String, String> parseOptions(final String[] args) {
+        final Map<String, String> options = new HashMap<String, String>();
+        for (int i = 0; i < args.length; i += 2) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument: [" + args[i] + "].");
+            }
+            if (i + 1 == args.length) {
+                throw new IllegalArgumentException("Missing value for option: [" + args[i] + "].");
+            }
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+        return options;
+    }
+
+    public static String getOption(final Map<String, String> options, final String option, final String defaultValue) {
+        return options.containsKey(option) ? options.get(option) : defaultValue;
+    }
+
+}
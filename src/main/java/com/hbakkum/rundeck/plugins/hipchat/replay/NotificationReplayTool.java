@@ -0,0 +1,315 @@
+package com.hbakkum.rundeck.plugins.hipchat.replay;
+
+import com.hbakkum.rundeck.plugins.hipchat.HipChatApiAuthTokenManager;
+import com.hbakkum.rundeck.plugins.hipchat.HipChatNotificationPluginException;
+import com.hbakkum.rundeck.plugins.hipchat.roomnotifier.FailoverRoomNotifier;
+import com.hbakkum.rundeck.plugins.hipchat.roomnotifier.HipChatRoomNotifier;
+import com.hbakkum.rundeck.plugins.hipchat.roomnotifier.HipChatRoomNotifierFactory;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.JsonNodeFactory;
+import org.codehaus.jackson.node.ObjectNode;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hbakkum.rundeck.plugins.hipchat.replay.CommandLineOptions.getOption;
+import static com.hbakkum.rundeck.plugins.hipchat.replay.CommandLineOptions.parseOptions;
+
+/**
+ * Re-sends captured or failed notifications, e.g. after a HipChat outage. Reads a newline delimited JSON file with
+ * one notification per line:
+ *
+ * {"room": "1234", "message": "...", "color": "red", "notify": true, "baseUrl": "https://api.hipchat.com", "apiVersion": "v2"}
+ *
+ * and sends each through the same room notifiers the plugin uses. Usage (dependencies are bundled in the plugin
+ * jar's lib directory):
+ *
+ * java -cp rundeck-hipchat-plugin.jar:lib/*:slf4j-api.jar com.hbakkum.rundeck.plugins.hipchat.replay.NotificationReplayTool
+ *      --input failed.ndjson --api-auth-token "1234:TOKEN, DEFAULTTOKEN"
+ *      [--result-log results.ndjson] [--checkpoint-file replay.checkpoint] [--start-offset 0]
+ *      [--concurrency 4] [--requests-per-second 2] [--proxy-host host --proxy-port port]
+ *
+ * Records are numbered from 0 by line. The checkpoint file holds the offset below which every record has been
+ * processed; when present it is resumed from unless --start-offset is given. Each processed record is written to the
+ * result log as a JSON line with its offset, room, status and any error.
+ */
+public class NotificationReplayTool {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String DEFAULT_BASE_URL = "https://api.hipchat.com";
+    private static final String DEFAULT_API_VERSION = "v1";
+    private static final String DEFAULT_COLOR = "yellow";
+
+    private static final long CHECKPOINT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final HipChatApiAuthTokenManager apiAuthTokenManager;
+
+    private final int concurrency;
+
+    private final double maxRequestsPerSecond;
+
+    private final String proxyHost;
+
+    private final String proxyPort;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final AtomicLong sentCount = new AtomicLong();
+
+    private final AtomicLong failedCount = new AtomicLong();
+
+    // offsets completed out of order, above the contiguous checkpoint offset
+    private final TreeSet<Long> completedOffsets = new TreeSet<Long>();
+
+    private long checkpointOffset;
+
+    private long lastCheckpointWriteNanos;
+
+    public NotificationReplayTool(
+            final HipChatApiAuthTokenManager apiAuthTokenManager,
+            final int concurrency,
+            final double maxRequestsPerSecond,
+            final String proxyHost,
+            final String proxyPort) {
+        this.apiAuthTokenManager = apiAuthTokenManager;
+        this.concurrency = Math.max(1, concurrency);
+        this.maxRequestsPerSecond = maxRequestsPerSecond;
+        this.proxyHost = proxyHost;
+        this.proxyPort = proxyPort;
+    }
+
+    public static void main(final String[] args) throws IOException, InterruptedException {
+        final Map<String, String> options = parseOptions(args);
+        if (!options.containsKey("input") || !options.containsKey("api-auth-token")) {
+            System.err.println("Usage: NotificationReplayTool --input <file> --api-auth-token <tokens> [--result-log <file>] " +
+                    "[--checkpoint-file <file>] [--start-offset <n>] [--concurrency <n>] [--requests-per-second <n>] " +
+                    "[--proxy-host <host> --proxy-port <port>]");
+            System.exit(2);
+        }
+
+        final NotificationReplayTool replayTool = new NotificationReplayTool(
+                new HipChatApiAuthTokenManager(options.get("api-auth-token")),
+                Integer.parseInt(getOption(options, "concurrency", "4")),
+                Double.parseDouble(getOption(options, "requests-per-second", "2")),
+                options.get("proxy-host"),
+                options.get("proxy-port"));
+
+        final File checkpointFile = options.containsKey("checkpoint-file") ? new File(options.get("checkpoint-file")) : null;
+        final long startOffset = options.containsKey("start-offset")
+                ? Long.parseLong(options.get("start-offset"))
+                : readCheckpoint(checkpointFile);
+
+        final Reader records = new InputStreamReader(new FileInputStream(options.get("input")), UTF_8);
+        final Writer resultLog = options.containsKey("result-log")
+                ? new OutputStreamWriter(new FileOutputStream(options.get("result-log"), true), UTF_8)
+                : null;
+        try {
+            replayTool.replay(records, startOffset, resultLog, checkpointFile);
+        } finally {
+            records.close();
+            if (resultLog != null) {
+                resultLog.close();
+            }
+        }
+
+        System.out.println("Replay complete: " + replayTool.getSentCount() + " sent, " + replayTool.getFailedCount() + " failed.");
+        System.exit(replayTool.getFailedCount() == 0 ? 0 : 1);
+    }
+
+    /**
+     * Sends every record from the given offset onwards, pacing sends to the configured rate.
+     */
+    public void replay(final Reader records, final long startOffset, final Writer resultLog, final File checkpointFile)
+            throws IOException, InterruptedException {
+        final ExecutorService sendExecutor = Executors.newFixedThreadPool(concurrency);
+        final Semaphore inFlight = new Semaphore(concurrency * 2);
+        final long sendIntervalNanos = maxRequestsPerSecond > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / maxRequestsPerSecond) : 0;
+
+        synchronized (this) {
+            checkpointOffset = startOffset;
+            completedOffsets.clear();
+        }
+
+        final BufferedReader reader = new BufferedReader(records);
+        try {
+            long nextSendNanos = System.nanoTime();
+            long offset = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final long recordOffset = offset++;
+                if (recordOffset < startOffset) {
+                    continue;
+                }
+                if (line.trim().isEmpty()) {
+                    onRecordCompleted(recordOffset, null, "skipped", null, resultLog, checkpointFile);
+                    continue;
+                }
+
+                final long waitNanos = nextSendNanos - System.nanoTime();
+                if (waitNanos > 0) {
+                    TimeUnit.NANOSECONDS.sleep(waitNanos);
+                }
+                nextSendNanos = Math.max(nextSendNanos, System.nanoTime() - sendIntervalNanos) + sendIntervalNanos;
+
+                inFlight.acquire();
+                final String record = line;
+                sendExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            send(recordOffset, record, resultLog, checkpointFile);
+                        } finally {
+                            inFlight.release();
+                        }
+                    }
+                });
+            }
+
+        } finally {
+            sendExecutor.shutdown();
+            sendExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            synchronized (this) {
+                writeCheckpoint(checkpointFile);
+            }
+        }
+    }
+
+    public long getSentCount() {
+        return sentCount.get();
+    }
+
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    public synchronized long getCheckpointOffset() {
+        return checkpointOffset;
+    }
+
+    protected HipChatRoomNotifier getRoomNotifier(final String apiVersion) {
+        return new FailoverRoomNotifier(HipChatRoomNotifierFactory.get(apiVersion, proxyHost, proxyPort), false);
+    }
+
+    private void send(final long offset, final String record, final Writer resultLog, final File checkpointFile) {
+        String room = null;
+        try {
+            final JsonNode notification = objectMapper.readTree(record);
+            room = notification.path("room").asText();
+
+            final String apiAuthToken = apiAuthTokenManager.getApiAuthTokenForRoom(room);
+            if (apiAuthToken == null || apiAuthToken.isEmpty()) {
+                throw new HipChatNotificationPluginException("No API Auth Token found for room [" + room + "].");
+            }
+
+            getRoomNotifier(getText(notification, "apiVersion", DEFAULT_API_VERSION)).sendRoomNotification(
+                    getText(notification, "baseUrl", DEFAULT_BASE_URL),
+                    room,
+                    notification.path("message").asText(),
+                    getText(notification, "color", DEFAULT_COLOR),
+                    apiAuthToken,
+                    notification.path("notify").asBoolean(false));
+
+            sentCount.incrementAndGet();
+            onRecordCompleted(offset, room, "sent", null, resultLog, checkpointFile);
+
+        } catch (Exception ex) {
+            failedCount.incrementAndGet();
+            onRecordCompleted(offset, room, "failed", ex.getMessage(), resultLog, checkpointFile);
+        }
+    }
+
+    private synchronized void onRecordCompleted(
+            final long offset,
+            final String room,
+            final String status,
+            final String error,
+            final Writer resultLog,
+            final File checkpointFile) {
+        if (resultLog != null) {
+            final ObjectNode result = JsonNodeFactory.instance.objectNode();
+            result.put("offset", offset);
+            result.put("room", room);
+            result.put("status", status);
+            if (error != null) {
+                result.put("error", error);
+            }
+            try {
+                resultLog.write(result.toString());
+                resultLog.write('\n');
+                resultLog.flush();
+            } catch (IOException ioEx) {
+                throw new HipChatNotificationPluginException("Error writing replay result log: [" + ioEx.getMessage() + "].", ioEx);
+            }
+        }
+
+        completedOffsets.add(offset);
+        while (!completedOffsets.isEmpty() && completedOffsets.first() == checkpointOffset) {
+            completedOffsets.pollFirst();
+            checkpointOffset++;
+        }
+
+        if (System.nanoTime() - lastCheckpointWriteNanos > CHECKPOINT_INTERVAL_NANOS) {
+            writeCheckpoint(checkpointFile);
+        }
+    }
+
+    private void writeCheckpoint(final File checkpointFile) {
+        if (checkpointFile == null) {
+            return;
+        }
+
+        lastCheckpointWriteNanos = System.nanoTime();
+        final File tmpCheckpointFile = new File(checkpointFile.getPath() + ".tmp");
+        try {
+            final Writer writer = new OutputStreamWriter(new FileOutputStream(tmpCheckpointFile), UTF_8);
+            try {
+                writer.write(Long.toString(checkpointOffset));
+            } finally {
+                writer.close();
+            }
+            if (!tmpCheckpointFile.renameTo(checkpointFile)) {
+                checkpointFile.delete();
+                tmpCheckpointFile.renameTo(checkpointFile);
+            }
+        } catch (IOException ioEx) {
+            throw new HipChatNotificationPluginException("Error writing replay checkpoint: [" + ioEx.getMessage() + "].", ioEx);
+        }
+    }
+
+    private static long readCheckpoint(final File checkpointFile) throws IOException {
+        if (checkpointFile == null || !checkpointFile.exists()) {
+            return 0;
+        }
+
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(checkpointFile), UTF_8));
+        try {
+            final String checkpoint = reader.readLine();
+            return checkpoint == null ? 0 : Long.parseLong(checkpoint.trim());
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static String getText(final JsonNode notification, final String field, final String defaultValue) {
+        final String value = notification.path(field).asText();
+        return value == null || value.isEmpty() ? defaultValue : value;
+    }
+
+}
@@ -0,0 +1,211 @@
+package com.hbakkum.rundeck.plugins.hipchat.replay;
+
+import com.hbakkum.rundeck.plugins.hipchat.HipChatNotificationMessageGenerator;
+import com.hbakkum.rundeck.plugins.hipchat.roomnotifier.HipChatRoomNotifier;
+import com.hbakkum.rundeck.plugins.hipchat.roomnotifier.HipChatRoomNotifierFactory;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.hbakkum.rundeck.plugins.hipchat.replay.CommandLineOptions.getOption;
+import static com.hbakkum.rundeck.plugins.hipchat.replay.CommandLineOptions.parseOptions;
+
+/**
+ * Benchmarks message generation and delivery against a workload captured by the plugin's workload capture mode.
+ * Each captured snapshot is rendered through {@link HipChatNotificationMessageGenerator} with its captured trigger,
+ * execution data and config, then sent once for each room it was originally sent to. Usage:
+ *
+ * java -cp rundeck-hipchat-plugin.jar:lib/*:slf4j-api.jar com.hbakkum.rundeck.plugins.hipchat.replay.WorkloadReplayBenchmark
+ *      --input workload-capture.ndjson [--iterations 10] [--warmup-iterations 2] [--template-location dir]
+ *      [--base-url http://localhost:8080 --api-version v2 --api-auth-token TOKEN]
+ *
+ * Messages are only sent over HTTP when --base-url is given (point it at a stub server rather than HipChat);
+ * otherwise sending is skipped and only rendering is measured. Templates are loaded from --template-location when
+ * given, otherwise from the location captured with each snapshot.
+ */
+public class WorkloadReplayBenchmark {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String DEFAULT_MESSAGE_TEMPLATE = "hipchat-message.ftl";
+    private static final String DEFAULT_COLOR = "yellow";
+    private static final String BENCHMARK_ROOM = "benchmark";
+
+    private final HipChatNotificationMessageGenerator messageGenerator = new HipChatNotificationMessageGenerator();
+
+    private final String templateLocation;
+
+    private final String baseUrl;
+
+    private final String apiVersion;
+
+    private final String apiAuthToken;
+
+    private final List<Long> renderNanos = new ArrayList<Long>();
+
+    private final List<Long> sendNanos = new ArrayList<Long>();
+
+    private long messageChars;
+
+    public WorkloadReplayBenchmark(final String templateLocation, final String baseUrl, final String apiVersion, final String apiAuthToken) {
+        this.templateLocation = templateLocation;
+        this.baseUrl = baseUrl;
+        this.apiVersion = apiVersion;
+        this.apiAuthToken = apiAuthToken;
+    }
+
+    public static void main(final String[] args) throws IOException {
+        final Map<String, String> options = parseOptions(args);
+        if (!options.containsKey("input")) {
+            System.err.println("Usage: WorkloadReplayBenchmark --input <file> [--iterations <n>] [--warmup-iterations <n>] " +
+                    "[--template-location <dir>] [--base-url <url> --api-version <v1|v2> --api-auth-token <token>]");
+            System.exit(2);
+        }
+
+        final List<JsonNode> snapshots = readSnapshots(new InputStreamReader(new FileInputStream(options.get("input")), UTF_8));
+        final WorkloadReplayBenchmark benchmark = new WorkloadReplayBenchmark(
+                options.get("template-location"),
+                options.get("base-url"),
+                getOption(options, "api-version", "v1"),
+                getOption(options, "api-auth-token", ""));
+
+        final int warmupIterations = Integer.parseInt(getOption(options, "warmup-iterations", "2"));
+        for (int i = 0; i < warmupIterations; i++) {
+            benchmark.replay(snapshots);
+        }
+        benchmark.reset();
+
+        final int iterations = Integer.parseInt(getOption(options, "iterations", "10"));
+        final long startNanos = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            benchmark.replay(snapshots);
+        }
+        final long elapsedNanos = System.nanoTime() - startNanos;
+
+        System.out.println(benchmark.getReport(elapsedNanos));
+    }
+
+    /**
+     * Reads the snapshots of a capture file, skipping blank lines and snapshots whose execution data was truncated.
+     */
+    public static List<JsonNode> readSnapshots(final Reader capture) throws IOException {
+        final ObjectMapper objectMapper = new ObjectMapper();
+        final List<JsonNode> snapshots = new ArrayList<JsonNode>();
+        final BufferedReader reader = new BufferedReader(capture);
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                final JsonNode snapshot = objectMapper.readTree(line);
+                if (snapshot.has("execution")) {
+                    snapshots.add(snapshot);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return snapshots;
+    }
+
+    /**
+     * Renders and sends every snapshot once, adding the time taken to the results.
+     */
+    public void replay(final List<JsonNode> snapshots) {
+        final ObjectMapper objectMapper = new ObjectMapper();
+        final HipChatRoomNotifier roomNotifier = getRoomNotifier();
+        for (final JsonNode snapshot : snapshots) {
+            final String trigger = snapshot.path("trigger").asText();
+            final Map executionData = objectMapper.convertValue(snapshot.path("execution"), Map.class);
+            final Map config = objectMapper.convertValue(snapshot.path("config"), Map.class);
+
+            final long renderStartNanos = System.nanoTime();
+            final String message = messageGenerator.generateMessage(
+                    templateLocation != null ? templateLocation : getText(snapshot, "templateLocation"),
+                    DEFAULT_MESSAGE_TEMPLATE, trigger, executionData, config);
+            renderNanos.add(System.nanoTime() - renderStartNanos);
+            messageChars += message.length();
+
+            if (roomNotifier == null) {
+                continue;
+            }
+            final int roomCount = Math.max(1, snapshot.path("roomCount").asInt(1));
+            for (int i = 0; i < roomCount; i++) {
+                final long sendStartNanos = System.nanoTime();
+                try {
+                    roomNotifier.sendRoomNotification(baseUrl, BENCHMARK_ROOM, message, DEFAULT_COLOR, apiAuthToken, false);
+                } catch (RuntimeException ex) {
+                    System.err.println("Send failed: " + ex.getMessage());
+                }
+                sendNanos.add(System.nanoTime() - sendStartNanos);
+            }
+        }
+    }
+
+    public void reset() {
+        renderNanos.clear();
+        sendNanos.clear();
+        messageChars = 0;
+    }
+
+    public int getRenderCount() {
+        return renderNanos.size();
+    }
+
+    public int getSendCount() {
+        return sendNanos.size();
+    }
+
+    public String getReport(final long elapsedNanos) {
+        final StringBuilder report = new StringBuilder();
+        report.append("Rendered ").append(renderNanos.size()).append(" messages (")
+                .append(renderNanos.isEmpty() ? 0 : messageChars / renderNanos.size()).append(" chars on average) in ")
+                .append(TimeUnit.NANOSECONDS.toMillis(elapsedNanos)).append("ms\n");
+        appendPercentiles(report, "render", renderNanos);
+        if (!sendNanos.isEmpty()) {
+            appendPercentiles(report, "send", sendNanos);
+        }
+        return report.toString();
+    }
+
+    /**
+     * @return the notifier messages are sent through, or null to skip sending
+     */
+    protected HipChatRoomNotifier getRoomNotifier() {
+        return baseUrl == null ? null : HipChatRoomNotifierFactory.get(apiVersion, null, null);
+    }
+
+    private static void appendPercentiles(final StringBuilder report, final String name, final List<Long> durationsNanos) {
+        final long[] sortedNanos = new long[durationsNanos.size()];
+        for (int i = 0; i < sortedNanos.length; i++) {
+            sortedNanos[i] = durationsNanos.get(i);
+        }
+        Arrays.sort(sortedNanos);
+
+        report.append(name).append(':');
+        for (final int percentile : new int[] { 50, 90, 99, 100 }) {
+            final int index = Math.max(0, (int) Math.ceil(percentile / 100.0 * sortedNanos.length) - 1);
+            report.append(" p").append(percentile).append('=')
+                    .append(sortedNanos.length == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(sortedNanos[index])).append("us");
+        }
+        report.append('\n');
+    }
+
+    private static String getText(final JsonNode snapshot, final String field) {
+        final JsonNode value = snapshot.get(field);
+        return value == null || value.isNull() ? null : value.asText();
+    }
+
+}
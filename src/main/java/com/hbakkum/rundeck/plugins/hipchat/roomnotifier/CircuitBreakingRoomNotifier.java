@@ -0,0 +1,180 @@
+package com.hbakkum.rundeck.plugins.hipchat.roomnotifier;
+
+import com.hbakkum.rundeck.plugins.hipchat.HipChatServerUnavailableException;
+import com.hbakkum.rundeck.plugins.hipchat.circuitbreaker.CallNotPermittedException;
+import com.hbakkum.rundeck.plugins.hipchat.circuitbreaker.CircuitBreaker;
+import com.hbakkum.rundeck.plugins.hipchat.delivery.HashedWheelTimer;
+import com.hbakkum.rundeck.plugins.hipchat.http.ConcurrencyLimitExceededException;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Guards a {@link HipChatRoomNotifier} with a circuit breaker and a bulkhead per HipChat endpoint (base URL and API
+ * version). While an endpoint is failing its circuit is open and notifications fail fast rather than tying up
+ * threads on connection attempts, and the bulkhead caps the number of calls in flight to any one endpoint.
+ *
+ * Only {@link HipChatServerUnavailableException}s count as failures - an endpoint that rejects a request (e.g. for a
+ * bad token) is still healthy. Requests that time out fail with one, so they count as failures. A call still running
+ * after the slow call duration is recorded as slow there and then, rather than when (or if) it finishes.
+ */
+public class CircuitBreakingRoomNotifier implements HipChatRoomNotifier {
+
+    private static final int WINDOW_SIZE = 20;
+    private static final int MINIMUM_CALLS = 10;
+    private static final int FAILURE_RATE_THRESHOLD_PERCENT = 50;
+    private static final long SLOW_CALL_DURATION_MILLIS = 10000;
+    private static final int SLOW_CALL_RATE_THRESHOLD_PERCENT = 80;
+    private static final long OPEN_DURATION_MILLIS = 30000;
+    private static final int HALF_OPEN_PERMITTED_CALLS = 3;
+    private static final int MAX_CONCURRENT_CALLS_PER_ENDPOINT = 10;
+
+    // slow call timeouts are almost always cancelled by the call completing first
+    private static final HashedWheelTimer SLOW_CALL_TIMER = new HashedWheelTimer(100, TimeUnit.MILLISECONDS, 512);
+
+    private final HipChatRoomNotifier delegate;
+
+    private final ConcurrentMap<String, Endpoint> endpoints = new ConcurrentHashMap<String, Endpoint>();
+
+    public CircuitBreakingRoomNotifier(final HipChatRoomNotifier delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void sendRoomNotification(
+            final String baseURL,
+            final String room,
+            final String message,
+            final String color,
+            final String authToken,
+            final boolean sendUserNotification) {
+        final Endpoint endpoint = getEndpoint(baseURL);
+
+        if (!endpoint.bulkhead.tryAcquire()) {
+            throw new CallNotPermittedException("Too many concurrent calls to HipChat endpoint [" + endpoint.circuitBreaker.getName() + "].");
+        }
+        try {
+            if (!endpoint.circuitBreaker.tryAcquirePermission()) {
+                throw new CallNotPermittedException("Circuit breaker for HipChat endpoint [" + endpoint.circuitBreaker.getName() + "] is open.");
+            }
+
+            final InFlightCall call = new InFlightCall(endpoint.circuitBreaker);
+            try {
+                delegate.sendRoomNotification(baseURL, room, message, color, authToken, sendUserNotification);
+                call.onSuccess();
+
+            } catch (ConcurrencyLimitExceededException limitExceededEx) {
+                // queued locally and never sent, so not an outcome of the endpoint
+                call.releasePermission();
+                throw limitExceededEx;
+
+            } catch (HipChatServerUnavailableException unavailableEx) {
+                call.onFailure();
+                throw unavailableEx;
+
+            } catch (RuntimeException ex) {
+                call.onSuccess();
+                throw ex;
+            }
+
+        } finally {
+            endpoint.bulkhead.release();
+        }
+    }
+
+    @Override
+    public String getSupportedApiVersion() {
+        return delegate.getSupportedApiVersion();
+    }
+
+    CircuitBreaker.State getCircuitBreakerState(final String baseURL) {
+        return getEndpoint(baseURL).circuitBreaker.getState();
+    }
+
+    private Endpoint getEndpoint(final String baseURL) {
+        Endpoint endpoint = endpoints.get(baseURL);
+        if (endpoint == null) {
+            final Endpoint newEndpoint = new Endpoint(new CircuitBreaker(
+                    baseURL + " (" + delegate.getSupportedApiVersion() + ")",
+                    WINDOW_SIZE,
+                    MINIMUM_CALLS,
+                    FAILURE_RATE_THRESHOLD_PERCENT,
+                    SLOW_CALL_DURATION_MILLIS,
+                    SLOW_CALL_RATE_THRESHOLD_PERCENT,
+                    OPEN_DURATION_MILLIS,
+                    HALF_OPEN_PERMITTED_CALLS));
+            endpoint = endpoints.putIfAbsent(baseURL, newEndpoint);
+            if (endpoint == null) {
+                endpoint = newEndpoint;
+            }
+        }
+        return endpoint;
+    }
+
+    /**
+     * Records the outcome of a permitted call exactly once: as slow while it is still running, if it runs past the
+     * slow call duration, or otherwise when it completes.
+     */
+    private static final class InFlightCall implements Runnable {
+
+        private final CircuitBreaker circuitBreaker;
+
+        private final long startNanos = System.nanoTime();
+
+        private final AtomicBoolean outcomePending = new AtomicBoolean(true);
+
+        private final HashedWheelTimer.Timeout slowCallTimeout;
+
+        private InFlightCall(final CircuitBreaker circuitBreaker) {
+            this.circuitBreaker = circuitBreaker;
+            this.slowCallTimeout = SLOW_CALL_TIMER.schedule(this, circuitBreaker.getSlowCallDurationMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void run() {
+            if (outcomePending.compareAndSet(true, false)) {
+                circuitBreaker.onSlowCallInFlight();
+            }
+        }
+
+        private void onSuccess() {
+            if (complete()) {
+                circuitBreaker.onSuccess(System.nanoTime() - startNanos);
+            }
+        }
+
+        private void onFailure() {
+            if (complete()) {
+                circuitBreaker.onFailure(System.nanoTime() - startNanos);
+            }
+        }
+
+        private void releasePermission() {
+            if (complete()) {
+                circuitBreaker.releasePermission();
+            }
+        }
+
+        private boolean complete() {
+            slowCallTimeout.cancel();
+            return outcomePending.compareAndSet(true, false);
+        }
+
+    }
+
+    private static final class Endpoint {
+
+        private final CircuitBreaker circuitBreaker;
+
+        private final Semaphore bulkhead = new Semaphore(MAX_CONCURRENT_CALLS_PER_ENDPOINT);
+
+        private Endpoint(final CircuitBreaker circuitBreaker) {
+            this.circuitBreaker = circuitBreaker;
+        }
+
+    }
+
+}
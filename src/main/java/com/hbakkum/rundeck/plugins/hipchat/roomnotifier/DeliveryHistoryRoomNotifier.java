@@ -0,0 +1,93 @@
+package com.hbakkum.rundeck.plugins.hipchat.roomnotifier;
+
+import com.hbakkum.rundeck.plugins.hipchat.HipChatServerUnavailableException;
+import com.hbakkum.rundeck.plugins.hipchat.circuitbreaker.CallNotPermittedException;
+import com.hbakkum.rundeck.plugins.hipchat.history.DeliveryHistory;
+import com.hbakkum.rundeck.plugins.hipchat.http.ConcurrencyLimitExceededException;
+
+/**
+ * Records every send attempt of a {@link HipChatRoomNotifier} in the configured {@link DeliveryHistory}, if any.
+ * Attempts turned away by a circuit breaker or bulkhead are recorded as not permitted.
+ */
+public class DeliveryHistoryRoomNotifier implements HipChatRoomNotifier {
+
+    private final HipChatRoomNotifier delegate;
+
+    private final int apiVersion;
+
+    private volatile DeliveryHistory deliveryHistory;
+
+    public DeliveryHistoryRoomNotifier(final HipChatRoomNotifier delegate) {
+        this.delegate = delegate;
+        this.apiVersion = Integer.parseInt(delegate.getSupportedApiVersion().substring(1));
+    }
+
+    /**
+     * @param deliveryHistory history to record attempts in, or null to stop recording
+     */
+    public void setDeliveryHistory(final DeliveryHistory deliveryHistory) {
+        this.deliveryHistory = deliveryHistory;
+    }
+
+    @Override
+    public void sendRoomNotification(
+            final String baseURL,
+            final String room,
+            final String message,
+            final String color,
+            final String authToken,
+            final boolean sendUserNotification) {
+        final DeliveryHistory deliveryHistory = this.deliveryHistory;
+        if (deliveryHistory == null) {
+            delegate.sendRoomNotification(baseURL, room, message, color, authToken, sendUserNotification);
+            return;
+        }
+
+        final long startNanos = System.nanoTime();
+        int status = DeliveryHistory.STATUS_REJECTED;
+        try {
+            delegate.sendRoomNotification(baseURL, room, message, color, authToken, sendUserNotification);
+            status = DeliveryHistory.STATUS_SENT;
+
+        } catch (CallNotPermittedException notPermittedEx) {
+            status = DeliveryHistory.STATUS_NOT_PERMITTED;
+            throw notPermittedEx;
+
+        } catch (ConcurrencyLimitExceededException limitExceededEx) {
+            status = DeliveryHistory.STATUS_NOT_PERMITTED;
+            throw limitExceededEx;
+
+        } catch (HipChatServerUnavailableException unavailableEx) {
+            status = DeliveryHistory.STATUS_UNAVAILABLE;
+            throw unavailableEx;
+
+        } finally {
+            deliveryHistory.record(System.currentTimeMillis(), (baseURL.hashCode() * 31) + room.hashCode(), apiVersion, status,
+                    System.nanoTime() - startNanos, utf8Length(message));
+        }
+    }
+
+    @Override
+    public String getSupportedApiVersion() {
+        return delegate.getSupportedApiVersion();
+    }
+
+    private static int utf8Length(final String message) {
+        int length = 0;
+        for (int i = 0; i < message.length(); i++) {
+            final char c = message.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c)) {
+                // the pair encodes to 4 bytes
+                length += 2;
+            } else {
+                length += Character.isLowSurrogate(c) ? 2 : 3;
+            }
+        }
+        return length;
+    }
+
+}
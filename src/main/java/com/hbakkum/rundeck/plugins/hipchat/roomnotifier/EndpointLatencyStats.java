@@ -0,0 +1,96 @@
+package com.hbakkum.rundeck.plugins.hipchat.roomnotifier;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of the most recent calls made to a HipChat endpoint (base URL), used to decide when a call has taken long
+ * enough to be worth hedging against a mirrored endpoint.
+ */
+public class EndpointLatencyStats {
+
+    private static final int SAMPLE_WINDOW_SIZE = 128;
+
+    // percentiles aren't reported until this many calls have been sampled
+    private static final int MINIMUM_SAMPLES = 20;
+
+    private static final ConcurrentMap<String, EndpointLatencyStats> ENDPOINT_LATENCY_STATS = new ConcurrentHashMap<String, EndpointLatencyStats>();
+
+    private final String baseURL;
+
+    private final long[] latencySamplesNanos = new long[SAMPLE_WINDOW_SIZE];
+
+    private long sampleCount;
+
+    public EndpointLatencyStats(final String baseURL) {
+        this.baseURL = baseURL;
+    }
+
+    public static EndpointLatencyStats forEndpoint(final String baseURL) {
+        EndpointLatencyStats latencyStats = ENDPOINT_LATENCY_STATS.get(baseURL);
+        if (latencyStats == null) {
+            final EndpointLatencyStats newLatencyStats = new EndpointLatencyStats(baseURL);
+            latencyStats = ENDPOINT_LATENCY_STATS.putIfAbsent(baseURL, newLatencyStats);
+            if (latencyStats == null) {
+                latencyStats = newLatencyStats;
+            }
+        }
+        return latencyStats;
+    }
+
+    /**
+     * @return latency stats for every endpoint called so far, keyed by base URL
+     */
+    public static Map<String, EndpointLatencyStats> getAll() {
+        return Collections.<String, EndpointLatencyStats>unmodifiableMap(ENDPOINT_LATENCY_STATS);
+    }
+
+    public synchronized void record(final long latencyNanos) {
+        latencySamplesNanos[(int) (sampleCount % SAMPLE_WINDOW_SIZE)] = latencyNanos;
+        sampleCount++;
+    }
+
+    /**
+     * @param percentile percentile between 0 and 100
+     * @return the given latency percentile over the sample window in milliseconds, or -1 if too few calls have been
+     * sampled to give a meaningful value
+     */
+    public long getPercentileMillis(final double percentile) {
+        final long[] samples;
+        synchronized (this) {
+            if (sampleCount < MINIMUM_SAMPLES) {
+                return -1;
+            }
+            samples = Arrays.copyOf(latencySamplesNanos, (int) Math.min(sampleCount, SAMPLE_WINDOW_SIZE));
+        }
+
+        Arrays.sort(samples);
+        final int index = (int) Math.ceil(percentile / 100 * samples.length) - 1;
+        return TimeUnit.NANOSECONDS.toMillis(samples[Math.max(0, Math.min(index, samples.length - 1))]);
+    }
+
+    public synchronized long getSampleCount() {
+        return sampleCount;
+    }
+
+    public String getBaseURL() {
+        return baseURL;
+    }
+
+    @Override
+    public String toString() {
+        return
+                "EndpointLatencyStats ["+
+                        "baseURL = "+baseURL+","+
+                        "samples = "+getSampleCount()+","+
+                        "p50 = "+getPercentileMillis(50)+"ms,"+
+                        "p95 = "+getPercentileMillis(95)+"ms,"+
+                        "p99 = "+getPercentileMillis(99)+"ms"+
+                "]";
+    }
+
+}
@@ -0,0 +1,253 @@
+package com.hbakkum.rundeck.plugins.hipchat.roomnotifier;
+
+import com.hbakkum.rundeck.plugins.hipchat.HipChatNotificationPluginException;
+import com.hbakkum.rundeck.plugins.hipchat.HipChatServerUnavailableException;
+import com.hbakkum.rundeck.plugins.hipchat.trace.NotificationTrace;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends room notifications to one of several mirrored HipChat endpoints. The base URL passed to
+ * {@link #sendRoomNotification} may be a comma separated, ordered list of equivalent base URLs; the next endpoint is
+ * tried whenever an endpoint is unavailable.
+ *
+ * When hedging is enabled and the first endpoint hasn't answered within its usual (95th percentile) latency, the
+ * notification is also sent to the next endpoint and whichever answers successfully first wins. As the slower
+ * request is not cancelled, hedging can occasionally deliver a message twice.
+ */
+public class FailoverRoomNotifier implements HipChatRoomNotifier {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FailoverRoomNotifier.class);
+
+    private static final double HEDGE_LATENCY_PERCENTILE = 95;
+
+    private static final int MAX_HEDGE_THREADS = 16;
+
+    private static final ThreadPoolExecutor HEDGE_EXECUTOR = new ThreadPoolExecutor(
+            0, MAX_HEDGE_THREADS, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new HedgeThreadFactory());
+
+    private final HipChatRoomNotifier delegate;
+
+    private final boolean hedgingEnabled;
+
+    public FailoverRoomNotifier(final HipChatRoomNotifier delegate, final boolean hedgingEnabled) {
+        this.delegate = delegate;
+        this.hedgingEnabled = hedgingEnabled;
+    }
+
+    @Override
+    public void sendRoomNotification(
+            final String baseURL,
+            final String room,
+            final String message,
+            final String color,
+            final String authToken,
+            final boolean sendUserNotification) {
+        final String[] baseURLs = baseURL.trim().split("\\s*,\\s*");
+
+        final long hedgeDelayMillis = baseURLs.length > 1 && hedgingEnabled
+                ? EndpointLatencyStats.forEndpoint(baseURLs[0]).getPercentileMillis(HEDGE_LATENCY_PERCENTILE)
+                : -1;
+
+        if (hedgeDelayMillis >= 0) {
+            sendHedged(baseURLs, hedgeDelayMillis, room, message, color, authToken, sendUserNotification);
+        } else {
+            sendWithFailover(baseURLs, 0, room, message, color, authToken, sendUserNotification);
+        }
+    }
+
+    @Override
+    public String getSupportedApiVersion() {
+        return delegate.getSupportedApiVersion();
+    }
+
+    private void sendWithFailover(
+            final String[] baseURLs,
+            final int firstEndpoint,
+            final String room,
+            final String message,
+            final String color,
+            final String authToken,
+            final boolean sendUserNotification) {
+        HipChatServerUnavailableException lastUnavailableEx = null;
+
+        for (int i = firstEndpoint; i < baseURLs.length; i++) {
+            try {
+                send(baseURLs[i], room, message, color, authToken, sendUserNotification);
+                return;
+
+            } catch (HipChatServerUnavailableException unavailableEx) {
+                lastUnavailableEx = unavailableEx;
+                if (i + 1 < baseURLs.length) {
+                    LOG.warn("HipChat endpoint [{}] is unavailable ({}), failing over to [{}].",
+                            new Object[] { baseURLs[i], unavailableEx.getMessage(), baseURLs[i + 1] });
+                }
+            }
+        }
+
+        throw lastUnavailableEx;
+    }
+
+    private void sendHedged(
+            final String[] baseURLs,
+            final long hedgeDelayMillis,
+            final String room,
+            final String message,
+            final String color,
+            final String authToken,
+            final boolean sendUserNotification) {
+        final CompletionService<Void> completionService = new ExecutorCompletionService<Void>(HEDGE_EXECUTOR);
+        final NotificationTrace trace = NotificationTrace.current();
+
+        final Future<Void> primary;
+        try {
+            primary = completionService.submit(new EndpointSend(baseURLs[0], room, message, color, authToken, sendUserNotification, trace));
+        } catch (RejectedExecutionException rejectedEx) {
+            sendWithFailover(baseURLs, 0, room, message, color, authToken, sendUserNotification);
+            return;
+        }
+
+        try {
+            Future<Void> completed = completionService.poll(hedgeDelayMillis, TimeUnit.MILLISECONDS);
+            if (completed != null) {
+                try {
+                    completed.get();
+                } catch (ExecutionException executionEx) {
+                    if (!(executionEx.getCause() instanceof HipChatServerUnavailableException)) {
+                        throw toRuntimeException(executionEx);
+                    }
+                    LOG.warn("HipChat endpoint [{}] is unavailable ({}), failing over.", baseURLs[0], executionEx.getCause().getMessage());
+                    sendWithFailover(baseURLs, 1, room, message, color, authToken, sendUserNotification);
+                }
+                return;
+            }
+
+            LOG.debug("HipChat endpoint [{}] has not answered within {}ms, hedging with [{}].",
+                    new Object[] { baseURLs[0], hedgeDelayMillis, baseURLs[1] });
+            try {
+                completionService.submit(new EndpointSend(baseURLs[1], room, message, color, authToken, sendUserNotification, trace));
+            } catch (RejectedExecutionException rejectedEx) {
+                getResult(primary);
+                return;
+            }
+
+            completed = completionService.take();
+            try {
+                completed.get();
+            } catch (ExecutionException executionEx) {
+                LOG.debug("Hedged HipChat request failed, waiting on the other endpoint.", executionEx.getCause());
+                getResult(completionService.take());
+            }
+
+        } catch (InterruptedException interruptedEx) {
+            Thread.currentThread().interrupt();
+            throw new HipChatNotificationPluginException("Interrupted while sending HipChat notification.", interruptedEx);
+        }
+    }
+
+    private void send(
+            final String baseURL,
+            final String room,
+            final String message,
+            final String color,
+            final String authToken,
+            final boolean sendUserNotification) {
+        final long startNanos = System.nanoTime();
+        try {
+            delegate.sendRoomNotification(baseURL, room, message, color, authToken, sendUserNotification);
+            EndpointLatencyStats.forEndpoint(baseURL).record(System.nanoTime() - startNanos);
+
+        } catch (HipChatServerUnavailableException unavailableEx) {
+            throw unavailableEx;
+
+        } catch (RuntimeException ex) {
+            // the endpoint answered, so its latency still counts
+            EndpointLatencyStats.forEndpoint(baseURL).record(System.nanoTime() - startNanos);
+            throw ex;
+        }
+    }
+
+    private static void getResult(final Future<Void> future) throws InterruptedException {
+        try {
+            future.get();
+        } catch (ExecutionException executionEx) {
+            throw toRuntimeException(executionEx);
+        }
+    }
+
+    private static RuntimeException toRuntimeException(final ExecutionException executionEx) {
+        final Throwable cause = executionEx.getCause();
+        if (cause instanceof RuntimeException) {
+            return (RuntimeException) cause;
+        }
+        return new HipChatNotificationPluginException("Error sending HipChat notification: [" + cause.getMessage() + "].", cause);
+    }
+
+    private final class EndpointSend implements Callable<Void> {
+
+        private final String baseURL;
+        private final String room;
+        private final String message;
+        private final String color;
+        private final String authToken;
+        private final boolean sendUserNotification;
+        private final NotificationTrace trace;
+
+        private EndpointSend(
+                final String baseURL,
+                final String room,
+                final String message,
+                final String color,
+                final String authToken,
+                final boolean sendUserNotification,
+                final NotificationTrace trace) {
+            this.baseURL = baseURL;
+            this.room = room;
+            this.message = message;
+            this.color = color;
+            this.authToken = authToken;
+            this.sendUserNotification = sendUserNotification;
+            this.trace = trace;
+        }
+
+        @Override
+        public Void call() {
+            if (trace != null) {
+                trace.attach();
+            }
+            try {
+                send(baseURL, room, message, color, authToken, sendUserNotification);
+                return null;
+            } finally {
+                NotificationTrace.detach();
+            }
+        }
+
+    }
+
+    private static final class HedgeThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, "hipchat-hedge-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+
+    }
+
+}
@@ -1,6 +1,9 @@
 package com.hbakkum.rundeck.plugins.hipchat.roomnotifier;
 
+import com.hbakkum.rundeck.plugins.hipchat.HipChatApiAuthTokenRejectedException;
 import com.hbakkum.rundeck.plugins.hipchat.HipChatNotificationPluginException;
+import com.hbakkum.rundeck.plugins.hipchat.HipChatRoomNotFoundException;
+import com.hbakkum.rundeck.plugins.hipchat.HipChatServerUnavailableException;
 import com.hbakkum.rundeck.plugins.hipchat.http.HttpRequestExecutor;
 import com.hbakkum.rundeck.plugins.hipchat.http.HttpResponse;
 import org.codehaus.jackson.annotate.JsonIgnoreProperties;
@@ -10,6 +13,7 @@ import org.codehaus.jackson.map.ObjectMapper;
 import java.io.IOException;
 import java.util.Map;
 
+import static com.hbakkum.rundeck.plugins.hipchat.HipChatNotificationPluginUtils.isAuthTokenRejected;
 import static com.hbakkum.rundeck.plugins.hipchat.HipChatNotificationPluginUtils.urlEncode;
 
 /**
@@ -18,11 +22,13 @@ import static com.hbakkum.rundeck.plugins.hipchat.HipChatNotificationPluginUtils
 public class HipChatApiVersion1RoomNotifier implements HipChatRoomNotifier {
 
     private static final String HIPCHAT_API_ROOM_NOTIFICATION_URL_PATH = "rooms/message";
-    private static final String HIPCHAT_API_ROOM_NOTIFICATION_URL_QUERY = "?auth_token=%s&format=json&message_format=html&room_id=%s&from=%s&message=%s&color=%s&notify=%s";
     private static final String HIPCHAT_API_VERSION = "v1";
 
     private static final String HIPCHAT_MESSAGE_FROM_NAME = "Rundeck";
 
+    // ObjectMapper is thread-safe once configured and expensive to create
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
     private final HttpRequestExecutor httpRequestExecutor;
 
     public HipChatApiVersion1RoomNotifier(final HttpRequestExecutor httpRequestExecutor) {
@@ -38,15 +44,22 @@ public class HipChatApiVersion1RoomNotifier implements HipChatRoomNotifier {
             final String authToken,
             final boolean sendUserNotification) {
 
-        final String urlQueryString = String.format(HIPCHAT_API_ROOM_NOTIFICATION_URL_QUERY,
-                urlEncode(authToken),
-                urlEncode(room),
-                urlEncode(HIPCHAT_MESSAGE_FROM_NAME),
-                urlEncode(message),
-                urlEncode(color),
-                sendUserNotification ? 1 : 0);
-
-        final HipChatAPIResponse hipChatResponse = invokeHipChatAPI(baseURL, HIPCHAT_API_ROOM_NOTIFICATION_URL_PATH, urlQueryString);
+        final String encodedMessage = urlEncode(message);
+        final String url = new StringBuilder(baseURL.length() + encodedMessage.length() + 192)
+                .append(baseURL).append('/').append(HIPCHAT_API_VERSION).append('/').append(HIPCHAT_API_ROOM_NOTIFICATION_URL_PATH)
+                .append("?auth_token=").append(urlEncode(authToken))
+                .append("&format=json&message_format=html&room_id=").append(urlEncode(room))
+                .append("&from=").append(HIPCHAT_MESSAGE_FROM_NAME)
+                .append("&message=").append(encodedMessage)
+                .append("&color=").append(urlEncode(color))
+                .append("&notify=").append(sendUserNotification ? '1' : '0')
+                .toString();
+
+        final HipChatAPIResponse hipChatResponse = invokeHipChatAPI(url);
+
+        if (hipChatResponse.hasError() && hipChatResponse.getErrorCode() == HttpResponse.STATUS__NOT_FOUND) {
+            throw new HipChatRoomNotFoundException("HipChat API could not find the room: [" + hipChatResponse.getErrorMessage() + "].");
+        }
 
         if (hipChatResponse.hasError()) {
             throw new HipChatNotificationPluginException("Error returned from HipChat API: [" + hipChatResponse.getErrorMessage() + "].");
@@ -62,8 +75,17 @@ public class HipChatApiVersion1RoomNotifier implements HipChatRoomNotifier {
         return HIPCHAT_API_VERSION;
     }
 
-    private HipChatAPIResponse invokeHipChatAPI(final String hipchatServerBaseUrl, final String urlPath, final String urlQueryString) {
-        final HttpResponse httpResponse = httpRequestExecutor.execute(hipchatServerBaseUrl + "/" + HIPCHAT_API_VERSION + "/" + urlPath + urlQueryString);
+    private HipChatAPIResponse invokeHipChatAPI(final String url) {
+        final HttpResponse httpResponse = httpRequestExecutor.execute(url);
+
+        if (httpResponse.isServerError()) {
+            throw new HipChatServerUnavailableException("HipChat server error. Response code was [" + httpResponse.getResponseCode() + "].");
+        }
+
+        if (isAuthTokenRejected(httpResponse)) {
+            throw new HipChatApiAuthTokenRejectedException("HipChat API rejected the API auth token. Response code was [" + httpResponse.getResponseCode() + "].",
+                    httpResponse.getResponseCode());
+        }
 
         // naively check that a HipChat API response was obtained.
         if (HttpResponse.CONTENT_TYPE__JSON.equals(httpResponse.getContentType())) {
@@ -75,7 +97,7 @@ public class HipChatApiVersion1RoomNotifier implements HipChatRoomNotifier {
 
     private HipChatAPIResponse toHipChatResponse(final String responseBody) {
         try {
-            return new ObjectMapper().readValue(responseBody, HipChatAPIResponse.class);
+            return OBJECT_MAPPER.readValue(responseBody, HipChatAPIResponse.class);
         } catch (IOException ioEx) {
             throw new HipChatNotificationPluginException("Error reading HipChat API JSON response: [" + ioEx.getMessage() + "].", ioEx);
         }
@@ -98,6 +120,11 @@ public class HipChatApiVersion1RoomNotifier implements HipChatRoomNotifier {
             return (String) error.get("message");
         }
 
+        private int getErrorCode() {
+            final Object code = error.get("code");
+            return code instanceof Number ? ((Number) code).intValue() : -1;
+        }
+
     }
 
 }
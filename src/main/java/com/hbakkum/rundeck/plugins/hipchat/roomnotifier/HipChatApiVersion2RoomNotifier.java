@@ -1,6 +1,9 @@
 package com.hbakkum.rundeck.plugins.hipchat.roomnotifier;
 
+import com.hbakkum.rundeck.plugins.hipchat.HipChatApiAuthTokenRejectedException;
 import com.hbakkum.rundeck.plugins.hipchat.HipChatNotificationPluginException;
+import com.hbakkum.rundeck.plugins.hipchat.HipChatRoomNotFoundException;
+import com.hbakkum.rundeck.plugins.hipchat.HipChatServerUnavailableException;
 import com.hbakkum.rundeck.plugins.hipchat.http.HttpRequestExecutor;
 import com.hbakkum.rundeck.plugins.hipchat.http.HttpResponse;
 import org.codehaus.jackson.map.ObjectMapper;
@@ -9,6 +12,7 @@ import org.codehaus.jackson.node.ObjectNode;
 
 import java.io.IOException;
 
+import static com.hbakkum.rundeck.plugins.hipchat.HipChatNotificationPluginUtils.isAuthTokenRejected;
 import static com.hbakkum.rundeck.plugins.hipchat.HipChatNotificationPluginUtils.urlEncode;
 
 /**
@@ -16,10 +20,11 @@ import static com.hbakkum.rundeck.plugins.hipchat.HipChatNotificationPluginUtils
  */
 public class HipChatApiVersion2RoomNotifier implements HipChatRoomNotifier {
 
-    private static final String HIPCHAT_API_ROOM_NOTIFICATION_URL_PATH = "room/%s/notification";
-    private static final String HIPCHAT_API_ROOM_NOTIFICATION_URL_QUERY = "?auth_token=%s";
     private static final String HIPCHAT_API_VERSION = "v2";
 
+    // ObjectMapper is thread-safe once configured and expensive to create
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
     private final HttpRequestExecutor httpRequestExecutor;
 
     public HipChatApiVersion2RoomNotifier(final HttpRequestExecutor httpRequestExecutor) {
@@ -41,11 +46,13 @@ public class HipChatApiVersion2RoomNotifier implements HipChatRoomNotifier {
         requestBody.put("message_format", "html");
         requestBody.put("notify", sendUserNotification);
 
+        final String url = new StringBuilder(baseURL.length() + 128)
+                .append(baseURL).append('/').append(HIPCHAT_API_VERSION)
+                .append("/room/").append(urlEncode(room))
+                .append("/notification?auth_token=").append(urlEncode(authToken))
+                .toString();
 
-        final String urlPath = String.format(HIPCHAT_API_ROOM_NOTIFICATION_URL_PATH, urlEncode(room));
-        final String urlQueryString = String.format(HIPCHAT_API_ROOM_NOTIFICATION_URL_QUERY, urlEncode(authToken));
-
-        final HttpResponse httpResponse = httpRequestExecutor.execute(baseURL + "/" + HIPCHAT_API_VERSION + "/" + urlPath + urlQueryString, requestBody.toString());
+        final HttpResponse httpResponse = httpRequestExecutor.execute(url, requestBody.toString());
 
         if (httpResponse.getResponseCode() != HttpResponse.STATUS__NO_CONTENT) {
             throw toHipChatNotificationPluginException(httpResponse);
@@ -58,9 +65,20 @@ public class HipChatApiVersion2RoomNotifier implements HipChatRoomNotifier {
     }
 
     private HipChatNotificationPluginException toHipChatNotificationPluginException(final HttpResponse httpResponse) {
+        if (httpResponse.isServerError()) {
+            return new HipChatServerUnavailableException("HipChat server error: ["+httpResponse+"]");
+        }
+
+        if (isAuthTokenRejected(httpResponse)) {
+            return new HipChatApiAuthTokenRejectedException("HipChat API rejected the API auth token: ["+httpResponse+"]", httpResponse.getResponseCode());
+        }
+
         if (HttpResponse.CONTENT_TYPE__JSON.equals(httpResponse.getContentType())) {
             final String errorMessage = getErrorMessage(httpResponse.getResponseBody());
             if (errorMessage != null && !errorMessage.isEmpty()) {
+                if (httpResponse.getResponseCode() == HttpResponse.STATUS__NOT_FOUND) {
+                    return new HipChatRoomNotFoundException("HipChat API could not find the room: ["+errorMessage+"]");
+                }
                 return new HipChatNotificationPluginException("HipChat API returned an error: ["+errorMessage+"]");
             }
         }
@@ -70,7 +88,7 @@ public class HipChatApiVersion2RoomNotifier implements HipChatRoomNotifier {
 
     private String getErrorMessage(final String responseBody) {
         try {
-            return new ObjectMapper().readTree(responseBody).path("error").path("message").asText();
+            return OBJECT_MAPPER.readTree(responseBody).path("error").path("message").asText();
         } catch (IOException ioEx) {
             throw new HipChatNotificationPluginException("Error reading HipChat API JSON response: [" + ioEx.getMessage() + "].", ioEx);
         }
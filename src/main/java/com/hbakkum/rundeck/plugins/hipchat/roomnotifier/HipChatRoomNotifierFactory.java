@@ -1,10 +1,17 @@
 package com.hbakkum.rundeck.plugins.hipchat.roomnotifier;
 
 import com.hbakkum.rundeck.plugins.hipchat.HipChatNotificationPluginException;
+import com.hbakkum.rundeck.plugins.hipchat.history.DeliveryHistory;
+import com.hbakkum.rundeck.plugins.hipchat.http.ConcurrencyLimitingHttpRequestExecutor;
+import com.hbakkum.rundeck.plugins.hipchat.http.ConnectionPrewarmer;
+import com.hbakkum.rundeck.plugins.hipchat.http.ConnectionRacer;
+import com.hbakkum.rundeck.plugins.hipchat.http.HostAddressCache;
 import com.hbakkum.rundeck.plugins.hipchat.http.HttpRequestExecutor;
-import com.hbakkum.rundeck.plugins.hipchat.http.RestyHttpRequestExecutor;
+import com.hbakkum.rundeck.plugins.hipchat.http.UrlConnectionHttpRequestExecutor;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import static com.hbakkum.rundeck.plugins.hipchat.HipChatNotificationPluginUtils.isNotEmpty;
@@ -15,16 +22,28 @@ import static com.hbakkum.rundeck.plugins.hipchat.HipChatNotificationPluginUtils
 public class HipChatRoomNotifierFactory {
 
     private static final Map<String, HipChatRoomNotifier> HIPCHAT_ROOM_NOTIFIERS = new HashMap<String, HipChatRoomNotifier>();
-    private static final HttpRequestExecutor httpRequestExecutor = new RestyHttpRequestExecutor();
+    private static final List<DeliveryHistoryRoomNotifier> DELIVERY_HISTORY_ROOM_NOTIFIERS = new ArrayList<DeliveryHistoryRoomNotifier>();
+    private static final UrlConnectionHttpRequestExecutor urlConnectionHttpRequestExecutor = new UrlConnectionHttpRequestExecutor();
+    private static final ConcurrencyLimitingHttpRequestExecutor httpRequestExecutor = new ConcurrencyLimitingHttpRequestExecutor(urlConnectionHttpRequestExecutor);
+    private static final ConnectionRacer connectionRacer = new ConnectionRacer(
+            new HostAddressCache(HostAddressCache.DEFAULT_TTL_MILLIS), ConnectionRacer.DEFAULT_ATTEMPT_DELAY_MILLIS);
+    private static final PermanentFailureCache permanentFailureCache = new PermanentFailureCache(PermanentFailureCache.DEFAULT_TTL_MILLIS);
+    private static final ConnectionPrewarmer connectionPrewarmer = new ConnectionPrewarmer(urlConnectionHttpRequestExecutor);
     
     static {
+        urlConnectionHttpRequestExecutor.setConnectionRacer(connectionRacer);
+
         final HipChatRoomNotifier[] hipChatRoomNotifiers = {
             new HipChatApiVersion1RoomNotifier(httpRequestExecutor),
             new HipChatApiVersion2RoomNotifier(httpRequestExecutor)
         };
 
         for (final HipChatRoomNotifier hipChatRoomNotifier : hipChatRoomNotifiers) {
-            HIPCHAT_ROOM_NOTIFIERS.put(hipChatRoomNotifier.getSupportedApiVersion(), hipChatRoomNotifier);
+            final DeliveryHistoryRoomNotifier deliveryHistoryRoomNotifier = new DeliveryHistoryRoomNotifier(new CircuitBreakingRoomNotifier(hipChatRoomNotifier));
+            DELIVERY_HISTORY_ROOM_NOTIFIERS.add(deliveryHistoryRoomNotifier);
+            // suppressed notifications are never attempted, so they are kept out of the delivery history
+            HIPCHAT_ROOM_NOTIFIERS.put(hipChatRoomNotifier.getSupportedApiVersion(),
+                    new NegativeCachingRoomNotifier(deliveryHistoryRoomNotifier, permanentFailureCache));
         }
     }
 
@@ -41,5 +60,65 @@ public class HipChatRoomNotifierFactory {
 
         return hipChatRoomNotifier;
     }
+
+    /**
+     * Configures the adaptive limit on concurrent requests to each HipChat server shared by all notifiers.
+     */
+    public static void setConcurrencyLimits(final int minConcurrentRequests, final int maxConcurrentRequests, final long queueTimeoutMillis) {
+        httpRequestExecutor.setConcurrencyLimits(minConcurrentRequests, maxConcurrentRequests, queueTimeoutMillis);
+    }
+
+    /**
+     * Configures how connections to HipChat servers are established: how long resolved addresses are cached, how
+     * long to wait on a connection attempt before racing the next address, and how long requests wait to connect
+     * and for response bytes. A negative attempt delay connects to the first address only.
+     */
+    public static void setConnectionSettings(final long dnsCacheTtlMillis, final long connectionAttemptDelayMillis, final long requestTimeoutMillis) {
+        urlConnectionHttpRequestExecutor.setTimeouts(requestTimeoutMillis, requestTimeoutMillis);
+        connectionRacer.getHostAddressCache().setTtlMillis(dnsCacheTtlMillis);
+        connectionRacer.setAttemptDelayMillis(connectionAttemptDelayMillis);
+        urlConnectionHttpRequestExecutor.setConnectionRacer(connectionAttemptDelayMillis < 0 ? null : connectionRacer);
+    }
+
+    /**
+     * Keeps connections to the given comma separated base URLs warm, or stops doing so if the interval isn't positive.
+     * Requests bypass the concurrency limit so they don't skew its latency samples.
+     */
+    public static void setConnectionPrewarming(final String baseUrls, final long intervalMillis) {
+        connectionPrewarmer.prewarm(baseUrls, intervalMillis);
+    }
+
+    /**
+     * Configures how long notifications to permanently rejected rooms and API auth tokens are suppressed for (0 to
+     * not suppress them), and forgets the base URL's rejections if the API auth token configuration of the
+     * notification has changed.
+     *
+     * @param notification identifies the notification (project, job and trigger) the configuration belongs to
+     */
+    public static void setPermanentFailureCache(final long ttlMillis, final String baseURL, final String notification, final String apiAuthTokenData) {
+        permanentFailureCache.setTtlMillis(ttlMillis);
+        permanentFailureCache.onApiAuthTokenConfiguration(baseURL, notification, apiAuthTokenData);
+    }
+
+    /**
+     * Sets the history every send attempt of all notifiers is recorded in, or null to stop recording.
+     */
+    public static void setDeliveryHistory(final DeliveryHistory deliveryHistory) {
+        for (final DeliveryHistoryRoomNotifier deliveryHistoryRoomNotifier : DELIVERY_HISTORY_ROOM_NOTIFIERS) {
+            deliveryHistoryRoomNotifier.setDeliveryHistory(deliveryHistory);
+        }
+    }
+
+    /**
+     * Replaces the executor that sends the HTTP requests of all notifiers, e.g. with an in-process stub. Requests
+     * still pass through the concurrency limit.
+     */
+    public static void setHttpRequestExecutor(final HttpRequestExecutor delegate) {
+        httpRequestExecutor.setDelegate(delegate);
+    }
+
+    public static ConcurrencyLimitingHttpRequestExecutor getHttpRequestExecutor() {
+        return httpRequestExecutor;
+    }
     
 }
@@ -0,0 +1,97 @@
+package com.hbakkum.rundeck.plugins.hipchat.roomnotifier;
+
+import com.hbakkum.rundeck.plugins.hipchat.HipChatApiAuthTokenRejectedException;
+import com.hbakkum.rundeck.plugins.hipchat.HipChatRoomNotFoundException;
+import com.hbakkum.rundeck.plugins.hipchat.http.HttpResponse;
+
+/**
+ * Fails notifications to rooms and API auth tokens that a {@link PermanentFailureCache} remembers as permanently
+ * rejected, without sending them. Failures are rethrown as the same exception types the HipChat API caused, so a
+ * suppressed token rejection still makes the caller try another token, but marked as {@link Suppressed} so that
+ * callers needn't log each of them.
+ */
+public class NegativeCachingRoomNotifier implements HipChatRoomNotifier {
+
+    private final HipChatRoomNotifier delegate;
+
+    private final PermanentFailureCache permanentFailureCache;
+
+    public NegativeCachingRoomNotifier(final HipChatRoomNotifier delegate, final PermanentFailureCache permanentFailureCache) {
+        this.delegate = delegate;
+        this.permanentFailureCache = permanentFailureCache;
+    }
+
+    /**
+     * @return true, if the exception was thrown for a remembered failure rather than a response from HipChat
+     */
+    public static boolean isSuppressed(final Throwable throwable) {
+        return throwable instanceof Suppressed;
+    }
+
+    @Override
+    public void sendRoomNotification(
+            final String baseURL,
+            final String room,
+            final String message,
+            final String color,
+            final String authToken,
+            final boolean sendUserNotification) {
+        if (!permanentFailureCache.isEnabled()) {
+            delegate.sendRoomNotification(baseURL, room, message, color, authToken, sendUserNotification);
+            return;
+        }
+
+        final PermanentFailureCache.Failure failure = permanentFailureCache.getFailure(baseURL, room, authToken);
+        if (failure != null) {
+            final String suppressedMessage = "Notification suppressed, HipChat recently rejected it permanently: [" + failure.getMessage() + "]";
+            if (failure.getResponseCode() == HttpResponse.STATUS__NOT_FOUND) {
+                throw new SuppressedRoomNotFoundException(suppressedMessage);
+            }
+            throw new SuppressedApiAuthTokenRejectedException(suppressedMessage, failure.getResponseCode());
+        }
+
+        try {
+            delegate.sendRoomNotification(baseURL, room, message, color, authToken, sendUserNotification);
+            permanentFailureCache.recordSuccess(baseURL, room, authToken);
+
+        } catch (HipChatApiAuthTokenRejectedException tokenRejectedEx) {
+            // rate limited tokens recover by themselves
+            if (tokenRejectedEx.getResponseCode() == HttpResponse.STATUS__UNAUTHORIZED) {
+                permanentFailureCache.recordFailure(baseURL, room, authToken, tokenRejectedEx.getResponseCode(), tokenRejectedEx.getMessage());
+            }
+            throw tokenRejectedEx;
+
+        } catch (HipChatRoomNotFoundException roomNotFoundEx) {
+            permanentFailureCache.recordFailure(baseURL, room, authToken, HttpResponse.STATUS__NOT_FOUND, roomNotFoundEx.getMessage());
+            throw roomNotFoundEx;
+        }
+    }
+
+    @Override
+    public String getSupportedApiVersion() {
+        return delegate.getSupportedApiVersion();
+    }
+
+    /**
+     * Marks exceptions thrown for remembered failures.
+     */
+    public interface Suppressed {
+    }
+
+    static final class SuppressedApiAuthTokenRejectedException extends HipChatApiAuthTokenRejectedException implements Suppressed {
+
+        SuppressedApiAuthTokenRejectedException(final String message, final int responseCode) {
+            super(message, responseCode);
+        }
+
+    }
+
+    static final class SuppressedRoomNotFoundException extends HipChatRoomNotFoundException implements Suppressed {
+
+        SuppressedRoomNotFoundException(final String message) {
+            super(message);
+        }
+
+    }
+
+}
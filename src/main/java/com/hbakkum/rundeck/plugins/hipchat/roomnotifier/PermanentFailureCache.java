@@ -0,0 +1,219 @@
+package com.hbakkum.rundeck.plugins.hipchat.roomnotifier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Remembers rooms and API auth tokens that HipChat rejected permanently (a revoked token or a deleted room), keyed by
+ * base URL, room and a fingerprint of the token, so that further notifications to them can fail without a round trip.
+ *
+ * A failure is remembered for the TTL. If the first send after that fails the same way, it is remembered for twice as
+ * long as before, up to {@value #MAX_TTL_MULTIPLIER} times the TTL. A warning is logged when a failure is first
+ * remembered and then at most every {@link #WARNING_INTERVAL_MILLIS}, with the number of notifications suppressed
+ * in between. The failures at a base URL are forgotten when the API auth token configuration a notification sends to
+ * it with changes.
+ */
+public class PermanentFailureCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PermanentFailureCache.class);
+
+    public static final long DEFAULT_TTL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    static final int MAX_TTL_MULTIPLIER = 16;
+
+    static final long WARNING_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    // bounds the memory held by configurations that came and went
+    private static final int MAX_TOKEN_CONFIGURATIONS = 1024;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final ConcurrentMap<String, Failure> failures = new ConcurrentHashMap<String, Failure>();
+
+    private final ConcurrentMap<String, String> tokenConfigurationFingerprints = new ConcurrentHashMap<String, String>();
+
+    private volatile long ttlMillis;
+
+    public PermanentFailureCache(final long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * @param ttlMillis how long a failure is remembered for at first, or 0 to stop remembering failures
+     */
+    public void setTtlMillis(final long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+        if (ttlMillis <= 0) {
+            failures.clear();
+        }
+    }
+
+    public boolean isEnabled() {
+        return ttlMillis > 0;
+    }
+
+    /**
+     * Forgets the failures at the base URL if the given API auth token configuration differs from the one last seen
+     * for the notification, as tokens may have been replaced or rooms mapped to other tokens. Configurations are kept
+     * per notification, as notifications in the same project may override the project's tokens differently.
+     *
+     * @param notification identifies the notification the configuration belongs to
+     */
+    public void onApiAuthTokenConfiguration(final String baseURL, final String notification, final String apiAuthTokenData) {
+        final String scope = baseURL + '\n' + notification;
+        final String fingerprint = fingerprint(apiAuthTokenData == null ? "" : apiAuthTokenData);
+        if (fingerprint.equals(tokenConfigurationFingerprints.get(scope))) {
+            return;
+        }
+        if (tokenConfigurationFingerprints.size() >= MAX_TOKEN_CONFIGURATIONS) {
+            tokenConfigurationFingerprints.clear();
+        }
+        final String previousFingerprint = tokenConfigurationFingerprints.put(scope, fingerprint);
+        if (previousFingerprint != null && !previousFingerprint.equals(fingerprint) && !failures.isEmpty()) {
+            final int forgotten = forgetFailures(baseURL);
+            if (forgotten > 0) {
+                LOG.info("API auth token configuration changed, forgetting [{}] rejected rooms and tokens at [{}].", forgotten, baseURL);
+            }
+        }
+    }
+
+    /**
+     * @return the failure remembered for the room and token, or null if notifications to it should be sent
+     */
+    public Failure getFailure(final String baseURL, final String room, final String authToken) {
+        if (failures.isEmpty()) {
+            return null;
+        }
+        final Failure failure = failures.get(key(baseURL, room, authToken));
+        if (failure == null || System.currentTimeMillis() >= failure.expiresAtMillis) {
+            return null;
+        }
+        failure.suppressedCount.incrementAndGet();
+        return failure;
+    }
+
+    public void recordFailure(final String baseURL, final String room, final String authToken, final int responseCode, final String message) {
+        final long ttlMillis = this.ttlMillis;
+        if (ttlMillis <= 0) {
+            return;
+        }
+
+        final long nowMillis = System.currentTimeMillis();
+        final String key = key(baseURL, room, authToken);
+        final Failure previousFailure = failures.get(key);
+        final int ttlMultiplier = previousFailure == null ? 1 : Math.min(MAX_TTL_MULTIPLIER, previousFailure.ttlMultiplier * 2);
+        final Failure failure = new Failure(responseCode, message, ttlMultiplier, nowMillis + ttlMillis * ttlMultiplier,
+                previousFailure == null ? 0 : previousFailure.lastWarnedAtMillis);
+        failures.put(key, failure);
+
+        if (nowMillis - failure.lastWarnedAtMillis >= WARNING_INTERVAL_MILLIS) {
+            failure.lastWarnedAtMillis = nowMillis;
+            LOG.warn("HipChat permanently rejected notifications to room [{}] at [{}] with response code [{}] ({}). Notifications to it " +
+                    "with the same API auth token are suppressed for the next [{}] seconds; [{}] were suppressed since the last warning.",
+                    room, baseURL, responseCode, message, TimeUnit.MILLISECONDS.toSeconds(ttlMillis * ttlMultiplier),
+                    previousFailure == null ? 0 : previousFailure.suppressedCount.get());
+        } else if (previousFailure != null) {
+            failure.suppressedCount.set(previousFailure.suppressedCount.get());
+        }
+    }
+
+    public void recordSuccess(final String baseURL, final String room, final String authToken) {
+        if (!failures.isEmpty()) {
+            failures.remove(key(baseURL, room, authToken));
+        }
+    }
+
+    /**
+     * @param baseURLs base URL, or comma separated base URLs of failover endpoints
+     */
+    private int forgetFailures(final String baseURLs) {
+        int forgotten = 0;
+        for (final String baseURL : baseURLs.trim().split("\\s*,\\s*")) {
+            final String keyPrefix = baseURL + '\n';
+            for (final Iterator<String> keys = failures.keySet().iterator(); keys.hasNext(); ) {
+                if (keys.next().startsWith(keyPrefix)) {
+                    keys.remove();
+                    forgotten++;
+                }
+            }
+        }
+        return forgotten;
+    }
+
+    int size() {
+        return failures.size();
+    }
+
+    private static String key(final String baseURL, final String room, final String authToken) {
+        return baseURL + '\n' + room + '\n' + fingerprint(authToken == null ? "" : authToken);
+    }
+
+    /**
+     * @return a short digest of the value, so that tokens aren't kept as keys
+     */
+    static String fingerprint(final String value) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-256").digest(value.getBytes("UTF-8"));
+            final char[] fingerprint = new char[16];
+            for (int i = 0; i < 8; i++) {
+                fingerprint[i * 2] = HEX_DIGITS[(digest[i] >> 4) & 0xf];
+                fingerprint[i * 2 + 1] = HEX_DIGITS[digest[i] & 0xf];
+            }
+            return new String(fingerprint);
+
+        } catch (NoSuchAlgorithmException noAlgorithmEx) {
+            throw new IllegalStateException("SHA-256 is not available.", noAlgorithmEx);
+        } catch (UnsupportedEncodingException unsupportedEncodingEx) {
+            throw new IllegalStateException("UTF-8 is not available.", unsupportedEncodingEx);
+        }
+    }
+
+    /**
+     * A remembered permanent failure.
+     */
+    public static final class Failure {
+
+        private final int responseCode;
+
+        private final String message;
+
+        private final int ttlMultiplier;
+
+        private final long expiresAtMillis;
+
+        private final AtomicInteger suppressedCount = new AtomicInteger();
+
+        private volatile long lastWarnedAtMillis;
+
+        private Failure(final int responseCode, final String message, final int ttlMultiplier, final long expiresAtMillis, final long lastWarnedAtMillis) {
+            this.responseCode = responseCode;
+            this.message = message;
+            this.ttlMultiplier = ttlMultiplier;
+            this.expiresAtMillis = expiresAtMillis;
+            this.lastWarnedAtMillis = lastWarnedAtMillis;
+        }
+
+        public int getResponseCode() {
+            return responseCode;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        long getExpiresAtMillis() {
+            return expiresAtMillis;
+        }
+
+    }
+
+}
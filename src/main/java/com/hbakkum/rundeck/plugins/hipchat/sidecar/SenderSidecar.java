@@ -0,0 +1,352 @@
+package com.hbakkum.rundeck.plugins.hipchat.sidecar;
+
+import com.hbakkum.rundeck.plugins.hipchat.HipChatNotificationPluginException;
+import com.hbakkum.rundeck.plugins.hipchat.roomnotifier.FailoverRoomNotifier;
+import com.hbakkum.rundeck.plugins.hipchat.roomnotifier.HipChatRoomNotifier;
+import com.hbakkum.rundeck.plugins.hipchat.roomnotifier.HipChatRoomNotifierFactory;
+import com.hbakkum.rundeck.plugins.hipchat.sidecar.SidecarProtocol.Acknowledgement;
+import com.hbakkum.rundeck.plugins.hipchat.sidecar.SidecarProtocol.NotificationRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.hbakkum.rundeck.plugins.hipchat.replay.CommandLineOptions.getOption;
+import static com.hbakkum.rundeck.plugins.hipchat.replay.CommandLineOptions.parseOptions;
+
+/**
+ * A separate process that delivers room notifications on behalf of the plugin, so that HTTP connections, their
+ * threads and their buffers live outside the Rundeck JVM. Listens on a Unix domain socket for
+ * {@link NotificationRecord}s written by {@link SidecarConnection}, queues them, and delivers them in batches through
+ * the same room notifiers the plugin uses, at a paced rate. Each record is acknowledged with the outcome of its
+ * delivery; a record that finds the queue full, or that the paced rate wouldn't let be sent before the plugin stops
+ * waiting for its acknowledgement, is acknowledged as busy straight away, and the plugin sends it in process instead.
+ * A queued record whose acknowledgement timeout has passed by the time it would be sent is dropped, as the plugin no
+ * longer expects it to be delivered. Usage (dependencies are bundled in the plugin jar's lib directory, Java 16 or later is required):
+ *
+ * java -cp rundeck-hipchat-plugin.jar:lib/*:slf4j-api.jar com.hbakkum.rundeck.plugins.hipchat.sidecar.SenderSidecar
+ *      --socket /var/run/rundeck/hipchat-sender.sock
+ *      [--queue-capacity 1000] [--batch-size 50] [--workers 4] [--sends-per-second 10]
+ */
+public class SenderSidecar {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SenderSidecar.class);
+
+    private final File socketFile;
+
+    private final BlockingQueue<Delivery> queue;
+
+    private final int batchSize;
+
+    private final int workers;
+
+    private final long sendIntervalNanos;
+
+    private final List<Thread> threads = new ArrayList<Thread>();
+
+    // records accepted and not yet delivered or dropped, whether still queued or taken into a batch
+    private final AtomicInteger pendingCount = new AtomicInteger();
+
+    private ServerSocketChannel serverChannel;
+
+    private long nextSendNanos;
+
+    private volatile boolean running;
+
+    /**
+     * @param sendsPerSecond most notifications delivered per second, or 0 to deliver them as fast as the workers can
+     */
+    public SenderSidecar(final File socketFile, final int queueCapacity, final int batchSize, final int workers, final double sendsPerSecond) {
+        this.socketFile = socketFile;
+        this.queue = new ArrayBlockingQueue<Delivery>(Math.max(1, queueCapacity));
+        this.batchSize = Math.max(1, batchSize);
+        this.workers = Math.max(1, workers);
+        this.sendIntervalNanos = sendsPerSecond > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / sendsPerSecond) : 0;
+    }
+
+    public static void main(final String[] args) throws IOException, InterruptedException {
+        final Map<String, String> options = parseOptions(args);
+        if (!options.containsKey("socket")) {
+            System.err.println("Usage: SenderSidecar --socket <path> [--queue-capacity <n>] [--batch-size <n>] [--workers <n>] " +
+                    "[--sends-per-second <n>]");
+            System.exit(2);
+        }
+        if (!SidecarSupport.isAvailable()) {
+            System.err.println("SenderSidecar requires Java 16 or later for Unix domain sockets.");
+            System.exit(2);
+        }
+
+        final SenderSidecar sidecar = new SenderSidecar(
+                new File(options.get("socket")),
+                Integer.parseInt(getOption(options, "queue-capacity", "1000")),
+                Integer.parseInt(getOption(options, "batch-size", "50")),
+                Integer.parseInt(getOption(options, "workers", "4")),
+                Double.parseDouble(getOption(options, "sends-per-second", "10")));
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                sidecar.stop();
+            }
+        }, "hipchat-sidecar-shutdown"));
+        sidecar.start();
+        System.out.println("HipChat sender sidecar listening on [" + options.get("socket") + "].");
+        sidecar.awaitStop();
+    }
+
+    public synchronized void start() throws IOException {
+        serverChannel = UnixDomainSockets.bind(socketFile);
+        running = true;
+
+        startThread("hipchat-sidecar-accept", new Runnable() {
+            @Override
+            public void run() {
+                acceptConnections();
+            }
+        });
+        for (int i = 0; i < workers; i++) {
+            startThread("hipchat-sidecar-delivery-" + i, new Runnable() {
+                @Override
+                public void run() {
+                    deliverBatches();
+                }
+            });
+        }
+    }
+
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        try {
+            serverChannel.close();
+        } catch (IOException closeEx) {
+            LOG.debug("Error closing sidecar socket.", closeEx);
+        }
+        socketFile.delete();
+        for (final Thread thread : threads) {
+            thread.interrupt();
+        }
+    }
+
+    void awaitStop() throws InterruptedException {
+        final List<Thread> threads;
+        synchronized (this) {
+            threads = new ArrayList<Thread>(this.threads);
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    int getQueuedCount() {
+        return queue.size();
+    }
+
+    /**
+     * Returns the notifier to deliver the record with. The sidecar doesn't hedge, as a second request would only
+     * compete with the next record.
+     */
+    protected HipChatRoomNotifier getRoomNotifier(final NotificationRecord record) {
+        return new FailoverRoomNotifier(HipChatRoomNotifierFactory.get(record.getApiVersion(), record.getProxyHost(), record.getProxyPort()), false);
+    }
+
+    private void acceptConnections() {
+        while (running) {
+            final SocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+            } catch (ClosedChannelException closedEx) {
+                return;
+            } catch (IOException ioEx) {
+                LOG.warn("Error accepting sidecar connection.", ioEx);
+                continue;
+            }
+            startThread("hipchat-sidecar-connection", new Runnable() {
+                @Override
+                public void run() {
+                    readRecords(new Connection(channel));
+                }
+            });
+        }
+    }
+
+    private void readRecords(final Connection connection) {
+        try {
+            ByteBuffer payload;
+            while (running && (payload = SidecarProtocol.readFrame(connection.channel)) != null) {
+                final NotificationRecord record = SidecarProtocol.decodeNotificationRecord(payload);
+                if (!accept(new Delivery(record, connection))) {
+                    connection.acknowledge(Acknowledgement.busy(record.getId()));
+                }
+            }
+        } catch (IOException ioEx) {
+            if (running) {
+                LOG.warn("Error reading from sidecar connection: {}", ioEx.getMessage());
+            }
+        }
+        connection.close();
+    }
+
+    /**
+     * Queues the delivery, unless the queue is full or the records ahead of it would keep it from being sent before
+     * its acknowledgement timeout.
+     */
+    private boolean accept(final Delivery delivery) {
+        final long waitNanos = (long) pendingCount.get() * sendIntervalNanos;
+        if (waitNanos >= TimeUnit.MILLISECONDS.toNanos(delivery.record.getAckTimeoutMillis())) {
+            return false;
+        }
+        pendingCount.incrementAndGet();
+        if (!queue.offer(delivery)) {
+            pendingCount.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    private void deliverBatches() {
+        final List<Delivery> batch = new ArrayList<Delivery>(batchSize);
+        while (running) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException interruptedEx) {
+                return;
+            }
+            queue.drainTo(batch, batchSize - 1);
+
+            for (final Delivery delivery : batch) {
+                try {
+                    // no send slot is taken for a record the plugin has stopped waiting for
+                    if (!delivery.isExpired()) {
+                        awaitSendSlot();
+                        deliver(delivery);
+                    }
+                } catch (InterruptedException interruptedEx) {
+                    return;
+                } finally {
+                    pendingCount.decrementAndGet();
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    private void deliver(final Delivery delivery) {
+        final NotificationRecord record = delivery.record;
+        if (!delivery.connection.channel.isOpen()) {
+            // the plugin has already sent it in process
+            return;
+        }
+        if (delivery.isExpired()) {
+            LOG.debug("Dropping notification [{}] to room [{}], its acknowledgement timeout has passed.", record.getId(), record.getRoom());
+            return;
+        }
+        Acknowledgement acknowledgement;
+        try {
+            getRoomNotifier(record).sendRoomNotification(record.getBaseURL(), record.getRoom(), record.getMessage(), record.getColor(),
+                    record.getAuthToken(), record.isSendUserNotification());
+            acknowledgement = Acknowledgement.delivered(record.getId());
+        } catch (HipChatNotificationPluginException sendEx) {
+            acknowledgement = Acknowledgement.failed(record.getId(), sendEx);
+        } catch (RuntimeException sendEx) {
+            LOG.error("Error sending HipChat notification to room: [{}]", record.getRoom(), sendEx);
+            acknowledgement = Acknowledgement.failed(record.getId(), new HipChatNotificationPluginException(String.valueOf(sendEx.getMessage()), sendEx));
+        }
+        delivery.connection.acknowledge(acknowledgement);
+    }
+
+    /**
+     * Waits until the next notification may be sent, spacing notifications from all workers evenly.
+     */
+    private void awaitSendSlot() throws InterruptedException {
+        if (sendIntervalNanos == 0) {
+            return;
+        }
+        final long waitNanos;
+        synchronized (this) {
+            final long nowNanos = System.nanoTime();
+            final long slotNanos = Math.max(nowNanos, nextSendNanos);
+            nextSendNanos = slotNanos + sendIntervalNanos;
+            waitNanos = slotNanos - nowNanos;
+        }
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    private synchronized void startThread(final String name, final Runnable runnable) {
+        final Thread thread = new Thread(runnable, name);
+        threads.add(thread);
+        thread.start();
+    }
+
+    /**
+     * A connection from the plugin. Acknowledgements from several workers are written one at a time.
+     */
+    private static final class Connection {
+
+        private final SocketChannel channel;
+
+        private Connection(final SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        private synchronized void acknowledge(final Acknowledgement acknowledgement) {
+            if (!channel.isOpen()) {
+                return;
+            }
+            try {
+                SidecarProtocol.writeFrame(channel, SidecarProtocol.encode(acknowledgement));
+            } catch (IOException ioEx) {
+                LOG.warn("Unable to acknowledge notification [{}]: {}", acknowledgement.getId(), ioEx.getMessage());
+                close();
+            }
+        }
+
+        private void close() {
+            try {
+                channel.close();
+            } catch (IOException closeEx) {
+                LOG.debug("Error closing sidecar connection.", closeEx);
+            }
+        }
+
+    }
+
+    private static final class Delivery {
+
+        private final NotificationRecord record;
+
+        private final Connection connection;
+
+        private final long deadlineNanos;
+
+        private Delivery(final NotificationRecord record, final Connection connection) {
+            this.record = record;
+            this.connection = connection;
+            this.deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(record.getAckTimeoutMillis());
+        }
+
+        /**
+         * @return true, if the plugin has stopped waiting for the acknowledgement
+         */
+        private boolean isExpired() {
+            return System.nanoTime() - deadlineNanos >= 0;
+        }
+
+    }
+
+}
@@ -0,0 +1,297 @@
+package com.hbakkum.rundeck.plugins.hipchat.sidecar;
+
+import com.hbakkum.rundeck.plugins.hipchat.HipChatNotificationPluginException;
+import com.hbakkum.rundeck.plugins.hipchat.sidecar.SidecarProtocol.Acknowledgement;
+import com.hbakkum.rundeck.plugins.hipchat.sidecar.SidecarProtocol.NotificationRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The plugin's connection to a {@link SenderSidecar}. Records from all notifications are queued for a writer thread
+ * that writes them to one connection, and a reader thread hands each acknowledgement to the notification waiting for
+ * it, so no notification blocks on a write to a sidecar that stopped reading.
+ *
+ * At most the configured number of records may be waiting for acknowledgement; further notifications wait for a
+ * slot, so a slow sidecar slows notifications down rather than growing a backlog in the plugin. A notification that
+ * can't be handed to the sidecar - no slot within the acknowledgement timeout, no sidecar listening, the sidecar's
+ * queue full, the record not written within the acknowledgement timeout or the connection lost before acknowledgement
+ * - is reported as not taken, and the caller sends it in process instead. A connection whose writer is stuck on a
+ * record for the acknowledgement timeout is closed. A record whose connection is lost may have been delivered
+ * already, so delivery is at least once. Connecting is retried at most every {@link #RECONNECT_INTERVAL_MILLIS}.
+ */
+public class SidecarConnection {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SidecarConnection.class);
+
+    public static final int DEFAULT_MAX_IN_FLIGHT = 256;
+
+    public static final long DEFAULT_ACK_TIMEOUT_MILLIS = 30000;
+
+    static final long RECONNECT_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+    private static final ConcurrentMap<String, SidecarConnection> CONNECTIONS = new ConcurrentHashMap<String, SidecarConnection>();
+
+    private static final AtomicBoolean UNSUPPORTED_WARNED = new AtomicBoolean();
+
+    private final File socketFile;
+
+    private final Semaphore inFlight;
+
+    private final ConcurrentMap<Long, PendingAcknowledgement> pendingAcknowledgements = new ConcurrentHashMap<Long, PendingAcknowledgement>();
+
+    private final AtomicLong nextRecordId = new AtomicLong();
+
+    private final int maxInFlight;
+
+    private ChannelWriter writer;
+
+    private long lastConnectAttemptMillis = -RECONNECT_INTERVAL_MILLIS;
+
+    SidecarConnection(final File socketFile, final int maxInFlight) {
+        this.socketFile = socketFile;
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.inFlight = new Semaphore(this.maxInFlight);
+    }
+
+    /**
+     * Returns the connection to the sidecar listening on the given socket file, creating it on first use.
+     *
+     * @return the connection, or null if this JVM doesn't support Unix domain sockets
+     */
+    public static SidecarConnection forSocket(final String socketPath, final int maxInFlight) {
+        if (!SidecarSupport.isAvailable()) {
+            if (UNSUPPORTED_WARNED.compareAndSet(false, true)) {
+                LOG.warn("A HipChat sender sidecar is configured, but this JVM doesn't support Unix domain sockets (Java 16 or later is " +
+                        "required). Notifications are sent in process.");
+            }
+            return null;
+        }
+
+        SidecarConnection connection = CONNECTIONS.get(socketPath);
+        if (connection == null) {
+            final SidecarConnection newConnection = new SidecarConnection(new File(socketPath), maxInFlight);
+            connection = CONNECTIONS.putIfAbsent(socketPath, newConnection);
+            if (connection == null) {
+                connection = newConnection;
+            }
+        }
+        return connection;
+    }
+
+    /**
+     * Hands a notification to the sidecar and waits for its acknowledgement.
+     *
+     * @return the acknowledgement, or null if the sidecar didn't take the notification and it should be sent in process
+     * @throws HipChatNotificationPluginException if the sidecar took the notification but didn't acknowledge it in time
+     */
+    Acknowledgement send(
+            final String baseURL,
+            final String apiVersion,
+            final String proxyHost,
+            final String proxyPort,
+            final String room,
+            final String message,
+            final String color,
+            final String authToken,
+            final boolean sendUserNotification,
+            final long ackTimeoutMillis) {
+        try {
+            if (!inFlight.tryAcquire(ackTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                LOG.debug("No slot free on the sender sidecar connection within [{}] ms.", ackTimeoutMillis);
+                return null;
+            }
+        } catch (InterruptedException interruptedEx) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+
+        final long id = nextRecordId.incrementAndGet();
+        final PendingAcknowledgement pendingAcknowledgement = new PendingAcknowledgement();
+        pendingAcknowledgements.put(id, pendingAcknowledgement);
+        try {
+            final ByteBuffer frame = SidecarProtocol.encode(new NotificationRecord(
+                    id, ackTimeoutMillis, baseURL, apiVersion, proxyHost, proxyPort, room, message, color, authToken, sendUserNotification));
+            final ChannelWriter writer = getWriter();
+            if (writer == null || !writer.frames.offer(frame)) {
+                return null;
+            }
+
+            if (!pendingAcknowledgement.await(ackTimeoutMillis)) {
+                if (writer.frames.remove(frame)) {
+                    LOG.debug("Notification to room [{}] wasn't written to the sender sidecar within [{}] ms.", room, ackTimeoutMillis);
+                    return null;
+                }
+                if (writer.writingFrame == frame) {
+                    LOG.warn("Writing to the HipChat sender sidecar at [{}] has been blocked for [{}] ms, closing the connection.",
+                            socketFile, ackTimeoutMillis);
+                    close(writer.channel);
+                    return null;
+                }
+                throw new HipChatNotificationPluginException("The sender sidecar didn't acknowledge the notification to room [" + room
+                        + "] within [" + ackTimeoutMillis + "] ms.");
+            }
+            final Acknowledgement acknowledgement = pendingAcknowledgement.acknowledgement;
+            return acknowledgement == null || acknowledgement.isBusy() ? null : acknowledgement;
+
+        } finally {
+            pendingAcknowledgements.remove(id);
+            inFlight.release();
+        }
+    }
+
+    /**
+     * @return the writer of the connection to the sidecar, connecting if there is none; or null if there is no
+     * connection
+     */
+    private synchronized ChannelWriter getWriter() {
+        if (writer != null) {
+            return writer;
+        }
+
+        final long nowMillis = System.currentTimeMillis();
+        if (nowMillis - lastConnectAttemptMillis < RECONNECT_INTERVAL_MILLIS) {
+            return null;
+        }
+        lastConnectAttemptMillis = nowMillis;
+
+        final SocketChannel channel;
+        try {
+            channel = UnixDomainSockets.connect(socketFile);
+        } catch (IOException ioEx) {
+            LOG.warn("Unable to connect to the HipChat sender sidecar at [{}], sending notifications in process: {}", socketFile, ioEx.getMessage());
+            return null;
+        }
+        LOG.info("Connected to the HipChat sender sidecar at [{}].", socketFile);
+
+        writer = new ChannelWriter(channel, maxInFlight);
+        startThread("hipchat-sidecar-writer", writer);
+        startThread("hipchat-sidecar-acknowledgements", new Runnable() {
+            @Override
+            public void run() {
+                readAcknowledgements(channel);
+            }
+        });
+        return writer;
+    }
+
+    private static void startThread(final String name, final Runnable runnable) {
+        final Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void readAcknowledgements(final SocketChannel channel) {
+        try {
+            ByteBuffer payload;
+            while ((payload = SidecarProtocol.readFrame(channel)) != null) {
+                final Acknowledgement acknowledgement = SidecarProtocol.decodeAcknowledgement(payload);
+                final PendingAcknowledgement pendingAcknowledgement = pendingAcknowledgements.get(acknowledgement.getId());
+                if (pendingAcknowledgement != null) {
+                    pendingAcknowledgement.complete(acknowledgement);
+                }
+            }
+            LOG.warn("The HipChat sender sidecar at [{}] closed the connection.", socketFile);
+        } catch (IOException ioEx) {
+            LOG.warn("Lost connection to the HipChat sender sidecar at [{}]: {}", socketFile, ioEx.getMessage());
+        }
+        close(channel);
+    }
+
+    /**
+     * Closes the channel, and releases everything waiting for acknowledgements on it to be sent in process.
+     */
+    private void close(final SocketChannel closedChannel) {
+        synchronized (this) {
+            if (writer == null || writer.channel != closedChannel) {
+                return;
+            }
+            writer = null;
+        }
+        try {
+            closedChannel.close();
+        } catch (IOException closeEx) {
+            LOG.debug("Error closing sender sidecar connection.", closeEx);
+        }
+        for (final PendingAcknowledgement pendingAcknowledgement : pendingAcknowledgements.values()) {
+            pendingAcknowledgement.complete(null);
+        }
+    }
+
+    /**
+     * Writes the frames queued for one connection, until the connection is closed.
+     */
+    private final class ChannelWriter implements Runnable {
+
+        private final SocketChannel channel;
+
+        private final BlockingQueue<ByteBuffer> frames;
+
+        // the frame being written, or null between writes
+        private volatile ByteBuffer writingFrame;
+
+        private ChannelWriter(final SocketChannel channel, final int capacity) {
+            this.channel = channel;
+            this.frames = new ArrayBlockingQueue<ByteBuffer>(capacity);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (channel.isOpen()) {
+                    final ByteBuffer frame = frames.poll(1, TimeUnit.SECONDS);
+                    if (frame == null) {
+                        continue;
+                    }
+                    writingFrame = frame;
+                    SidecarProtocol.writeFrame(channel, frame);
+                    writingFrame = null;
+                }
+            } catch (InterruptedException interruptedEx) {
+                Thread.currentThread().interrupt();
+            } catch (IOException ioEx) {
+                if (channel.isOpen()) {
+                    LOG.warn("Lost connection to the HipChat sender sidecar at [{}]: {}", socketFile, ioEx.getMessage());
+                }
+            }
+            close(channel);
+        }
+
+    }
+
+    private static final class PendingAcknowledgement {
+
+        private final CountDownLatch received = new CountDownLatch(1);
+
+        private volatile Acknowledgement acknowledgement;
+
+        private void complete(final Acknowledgement acknowledgement) {
+            this.acknowledgement = acknowledgement;
+            received.countDown();
+        }
+
+        private boolean await(final long timeoutMillis) {
+            try {
+                return received.await(timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException interruptedEx) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,334 @@
+package com.hbakkum.rundeck.plugins.hipchat.sidecar;
+
+import com.hbakkum.rundeck.plugins.hipchat.HipChatApiAuthTokenRejectedException;
+import com.hbakkum.rundeck.plugins.hipchat.HipChatNotificationPluginException;
+import com.hbakkum.rundeck.plugins.hipchat.HipChatRoomNotFoundException;
+import com.hbakkum.rundeck.plugins.hipchat.HipChatServerUnavailableException;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Frames exchanged between the plugin and the {@link SenderSidecar}. Every frame is a 4 byte length followed by that
+ * many bytes of payload, whose first byte is its type. The plugin sends {@link NotificationRecord}s, and the sidecar
+ * answers each with an {@link Acknowledgement} carrying the record's id. Strings are written as a 4 byte length
+ * (-1 for null) followed by their UTF-8 bytes.
+ */
+public final class SidecarProtocol {
+
+    static final int MAX_FRAME_BYTES = 1024 * 1024;
+
+    private static final byte TYPE_NOTIFICATION = 1;
+    private static final byte TYPE_ACKNOWLEDGEMENT = 2;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private SidecarProtocol() {}
+
+    static ByteBuffer encode(final NotificationRecord record) {
+        final byte[][] strings = {
+                bytes(record.baseURL), bytes(record.apiVersion), bytes(record.proxyHost), bytes(record.proxyPort),
+                bytes(record.room), bytes(record.message), bytes(record.color), bytes(record.authToken)
+        };
+        final ByteBuffer frame = allocateFrame(1 + 8 + 8 + 1 + sizeOf(strings));
+        frame.put(TYPE_NOTIFICATION);
+        frame.putLong(record.id);
+        frame.putLong(record.ackTimeoutMillis);
+        frame.put((byte) (record.sendUserNotification ? 1 : 0));
+        for (final byte[] string : strings) {
+            putString(frame, string);
+        }
+        return flipFrame(frame);
+    }
+
+    static ByteBuffer encode(final Acknowledgement acknowledgement) {
+        final byte[][] strings = {bytes(acknowledgement.detail)};
+        final ByteBuffer frame = allocateFrame(1 + 8 + 1 + 4 + sizeOf(strings));
+        frame.put(TYPE_ACKNOWLEDGEMENT);
+        frame.putLong(acknowledgement.id);
+        frame.put(acknowledgement.status);
+        frame.putInt(acknowledgement.responseCode);
+        putString(frame, strings[0]);
+        return flipFrame(frame);
+    }
+
+    static NotificationRecord decodeNotificationRecord(final ByteBuffer payload) throws IOException {
+        checkType(payload, TYPE_NOTIFICATION);
+        final long id = payload.getLong();
+        final long ackTimeoutMillis = payload.getLong();
+        final boolean sendUserNotification = payload.get() != 0;
+        return new NotificationRecord(id, ackTimeoutMillis, getString(payload), getString(payload), getString(payload), getString(payload),
+                getString(payload), getString(payload), getString(payload), getString(payload), sendUserNotification);
+    }
+
+    static Acknowledgement decodeAcknowledgement(final ByteBuffer payload) throws IOException {
+        checkType(payload, TYPE_ACKNOWLEDGEMENT);
+        return new Acknowledgement(payload.getLong(), payload.get(), payload.getInt(), getString(payload));
+    }
+
+    /**
+     * Reads the payload of the next frame.
+     *
+     * @return the payload, or null if the channel was closed between frames
+     */
+    static ByteBuffer readFrame(final ReadableByteChannel channel) throws IOException {
+        final ByteBuffer length = ByteBuffer.allocate(4);
+        if (!readFully(channel, length, true)) {
+            return null;
+        }
+        final int payloadLength = length.getInt(0);
+        if (payloadLength <= 0 || payloadLength > MAX_FRAME_BYTES) {
+            throw new IOException("Invalid sidecar frame length [" + payloadLength + "].");
+        }
+        final ByteBuffer payload = ByteBuffer.allocate(payloadLength);
+        readFully(channel, payload, false);
+        payload.flip();
+        return payload;
+    }
+
+    static void writeFrame(final WritableByteChannel channel, final ByteBuffer frame) throws IOException {
+        while (frame.hasRemaining()) {
+            channel.write(frame);
+        }
+    }
+
+    private static boolean readFully(final ReadableByteChannel channel, final ByteBuffer buffer, final boolean eofAllowed) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                if (eofAllowed && buffer.position() == 0) {
+                    return false;
+                }
+                throw new EOFException("Sidecar connection closed mid-frame.");
+            }
+        }
+        return true;
+    }
+
+    private static ByteBuffer allocateFrame(final int payloadLength) {
+        if (payloadLength > MAX_FRAME_BYTES) {
+            throw new HipChatNotificationPluginException("Notification of [" + payloadLength + "] bytes is too large for the sender sidecar.");
+        }
+        final ByteBuffer frame = ByteBuffer.allocate(4 + payloadLength);
+        frame.putInt(payloadLength);
+        return frame;
+    }
+
+    private static ByteBuffer flipFrame(final ByteBuffer frame) {
+        frame.flip();
+        return frame;
+    }
+
+    private static void checkType(final ByteBuffer payload, final byte type) throws IOException {
+        final byte actualType = payload.get();
+        if (actualType != type) {
+            throw new IOException("Unexpected sidecar frame type [" + actualType + "], expected [" + type + "].");
+        }
+    }
+
+    private static byte[] bytes(final String string) {
+        return string == null ? null : string.getBytes(UTF_8);
+    }
+
+    private static int sizeOf(final byte[][] strings) {
+        int size = 0;
+        for (final byte[] string : strings) {
+            size += 4 + (string == null ? 0 : string.length);
+        }
+        return size;
+    }
+
+    private static void putString(final ByteBuffer frame, final byte[] string) {
+        if (string == null) {
+            frame.putInt(-1);
+        } else {
+            frame.putInt(string.length);
+            frame.put(string);
+        }
+    }
+
+    private static String getString(final ByteBuffer payload) throws IOException {
+        final int length = payload.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > payload.remaining()) {
+            throw new IOException("Invalid sidecar string length [" + length + "].");
+        }
+        final String string = new String(payload.array(), payload.arrayOffset() + payload.position(), length, UTF_8);
+        payload.position(payload.position() + length);
+        return string;
+    }
+
+    /**
+     * A room notification to be delivered by the sidecar, with everything needed to pick the room notifier, and how
+     * long the plugin waits for its acknowledgement.
+     */
+    public static final class NotificationRecord {
+
+        private final long id;
+        private final long ackTimeoutMillis;
+        private final String baseURL;
+        private final String apiVersion;
+        private final String proxyHost;
+        private final String proxyPort;
+        private final String room;
+        private final String message;
+        private final String color;
+        private final String authToken;
+        private final boolean sendUserNotification;
+
+        NotificationRecord(
+                final long id,
+                final long ackTimeoutMillis,
+                final String baseURL,
+                final String apiVersion,
+                final String proxyHost,
+                final String proxyPort,
+                final String room,
+                final String message,
+                final String color,
+                final String authToken,
+                final boolean sendUserNotification) {
+            this.id = id;
+            this.ackTimeoutMillis = ackTimeoutMillis;
+            this.baseURL = baseURL;
+            this.apiVersion = apiVersion;
+            this.proxyHost = proxyHost;
+            this.proxyPort = proxyPort;
+            this.room = room;
+            this.message = message;
+            this.color = color;
+            this.authToken = authToken;
+            this.sendUserNotification = sendUserNotification;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        /**
+         * @return how long the plugin waits for the acknowledgement, after which it no longer expects the record to be delivered
+         */
+        public long getAckTimeoutMillis() {
+            return ackTimeoutMillis;
+        }
+
+        public String getBaseURL() {
+            return baseURL;
+        }
+
+        public String getApiVersion() {
+            return apiVersion;
+        }
+
+        public String getProxyHost() {
+            return proxyHost;
+        }
+
+        public String getProxyPort() {
+            return proxyPort;
+        }
+
+        public String getRoom() {
+            return room;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        public String getColor() {
+            return color;
+        }
+
+        public String getAuthToken() {
+            return authToken;
+        }
+
+        public boolean isSendUserNotification() {
+            return sendUserNotification;
+        }
+
+    }
+
+    /**
+     * The outcome of a notification record. Failures carry what is needed to raise the same exception in the plugin
+     * as an in-process send would have raised.
+     */
+    public static final class Acknowledgement {
+
+        static final byte STATUS_DELIVERED = 0;
+        // the sidecar's queue was full, so the record was not accepted
+        static final byte STATUS_BUSY = 1;
+        static final byte STATUS_TOKEN_REJECTED = 2;
+        static final byte STATUS_ROOM_NOT_FOUND = 3;
+        static final byte STATUS_SERVER_UNAVAILABLE = 4;
+        static final byte STATUS_FAILED = 5;
+
+        private final long id;
+        private final byte status;
+        private final int responseCode;
+        private final String detail;
+
+        Acknowledgement(final long id, final byte status, final int responseCode, final String detail) {
+            this.id = id;
+            this.status = status;
+            this.responseCode = responseCode;
+            this.detail = detail;
+        }
+
+        static Acknowledgement delivered(final long id) {
+            return new Acknowledgement(id, STATUS_DELIVERED, 0, null);
+        }
+
+        static Acknowledgement busy(final long id) {
+            return new Acknowledgement(id, STATUS_BUSY, 0, null);
+        }
+
+        static Acknowledgement failed(final long id, final HipChatNotificationPluginException failure) {
+            if (failure instanceof HipChatApiAuthTokenRejectedException) {
+                return new Acknowledgement(id, STATUS_TOKEN_REJECTED,
+                        ((HipChatApiAuthTokenRejectedException) failure).getResponseCode(), failure.getMessage());
+            }
+            if (failure instanceof HipChatRoomNotFoundException) {
+                return new Acknowledgement(id, STATUS_ROOM_NOT_FOUND, 0, failure.getMessage());
+            }
+            if (failure instanceof HipChatServerUnavailableException) {
+                return new Acknowledgement(id, STATUS_SERVER_UNAVAILABLE, 0, failure.getMessage());
+            }
+            return new Acknowledgement(id, STATUS_FAILED, 0, failure.getMessage());
+        }
+
+        long getId() {
+            return id;
+        }
+
+        boolean isBusy() {
+            return status == STATUS_BUSY;
+        }
+
+        /**
+         * @throws HipChatNotificationPluginException of the same kind the sidecar's send failed with, if it failed
+         */
+        void throwIfFailed() {
+            switch (status) {
+                case STATUS_DELIVERED:
+                    return;
+                case STATUS_TOKEN_REJECTED:
+                    throw new HipChatApiAuthTokenRejectedException(detail, responseCode);
+                case STATUS_ROOM_NOT_FOUND:
+                    throw new HipChatRoomNotFoundException(detail);
+                case STATUS_SERVER_UNAVAILABLE:
+                    throw new HipChatServerUnavailableException(detail);
+                default:
+                    throw new HipChatNotificationPluginException(detail);
+            }
+        }
+
+    }
+
+}
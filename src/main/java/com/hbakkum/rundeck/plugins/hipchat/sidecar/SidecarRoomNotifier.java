@@ -0,0 +1,64 @@
+package com.hbakkum.rundeck.plugins.hipchat.sidecar;
+
+import com.hbakkum.rundeck.plugins.hipchat.roomnotifier.HipChatRoomNotifier;
+import com.hbakkum.rundeck.plugins.hipchat.sidecar.SidecarProtocol.Acknowledgement;
+
+/**
+ * Hands room notifications to a {@link SenderSidecar} to deliver, raising the same exceptions as an in-process send
+ * if the sidecar's delivery fails. Notifications the sidecar doesn't take are sent by the in-process notifier.
+ */
+public class SidecarRoomNotifier implements HipChatRoomNotifier {
+
+    private final SidecarConnection sidecarConnection;
+
+    private final HipChatRoomNotifier inProcessRoomNotifier;
+
+    private final String apiVersion;
+
+    private final String proxyHost;
+
+    private final String proxyPort;
+
+    private final long ackTimeoutMillis;
+
+    /**
+     * @param apiVersion HipChat API version, proxy host and proxy port the sidecar should send the notification with
+     */
+    public SidecarRoomNotifier(
+            final SidecarConnection sidecarConnection,
+            final HipChatRoomNotifier inProcessRoomNotifier,
+            final String apiVersion,
+            final String proxyHost,
+            final String proxyPort,
+            final long ackTimeoutMillis) {
+        this.sidecarConnection = sidecarConnection;
+        this.inProcessRoomNotifier = inProcessRoomNotifier;
+        this.apiVersion = apiVersion;
+        this.proxyHost = proxyHost;
+        this.proxyPort = proxyPort;
+        this.ackTimeoutMillis = ackTimeoutMillis;
+    }
+
+    @Override
+    public void sendRoomNotification(
+            final String baseURL,
+            final String room,
+            final String message,
+            final String color,
+            final String authToken,
+            final boolean sendUserNotification) {
+        final Acknowledgement acknowledgement = sidecarConnection.send(
+                baseURL, apiVersion, proxyHost, proxyPort, room, message, color, authToken, sendUserNotification, ackTimeoutMillis);
+        if (acknowledgement == null) {
+            inProcessRoomNotifier.sendRoomNotification(baseURL, room, message, color, authToken, sendUserNotification);
+            return;
+        }
+        acknowledgement.throwIfFailed();
+    }
+
+    @Override
+    public String getSupportedApiVersion() {
+        return inProcessRoomNotifier.getSupportedApiVersion();
+    }
+
+}
@@ -0,0 +1,28 @@
+package com.hbakkum.rundeck.plugins.hipchat.sidecar;
+
+/**
+ * Detects whether the running JVM supports Unix domain socket channels (Java 16 and later). Rundeck may run on an
+ * older JVM, in which case {@link UnixDomainSockets} must never be loaded.
+ */
+final class SidecarSupport {
+
+    private static final boolean AVAILABLE = detect();
+
+    static boolean isAvailable() {
+        return AVAILABLE;
+    }
+
+    private static boolean detect() {
+        try {
+            Class.forName("java.net.UnixDomainSocketAddress", false, SidecarSupport.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException cnfEx) {
+            return false;
+        } catch (LinkageError linkageError) {
+            return false;
+        }
+    }
+
+    private SidecarSupport() {}
+
+}
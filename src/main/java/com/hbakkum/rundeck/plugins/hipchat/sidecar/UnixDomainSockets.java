@@ -0,0 +1,46 @@
+package com.hbakkum.rundeck.plugins.hipchat.sidecar;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Opens Unix domain socket channels. Kept apart from the classes using them, as it can only be loaded when
+ * {@link SidecarSupport#isAvailable()}.
+ */
+final class UnixDomainSockets {
+
+    static SocketChannel connect(final File socketFile) throws IOException {
+        final SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            channel.connect(UnixDomainSocketAddress.of(socketFile.getPath()));
+            return channel;
+        } catch (IOException ioEx) {
+            channel.close();
+            throw ioEx;
+        }
+    }
+
+    /**
+     * Binds a server channel to the socket file, replacing any socket file left behind by an earlier process.
+     */
+    static ServerSocketChannel bind(final File socketFile) throws IOException {
+        if (socketFile.exists() && !socketFile.delete()) {
+            throw new IOException("Unable to delete stale socket file [" + socketFile + "].");
+        }
+        final ServerSocketChannel serverChannel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            serverChannel.bind(UnixDomainSocketAddress.of(socketFile.getPath()));
+            return serverChannel;
+        } catch (IOException ioEx) {
+            serverChannel.close();
+            throw ioEx;
+        }
+    }
+
+    private UnixDomainSockets() {}
+
+}
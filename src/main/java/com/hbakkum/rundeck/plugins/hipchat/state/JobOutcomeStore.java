@@ -0,0 +1,302 @@
+package com.hbakkum.rundeck.plugins.hipchat.state;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static com.hbakkum.rundeck.plugins.hipchat.HipChatNotificationPluginUtils.toJobUuid;
+
+/**
+ * Remembers the last outcome of each job, how many executions in a row have had that outcome, and whether the job
+ * has ever succeeded, so that notifications can be limited to changes of outcome.
+ *
+ * Jobs are keyed by their UUID (names that are not UUIDs are hashed to one), combined with a hash of the
+ * notification destination so that separately configured notifications of a job are tracked separately. Keys and
+ * states are held in primitive arrays of an open addressing hash table, so a job costs at most 40 bytes of table space
+ * and no objects.
+ *
+ * Each update is appended to a state file as a fixed width record, and the file is replayed on startup - the last
+ * record for a key wins. Once the file holds several times more records than there are jobs, it is compacted by
+ * rewriting the current state of every job to a new file.
+ */
+public class JobOutcomeStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(JobOutcomeStore.class);
+
+    public static final int OUTCOME_SUCCESS = 1;
+    public static final int OUTCOME_FAILURE = 2;
+
+    // key (2 longs) and state (int)
+    private static final int RECORD_SIZE = 20;
+
+    private static final int OUTCOME_BITS = 2;
+    private static final int OUTCOME_MASK = (1 << OUTCOME_BITS) - 1;
+    private static final int SUCCEEDED_FLAG = 1 << OUTCOME_BITS;
+    private static final int COUNT_SHIFT = OUTCOME_BITS + 1;
+    private static final int MAX_CONSECUTIVE_COUNT = Integer.MAX_VALUE >>> COUNT_SHIFT;
+
+    private static final int MIN_RECORDS_BEFORE_COMPACTION = 1024;
+    private static final int COMPACTION_RATIO = 4;
+
+    private static final ConcurrentMap<String, JobOutcomeStore> STORES = new ConcurrentHashMap<String, JobOutcomeStore>();
+
+    private final File stateFile;
+
+    private long[] keysHigh;
+
+    private long[] keysLow;
+
+    // consecutive count << COUNT_SHIFT | succeeded flag | outcome, 0 marks an empty slot
+    private int[] states;
+
+    private int size;
+
+    private long recordsInFile;
+
+    private DataOutputStream stateFileOut;
+
+    /**
+     * @param stateFile file the state is persisted to, or null to keep the state in memory only
+     */
+    JobOutcomeStore(final File stateFile) {
+        this.stateFile = stateFile;
+        allocate(64);
+        if (stateFile != null) {
+            load();
+        }
+    }
+
+    /**
+     * Returns the store persisted to the given file, creating it on first use. A blank path gives a store that is
+     * kept in memory only.
+     */
+    public static JobOutcomeStore forFile(final String stateFilePath) {
+        JobOutcomeStore store = STORES.get(stateFilePath);
+        if (store == null) {
+            final JobOutcomeStore newStore = new JobOutcomeStore(stateFilePath.length() == 0 ? null : new File(stateFilePath));
+            store = STORES.putIfAbsent(stateFilePath, newStore);
+            if (store == null) {
+                store = newStore;
+            }
+        }
+        return store;
+    }
+
+    /**
+     * Records the outcome of an execution of a job.
+     *
+     * @return number of consecutive executions, including this one, with the same outcome for the job and
+     * destination - 1 if the outcome changed or the job had not been seen before
+     */
+    public synchronized int recordOutcome(final String jobId, final String destination, final int outcome) {
+        final UUID jobUuid = toJobUuid(jobId);
+        final long keyHigh = jobUuid.getMostSignificantBits();
+        final long keyLow = jobUuid.getLeastSignificantBits() ^ destinationHash(destination);
+
+        final int slot = findSlot(keyHigh, keyLow);
+        final int previousState = states[slot];
+        final int consecutiveCount = previousState != 0 && (previousState & OUTCOME_MASK) == outcome
+                ? Math.min(MAX_CONSECUTIVE_COUNT, (previousState >>> COUNT_SHIFT) + 1)
+                : 1;
+        final int succeededFlag = (previousState & SUCCEEDED_FLAG) | (outcome == OUTCOME_SUCCESS ? SUCCEEDED_FLAG : 0);
+        final int state = consecutiveCount << COUNT_SHIFT | succeededFlag | outcome;
+
+        put(slot, keyHigh, keyLow, state);
+        persist(keyHigh, keyLow, state);
+        return consecutiveCount;
+    }
+
+    /**
+     * @return the last outcome recorded for the job and destination, or 0 if none
+     */
+    public synchronized int getLastOutcome(final String jobId, final String destination) {
+        final UUID jobUuid = toJobUuid(jobId);
+        return states[findSlot(jobUuid.getMostSignificantBits(), jobUuid.getLeastSignificantBits() ^ destinationHash(destination))] & OUTCOME_MASK;
+    }
+
+    /**
+     * @return true, if a success has ever been recorded for the job and destination
+     */
+    public synchronized boolean hasSucceeded(final String jobId, final String destination) {
+        final UUID jobUuid = toJobUuid(jobId);
+        return (states[findSlot(jobUuid.getMostSignificantBits(), jobUuid.getLeastSignificantBits() ^ destinationHash(destination))] & SUCCEEDED_FLAG) != 0;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    synchronized long getRecordsInFile() {
+        return recordsInFile;
+    }
+
+    synchronized void close() {
+        closeStateFile();
+    }
+
+    private static long destinationHash(final String destination) {
+        long destinationHash = 1125899906842597L;
+        for (int i = 0; i < destination.length(); i++) {
+            destinationHash = 31 * destinationHash + destination.charAt(i);
+        }
+        return destinationHash * 0x9E3779B97F4A7C15L;
+    }
+
+    private int findSlot(final long keyHigh, final long keyLow) {
+        final int mask = states.length - 1;
+        int slot = hash(keyHigh, keyLow) & mask;
+        while (states[slot] != 0 && (keysHigh[slot] != keyHigh || keysLow[slot] != keyLow)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void put(final int slot, final long keyHigh, final long keyLow, final int state) {
+        if (states[slot] == 0) {
+            size++;
+        }
+        keysHigh[slot] = keyHigh;
+        keysLow[slot] = keyLow;
+        states[slot] = state;
+
+        if (size * 2 > states.length) {
+            resize();
+        }
+    }
+
+    private void resize() {
+        final long[] oldKeysHigh = keysHigh;
+        final long[] oldKeysLow = keysLow;
+        final int[] oldStates = states;
+
+        allocate(oldStates.length * 2);
+        for (int i = 0; i < oldStates.length; i++) {
+            if (oldStates[i] != 0) {
+                final int slot = findSlot(oldKeysHigh[i], oldKeysLow[i]);
+                keysHigh[slot] = oldKeysHigh[i];
+                keysLow[slot] = oldKeysLow[i];
+                states[slot] = oldStates[i];
+            }
+        }
+    }
+
+    private void allocate(final int capacity) {
+        keysHigh = new long[capacity];
+        keysLow = new long[capacity];
+        states = new int[capacity];
+    }
+
+    private static int hash(final long keyHigh, final long keyLow) {
+        final long h = (keyHigh ^ keyLow) * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private void load() {
+        if (!stateFile.isFile()) {
+            return;
+        }
+
+        try {
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(stateFile)));
+            try {
+                while (true) {
+                    final long keyHigh = in.readLong();
+                    final long keyLow = in.readLong();
+                    final int state = in.readInt();
+                    recordsInFile++;
+                    if (state != 0) {
+                        put(findSlot(keyHigh, keyLow), keyHigh, keyLow, state);
+                    }
+                }
+            } catch (EOFException endOfFile) {
+                // a record cut short by a crash is ignored, and overwritten when the file is next compacted
+            } finally {
+                in.close();
+            }
+        } catch (IOException ioEx) {
+            LOG.warn("Unable to load job outcome state from [{}], previous outcomes are forgotten.", stateFile, ioEx);
+        }
+
+        if (stateFile.length() % RECORD_SIZE != 0) {
+            compact();
+        }
+    }
+
+    private void persist(final long keyHigh, final long keyLow, final int state) {
+        if (stateFile == null) {
+            return;
+        }
+
+        if (recordsInFile >= MIN_RECORDS_BEFORE_COMPACTION && recordsInFile >= (long) COMPACTION_RATIO * size) {
+            // the compacted file includes this update
+            compact();
+            return;
+        }
+
+        try {
+            if (stateFileOut == null) {
+                stateFileOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(stateFile, true), RECORD_SIZE));
+            }
+            stateFileOut.writeLong(keyHigh);
+            stateFileOut.writeLong(keyLow);
+            stateFileOut.writeInt(state);
+            stateFileOut.flush();
+            recordsInFile++;
+        } catch (IOException ioEx) {
+            LOG.warn("Unable to persist job outcome state to [{}].", stateFile, ioEx);
+            closeStateFile();
+        }
+    }
+
+    private void compact() {
+        closeStateFile();
+
+        final File compactedFile = new File(stateFile.getPath() + ".compact");
+        try {
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(compactedFile)));
+            try {
+                for (int i = 0; i < states.length; i++) {
+                    if (states[i] != 0) {
+                        out.writeLong(keysHigh[i]);
+                        out.writeLong(keysLow[i]);
+                        out.writeInt(states[i]);
+                    }
+                }
+            } finally {
+                out.close();
+            }
+
+            if (!compactedFile.renameTo(stateFile) && !(stateFile.delete() && compactedFile.renameTo(stateFile))) {
+                throw new IOException("Unable to replace state file with compacted file [" + compactedFile + "].");
+            }
+            recordsInFile = size;
+        } catch (IOException ioEx) {
+            LOG.warn("Unable to compact job outcome state file [{}].", stateFile, ioEx);
+        }
+    }
+
+    private void closeStateFile() {
+        if (stateFileOut == null) {
+            return;
+        }
+        try {
+            stateFileOut.close();
+        } catch (IOException ioEx) {
+            LOG.debug("Error closing job outcome state file [{}].", stateFile, ioEx);
+        }
+        stateFileOut = null;
+    }
+
+}
@@ -0,0 +1,69 @@
+package com.hbakkum.rundeck.plugins.hipchat.template;
+
+import freemarker.core.ArithmeticEngine;
+import freemarker.template.TemplateException;
+
+/**
+ * FreeMarker's default (BigDecimal) arithmetic, charging every comparison and operation against the time budget bound
+ * to the merging thread with {@link BudgetedObjectWrapper#bind(TemplateBudgetTracker)}. Counters, loop conditions
+ * and recursive functions all do arithmetic, so templates spinning on them fail once their time is up even though
+ * they touch neither the data model nor the output.
+ */
+public class BudgetedArithmeticEngine extends ArithmeticEngine {
+
+    public static final BudgetedArithmeticEngine INSTANCE = new BudgetedArithmeticEngine();
+
+    private static final ArithmeticEngine DELEGATE = ArithmeticEngine.BIGDECIMAL_ENGINE;
+
+    private BudgetedArithmeticEngine() {
+    }
+
+    @Override
+    public int compareNumbers(final Number first, final Number second) throws TemplateException {
+        checkTime();
+        return DELEGATE.compareNumbers(first, second);
+    }
+
+    @Override
+    public Number add(final Number first, final Number second) throws TemplateException {
+        checkTime();
+        return DELEGATE.add(first, second);
+    }
+
+    @Override
+    public Number subtract(final Number first, final Number second) throws TemplateException {
+        checkTime();
+        return DELEGATE.subtract(first, second);
+    }
+
+    @Override
+    public Number multiply(final Number first, final Number second) throws TemplateException {
+        checkTime();
+        return DELEGATE.multiply(first, second);
+    }
+
+    @Override
+    public Number divide(final Number first, final Number second) throws TemplateException {
+        checkTime();
+        return DELEGATE.divide(first, second);
+    }
+
+    @Override
+    public Number modulus(final Number first, final Number second) throws TemplateException {
+        checkTime();
+        return DELEGATE.modulus(first, second);
+    }
+
+    @Override
+    public Number toNumber(final String s) {
+        return DELEGATE.toNumber(s);
+    }
+
+    private static void checkTime() throws TemplateBudgetExceededException {
+        final TemplateBudgetTracker budgetTracker = BudgetedObjectWrapper.getBoundTracker();
+        if (budgetTracker != null) {
+            budgetTracker.checkTime();
+        }
+    }
+
+}
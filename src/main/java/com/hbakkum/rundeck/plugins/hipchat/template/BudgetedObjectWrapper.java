@@ -0,0 +1,161 @@
+package com.hbakkum.rundeck.plugins.hipchat.template;
+
+import freemarker.template.DefaultObjectWrapper;
+import freemarker.template.TemplateCollectionModel;
+import freemarker.template.TemplateHashModelEx;
+import freemarker.template.TemplateModel;
+import freemarker.template.TemplateModelException;
+import freemarker.template.TemplateModelIterator;
+import freemarker.template.TemplateSequenceModel;
+
+/**
+ * Object wrapper that charges every hash lookup against a template's time budget and every element iterated from a
+ * sequence, collection or hash against its loop iteration budget.
+ *
+ * Building an object wrapper is expensive, so a single instance is shared by all merges; the budget charged is the
+ * one bound to the merging thread with {@link #bind(TemplateBudgetTracker)}.
+ */
+public class BudgetedObjectWrapper extends DefaultObjectWrapper {
+
+    public static final BudgetedObjectWrapper INSTANCE = new BudgetedObjectWrapper();
+
+    private static final ThreadLocal<TemplateBudgetTracker> BUDGET_TRACKER = new ThreadLocal<TemplateBudgetTracker>();
+
+    private BudgetedObjectWrapper() {
+    }
+
+    /**
+     * Charges the models wrapped by the current thread to the given tracker, until {@link #unbind()} is called.
+     */
+    public static void bind(final TemplateBudgetTracker budgetTracker) {
+        BUDGET_TRACKER.set(budgetTracker);
+    }
+
+    public static void unbind() {
+        BUDGET_TRACKER.remove();
+    }
+
+    /**
+     * @return the tracker bound to the current thread, or null if none is
+     */
+    static TemplateBudgetTracker getBoundTracker() {
+        return BUDGET_TRACKER.get();
+    }
+
+    @Override
+    public TemplateModel wrap(final Object obj) throws TemplateModelException {
+        if (obj instanceof TemplateModel) {
+            return (TemplateModel) obj;
+        }
+
+        final TemplateModel model = super.wrap(obj);
+
+        final TemplateBudgetTracker budgetTracker = BUDGET_TRACKER.get();
+        if (budgetTracker == null) {
+            return model;
+        }
+
+        if (model instanceof TemplateHashModelEx) {
+            return new BudgetedHash((TemplateHashModelEx) model, budgetTracker);
+        } else if (model instanceof TemplateSequenceModel) {
+            return new BudgetedSequence((TemplateSequenceModel) model, budgetTracker);
+        } else if (model instanceof TemplateCollectionModel) {
+            return new BudgetedCollection((TemplateCollectionModel) model, budgetTracker);
+        }
+        return model;
+    }
+
+    private static final class BudgetedHash implements TemplateHashModelEx {
+
+        private final TemplateHashModelEx delegate;
+
+        private final TemplateBudgetTracker budgetTracker;
+
+        private BudgetedHash(final TemplateHashModelEx delegate, final TemplateBudgetTracker budgetTracker) {
+            this.delegate = delegate;
+            this.budgetTracker = budgetTracker;
+        }
+
+        @Override
+        public TemplateModel get(final String key) throws TemplateModelException {
+            budgetTracker.checkTime();
+            return delegate.get(key);
+        }
+
+        @Override
+        public boolean isEmpty() throws TemplateModelException {
+            return delegate.isEmpty();
+        }
+
+        @Override
+        public int size() throws TemplateModelException {
+            return delegate.size();
+        }
+
+        @Override
+        public TemplateCollectionModel keys() throws TemplateModelException {
+            return new BudgetedCollection(delegate.keys(), budgetTracker);
+        }
+
+        @Override
+        public TemplateCollectionModel values() throws TemplateModelException {
+            return new BudgetedCollection(delegate.values(), budgetTracker);
+        }
+
+    }
+
+    private static final class BudgetedSequence implements TemplateSequenceModel {
+
+        private final TemplateSequenceModel delegate;
+
+        private final TemplateBudgetTracker budgetTracker;
+
+        private BudgetedSequence(final TemplateSequenceModel delegate, final TemplateBudgetTracker budgetTracker) {
+            this.delegate = delegate;
+            this.budgetTracker = budgetTracker;
+        }
+
+        @Override
+        public TemplateModel get(final int index) throws TemplateModelException {
+            budgetTracker.onLoopIteration();
+            return delegate.get(index);
+        }
+
+        @Override
+        public int size() throws TemplateModelException {
+            return delegate.size();
+        }
+
+    }
+
+    private static final class BudgetedCollection implements TemplateCollectionModel {
+
+        private final TemplateCollectionModel delegate;
+
+        private final TemplateBudgetTracker budgetTracker;
+
+        private BudgetedCollection(final TemplateCollectionModel delegate, final TemplateBudgetTracker budgetTracker) {
+            this.delegate = delegate;
+            this.budgetTracker = budgetTracker;
+        }
+
+        @Override
+        public TemplateModelIterator iterator() throws TemplateModelException {
+            final TemplateModelIterator iterator = delegate.iterator();
+            return new TemplateModelIterator() {
+                @Override
+                public TemplateModel next() throws TemplateModelException {
+                    budgetTracker.onLoopIteration();
+                    return iterator.next();
+                }
+
+                @Override
+                public boolean hasNext() throws TemplateModelException {
+                    return iterator.hasNext();
+                }
+            };
+        }
+
+    }
+
+}
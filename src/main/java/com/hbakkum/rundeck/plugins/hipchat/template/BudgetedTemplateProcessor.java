@@ -0,0 +1,148 @@
+package com.hbakkum.rundeck.plugins.hipchat.template;
+
+import com.hbakkum.rundeck.plugins.hipchat.HipChatNotificationPluginException;
+import freemarker.template.Template;
+import freemarker.template.TemplateException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Merges templates within their {@link TemplateExecutionBudget}.
+ *
+ * Custom templates are merged on a worker thread, and the caller stops waiting once the time budget has run out, even
+ * if the template is spinning somewhere that never checks in with its {@link TemplateBudgetTracker}. FreeMarker
+ * can't be interrupted, so the abandoned merge only stops at its next budget check, if it makes one; until then it
+ * keeps its worker busy. So that such runaway merges can't take every CPU, no custom template is merged while
+ * {@link #MAX_RUNAWAY_MERGES} of them are still running.
+ */
+public class BudgetedTemplateProcessor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BudgetedTemplateProcessor.class);
+
+    public static final String WORKER_THREAD_NAME_PREFIX = "hipchat-template-merge-";
+
+    static final int MAX_RUNAWAY_MERGES = 4;
+
+    public static final BudgetedTemplateProcessor INSTANCE = new BudgetedTemplateProcessor();
+
+    private static final int MERGE_RUNNING = 0;
+    private static final int MERGE_DONE = 1;
+    private static final int MERGE_ABANDONED = 2;
+
+    private static final AtomicInteger WORKER_COUNT = new AtomicInteger();
+
+    private final ExecutorService workers = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, WORKER_THREAD_NAME_PREFIX + WORKER_COUNT.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final AtomicInteger runawayMerges = new AtomicInteger();
+
+    /**
+     * Merges a custom template on a worker thread, waiting at most until the budget's time limit.
+     *
+     * @throws TemplateBudgetExceededException if the budget ran out, including when the merge was abandoned at the
+     *                                         deadline or couldn't start because of runaway merges
+     */
+    public void process(
+            final Template template,
+            final Object model,
+            final Writer out,
+            final TemplateBudgetTracker budgetTracker) throws TemplateException, IOException {
+        final int runawayMergeCount = runawayMerges.get();
+        if (runawayMergeCount >= MAX_RUNAWAY_MERGES) {
+            budgetTracker.exhaust(runawayMergeCount + " earlier template merges are still running past their time limit");
+        }
+
+        final AtomicInteger mergeState = new AtomicInteger(MERGE_RUNNING);
+        final Future<Void> merge = workers.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws TemplateException, IOException {
+                try {
+                    processInCallerThread(template, model, out, budgetTracker);
+                } finally {
+                    if (!mergeState.compareAndSet(MERGE_RUNNING, MERGE_DONE)) {
+                        runawayMerges.decrementAndGet();
+                        LOG.info("Abandoned merge of HipChat notification message template [{}] has finished.", template.getName());
+                    }
+                }
+                return null;
+            }
+        });
+
+        try {
+            merge.get(Math.max(0, budgetTracker.getRemainingNanos()), TimeUnit.NANOSECONDS);
+
+        } catch (TimeoutException timeoutEx) {
+            abandon(mergeState);
+            budgetTracker.exhaust(budgetTracker.getTimeLimitExceededReason());
+
+        } catch (InterruptedException interruptedEx) {
+            abandon(mergeState);
+            Thread.currentThread().interrupt();
+            throw new HipChatNotificationPluginException("Interrupted while merging HipChat notification message template [" + template.getName() + "].");
+
+        } catch (ExecutionException executionEx) {
+            final Throwable cause = executionEx.getCause();
+            if (cause instanceof TemplateException) {
+                throw (TemplateException) cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new HipChatNotificationPluginException("Error merging HipChat notification message template: [" + cause + "].", cause);
+        }
+    }
+
+    /**
+     * @return number of abandoned merges that are still running
+     */
+    public int getRunawayMergeCount() {
+        return runawayMerges.get();
+    }
+
+    /**
+     * Merges a trusted template, e.g. a bundled one, on the calling thread. The budget is only enforced where the
+     * template checks in with it.
+     */
+    public void processInCallerThread(
+            final Template template,
+            final Object model,
+            final Writer out,
+            final TemplateBudgetTracker budgetTracker) throws TemplateException, IOException {
+        BudgetedObjectWrapper.bind(budgetTracker);
+        try {
+            template.process(model, new BudgetedWriter(out, budgetTracker), BudgetedObjectWrapper.INSTANCE);
+        } finally {
+            BudgetedObjectWrapper.unbind();
+        }
+    }
+
+    private void abandon(final AtomicInteger mergeState) {
+        // counted first, so that a merge finishing meanwhile never takes the count below zero
+        runawayMerges.incrementAndGet();
+        if (!mergeState.compareAndSet(MERGE_RUNNING, MERGE_ABANDONED)) {
+            runawayMerges.decrementAndGet();
+        }
+    }
+
+}
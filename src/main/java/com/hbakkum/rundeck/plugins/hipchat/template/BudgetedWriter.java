@@ -0,0 +1,50 @@
+package com.hbakkum.rundeck.plugins.hipchat.template;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writer that charges everything written to it against a template's execution budget.
+ */
+public class BudgetedWriter extends Writer {
+
+    private final Writer delegate;
+
+    private final TemplateBudgetTracker budgetTracker;
+
+    public BudgetedWriter(final Writer delegate, final TemplateBudgetTracker budgetTracker) {
+        this.delegate = delegate;
+        this.budgetTracker = budgetTracker;
+    }
+
+    @Override
+    public void write(final char[] cbuf, final int off, final int len) throws IOException {
+        try {
+            budgetTracker.onOutput(len);
+        } catch (TemplateBudgetExceededException budgetEx) {
+            throw new IOException(budgetEx.getMessage(), budgetEx);
+        }
+        delegate.write(cbuf, off, len);
+    }
+
+    @Override
+    public void write(final String str, final int off, final int len) throws IOException {
+        try {
+            budgetTracker.onOutput(len);
+        } catch (TemplateBudgetExceededException budgetEx) {
+            throw new IOException(budgetEx.getMessage(), budgetEx);
+        }
+        delegate.write(str, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        delegate.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        delegate.close();
+    }
+
+}
@@ -0,0 +1,124 @@
+package com.hbakkum.rundeck.plugins.hipchat.template;
+
+import com.hbakkum.rundeck.plugins.hipchat.duration.DurationAssessment;
+import freemarker.template.TemplateModelException;
+import freemarker.template.TemplateScalarModel;
+
+import java.util.Map;
+
+/**
+ * Renders the bundled default message template ({@value #TEMPLATE_NAME}) without FreeMarker, writing the same
+ * output directly from the execution data. Wrapping the execution data for FreeMarker copies every map the template
+ * touches, which costs more than the rest of the notification put together for most jobs.
+ *
+ * Only inputs the template would print as-is are rendered: if a value the template uses is missing or not a string,
+ * or the output would exceed its budget, nothing is rendered and the caller merges the template with FreeMarker, so
+ * that errors are reported exactly as before. Like the template, values are not escaped; the log excerpt is escaped
+ * once when it is read.
+ *
+ * Any change to the template must be made here too.
+ */
+public class DefaultMessageTemplateRenderer {
+
+    public static final String TEMPLATE_NAME = "hipchat-message.ftl";
+
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+
+    // buffers grown beyond this by a long log excerpt aren't kept
+    private static final int MAX_RETAINED_BUFFER_SIZE = 16 * 1024;
+
+    private static final ThreadLocal<StringBuilder> BUFFER = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(INITIAL_BUFFER_SIZE);
+        }
+    };
+
+    public static final DefaultMessageTemplateRenderer INSTANCE = new DefaultMessageTemplateRenderer();
+
+    /**
+     * @param logExcerpt HTML escaped tail of the execution log, read only if the template prints it
+     * @return the message, or null if the default template has to be merged with FreeMarker instead
+     */
+    public String render(
+            final String trigger,
+            final Map executionData,
+            final TemplateScalarModel logExcerpt,
+            final DurationAssessment durationAssessment,
+            final int maxOutputChars) {
+        final Map job = getMap(executionData, "job");
+        final Map context = getMap(executionData, "context");
+        final Map contextJob = getMap(context, "job");
+        if (job == null || contextJob == null) {
+            return null;
+        }
+
+        final Object group = job.get("group");
+        final String jobHref = getString(job, "href");
+        final String jobName = getString(job, "name");
+        final String username = getString(contextJob, "username");
+        final String execId = getString(contextJob, "execid");
+        final String executionHref = getString(executionData, "href");
+        if ((group != null && !(group instanceof String)) || jobHref == null || jobName == null || username == null
+                || execId == null || executionHref == null) {
+            return null;
+        }
+
+        final String excerpt = "failure".equals(trigger) ? getExcerpt(logExcerpt) : "";
+        if (excerpt == null) {
+            return null;
+        }
+
+        final StringBuilder buffer = BUFFER.get();
+        buffer.setLength(0);
+        buffer.append("Execution of job\n<a href=\"").append(jobHref).append("\">\n");
+        if (group != null && ((String) group).length() > 0) {
+            buffer.append((String) group).append('/');
+        }
+        buffer.append(jobName).append("</a>\n");
+        if ("start".equals(trigger)) {
+            buffer.append("    <b>started</b>\n");
+        } else if ("failure".equals(trigger)) {
+            buffer.append("    <b>failed</b>\n");
+        } else if ("success".equals(trigger)) {
+            buffer.append("    <b>succeeded</b>\n");
+        }
+        buffer.append("<ul>\n    <li>User: ").append(username)
+                .append("</li>\n    <li>ExecId: ").append(execId)
+                .append("</li>\n");
+        if (durationAssessment.isSlowRun()) {
+            buffer.append("    <li>Slow run: took longer than ").append(durationAssessment.getDurationPercentile())
+                    .append("% of recent runs</li>\n");
+        }
+        buffer.append("</ul>\n");
+        if (excerpt.length() > 0) {
+            buffer.append("<pre>").append(excerpt).append("</pre>\n");
+        }
+        buffer.append("<a href=\"").append(executionHref).append("\">View Output</a>");
+
+        final String message = buffer.length() > maxOutputChars ? null : buffer.toString();
+        if (buffer.capacity() > MAX_RETAINED_BUFFER_SIZE) {
+            BUFFER.remove();
+        }
+        return message;
+    }
+
+    private static Map getMap(final Map map, final String key) {
+        final Object value = map == null ? null : map.get(key);
+        return value instanceof Map ? (Map) value : null;
+    }
+
+    private static String getString(final Map map, final String key) {
+        final Object value = map.get(key);
+        return value instanceof String ? (String) value : null;
+    }
+
+    private static String getExcerpt(final TemplateScalarModel logExcerpt) {
+        try {
+            return logExcerpt == null ? "" : logExcerpt.getAsString();
+        } catch (TemplateModelException templateModelEx) {
+            return null;
+        }
+    }
+
+}
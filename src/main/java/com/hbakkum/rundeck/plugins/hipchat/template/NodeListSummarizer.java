@@ -0,0 +1,298 @@
+package com.hbakkum.rundeck.plugins.hipchat.template;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Collapses a list of node names into a short summary for notification messages, e.g.
+ *
+ * web001 ... web340, db-eu-alpha ... db-eu-mu, backup
+ *
+ * becomes
+ *
+ * web[001-340], db-eu-*: 12, backup
+ *
+ * Names are grouped by the text around their last run of digits, and the numbers of each group collapsed into
+ * ranges. Names without digits are grouped by the text up to their last separator ('-', '_' or '.'). Groups keep the
+ * order in which they first appear.
+ *
+ * The summary never exceeds the given maximum length: a group whose ranges do not fit is shown as a node count, and
+ * groups that still do not fit are left out and counted instead.
+ * Grouping is a single pass over the names, and numbers are collapsed with a bit set when they are dense (as node
+ * numbers usually are), so summarizing takes time linear in the number of nodes.
+ */
+public class NodeListSummarizer {
+
+    public static final int DEFAULT_MAX_LENGTH = 500;
+
+    private static final String SEPARATOR = ", ";
+
+    // length of ", +<count> more"
+    private static final int OMITTED_NODES_RESERVE = 20;
+
+    // numbers spread wider than this many times their count are sorted rather than placed in a bit set
+    private static final int MAX_BIT_SET_SPREAD = 32;
+
+    private final int maxLength;
+
+    public NodeListSummarizer(final int maxLength) {
+        this.maxLength = maxLength;
+    }
+
+    public String summarize(final Collection<String> nodeNames) {
+        final Map<String, NodeGroup> nodeGroups = new LinkedHashMap<String, NodeGroup>();
+        for (final String nodeName : nodeNames) {
+            addToGroup(nodeGroups, nodeName.trim());
+        }
+
+        final StringBuilder summary = new StringBuilder(Math.min(maxLength, 64 + 16 * nodeGroups.size()));
+        if (appendGroups(summary, nodeGroups, maxLength) == 0) {
+            return summary.toString();
+        }
+
+        // not everything fits, so leave room to say how many nodes were left out
+        summary.setLength(0);
+        final int omittedNodes = appendGroups(summary, nodeGroups, maxLength - OMITTED_NODES_RESERVE);
+        if (summary.length() > 0) {
+            summary.append(SEPARATOR);
+        }
+        return summary.append('+').append(omittedNodes).append(" more").toString();
+    }
+
+    /**
+     * Appends the summary of each group that fits within the given length, falling back to a group's node count if
+     * its ranges do not fit.
+     *
+     * @return number of nodes in groups left out
+     */
+    private static int appendGroups(final StringBuilder summary, final Map<String, NodeGroup> nodeGroups, final int maxLength) {
+        final StringBuilder groupSummary = new StringBuilder();
+        int omittedNodes = 0;
+        for (final NodeGroup nodeGroup : nodeGroups.values()) {
+            final int separatorLength = summary.length() == 0 ? 0 : SEPARATOR.length();
+            final int room = maxLength - summary.length() - separatorLength;
+
+            groupSummary.setLength(0);
+            nodeGroup.appendTo(groupSummary);
+            if (groupSummary.length() > room) {
+                groupSummary.setLength(0);
+                nodeGroup.appendCountTo(groupSummary);
+            }
+            if (groupSummary.length() > room) {
+                omittedNodes += nodeGroup.size();
+                continue;
+            }
+
+            if (separatorLength > 0) {
+                summary.append(SEPARATOR);
+            }
+            summary.append(groupSummary);
+        }
+        return omittedNodes;
+    }
+
+    private static void addToGroup(final Map<String, NodeGroup> nodeGroups, final String nodeName) {
+        int digitsEnd = nodeName.length();
+        while (digitsEnd > 0 && !Character.isDigit(nodeName.charAt(digitsEnd - 1))) {
+            digitsEnd--;
+        }
+        int digitsStart = digitsEnd;
+        while (digitsStart > 0 && Character.isDigit(nodeName.charAt(digitsStart - 1))) {
+            digitsStart--;
+        }
+
+        // numbers too long for a long are treated as text
+        if (digitsEnd > digitsStart && digitsEnd - digitsStart <= 18) {
+            final String prefix = nodeName.substring(0, digitsStart);
+            final String suffix = nodeName.substring(digitsEnd);
+            final String key = prefix + '\u0000' + suffix;
+            NodeGroup nodeGroup = nodeGroups.get(key);
+            if (nodeGroup == null) {
+                nodeGroup = new NumberedNodeGroup(prefix, suffix);
+                nodeGroups.put(key, nodeGroup);
+            }
+            // zero padded numbers set the width all numbers of the group are printed with
+            final int width = nodeName.charAt(digitsStart) == '0' ? digitsEnd - digitsStart : 0;
+            ((NumberedNodeGroup) nodeGroup).add(nodeName, Long.parseLong(nodeName.substring(digitsStart, digitsEnd)), width);
+            return;
+        }
+
+        final int prefixEnd = lastSeparatorIndex(nodeName) + 1;
+        final String key = prefixEnd > 0 ? nodeName.substring(0, prefixEnd) : nodeName;
+        NodeGroup nodeGroup = nodeGroups.get(key);
+        if (nodeGroup == null) {
+            nodeGroup = new NamedNodeGroup(key);
+            nodeGroups.put(key, nodeGroup);
+        }
+        nodeGroup.add(nodeName);
+    }
+
+    private static int lastSeparatorIndex(final String nodeName) {
+        for (int i = nodeName.length() - 2; i > 0; i--) {
+            final char c = nodeName.charAt(i);
+            if (c == '-' || c == '_' || c == '.') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private abstract static class NodeGroup {
+
+        private String firstNodeName;
+
+        private int size;
+
+        void add(final String nodeName) {
+            if (size++ == 0) {
+                firstNodeName = nodeName;
+            }
+        }
+
+        int size() {
+            return size;
+        }
+
+        String getFirstNodeName() {
+            return firstNodeName;
+        }
+
+        abstract void appendTo(StringBuilder summary);
+
+        abstract void appendCountTo(StringBuilder summary);
+
+    }
+
+    private static final class NamedNodeGroup extends NodeGroup {
+
+        private final String prefix;
+
+        private NamedNodeGroup(final String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        void appendTo(final StringBuilder summary) {
+            if (size() == 1) {
+                summary.append(getFirstNodeName());
+            } else {
+                appendCountTo(summary);
+            }
+        }
+
+        @Override
+        void appendCountTo(final StringBuilder summary) {
+            summary.append(prefix).append("*: ").append(size());
+        }
+
+    }
+
+    private static final class NumberedNodeGroup extends NodeGroup {
+
+        private final String prefix;
+
+        private final String suffix;
+
+        // zero padded width of the numbers, or 0 if not padded
+        private int width;
+
+        private long[] numbers = new long[8];
+
+        private long min = Long.MAX_VALUE;
+
+        private long max = Long.MIN_VALUE;
+
+        private NumberedNodeGroup(final String prefix, final String suffix) {
+            this.prefix = prefix;
+            this.suffix = suffix;
+        }
+
+        void add(final String nodeName, final long number, final int width) {
+            this.width = Math.max(this.width, width);
+            if (size() == numbers.length) {
+                numbers = Arrays.copyOf(numbers, numbers.length * 2);
+            }
+            numbers[size()] = number;
+            min = Math.min(min, number);
+            max = Math.max(max, number);
+            super.add(nodeName);
+        }
+
+        @Override
+        void appendCountTo(final StringBuilder summary) {
+            summary.append(prefix).append('*').append(suffix).append(": ").append(size());
+        }
+
+        @Override
+        void appendTo(final StringBuilder summary) {
+            if (size() == 1) {
+                summary.append(getFirstNodeName());
+                return;
+            }
+
+            summary.append(prefix).append('[');
+            if (max - min <= (long) MAX_BIT_SET_SPREAD * size()) {
+                appendRangesFromBitSet(summary);
+            } else {
+                appendRangesFromSortedNumbers(summary);
+            }
+            summary.append(']').append(suffix);
+        }
+
+        private void appendRangesFromBitSet(final StringBuilder summary) {
+            final BitSet present = new BitSet((int) (max - min + 1));
+            for (int i = 0; i < size(); i++) {
+                present.set((int) (numbers[i] - min));
+            }
+
+            boolean first = true;
+            for (int start = present.nextSetBit(0); start >= 0; start = present.nextSetBit(start)) {
+                final int end = present.nextClearBit(start) - 1;
+                appendRange(summary, min + start, min + end, first);
+                first = false;
+                start = end + 1;
+            }
+        }
+
+        private void appendRangesFromSortedNumbers(final StringBuilder summary) {
+            final long[] sortedNumbers = Arrays.copyOf(numbers, size());
+            Arrays.sort(sortedNumbers);
+
+            boolean first = true;
+            int i = 0;
+            while (i < sortedNumbers.length) {
+                final long start = sortedNumbers[i];
+                long end = start;
+                while (++i < sortedNumbers.length && sortedNumbers[i] <= end + 1) {
+                    end = sortedNumbers[i];
+                }
+                appendRange(summary, start, end, first);
+                first = false;
+            }
+        }
+
+        private void appendRange(final StringBuilder summary, final long start, final long end, final boolean first) {
+            if (!first) {
+                summary.append(',');
+            }
+            appendNumber(summary, start);
+            if (end != start) {
+                summary.append('-');
+                appendNumber(summary, end);
+            }
+        }
+
+        private void appendNumber(final StringBuilder summary, final long number) {
+            final String digits = Long.toString(number);
+            for (int i = digits.length(); i < width; i++) {
+                summary.append('0');
+            }
+            summary.append(digits);
+        }
+
+    }
+
+}
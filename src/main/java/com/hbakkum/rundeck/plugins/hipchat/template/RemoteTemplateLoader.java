@@ -0,0 +1,299 @@
+package com.hbakkum.rundeck.plugins.hipchat.template;
+
+import freemarker.cache.TemplateLoader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.apache.commons.lang.StringUtils.isNotEmpty;
+
+/**
+ * Loads FreeMarker templates from an http(s) base URL, through the configured proxy if there is one.
+ *
+ * A lookup never waits on the server. The first lookup of a template starts fetching it on a background thread and
+ * finds no template, so the caller uses its default template until the fetch has completed. After that the template
+ * is only ever revalidated in the background: once the revalidation interval has passed, the next lookup returns the
+ * version already fetched and a conditional GET (If-None-Match / If-Modified-Since) is sent on a background thread.
+ * If the template has changed, later lookups return the new version and FreeMarker parses it again; until then
+ * FreeMarker keeps using the template it parsed. If the server can't be reached or returns an error, the last good
+ * version stays in use, and a template never fetched is tried again at the revalidation interval.
+ */
+public class RemoteTemplateLoader implements TemplateLoader {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RemoteTemplateLoader.class);
+
+    public static final long DEFAULT_REVALIDATION_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    static final int TIMEOUT_MILLIS = (int) TimeUnit.SECONDS.toMillis(10);
+
+    static final int MAX_TEMPLATE_BYTES = 1024 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final ConcurrentMap<String, RemoteTemplateLoader> LOADERS = new ConcurrentHashMap<String, RemoteTemplateLoader>();
+
+    private static final ExecutorService REVALIDATION_EXECUTOR = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, "hipchat-template-revalidation");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final String baseUrl;
+
+    private final Proxy proxy;
+
+    private final long revalidationIntervalMillis;
+
+    private final Executor revalidationExecutor;
+
+    private final ConcurrentMap<String, RemoteTemplate> templates = new ConcurrentHashMap<String, RemoteTemplate>();
+
+    /**
+     * @param baseUrl URL that template names are relative to, ending in '/'
+     */
+    RemoteTemplateLoader(final String baseUrl, final Proxy proxy, final long revalidationIntervalMillis, final Executor revalidationExecutor) {
+        this.baseUrl = baseUrl;
+        this.proxy = proxy;
+        this.revalidationIntervalMillis = revalidationIntervalMillis;
+        this.revalidationExecutor = revalidationExecutor;
+    }
+
+    /**
+     * Returns the loader for templates under the given base URL, fetched through the given proxy if both its host and
+     * port are given, creating it on first use.
+     */
+    public static RemoteTemplateLoader forBaseUrl(final String baseUrl, final String proxyHost, final String proxyPort) {
+        final String loaderKey = getLoaderKey(baseUrl, proxyHost, proxyPort);
+        RemoteTemplateLoader loader = LOADERS.get(loaderKey);
+        if (loader == null) {
+            // left unresolved, so that the proxy host is looked up by the background fetch rather than the caller
+            final Proxy proxy = isNotEmpty(proxyHost) && isNotEmpty(proxyPort)
+                    ? new Proxy(Proxy.Type.HTTP, InetSocketAddress.createUnresolved(proxyHost, Integer.valueOf(proxyPort)))
+                    : Proxy.NO_PROXY;
+            final RemoteTemplateLoader newLoader = new RemoteTemplateLoader(baseUrl, proxy, DEFAULT_REVALIDATION_INTERVAL_MILLIS, REVALIDATION_EXECUTOR);
+            loader = LOADERS.putIfAbsent(loaderKey, newLoader);
+            if (loader == null) {
+                loader = newLoader;
+            }
+        }
+        return loader;
+    }
+
+    /**
+     * @return key that the loader for the base URL and proxy is shared under
+     */
+    public static String getLoaderKey(final String baseUrl, final String proxyHost, final String proxyPort) {
+        return isNotEmpty(proxyHost) && isNotEmpty(proxyPort) ? baseUrl + '\n' + proxyHost + ':' + proxyPort : baseUrl;
+    }
+
+    public static boolean isRemoteTemplateLocation(final String templateLocation) {
+        return templateLocation != null && (templateLocation.startsWith("http://") || templateLocation.startsWith("https://"));
+    }
+
+    /**
+     * Returns whether a version of the template has been fetched, starting to fetch it in the background if it
+     * hasn't and no fetch was tried within the revalidation interval.
+     */
+    public boolean isTemplateAvailable(final String name) {
+        return findTemplateSource(name) != null;
+    }
+
+    /**
+     * @return the version of the template fetched last, or null if no version has been fetched yet or the template
+     * doesn't exist
+     */
+    @Override
+    public Object findTemplateSource(final String name) {
+        RemoteTemplate template = templates.get(name);
+        if (template == null) {
+            final RemoteTemplate newTemplate = new RemoteTemplate();
+            template = templates.putIfAbsent(name, newTemplate);
+            if (template == null) {
+                template = newTemplate;
+                revalidateInBackground(name, template);
+                return null;
+            }
+        }
+
+        if (System.currentTimeMillis() - template.checkedAtMillis >= revalidationIntervalMillis) {
+            revalidateInBackground(name, template);
+        }
+        return template.version;
+    }
+
+    @Override
+    public long getLastModified(final Object templateSource) {
+        return ((TemplateVersion) templateSource).fetchedAtMillis;
+    }
+
+    @Override
+    public Reader getReader(final Object templateSource, final String encoding) {
+        return new StringReader(((TemplateVersion) templateSource).content);
+    }
+
+    @Override
+    public void closeTemplateSource(final Object templateSource) {
+    }
+
+    private void revalidateInBackground(final String name, final RemoteTemplate template) {
+        if (!template.revalidating.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            revalidationExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        revalidate(name, template);
+                    } finally {
+                        template.revalidating.set(false);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException rejectedEx) {
+            template.revalidating.set(false);
+        }
+    }
+
+    private void revalidate(final String name, final RemoteTemplate template) {
+        final TemplateVersion current = template.version;
+        try {
+            final TemplateVersion version = fetch(name, current);
+            if (version == null) {
+                if (current == null) {
+                    LOG.warn("HipChat notification message template [{}{}] doesn't exist, using the default template.", baseUrl, name);
+                } else {
+                    LOG.warn("HipChat notification message template [{}{}] no longer exists, using the version fetched before.", baseUrl, name);
+                }
+            } else if (version != current) {
+                if (current != null) {
+                    LOG.info("HipChat notification message template [{}{}] has changed.", baseUrl, name);
+                }
+                template.version = version;
+            }
+        } catch (IOException ioEx) {
+            if (current == null) {
+                LOG.warn("Unable to fetch HipChat notification message template [{}{}], using the default template: {}",
+                        baseUrl, name, ioEx.getMessage());
+            } else {
+                LOG.warn("Unable to revalidate HipChat notification message template [{}{}], using the version fetched before: {}",
+                        baseUrl, name, ioEx.getMessage());
+            }
+        }
+        // checked even if the fetch failed, so that an unreachable server is retried at the revalidation interval
+        // rather than on every lookup
+        template.checkedAtMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * @param current version fetched before, to revalidate; or null
+     * @return the current version if the template hasn't changed, the new version if it has, or null if it doesn't
+     * exist
+     */
+    private TemplateVersion fetch(final String name, final TemplateVersion current) throws IOException {
+        final HttpURLConnection httpConnection = (HttpURLConnection) new URL(baseUrl + name).openConnection(proxy);
+        try {
+            httpConnection.setConnectTimeout(TIMEOUT_MILLIS);
+            httpConnection.setReadTimeout(TIMEOUT_MILLIS);
+            httpConnection.setUseCaches(false);
+            if (current != null && current.etag != null) {
+                httpConnection.setRequestProperty("If-None-Match", current.etag);
+            }
+            if (current != null && current.lastModified != null) {
+                httpConnection.setRequestProperty("If-Modified-Since", current.lastModified);
+            }
+
+            final int responseCode = httpConnection.getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && current != null) {
+                return current;
+            }
+            if (responseCode == HttpURLConnection.HTTP_NOT_FOUND) {
+                return null;
+            }
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Server returned response code [" + responseCode + "].");
+            }
+
+            return new TemplateVersion(readContent(httpConnection), httpConnection.getHeaderField("ETag"),
+                    httpConnection.getHeaderField("Last-Modified"), System.currentTimeMillis());
+        } catch (IOException ioEx) {
+            httpConnection.disconnect();
+            throw ioEx;
+        }
+    }
+
+    private static String readContent(final HttpURLConnection httpConnection) throws IOException {
+        final InputStream in = httpConnection.getInputStream();
+        try {
+            final ByteArrayOutputStream content = new ByteArrayOutputStream(4096);
+            final byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                content.write(buffer, 0, read);
+                if (content.size() > MAX_TEMPLATE_BYTES) {
+                    throw new IOException("Template is larger than [" + MAX_TEMPLATE_BYTES + "] bytes.");
+                }
+            }
+            return new String(content.toByteArray(), UTF_8);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * A version of a template as fetched from the server. Each fetch that returns content gives a new version, which
+     * FreeMarker sees as a new template source.
+     */
+    private static final class TemplateVersion {
+
+        private final String content;
+
+        private final String etag;
+
+        private final String lastModified;
+
+        private final long fetchedAtMillis;
+
+        private TemplateVersion(final String content, final String etag, final String lastModified, final long fetchedAtMillis) {
+            this.content = content;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.fetchedAtMillis = fetchedAtMillis;
+        }
+
+    }
+
+    private static final class RemoteTemplate {
+
+        // null until a version has been fetched
+        private volatile TemplateVersion version;
+
+        private volatile long checkedAtMillis = System.currentTimeMillis();
+
+        private final AtomicBoolean revalidating = new AtomicBoolean();
+
+    }
+
+}
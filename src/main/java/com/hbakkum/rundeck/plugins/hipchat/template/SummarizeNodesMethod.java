@@ -0,0 +1,86 @@
+package com.hbakkum.rundeck.plugins.hipchat.template;
+
+import freemarker.template.SimpleScalar;
+import freemarker.template.TemplateCollectionModel;
+import freemarker.template.TemplateMethodModelEx;
+import freemarker.template.TemplateModel;
+import freemarker.template.TemplateModelException;
+import freemarker.template.TemplateModelIterator;
+import freemarker.template.TemplateNumberModel;
+import freemarker.template.TemplateScalarModel;
+import freemarker.template.TemplateSequenceModel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Template method summarizing a node list with {@link NodeListSummarizer}, e.g.
+ *
+ * ${summarizeNodes(execution.failedNodeList)} or ${summarizeNodes(execution.failedNodeListString, 200)}
+ *
+ * The node list may be a sequence of node names or a comma separated string. The optional second argument is the
+ * maximum length of the summary.
+ */
+public class SummarizeNodesMethod implements TemplateMethodModelEx {
+
+    public static final SummarizeNodesMethod INSTANCE = new SummarizeNodesMethod();
+
+    private SummarizeNodesMethod() {
+    }
+
+    @Override
+    public Object exec(final List arguments) throws TemplateModelException {
+        if (arguments.isEmpty() || arguments.size() > 2) {
+            throw new TemplateModelException("summarizeNodes expects a node list and an optional maximum length.");
+        }
+
+        final int maxLength;
+        if (arguments.size() == 2) {
+            if (!(arguments.get(1) instanceof TemplateNumberModel)) {
+                throw new TemplateModelException("summarizeNodes expects a number as its maximum length.");
+            }
+            maxLength = ((TemplateNumberModel) arguments.get(1)).getAsNumber().intValue();
+        } else {
+            maxLength = NodeListSummarizer.DEFAULT_MAX_LENGTH;
+        }
+
+        return new SimpleScalar(new NodeListSummarizer(maxLength).summarize(toNodeNames((TemplateModel) arguments.get(0))));
+    }
+
+    private static List<String> toNodeNames(final TemplateModel nodeList) throws TemplateModelException {
+        if (nodeList == null) {
+            return new ArrayList<String>();
+        }
+
+        if (nodeList instanceof TemplateScalarModel) {
+            final String nodeListString = ((TemplateScalarModel) nodeList).getAsString().trim();
+            return nodeListString.length() == 0 ? new ArrayList<String>() : Arrays.asList(nodeListString.split("\\s*,\\s*"));
+        }
+
+        final List<String> nodeNames = new ArrayList<String>();
+        if (nodeList instanceof TemplateSequenceModel) {
+            final TemplateSequenceModel sequence = (TemplateSequenceModel) nodeList;
+            final int size = sequence.size();
+            for (int i = 0; i < size; i++) {
+                nodeNames.add(toNodeName(sequence.get(i)));
+            }
+        } else if (nodeList instanceof TemplateCollectionModel) {
+            final TemplateModelIterator iterator = ((TemplateCollectionModel) nodeList).iterator();
+            while (iterator.hasNext()) {
+                nodeNames.add(toNodeName(iterator.next()));
+            }
+        } else {
+            throw new TemplateModelException("summarizeNodes expects a sequence or comma separated string of node names.");
+        }
+        return nodeNames;
+    }
+
+    private static String toNodeName(final TemplateModel node) throws TemplateModelException {
+        if (node instanceof TemplateScalarModel) {
+            return ((TemplateScalarModel) node).getAsString();
+        }
+        throw new TemplateModelException("summarizeNodes expects node names to be strings.");
+    }
+
+}
@@ -0,0 +1,14 @@
+package com.hbakkum.rundeck.plugins.hipchat.template;
+
+import freemarker.template.TemplateModelException;
+
+/**
+ * Thrown into a running template when its {@link TemplateExecutionBudget} has run out.
+ */
+public class TemplateBudgetExceededException extends TemplateModelException {
+
+    public TemplateBudgetExceededException(final String message) {
+        super("Template execution budget exhausted: " + message);
+    }
+
+}
@@ -0,0 +1,86 @@
+package com.hbakkum.rundeck.plugins.hipchat.template;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks how much of a {@link TemplateExecutionBudget} a single template merge has spent. FreeMarker offers no way
+ * to interrupt a running template, so the budget is enforced cooperatively: the data model, the output writer and
+ * arithmetic check in with the tracker as the template runs, and the tracker fails the merge at the first check after
+ * the budget has run out. A template can still spin without checking in, e.g. in a range loop, so
+ * {@link BudgetedTemplateProcessor} also stops waiting for the merge at the deadline.
+ *
+ * Only the merging thread spends the budget; any thread may see whether it is exhausted.
+ */
+public class TemplateBudgetTracker {
+
+    private final TemplateExecutionBudget budget;
+
+    private final long deadlineNanos;
+
+    private int outputChars;
+
+    private int loopIterations;
+
+    private volatile String exhaustedReason;
+
+    TemplateBudgetTracker(final TemplateExecutionBudget budget) {
+        this.budget = budget;
+        this.deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(budget.getMaxDurationMillis());
+    }
+
+    /**
+     * @return true, if any limit of the budget was reached during the merge - even if the template went on to
+     * swallow the resulting error (e.g. with an attempt/recover block)
+     */
+    public boolean isExhausted() {
+        return exhaustedReason != null;
+    }
+
+    public String getExhaustedReason() {
+        return exhaustedReason;
+    }
+
+    long getRemainingNanos() {
+        return deadlineNanos - System.nanoTime();
+    }
+
+    String getTimeLimitExceededReason() {
+        return "time limit of " + budget.getMaxDurationMillis() + "ms exceeded";
+    }
+
+    void checkTime() throws TemplateBudgetExceededException {
+        checkNotExhausted();
+        if (System.nanoTime() - deadlineNanos > 0) {
+            exhaust(getTimeLimitExceededReason());
+        }
+    }
+
+    void onOutput(final int chars) throws TemplateBudgetExceededException {
+        checkTime();
+        outputChars += chars;
+        if (outputChars > budget.getMaxOutputChars()) {
+            exhaust("output limit of " + budget.getMaxOutputChars() + " characters exceeded");
+        }
+    }
+
+    void onLoopIteration() throws TemplateBudgetExceededException {
+        checkTime();
+        if (++loopIterations > budget.getMaxLoopIterations()) {
+            exhaust("loop iteration limit of " + budget.getMaxLoopIterations() + " exceeded");
+        }
+    }
+
+    private void checkNotExhausted() throws TemplateBudgetExceededException {
+        if (exhaustedReason != null) {
+            throw new TemplateBudgetExceededException(exhaustedReason);
+        }
+    }
+
+    void exhaust(final String reason) throws TemplateBudgetExceededException {
+        if (exhaustedReason == null) {
+            exhaustedReason = reason;
+        }
+        throw new TemplateBudgetExceededException(reason);
+    }
+
+}
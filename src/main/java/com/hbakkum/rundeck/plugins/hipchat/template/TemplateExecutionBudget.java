@@ -0,0 +1,46 @@
+package com.hbakkum.rundeck.plugins.hipchat.template;
+
+/**
+ * Limits on the resources a single notification message template merge may use.
+ */
+public class TemplateExecutionBudget {
+
+    public static final long DEFAULT_MAX_DURATION_MILLIS = 2000;
+    public static final int DEFAULT_MAX_OUTPUT_CHARS = 10000;
+    public static final int DEFAULT_MAX_LOOP_ITERATIONS = 10000;
+
+    public static final TemplateExecutionBudget DEFAULT = new TemplateExecutionBudget(
+            DEFAULT_MAX_DURATION_MILLIS, DEFAULT_MAX_OUTPUT_CHARS, DEFAULT_MAX_LOOP_ITERATIONS);
+
+    private final long maxDurationMillis;
+
+    private final int maxOutputChars;
+
+    private final int maxLoopIterations;
+
+    public TemplateExecutionBudget(final long maxDurationMillis, final int maxOutputChars, final int maxLoopIterations) {
+        this.maxDurationMillis = maxDurationMillis;
+        this.maxOutputChars = maxOutputChars;
+        this.maxLoopIterations = maxLoopIterations;
+    }
+
+    public long getMaxDurationMillis() {
+        return maxDurationMillis;
+    }
+
+    public int getMaxOutputChars() {
+        return maxOutputChars;
+    }
+
+    public int getMaxLoopIterations() {
+        return maxLoopIterations;
+    }
+
+    /**
+     * Starts spending this budget on a single template merge.
+     */
+    public TemplateBudgetTracker start() {
+        return new TemplateBudgetTracker(this);
+    }
+
+}
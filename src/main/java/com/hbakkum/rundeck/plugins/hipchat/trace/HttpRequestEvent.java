@@ -0,0 +1,43 @@
+package com.hbakkum.rundeck.plugins.hipchat.trace;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * JFR event for a single HTTP request made to the HipChat API, with connection establishment and time to first
+ * response byte split out.
+ */
+@Name("com.hbakkum.rundeck.hipchat.HttpRequest")
+@Label("HipChat HTTP Request")
+@Category({ "Rundeck", "HipChat" })
+@Description("An HTTP request made to the HipChat API")
+class HttpRequestEvent extends Event {
+
+    @Label("Execution Id")
+    String executionId;
+
+    @Label("Host")
+    String host;
+
+    @Label("Response Code")
+    int responseCode;
+
+    @Label("Connect Duration")
+    @Description("Time spent on DNS resolution, TCP and TLS handshakes and any proxy hop")
+    @Timespan(Timespan.NANOSECONDS)
+    long connectDuration;
+
+    @Label("First Byte Duration")
+    @Description("Time from the connection being established to the first byte of the response")
+    @Timespan(Timespan.NANOSECONDS)
+    long firstByteDuration;
+
+    @Label("Request Duration")
+    @Timespan(Timespan.NANOSECONDS)
+    long requestDuration;
+
+}
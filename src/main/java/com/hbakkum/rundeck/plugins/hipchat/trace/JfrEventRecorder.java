@@ -0,0 +1,47 @@
+package com.hbakkum.rundeck.plugins.hipchat.trace;
+
+/**
+ * Commits notification JFR events. Only loaded once {@link JfrSupport#isAvailable()} has confirmed that the JFR API
+ * is present.
+ */
+final class JfrEventRecorder {
+
+    static void commitPhaseEvent(
+            final String executionId,
+            final String trigger,
+            final String phase,
+            final String detail,
+            final long durationNanos) {
+        final NotificationPhaseEvent event = new NotificationPhaseEvent();
+        if (event.isEnabled()) {
+            event.executionId = executionId;
+            event.trigger = trigger;
+            event.phase = phase;
+            event.detail = detail;
+            event.phaseDuration = durationNanos;
+            event.commit();
+        }
+    }
+
+    static void commitHttpRequestEvent(
+            final String executionId,
+            final String host,
+            final int responseCode,
+            final long connectNanos,
+            final long firstByteNanos,
+            final long totalNanos) {
+        final HttpRequestEvent event = new HttpRequestEvent();
+        if (event.isEnabled()) {
+            event.executionId = executionId;
+            event.host = host;
+            event.responseCode = responseCode;
+            event.connectDuration = connectNanos;
+            event.firstByteDuration = firstByteNanos;
+            event.requestDuration = totalNanos;
+            event.commit();
+        }
+    }
+
+    private JfrEventRecorder() {}
+
+}
@@ -0,0 +1,28 @@
+package com.hbakkum.rundeck.plugins.hipchat.trace;
+
+/**
+ * Detects whether the running JVM ships the Java Flight Recorder event API. Rundeck may run on a JVM without it,
+ * in which case the JFR event classes in this package and {@link JfrEventRecorder} must never be loaded.
+ */
+final class JfrSupport {
+
+    private static final boolean AVAILABLE = detect();
+
+    static boolean isAvailable() {
+        return AVAILABLE;
+    }
+
+    private static boolean detect() {
+        try {
+            Class.forName("jdk.jfr.Event", false, JfrSupport.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException cnfEx) {
+            return false;
+        } catch (LinkageError linkageError) {
+            return false;
+        }
+    }
+
+    private JfrSupport() {}
+
+}
@@ -0,0 +1,35 @@
+package com.hbakkum.rundeck.plugins.hipchat.trace;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * JFR event for a single phase (e.g. template rendering, token resolution) of a HipChat notification.
+ */
+@Name("com.hbakkum.rundeck.hipchat.NotificationPhase")
+@Label("HipChat Notification Phase")
+@Category({ "Rundeck", "HipChat" })
+@Description("A phase of sending a Rundeck job notification to HipChat")
+class NotificationPhaseEvent extends Event {
+
+    @Label("Execution Id")
+    String executionId;
+
+    @Label("Trigger")
+    String trigger;
+
+    @Label("Phase")
+    String phase;
+
+    @Label("Detail")
+    String detail;
+
+    @Label("Phase Duration")
+    @Timespan(Timespan.NANOSECONDS)
+    long phaseDuration;
+
+}
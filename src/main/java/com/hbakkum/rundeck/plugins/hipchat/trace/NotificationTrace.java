@@ -0,0 +1,168 @@
+package com.hbakkum.rundeck.plugins.hipchat.trace;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records how long each phase of a single notification takes. Every phase is also emitted as a Java Flight Recorder
+ * event when the running JVM supports JFR.
+ *
+ * A trace is bound to the thread that began it, so code further down the call stack (e.g. the HTTP request executor)
+ * can contribute phases without the trace being threaded through every method signature.
+ */
+public class NotificationTrace {
+
+    private static final Logger LOG = LoggerFactory.getLogger(NotificationTrace.class);
+
+    public static final String PHASE_TEMPLATE_RENDER = "template-render";
+    public static final String PHASE_TOKEN_RESOLUTION = "token-resolution";
+    public static final String PHASE_HTTP_REQUEST = "http-request";
+
+    private static final ThreadLocal<NotificationTrace> CURRENT_TRACE = new ThreadLocal<NotificationTrace>();
+
+    private final String trigger;
+
+    private final String executionId;
+
+    private final long startNanos;
+
+    private final StringBuilder phaseBreakdown = new StringBuilder(128);
+
+    // total nanoseconds spent in each phase, in the order phases were first recorded
+    private final Map<String, Long> phaseNanos = new LinkedHashMap<String, Long>();
+
+    private NotificationTrace(final String trigger, final String executionId) {
+        this.trigger = trigger;
+        this.executionId = executionId;
+        this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * Begins tracing a notification on the calling thread.
+     */
+    public static NotificationTrace begin(final String trigger, final String executionId) {
+        final NotificationTrace trace = new NotificationTrace(trigger, executionId);
+        CURRENT_TRACE.set(trace);
+        return trace;
+    }
+
+    /**
+     * Returns the trace bound to the calling thread, or null if the calling thread isn't tracing a notification.
+     */
+    public static NotificationTrace current() {
+        return CURRENT_TRACE.get();
+    }
+
+    /**
+     * Binds this trace to the calling thread, e.g. when part of a notification is handed off to another thread.
+     */
+    public void attach() {
+        CURRENT_TRACE.set(this);
+    }
+
+    /**
+     * Unbinds any trace from the calling thread.
+     */
+    public static void detach() {
+        CURRENT_TRACE.remove();
+    }
+
+    /**
+     * Records a phase that began at the given {@link System#nanoTime()} and ends now.
+     */
+    public void recordPhase(final String phase, final String detail, final long phaseStartNanos) {
+        final long durationNanos = System.nanoTime() - phaseStartNanos;
+        appendPhase(phase, detail, durationNanos);
+
+        if (JfrSupport.isAvailable()) {
+            JfrEventRecorder.commitPhaseEvent(executionId, trigger, phase, detail, durationNanos);
+        }
+    }
+
+    /**
+     * Records an HTTP request against the trace bound to the calling thread, if any.
+     */
+    public static void recordHttpRequest(
+            final String host,
+            final int responseCode,
+            final long connectNanos,
+            final long firstByteNanos,
+            final long totalNanos) {
+        final NotificationTrace trace = CURRENT_TRACE.get();
+        if (trace != null) {
+            synchronized (trace) {
+                trace.addPhaseNanos(PHASE_HTTP_REQUEST, totalNanos);
+                trace.phaseBreakdown.append(trace.phaseBreakdown.length() == 0 ? "" : ", ")
+                        .append(PHASE_HTTP_REQUEST).append('[').append(host).append(" -> ").append(responseCode).append("]=")
+                        .append(toMillis(totalNanos)).append("ms")
+                        .append(" (connect=").append(toMillis(connectNanos)).append("ms")
+                        .append(", firstByte=").append(toMillis(firstByteNanos)).append("ms)");
+            }
+        }
+
+        if (JfrSupport.isAvailable()) {
+            JfrEventRecorder.commitHttpRequestEvent(
+                    trace == null ? null : trace.executionId, host, responseCode, connectNanos, firstByteNanos, totalNanos);
+        }
+    }
+
+    /**
+     * Ends this trace, unbinds it from the calling thread and logs a warning with the full phase breakdown if the
+     * notification took longer than the given threshold.
+     *
+     * @param slowThresholdMillis threshold above which a notification is considered slow, or a negative value to disable
+     */
+    public void end(final long slowThresholdMillis) {
+        if (CURRENT_TRACE.get() == this) {
+            CURRENT_TRACE.remove();
+        }
+
+        final long totalMillis = getElapsedMillis();
+        if (slowThresholdMillis >= 0 && totalMillis > slowThresholdMillis) {
+            LOG.warn("Slow HipChat notification for execution [{}] trigger [{}]: took {}ms (threshold {}ms) - {}",
+                    new Object[] { executionId, trigger, totalMillis, slowThresholdMillis, getPhaseBreakdown() });
+        }
+    }
+
+    public synchronized String getPhaseBreakdown() {
+        return phaseBreakdown.toString();
+    }
+
+    /**
+     * @return milliseconds spent in each phase so far, summed over repeated phases such as HTTP requests
+     */
+    public synchronized Map<String, Long> getPhaseMillis() {
+        final Map<String, Long> phaseMillis = new LinkedHashMap<String, Long>();
+        for (final Map.Entry<String, Long> phase : phaseNanos.entrySet()) {
+            phaseMillis.put(phase.getKey(), toMillis(phase.getValue()));
+        }
+        return phaseMillis;
+    }
+
+    public long getElapsedMillis() {
+        return toMillis(System.nanoTime() - startNanos);
+    }
+
+    private synchronized void appendPhase(final String phase, final String detail, final long durationNanos) {
+        addPhaseNanos(phase, durationNanos);
+        phaseBreakdown.append(phaseBreakdown.length() == 0 ? "" : ", ").append(phase);
+        if (detail != null) {
+            phaseBreakdown.append('[').append(detail).append(']');
+        }
+        phaseBreakdown.append('=').append(toMillis(durationNanos)).append("ms");
+    }
+
+    private void addPhaseNanos(final String phase, final long durationNanos) {
+        final Long previousNanos = phaseNanos.get(phase);
+        phaseNanos.put(phase, previousNanos == null ? durationNanos : previousNanos + durationNanos);
+    }
+
+    private static long toMillis(final long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+}
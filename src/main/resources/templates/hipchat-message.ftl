@@ -11,5 +11,11 @@ Execution of job
 <ul>
     <li>User: ${execution.context.job.username}</li>
     <li>ExecId: ${execution.context.job.execid}</li>
+<#if isSlowRun>
+    <li>Slow run: took longer than ${durationPercentile}% of recent runs</li>
+</#if>
 </ul>
+<#if trigger == "failure" && logExcerpt?has_content>
+<pre>${logExcerpt}</pre>
+</#if>
 <a href="${execution.href}">View Output</a>
\ No newline at end of file
@@ -2,12 +2,22 @@ package com.hbakkum.rundeck.plugins.hipchat;
 
 import org.testng.annotations.Test;
 
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotEquals;
+import static org.testng.Assert.assertSame;
 
 public class HipChatApiAuthTokenManagerUnitTest {
 
     private static final String MULTIPLE_ROOM_AUTH_TOKENS_AND_DEFAULT = "1111:atoken, 2222:anothertoken, defaulttoken";
 
+    private static final long ONE_DAY_MILLIS = 24L * 60 * 60 * 1000;
+
     private HipChatApiAuthTokenManager hipChatApiAuthTokenManager;
 
     @Test
@@ -31,4 +41,155 @@ public class HipChatApiAuthTokenManagerUnitTest {
         assertEquals(hipChatApiAuthTokenManager.getApiAuthTokenForRoom("1111"), "defaulttoken");
     }
 
+    @Test
+    public void testRoomTokenPoolIsUsedInTurn() {
+        hipChatApiAuthTokenManager = new HipChatApiAuthTokenManager("1111:pool-a|pool-b | pool-c, defaulttoken");
+
+        final Set<String> tokens = new HashSet<String>();
+        for (int i = 0; i < 3; i++) {
+            tokens.add(hipChatApiAuthTokenManager.getApiAuthTokenForRoom("1111"));
+        }
+
+        assertEquals(hipChatApiAuthTokenManager.getApiAuthTokenCountForRoom("1111"), 3);
+        assertEquals(tokens.size(), 3);
+        assertEquals(hipChatApiAuthTokenManager.getApiAuthTokenForRoom("3333"), "defaulttoken");
+    }
+
+    @Test
+    public void testDefaultTokenPoolIsUsedInTurn() {
+        hipChatApiAuthTokenManager = new HipChatApiAuthTokenManager("1111:atoken, default-pool-a|default-pool-b");
+
+        final String firstToken = hipChatApiAuthTokenManager.getApiAuthTokenForRoom("3333");
+        final String secondToken = hipChatApiAuthTokenManager.getApiAuthTokenForRoom("4444");
+
+        assertNotEquals(secondToken, firstToken);
+        assertEquals(hipChatApiAuthTokenManager.getApiAuthTokenCountForRoom("3333"), 2);
+    }
+
+    @Test
+    public void testRateLimitedTokenIsLeftOutOfPool() {
+        hipChatApiAuthTokenManager = new HipChatApiAuthTokenManager("1111:limited-a|limited-b|limited-c");
+        HipChatApiAuthTokenManager.reportApiAuthTokenRejected("limited-b", 429);
+
+        for (int i = 0; i < 10; i++) {
+            assertNotEquals(hipChatApiAuthTokenManager.getApiAuthTokenForRoom("1111"), "limited-b");
+        }
+    }
+
+    @Test
+    public void testInvalidTokenIsLeftOutOfPool() {
+        hipChatApiAuthTokenManager = new HipChatApiAuthTokenManager("1111:invalid-a|invalid-b");
+        HipChatApiAuthTokenManager.reportApiAuthTokenRejected("invalid-a", 401);
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals(hipChatApiAuthTokenManager.getApiAuthTokenForRoom("1111"), "invalid-b");
+        }
+    }
+
+    @Test
+    public void testTokensRejectedInThePastAreUsedInTurn() {
+        hipChatApiAuthTokenManager = new HipChatApiAuthTokenManager("1111:recovered-a|recovered-b|recovered-c");
+        final long nowMillis = System.currentTimeMillis();
+        HipChatApiAuthTokenManager.reportApiAuthTokenRejected("recovered-a", 401, nowMillis - 3 * ONE_DAY_MILLIS);
+        HipChatApiAuthTokenManager.reportApiAuthTokenRejected("recovered-b", 401, nowMillis - 2 * ONE_DAY_MILLIS);
+        HipChatApiAuthTokenManager.reportApiAuthTokenRejected("recovered-c", 401, nowMillis - ONE_DAY_MILLIS);
+
+        final Map<String, Integer> tokenCounts = countTokens("1111", 30);
+
+        assertEquals(tokenCounts.get("recovered-a"), Integer.valueOf(10));
+        assertEquals(tokenCounts.get("recovered-b"), Integer.valueOf(10));
+        assertEquals(tokenCounts.get("recovered-c"), Integer.valueOf(10));
+    }
+
+    @Test
+    public void testTurnOfLeftOutTokenIsSharedByUsableTokens() {
+        hipChatApiAuthTokenManager = new HipChatApiAuthTokenManager("1111:sharing-a|sharing-b|sharing-c");
+        HipChatApiAuthTokenManager.reportApiAuthTokenRejected("sharing-b", 429);
+
+        final Map<String, Integer> tokenCounts = countTokens("1111", 30);
+
+        assertEquals(tokenCounts.get("sharing-a"), Integer.valueOf(15));
+        assertEquals(tokenCounts.get("sharing-c"), Integer.valueOf(15));
+        assertFalse(tokenCounts.containsKey("sharing-b"));
+    }
+
+    @Test
+    public void testTokenUsableSoonestIsReturnedWhenAllTokensAreLeftOut() {
+        hipChatApiAuthTokenManager = new HipChatApiAuthTokenManager("1111:excluded-a|excluded-b");
+        HipChatApiAuthTokenManager.reportApiAuthTokenRejected("excluded-a", 401);
+        HipChatApiAuthTokenManager.reportApiAuthTokenRejected("excluded-b", 429);
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals(hipChatApiAuthTokenManager.getApiAuthTokenForRoom("1111"), "excluded-b");
+        }
+    }
+
+    @Test
+    public void testRoomWithoutTokensHasNoTokenCount() {
+        hipChatApiAuthTokenManager = new HipChatApiAuthTokenManager("1111:atoken");
+
+        assertEquals(hipChatApiAuthTokenManager.getApiAuthTokenCountForRoom("3333"), 0);
+        assertEquals(hipChatApiAuthTokenManager.getApiAuthTokenForRoom("3333"), null);
+    }
+
+    @Test
+    public void testSameManagerIsReturnedForSameTokenData() {
+        assertSame(HipChatApiAuthTokenManager.forApiAuthTokenData("1111:same-a|same-b"),
+                HipChatApiAuthTokenManager.forApiAuthTokenData("1111:same-a|same-b"));
+    }
+
+    @Test
+    public void testPatternTokenIsReturnedForMatchingRoom() {
+        hipChatApiAuthTokenManager = new HipChatApiAuthTokenManager("ops-*:opstoken, defaulttoken");
+
+        assertEquals(hipChatApiAuthTokenManager.getApiAuthTokenForRoom("ops-web"), "opstoken");
+        assertEquals(hipChatApiAuthTokenManager.getApiAuthTokenForRoom("ops-"), "opstoken");
+        assertEquals(hipChatApiAuthTokenManager.getApiAuthTokenForRoom("ops"), "defaulttoken");
+        assertEquals(hipChatApiAuthTokenManager.getApiAuthTokenForRoom("dev-web"), "defaulttoken");
+    }
+
+    @Test
+    public void testLongestMatchingPatternWins() {
+        hipChatApiAuthTokenManager = new HipChatApiAuthTokenManager("*:anytoken, ops-*:opstoken, ops-db-*:dbtoken");
+
+        assertEquals(hipChatApiAuthTokenManager.getApiAuthTokenForRoom("ops-db-primary"), "dbtoken");
+        assertEquals(hipChatApiAuthTokenManager.getApiAuthTokenForRoom("ops-dbx"), "opstoken");
+        assertEquals(hipChatApiAuthTokenManager.getApiAuthTokenForRoom("dev-web"), "anytoken");
+    }
+
+    @Test
+    public void testRoomTokenWinsOverPatternToken() {
+        hipChatApiAuthTokenManager = new HipChatApiAuthTokenManager("ops-*:opstoken, ops-web:webtoken");
+
+        assertEquals(hipChatApiAuthTokenManager.getApiAuthTokenForRoom("ops-web"), "webtoken");
+        assertEquals(hipChatApiAuthTokenManager.getApiAuthTokenForRoom("ops-db"), "opstoken");
+    }
+
+    @Test
+    public void testStarWithinRoomNameIsLiteral() {
+        hipChatApiAuthTokenManager = new HipChatApiAuthTokenManager("ops*web:literaltoken, defaulttoken");
+
+        assertEquals(hipChatApiAuthTokenManager.getApiAuthTokenForRoom("ops*web"), "literaltoken");
+        assertEquals(hipChatApiAuthTokenManager.getApiAuthTokenForRoom("ops-web"), "defaulttoken");
+    }
+
+    @Test
+    public void testPatternTokenPoolIsUsedInTurn() {
+        hipChatApiAuthTokenManager = new HipChatApiAuthTokenManager("ops-*:ops-a|ops-b");
+
+        assertEquals(hipChatApiAuthTokenManager.getApiAuthTokenCountForRoom("ops-web"), 2);
+        assertNotEquals(hipChatApiAuthTokenManager.getApiAuthTokenForRoom("ops-web"),
+                hipChatApiAuthTokenManager.getApiAuthTokenForRoom("ops-db"));
+    }
+
+    private Map<String, Integer> countTokens(final String room, final int selections) {
+        final Map<String, Integer> tokenCounts = new HashMap<String, Integer>();
+        for (int i = 0; i < selections; i++) {
+            final String token = hipChatApiAuthTokenManager.getApiAuthTokenForRoom(room);
+            final Integer count = tokenCounts.get(token);
+            tokenCounts.put(token, count == null ? 1 : count + 1);
+        }
+        return tokenCounts;
+    }
+
 }
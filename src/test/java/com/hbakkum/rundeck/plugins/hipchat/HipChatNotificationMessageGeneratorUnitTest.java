@@ -1,12 +1,32 @@
 package com.hbakkum.rundeck.plugins.hipchat;
 
+import com.hbakkum.rundeck.plugins.hipchat.logtail.ExecutionLogExcerpt;
+import com.hbakkum.rundeck.plugins.hipchat.logtail.ReverseLogTailReader;
+import com.hbakkum.rundeck.plugins.hipchat.template.TemplateExecutionBudget;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
 
 /**
  * @author Hayden Bakkum
@@ -30,6 +50,16 @@ public class HipChatNotificationMessageGeneratorUnitTest {
         EXECUTION_DATA.put("href", "http://rundeck/jobs/my_job/output");
     }
 
+    private static final String DEFAULT_TEMPLATE_START_MESSAGE = "Execution of job\n" +
+            "<a href=\"http://rundeck/jobs/my_job\">\n" +
+            "job_group/job_name</a>\n" +
+            "    <b>started</b>\n" +
+            "<ul>\n" +
+            "    <li>User: hbakkum</li>\n" +
+            "    <li>ExecId: 1</li>\n" +
+            "</ul>\n" +
+            "<a href=\"http://rundeck/jobs/my_job/output\">View Output</a>";
+
     private HipChatNotificationMessageGenerator messageGenerator;
 
     @BeforeMethod
@@ -64,5 +94,188 @@ public class HipChatNotificationMessageGeneratorUnitTest {
         assertEquals(actualMessage, expectedMessage);
     }
 
+    @Test
+    public void testTemplateIsLoadedFromUrlWhenTemplateLocationIsUrl() throws IOException, InterruptedException {
+        final HttpServer server = startTemplateServer("${execution.job.name} started remotely");
+        try {
+            final String templateLocation = "http://127.0.0.1:" + server.getAddress().getPort() + "/hipchat/message.ftl";
+
+            // the template is fetched in the background, the default template is used until it has been
+            assertEquals(messageGenerator.generateMessage(templateLocation, "hipchat-message.ftl", "start", EXECUTION_DATA, null),
+                    DEFAULT_TEMPLATE_START_MESSAGE);
+
+            assertEquals(awaitRemoteTemplate(templateLocation), "job_name started remotely");
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testRemoteTemplateCannotInstantiateArbitraryClasses() throws IOException, InterruptedException {
+        final HttpServer server = startTemplateServer("<#assign ex = \"freemarker.template.utility.Execute\"?new()>${ex(\"id\")}");
+        try {
+            final String templateLocation = "http://127.0.0.1:" + server.getAddress().getPort() + "/hipchat/execute.ftl";
+
+            awaitRemoteTemplate(templateLocation);
+            fail("Expected the template to be refused Execute");
+        } catch (HipChatNotificationPluginException expected) {
+            assertTrue(expected.getMessage().contains("Execute"), expected.getMessage());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testDefaultTemplateIsUsedWhenTemplateExceedsLoopIterationLimit() {
+        final String templateLocation = this.getClass().getResource("/templates/hipchat-message-runaway-test.ftl").getFile();
+        final TemplateExecutionBudget budget = new TemplateExecutionBudget(10000, 100000, 1000);
+
+        final String actualMessage = messageGenerator.generateMessage(
+                new NotificationMessageRequest(templateLocation, "hipchat-message.ftl", "start", createExecutionDataWithNodes(100), null).withBudget(budget));
+
+        assertEquals(actualMessage, DEFAULT_TEMPLATE_START_MESSAGE);
+    }
+
+    @Test
+    public void testDefaultTemplateIsUsedWhenTemplateExceedsOutputLimit() {
+        final String templateLocation = this.getClass().getResource("/templates/hipchat-message-runaway-test.ftl").getFile();
+        final TemplateExecutionBudget budget = new TemplateExecutionBudget(10000, 1000, 100000);
+
+        final String actualMessage = messageGenerator.generateMessage(
+                new NotificationMessageRequest(templateLocation, "hipchat-message.ftl", "start", createExecutionDataWithNodes(100), null).withBudget(budget));
+
+        assertEquals(actualMessage, DEFAULT_TEMPLATE_START_MESSAGE);
+    }
+
+    @Test
+    public void testDefaultTemplateIsUsedWhenRangeLoopExceedsTimeLimit() {
+        final String templateLocation = this.getClass().getResource("/templates/hipchat-message-range-loop-test.ftl").getFile();
+        final TemplateExecutionBudget budget = new TemplateExecutionBudget(200, 100000, 100000);
+
+        final long startMillis = System.currentTimeMillis();
+        final String actualMessage = messageGenerator.generateMessage(
+                new NotificationMessageRequest(templateLocation, "hipchat-message.ftl", "start", EXECUTION_DATA, null).withBudget(budget));
+
+        assertEquals(actualMessage, DEFAULT_TEMPLATE_START_MESSAGE);
+        // the loop never touches the data model or output, so the merge is abandoned rather than failed
+        assertTrue(System.currentTimeMillis() - startMillis < 2000);
+    }
+
+    @Test
+    public void testDefaultTemplateIsUsedWhenRecursionExceedsTimeLimit() {
+        final String templateLocation = this.getClass().getResource("/templates/hipchat-message-recursion-test.ftl").getFile();
+        final TemplateExecutionBudget budget = new TemplateExecutionBudget(200, 100000, 100000);
+
+        final long startMillis = System.currentTimeMillis();
+        final String actualMessage = messageGenerator.generateMessage(
+                new NotificationMessageRequest(templateLocation, "hipchat-message.ftl", "start", EXECUTION_DATA, null).withBudget(budget));
+
+        assertEquals(actualMessage, DEFAULT_TEMPLATE_START_MESSAGE);
+        assertTrue(System.currentTimeMillis() - startMillis < 2000);
+    }
+
+    @Test
+    public void testFallbackToDefaultTemplateIsNotLimitedByCustomTemplateBudget() {
+        final String templateLocation = this.getClass().getResource("/templates/hipchat-message-runaway-test.ftl").getFile();
+        // far too little output for the default template too
+        final TemplateExecutionBudget budget = new TemplateExecutionBudget(10000, 10, 100000);
+
+        final String actualMessage = messageGenerator.generateMessage(
+                new NotificationMessageRequest(templateLocation, "hipchat-message.ftl", "start", createExecutionDataWithNodes(100), null).withBudget(budget));
+
+        assertEquals(actualMessage, DEFAULT_TEMPLATE_START_MESSAGE);
+    }
+
+    @Test
+    public void testTemplateWithinBudgetIsUsed() {
+        final String templateLocation = this.getClass().getResource("/templates/hipchat-message-runaway-test.ftl").getFile();
+
+        final String actualMessage = messageGenerator.generateMessage(templateLocation, "hipchat-message.ftl", "start", createExecutionDataWithNodes(2), null);
+
+        assertEquals(actualMessage, "node0-node0 node0-node1 node1-node0 node1-node1 \n");
+    }
+
+    @Test(expectedExceptions = HipChatNotificationPluginException.class)
+    public void testHipChatExceptionThrownWhenDefaultTemplateExceedsBudget() {
+        final TemplateExecutionBudget budget = new TemplateExecutionBudget(10000, 10, 100000);
+
+        messageGenerator.generateMessage(new NotificationMessageRequest(null, "hipchat-message.ftl", "start", EXECUTION_DATA, null).withBudget(budget));
+    }
+
+    @Test
+    public void testLogExcerptIsIncludedInFailureMessage() throws Exception {
+        final ReverseLogTailReader tailReader = mock(ReverseLogTailReader.class);
+        when(tailReader.readLastLines(any(File.class))).thenReturn("Step 2 failed: exit code <1>");
+        final File logFile = File.createTempFile("hipchat-execution", ".log");
+        logFile.deleteOnExit();
+
+        final String actualMessage = messageGenerator.generateMessage(new NotificationMessageRequest(null, "hipchat-message.ftl", "failure", EXECUTION_DATA, null)
+                .withLogExcerpt(new ExecutionLogExcerpt(logFile, tailReader)));
+
+        assertTrue(actualMessage.contains("<pre>Step 2 failed: exit code &lt;1&gt;</pre>"), actualMessage);
+    }
+
+    @Test
+    public void testLogIsNotReadWhenTemplateDoesNotUseExcerpt() throws Exception {
+        final ReverseLogTailReader tailReader = mock(ReverseLogTailReader.class);
+        final File logFile = File.createTempFile("hipchat-execution", ".log");
+        logFile.deleteOnExit();
+
+        final String actualMessage = messageGenerator.generateMessage(new NotificationMessageRequest(null, "hipchat-message.ftl", "start", EXECUTION_DATA, null)
+                .withLogExcerpt(new ExecutionLogExcerpt(logFile, tailReader)));
+
+        assertEquals(actualMessage, DEFAULT_TEMPLATE_START_MESSAGE);
+        verify(tailReader, never()).readLastLines(any(File.class));
+    }
+
+    @Test
+    public void testFailedNodesCanBeSummarizedInTemplate() {
+        final String templateLocation = this.getClass().getResource("/templates/hipchat-message-failed-nodes-test.ftl").getFile();
+        final Map<String, Object> executionData = new HashMap<String, Object>(EXECUTION_DATA);
+        executionData.put("failedNodeList", Arrays.asList("web001", "web002", "web003", "db-eu-alpha", "db-eu-beta"));
+
+        final String actualMessage = messageGenerator.generateMessage(templateLocation, "hipchat-message.ftl", "failure", executionData, null);
+
+        assertEquals(actualMessage, "Failed on web[001-003], db-eu-*: 2");
+    }
+
+    private static Map<String, Object> createExecutionDataWithNodes(final int nodeCount) {
+        final List<String> nodes = new ArrayList<String>();
+        for (int i = 0; i < nodeCount; i++) {
+            nodes.add("node" + i);
+        }
+
+        final Map<String, Object> executionData = new HashMap<String, Object>(EXECUTION_DATA);
+        executionData.put("nodes", nodes);
+        return executionData;
+    }
+
+    private static HttpServer startTemplateServer(final String template) throws IOException {
+        final HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                final byte[] body = template.getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, body.length);
+                exchange.getResponseBody().write(body);
+                exchange.close();
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    /**
+     * @return the first message generated from the remote template rather than the default template
+     */
+    private String awaitRemoteTemplate(final String templateLocation) throws InterruptedException {
+        String message = DEFAULT_TEMPLATE_START_MESSAGE;
+        final long deadlineMillis = System.currentTimeMillis() + 10000;
+        while (DEFAULT_TEMPLATE_START_MESSAGE.equals(message) && System.currentTimeMillis() < deadlineMillis) {
+            Thread.sleep(10);
+            message = messageGenerator.generateMessage(templateLocation, "hipchat-message.ftl", "start", EXECUTION_DATA, null);
+        }
+        return message;
+    }
 
 }
@@ -0,0 +1,211 @@
+package com.hbakkum.rundeck.plugins.hipchat;
+
+import com.hbakkum.rundeck.plugins.hipchat.delivery.StripedDeliveryEngine;
+import com.hbakkum.rundeck.plugins.hipchat.http.HttpRequestExecutor;
+import com.hbakkum.rundeck.plugins.hipchat.http.HttpResponse;
+import com.hbakkum.rundeck.plugins.hipchat.roomnotifier.HipChatRoomNotifierFactory;
+import com.hbakkum.rundeck.plugins.hipchat.template.BudgetedTemplateProcessor;
+import org.testng.SkipException;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Guards the heap allocated by a single notification against regressions, e.g. a FreeMarker configuration or JSON
+ * object mapper being created per call again. Allocation is summed over the notifying thread, which renders the
+ * message, the template merge workers, which render custom templates, and the delivery engine's workers, which send
+ * it; other threads in the JVM are left out as noise.
+ */
+public class HipChatNotificationPluginAllocationUnitTest {
+
+    private static final int WARM_UP_NOTIFICATIONS = 200;
+    private static final int MEASURED_NOTIFICATIONS = 50;
+
+    // per notification, about 25% over what is measured on a warmed up JVM
+    private static final long API_VERSION_1_SINGLE_ROOM_ALLOCATION_BUDGET_BYTES = 15 * 1024;
+    private static final long API_VERSION_1_MULTI_ROOM_ALLOCATION_BUDGET_BYTES = 37 * 1024;
+    private static final long API_VERSION_1_CUSTOM_TEMPLATE_ALLOCATION_BUDGET_BYTES = 14 * 1024;
+    private static final long API_VERSION_2_SINGLE_ROOM_ALLOCATION_BUDGET_BYTES = 11 * 1024;
+    private static final long API_VERSION_2_MULTI_ROOM_ALLOCATION_BUDGET_BYTES = 24 * 1024;
+    private static final long API_VERSION_2_CUSTOM_TEMPLATE_ALLOCATION_BUDGET_BYTES = 14 * 1024;
+
+    // abandoned merges of runaway templates from other tests would be counted against the notifications measured here
+    private static final long RUNAWAY_MERGES_WAIT_MILLIS = 60000;
+
+    private static final Map<String, Object> EXECUTION_DATA = new HashMap<String, Object>();
+    static {
+        final Map<String, String> job = new HashMap<String, String>();
+        job.put("href", "http://rundeck/jobs/my_job");
+        job.put("group", "job_group");
+        job.put("name", "job_name");
+        job.put("username", "hbakkum");
+        job.put("execid", "1");
+
+        final Map<String, Object> context = new HashMap<String, Object>();
+        context.put("job", job);
+
+        EXECUTION_DATA.put("id", "1");
+        EXECUTION_DATA.put("job", job);
+        EXECUTION_DATA.put("context", context);
+        EXECUTION_DATA.put("href", "http://rundeck/jobs/my_job/output");
+    }
+
+    private com.sun.management.ThreadMXBean threadMXBean;
+
+    private HttpRequestExecutor previousHttpRequestExecutor;
+
+    @BeforeClass
+    public void setUp() throws InterruptedException {
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+            throw new SkipException("Thread allocation measurement is not supported by this JVM.");
+        }
+        threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threadMXBean.isThreadAllocatedMemorySupported()) {
+            throw new SkipException("Thread allocation measurement is not supported by this JVM.");
+        }
+        threadMXBean.setThreadAllocatedMemoryEnabled(true);
+
+        final long runawayMergesDeadlineMillis = System.currentTimeMillis() + RUNAWAY_MERGES_WAIT_MILLIS;
+        while (BudgetedTemplateProcessor.INSTANCE.getRunawayMergeCount() > 0) {
+            if (System.currentTimeMillis() > runawayMergesDeadlineMillis) {
+                throw new SkipException("Abandoned template merges are still running, which would skew the measurement.");
+            }
+            Thread.sleep(50);
+        }
+
+        previousHttpRequestExecutor = HipChatRoomNotifierFactory.getHttpRequestExecutor().getDelegate();
+        HipChatRoomNotifierFactory.setHttpRequestExecutor(new StubHttpRequestExecutor());
+    }
+
+    @AfterClass(alwaysRun = true)
+    public void tearDown() {
+        if (previousHttpRequestExecutor != null) {
+            HipChatRoomNotifierFactory.setHttpRequestExecutor(previousHttpRequestExecutor);
+        }
+    }
+
+    @Test
+    public void testApiVersion1SingleRoomNotificationStaysWithinAllocationBudget() throws Exception {
+        assertWithinAllocationBudget(createPlugin("v1", "http://hipchat-allocation-v1-single", "1111"), API_VERSION_1_SINGLE_ROOM_ALLOCATION_BUDGET_BYTES);
+    }
+
+    @Test
+    public void testApiVersion1MultiRoomNotificationStaysWithinAllocationBudget() throws Exception {
+        assertWithinAllocationBudget(createPlugin("v1", "http://hipchat-allocation-v1-multi", "1111,2222,3333"), API_VERSION_1_MULTI_ROOM_ALLOCATION_BUDGET_BYTES);
+    }
+
+    @Test
+    public void testApiVersion2SingleRoomNotificationStaysWithinAllocationBudget() throws Exception {
+        assertWithinAllocationBudget(createPlugin("v2", "http://hipchat-allocation-v2-single", "1111"), API_VERSION_2_SINGLE_ROOM_ALLOCATION_BUDGET_BYTES);
+    }
+
+    @Test
+    public void testApiVersion2MultiRoomNotificationStaysWithinAllocationBudget() throws Exception {
+        assertWithinAllocationBudget(createPlugin("v2", "http://hipchat-allocation-v2-multi", "1111,2222,3333"), API_VERSION_2_MULTI_ROOM_ALLOCATION_BUDGET_BYTES);
+    }
+
+    @Test
+    public void testApiVersion1CustomTemplateNotificationStaysWithinAllocationBudget() throws Exception {
+        final HipChatNotificationPlugin plugin = createPlugin("v1", "http://hipchat-allocation-v1-custom", "1111");
+        setProperty(plugin, "messageTemplateLocation", getCustomTemplateLocation());
+        assertWithinAllocationBudget(plugin, API_VERSION_1_CUSTOM_TEMPLATE_ALLOCATION_BUDGET_BYTES);
+    }
+
+    @Test
+    public void testApiVersion2CustomTemplateNotificationStaysWithinAllocationBudget() throws Exception {
+        final HipChatNotificationPlugin plugin = createPlugin("v2", "http://hipchat-allocation-v2-custom", "1111");
+        setProperty(plugin, "messageTemplateLocation", getCustomTemplateLocation());
+        assertWithinAllocationBudget(plugin, API_VERSION_2_CUSTOM_TEMPLATE_ALLOCATION_BUDGET_BYTES);
+    }
+
+    private void assertWithinAllocationBudget(final HipChatNotificationPlugin plugin, final long budgetBytes) {
+        for (int i = 0; i < WARM_UP_NOTIFICATIONS; i++) {
+            assertTrue(plugin.postNotification("success", EXECUTION_DATA, null));
+        }
+
+        final Map<Long, Long> allocatedBytesBefore = getNotificationThreadAllocatedBytes();
+        for (int i = 0; i < MEASURED_NOTIFICATIONS; i++) {
+            plugin.postNotification("success", EXECUTION_DATA, null);
+        }
+        final Map<Long, Long> allocatedBytesAfter = getNotificationThreadAllocatedBytes();
+
+        long allocatedBytes = 0;
+        for (final Map.Entry<Long, Long> threadAllocatedBytes : allocatedBytesAfter.entrySet()) {
+            // workers started during the measurement allocated everything they report within it
+            final Long threadAllocatedBytesBefore = allocatedBytesBefore.get(threadAllocatedBytes.getKey());
+            allocatedBytes += threadAllocatedBytes.getValue() - (threadAllocatedBytesBefore == null ? 0 : threadAllocatedBytesBefore);
+        }
+        final long allocatedBytesPerNotification = allocatedBytes / MEASURED_NOTIFICATIONS;
+
+        assertTrue(allocatedBytesPerNotification <= budgetBytes,
+                "Notification allocated " + allocatedBytesPerNotification + " bytes, over its budget of " + budgetBytes + " bytes.");
+    }
+
+    /**
+     * @return bytes allocated so far by the current thread, each template merge worker and each delivery worker, keyed
+     *         by thread ID
+     */
+    private Map<Long, Long> getNotificationThreadAllocatedBytes() {
+        final Map<Long, Long> allocatedBytes = new HashMap<Long, Long>();
+        allocatedBytes.put(Thread.currentThread().getId(), threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId()));
+        for (final Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith(StripedDeliveryEngine.WORKER_THREAD_NAME_PREFIX)
+                    || thread.getName().startsWith(BudgetedTemplateProcessor.WORKER_THREAD_NAME_PREFIX)) {
+                final long threadAllocatedBytes = threadMXBean.getThreadAllocatedBytes(thread.getId());
+                if (threadAllocatedBytes > 0) {
+                    allocatedBytes.put(thread.getId(), threadAllocatedBytes);
+                }
+            }
+        }
+        return allocatedBytes;
+    }
+
+    private String getCustomTemplateLocation() {
+        return this.getClass().getResource("/templates/hipchat-message-override-test.ftl").getFile();
+    }
+
+    private static HipChatNotificationPlugin createPlugin(final String apiVersion, final String baseUrl, final String rooms) throws Exception {
+        final HipChatNotificationPlugin plugin = new HipChatNotificationPlugin();
+        setProperty(plugin, "room", rooms);
+        setProperty(plugin, "hipchatServerBaseUrl", baseUrl);
+        setProperty(plugin, "apiVersion", apiVersion);
+        setProperty(plugin, "apiAuthToken", "token");
+        return plugin;
+    }
+
+    // plugin properties are injected by Rundeck in the same way
+    private static void setProperty(final HipChatNotificationPlugin plugin, final String name, final Object value) throws Exception {
+        final Field field = HipChatNotificationPlugin.class.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(plugin, value);
+    }
+
+    private static class StubHttpRequestExecutor implements HttpRequestExecutor {
+
+        private static final HttpResponse API_VERSION_1_RESPONSE = new HttpResponse(200, HttpResponse.CONTENT_TYPE__JSON, "{\"status\": \"sent\"}");
+        private static final HttpResponse API_VERSION_2_RESPONSE = new HttpResponse(HttpResponse.STATUS__NO_CONTENT, null, null);
+
+        @Override
+        public HttpResponse execute(final String url) {
+            return API_VERSION_1_RESPONSE;
+        }
+
+        @Override
+        public HttpResponse execute(final String url, final String jsonRequestBody) {
+            return API_VERSION_2_RESPONSE;
+        }
+
+        @Override
+        public void setProxy(final String proxyHost, final int proxyPort) {
+        }
+
+    }
+
+}
@@ -0,0 +1,128 @@
+package com.hbakkum.rundeck.plugins.hipchat;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static com.hbakkum.rundeck.plugins.hipchat.replay.CommandLineOptions.getOption;
+import static com.hbakkum.rundeck.plugins.hipchat.replay.CommandLineOptions.parseOptions;
+
+/**
+ * Compares the cost of finding a room's API auth tokens by exact room name in a {@link HashMap}, which is how rooms
+ * without patterns are looked up, with matching the room against prefix patterns in a {@link RoomPatternTrie} and
+ * with scanning the patterns one by one. Run from the test classpath:
+ *
+ * java -cp target/classes:target/test-classes:... com.hbakkum.rundeck.plugins.hipchat.RoomPatternTrieBenchmark
+ *      [--rooms 1024] [--pattern-counts 10,100,1000] [--iterations 10] [--warmup-iterations 5]
+ *
+ * Prints nanoseconds per lookup for each number of patterns, from the fastest iteration.
+ */
+public class RoomPatternTrieBenchmark {
+
+    private static final int LOOKUPS_PER_ITERATION = 1000000;
+
+    private final String[] rooms;
+
+    private final Map<String, String> exactRooms = new HashMap<String, String>();
+
+    private final RoomPatternTrie<String> roomPatternTrie = new RoomPatternTrie<String>();
+
+    private final List<String> roomPatterns = new ArrayList<String>();
+
+    /**
+     * Rooms are named "team-N-room-M", with one pattern "team-N-*" per team.
+     */
+    RoomPatternTrieBenchmark(final int roomCount, final int patternCount, final long seed) {
+        final Random random = new Random(seed);
+        rooms = new String[roomCount];
+        for (int i = 0; i < roomCount; i++) {
+            rooms[i] = "team-" + random.nextInt(patternCount) + "-room-" + i;
+            exactRooms.put(rooms[i], "token-" + i);
+        }
+        for (int i = 0; i < patternCount; i++) {
+            final String roomPattern = "team-" + i + "-*";
+            roomPatternTrie.put(roomPattern, "token-" + i);
+            roomPatterns.add(roomPattern.substring(0, roomPattern.length() - 1));
+        }
+        roomPatternTrie.compile();
+    }
+
+    public static void main(final String[] args) {
+        final Map<String, String> options = parseOptions(args);
+        final int roomCount = Integer.parseInt(getOption(options, "rooms", "1024"));
+        final int iterations = Integer.parseInt(getOption(options, "iterations", "10"));
+        final int warmupIterations = Integer.parseInt(getOption(options, "warmup-iterations", "5"));
+
+        System.out.println(String.format("%10s %12s %12s %12s", "patterns", "hash map", "trie", "linear scan"));
+        for (final String patternCount : getOption(options, "pattern-counts", "10,100,1000").split(",")) {
+            final RoomPatternTrieBenchmark benchmark = new RoomPatternTrieBenchmark(roomCount, Integer.parseInt(patternCount.trim()), 42);
+            System.out.println(String.format("%10s %12.1f %12.1f %12.1f", patternCount.trim(),
+                    benchmark.measure(Lookup.HASH_MAP, warmupIterations, iterations),
+                    benchmark.measure(Lookup.TRIE, warmupIterations, iterations),
+                    benchmark.measure(Lookup.LINEAR_SCAN, warmupIterations, iterations)));
+        }
+    }
+
+    /**
+     * @return nanoseconds per lookup in the fastest measured iteration
+     */
+    double measure(final Lookup lookup, final int warmupIterations, final int iterations) {
+        long bestNanos = Long.MAX_VALUE;
+        int matched = 0;
+        for (int i = 0; i < warmupIterations + iterations; i++) {
+            final long startNanos = System.nanoTime();
+            matched += lookup(lookup, LOOKUPS_PER_ITERATION);
+            final long elapsedNanos = System.nanoTime() - startNanos;
+            if (i >= warmupIterations) {
+                bestNanos = Math.min(bestNanos, elapsedNanos);
+            }
+        }
+        if (matched == 0) {
+            throw new IllegalStateException("No room matched.");
+        }
+        return (double) bestNanos / LOOKUPS_PER_ITERATION;
+    }
+
+    /**
+     * @return number of lookups that found a token, so the lookups can't be optimised away
+     */
+    int lookup(final Lookup lookup, final int count) {
+        int matched = 0;
+        for (int i = 0; i < count; i++) {
+            final String room = rooms[i % rooms.length];
+            final String token;
+            switch (lookup) {
+                case HASH_MAP:
+                    token = exactRooms.get(room);
+                    break;
+                case TRIE:
+                    token = roomPatternTrie.match(room);
+                    break;
+                default:
+                    token = scanRoomPatterns(room);
+                    break;
+            }
+            if (token != null) {
+                matched++;
+            }
+        }
+        return matched;
+    }
+
+    private String scanRoomPatterns(final String room) {
+        String longestPrefix = null;
+        for (final String prefix : roomPatterns) {
+            if (room.startsWith(prefix) && (longestPrefix == null || prefix.length() > longestPrefix.length())) {
+                longestPrefix = prefix;
+            }
+        }
+        return longestPrefix;
+    }
+
+    enum Lookup {
+        HASH_MAP, TRIE, LINEAR_SCAN
+    }
+
+}
@@ -0,0 +1,76 @@
+package com.hbakkum.rundeck.plugins.hipchat;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class RoomPatternTrieUnitTest {
+
+    @Test
+    public void testOnlyNamesEndingInStarArePrefixPatterns() {
+        assertTrue(RoomPatternTrie.isPrefixPattern("ops-*"));
+        assertTrue(RoomPatternTrie.isPrefixPattern("*"));
+        assertFalse(RoomPatternTrie.isPrefixPattern("ops*web"));
+        assertFalse(RoomPatternTrie.isPrefixPattern("1111"));
+    }
+
+    @Test
+    public void testLongestMatchingPrefixIsReturned() {
+        final RoomPatternTrie<String> trie = new RoomPatternTrie<String>();
+        trie.put("a*", "a");
+        trie.put("abc*", "abc");
+        trie.put("b*", "b");
+        trie.compile();
+
+        assertEquals(trie.match("a"), "a");
+        assertEquals(trie.match("ab"), "a");
+        assertEquals(trie.match("abc"), "abc");
+        assertEquals(trie.match("abcd"), "abc");
+        assertEquals(trie.match("bcd"), "b");
+        assertNull(trie.match("c"));
+        assertNull(trie.match(""));
+    }
+
+    @Test
+    public void testStarAloneMatchesEveryRoom() {
+        final RoomPatternTrie<String> trie = new RoomPatternTrie<String>();
+        trie.put("*", "any");
+        trie.put("ops-*", "ops");
+        trie.compile();
+
+        assertEquals(trie.match(""), "any");
+        assertEquals(trie.match("dev"), "any");
+        assertEquals(trie.match("ops-web"), "ops");
+    }
+
+    @Test
+    public void testLaterPatternReplacesEarlierOne() {
+        final RoomPatternTrie<String> trie = new RoomPatternTrie<String>();
+        assertTrue(trie.isEmpty());
+        trie.put("ops-*", "first");
+        trie.put("ops-*", "second");
+        trie.compile();
+
+        assertFalse(trie.isEmpty());
+        assertEquals(trie.match("ops-web"), "second");
+    }
+
+    @Test
+    public void testManyPatternsAreMatchedAsWellAsFew() {
+        final RoomPatternTrie<Integer> trie = new RoomPatternTrie<Integer>();
+        for (int i = 0; i < 1000; i++) {
+            trie.put("team-" + i + "-*", i);
+        }
+        trie.compile();
+
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(trie.match("team-" + i + "-alerts"), Integer.valueOf(i));
+        }
+        assertNull(trie.match("team-1000-alerts"));
+        assertNull(trie.match("team-1"));
+    }
+
+}
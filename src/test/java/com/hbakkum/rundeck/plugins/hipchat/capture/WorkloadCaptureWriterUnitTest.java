@@ -0,0 +1,110 @@
+package com.hbakkum.rundeck.plugins.hipchat.capture;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class WorkloadCaptureWriterUnitTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private File captureDirectory;
+
+    private WorkloadCaptureWriter captureWriter;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        captureDirectory = File.createTempFile("hipchat-capture", "");
+        captureDirectory.delete();
+        captureDirectory.mkdir();
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        if (captureWriter != null) {
+            captureWriter.close();
+        }
+        for (final File file : captureDirectory.listFiles()) {
+            file.delete();
+        }
+        captureDirectory.delete();
+    }
+
+    @Test
+    public void testSnapshotsAreWrittenAsLines() throws Exception {
+        final File captureFile = new File(captureDirectory, "capture.ndjson");
+        captureWriter = new WorkloadCaptureWriter(captureFile, 1024 * 1024, 3);
+
+        assertTrue(captureWriter.append("{\"trigger\":\"start\"}"));
+        assertTrue(captureWriter.append("{\"trigger\":\"success\"}"));
+        awaitWritten(2);
+
+        final List<String> lines = readLines(captureFile);
+        assertEquals(lines.size(), 2);
+        assertEquals(lines.get(1), "{\"trigger\":\"success\"}");
+    }
+
+    @Test
+    public void testCaptureFileIsRolledOverAtMaxSize() throws Exception {
+        final File captureFile = new File(captureDirectory, "capture.ndjson");
+        captureWriter = new WorkloadCaptureWriter(captureFile, 100, 3);
+
+        for (int i = 0; i < 40; i++) {
+            captureWriter.append("{\"snapshot\":" + i + ",\"padding\":\"xxxxxxxxxxxxxxxx\"}");
+        }
+        awaitWritten(40);
+
+        assertTrue(captureFile.exists());
+        assertTrue(new File(captureDirectory, "capture.ndjson.1").exists());
+        assertTrue(new File(captureDirectory, "capture.ndjson.2").exists());
+        assertFalse(new File(captureDirectory, "capture.ndjson.3").exists());
+
+        final List<String> lines = readLines(captureFile);
+        assertEquals(lines.get(lines.size() - 1), "{\"snapshot\":39,\"padding\":\"xxxxxxxxxxxxxxxx\"}");
+    }
+
+    @Test
+    public void testSnapshotsAreDroppedOnceClosed() {
+        captureWriter = new WorkloadCaptureWriter(new File(captureDirectory, "capture.ndjson"), 1024, 1);
+        captureWriter.close();
+
+        assertFalse(captureWriter.append("{}"));
+        assertEquals(captureWriter.getDroppedCount(), 1);
+    }
+
+    private void awaitWritten(final long count) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (captureWriter.getWrittenCount() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(captureWriter.getWrittenCount(), count);
+    }
+
+    private static List<String> readLines(final File file) throws IOException {
+        final List<String> lines = new ArrayList<String>();
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        } finally {
+            reader.close();
+        }
+        return lines;
+    }
+
+}
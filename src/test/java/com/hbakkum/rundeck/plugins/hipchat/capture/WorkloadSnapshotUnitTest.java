@@ -0,0 +1,114 @@
+package com.hbakkum.rundeck.plugins.hipchat.capture;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class WorkloadSnapshotUnitTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Test
+    public void testSnapshotHoldsDeliveryAndTimings() throws Exception {
+        final Map<String, Long> phaseMillis = new LinkedHashMap<String, Long>();
+        phaseMillis.put("template-render", 12L);
+        phaseMillis.put("http-request", 220L);
+
+        final JsonNode snapshot = objectMapper.readTree(new WorkloadSnapshot("failure", "/etc/rundeck/templates")
+                .setDelivery(3, 812)
+                .setTimings(240, phaseMillis)
+                .setExecutionData(new HashMap<String, Object>(), new HashMap<String, Object>())
+                .toJson());
+
+        assertEquals(snapshot.path("trigger").asText(), "failure");
+        assertEquals(snapshot.path("templateLocation").asText(), "/etc/rundeck/templates");
+        assertEquals(snapshot.path("roomCount").asInt(), 3);
+        assertEquals(snapshot.path("messageLength").asInt(), 812);
+        assertEquals(snapshot.path("totalMillis").asLong(), 240);
+        assertEquals(snapshot.path("phaseMillis").path("http-request").asLong(), 220);
+    }
+
+    @Test
+    public void testCredentialsAreMasked() throws Exception {
+        final Map<String, Object> options = new HashMap<String, Object>();
+        options.put("dbPassword", "hunter2");
+        options.put("environment", "prod");
+        final Map<String, Object> executionData = new HashMap<String, Object>();
+        executionData.put("context", new HashMap<String, Object>(java.util.Collections.singletonMap("option", options)));
+        final Map<String, Object> config = new HashMap<String, Object>();
+        config.put("apiAuthToken", "TT0Xj1dPMP4rOKbza4hq");
+
+        final String json = new WorkloadSnapshot("success", null).setExecutionData(executionData, config).toJson();
+        final JsonNode snapshot = objectMapper.readTree(json);
+
+        assertFalse(json.contains("hunter2"));
+        assertFalse(json.contains("TT0Xj1dPMP4rOKbza4hq"));
+        assertEquals(snapshot.path("execution").path("context").path("option").path("dbPassword").asText(), WorkloadSnapshot.MASKED_VALUE);
+        assertEquals(snapshot.path("execution").path("context").path("option").path("environment").asText(), "prod");
+        assertEquals(snapshot.path("config").path("apiAuthToken").asText(), WorkloadSnapshot.MASKED_VALUE);
+    }
+
+    @Test
+    public void testLargeValuesAreTrimmed() throws Exception {
+        final StringBuilder longValue = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            longValue.append('x');
+        }
+        final List<String> nodes = new ArrayList<String>();
+        for (int i = 0; i < 500; i++) {
+            nodes.add("web" + i);
+        }
+        final Map<String, Object> executionData = new HashMap<String, Object>();
+        executionData.put("description", longValue.toString());
+        executionData.put("succeededNodeList", nodes);
+        executionData.put("tags", new String[] { "a", "b" });
+
+        final JsonNode snapshot = objectMapper.readTree(new WorkloadSnapshot("success", null).setExecutionData(executionData, null).toJson());
+
+        assertTrue(snapshot.path("execution").path("description").asText().endsWith("...[1000 chars]"));
+        assertEquals(snapshot.path("execution").path("succeededNodeList").size(), 201);
+        assertEquals(snapshot.path("execution").path("tags").get(1).asText(), "b");
+    }
+
+    @Test
+    public void testOversizedSnapshotDropsExecutionData() throws Exception {
+        final Map<String, Object> executionData = new HashMap<String, Object>();
+        for (int i = 0; i < 200; i++) {
+            final Map<String, Object> node = new HashMap<String, Object>();
+            for (int j = 0; j < 200; j++) {
+                node.put("attribute" + j, "value" + j);
+            }
+            executionData.put("node" + i, node);
+        }
+
+        final String json = new WorkloadSnapshot("success", null).setDelivery(1, 100).setExecutionData(executionData, null).toJson();
+        final JsonNode snapshot = objectMapper.readTree(json);
+
+        assertTrue(json.length() <= WorkloadSnapshot.MAX_SNAPSHOT_CHARS);
+        assertFalse(snapshot.has("execution"));
+        assertTrue(snapshot.path("truncatedChars").asInt() > WorkloadSnapshot.MAX_SNAPSHOT_CHARS);
+        assertEquals(snapshot.path("roomCount").asInt(), 1);
+    }
+
+    @Test
+    public void testNestedListsAreKept() throws Exception {
+        final Map<String, Object> executionData = new HashMap<String, Object>();
+        executionData.put("nodes", Arrays.asList(Arrays.asList("web001", "web002"), 3L, true));
+
+        final JsonNode snapshot = objectMapper.readTree(new WorkloadSnapshot("success", null).setExecutionData(executionData, null).toJson());
+
+        assertEquals(snapshot.path("execution").path("nodes").toString(), "[[\"web001\",\"web002\"],3,true]");
+    }
+
+}
@@ -0,0 +1,118 @@
+package com.hbakkum.rundeck.plugins.hipchat.circuitbreaker;
+
+import org.testng.annotations.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class CircuitBreakerUnitTest {
+
+    private static final long FAST_CALL_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long SLOW_CALL_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+    @Test
+    public void testBreakerStaysClosedBelowMinimumCalls() {
+        final CircuitBreaker circuitBreaker = createCircuitBreaker(60000);
+
+        for (int i = 0; i < 4; i++) {
+            assertTrue(circuitBreaker.tryAcquirePermission());
+            circuitBreaker.onFailure(FAST_CALL_NANOS);
+        }
+
+        assertEquals(circuitBreaker.getState(), CircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    public void testBreakerOpensWhenFailureRateThresholdReached() {
+        final CircuitBreaker circuitBreaker = createCircuitBreaker(60000);
+
+        recordCalls(circuitBreaker, 5, 5, FAST_CALL_NANOS);
+
+        assertEquals(circuitBreaker.getState(), CircuitBreaker.State.OPEN);
+        assertFalse(circuitBreaker.tryAcquirePermission());
+    }
+
+    @Test
+    public void testBreakerOpensWhenSlowCallRateThresholdReached() {
+        final CircuitBreaker circuitBreaker = createCircuitBreaker(60000);
+
+        recordCalls(circuitBreaker, 10, 0, SLOW_CALL_NANOS);
+
+        assertEquals(circuitBreaker.getState(), CircuitBreaker.State.OPEN);
+    }
+
+    @Test
+    public void testBreakerClosesAfterHealthyHalfOpenCalls() throws InterruptedException {
+        final CircuitBreaker circuitBreaker = createCircuitBreaker(10);
+        recordCalls(circuitBreaker, 0, 10, FAST_CALL_NANOS);
+        Thread.sleep(20);
+
+        assertTrue(circuitBreaker.tryAcquirePermission());
+        assertEquals(circuitBreaker.getState(), CircuitBreaker.State.HALF_OPEN);
+        assertTrue(circuitBreaker.tryAcquirePermission());
+        assertFalse(circuitBreaker.tryAcquirePermission());
+
+        circuitBreaker.onSuccess(FAST_CALL_NANOS);
+        circuitBreaker.onSuccess(FAST_CALL_NANOS);
+
+        assertEquals(circuitBreaker.getState(), CircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    public void testBreakerOpensWhenCallsHangPastSlowCallDuration() {
+        final CircuitBreaker circuitBreaker = createCircuitBreaker(60000);
+
+        for (int i = 0; i < 5; i++) {
+            assertTrue(circuitBreaker.tryAcquirePermission());
+            circuitBreaker.onSlowCallInFlight();
+        }
+
+        assertEquals(circuitBreaker.getState(), CircuitBreaker.State.OPEN);
+    }
+
+    @Test
+    public void testHungHalfOpenCallReopensBreaker() throws InterruptedException {
+        final CircuitBreaker circuitBreaker = createCircuitBreaker(10);
+        recordCalls(circuitBreaker, 0, 10, FAST_CALL_NANOS);
+        Thread.sleep(20);
+
+        assertTrue(circuitBreaker.tryAcquirePermission());
+        circuitBreaker.onSlowCallInFlight();
+
+        assertEquals(circuitBreaker.getState(), CircuitBreaker.State.OPEN);
+        Thread.sleep(20);
+        assertTrue(circuitBreaker.tryAcquirePermission());
+        assertEquals(circuitBreaker.getState(), CircuitBreaker.State.HALF_OPEN);
+    }
+
+    @Test
+    public void testBreakerReopensAfterFailedHalfOpenCall() throws InterruptedException {
+        final CircuitBreaker circuitBreaker = createCircuitBreaker(10);
+        recordCalls(circuitBreaker, 0, 10, FAST_CALL_NANOS);
+        Thread.sleep(20);
+
+        assertTrue(circuitBreaker.tryAcquirePermission());
+        circuitBreaker.onFailure(FAST_CALL_NANOS);
+
+        assertEquals(circuitBreaker.getState(), CircuitBreaker.State.OPEN);
+    }
+
+    private static CircuitBreaker createCircuitBreaker(final long openDurationMillis) {
+        return new CircuitBreaker("test", 10, 5, 50, 1000, 50, openDurationMillis, 2);
+    }
+
+    private static void recordCalls(final CircuitBreaker circuitBreaker, final int successes, final int failures, final long durationNanos) {
+        for (int i = 0; i < successes; i++) {
+            circuitBreaker.tryAcquirePermission();
+            circuitBreaker.onSuccess(durationNanos);
+        }
+        for (int i = 0; i < failures; i++) {
+            circuitBreaker.tryAcquirePermission();
+            circuitBreaker.onFailure(durationNanos);
+        }
+    }
+
+}
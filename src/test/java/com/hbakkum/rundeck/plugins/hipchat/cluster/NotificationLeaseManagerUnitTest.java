@@ -0,0 +1,82 @@
+package com.hbakkum.rundeck.plugins.hipchat.cluster;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotEquals;
+import static org.testng.Assert.assertTrue;
+
+public class NotificationLeaseManagerUnitTest {
+
+    private File leaseDirectory;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        leaseDirectory = File.createTempFile("hipchat-leases", "");
+        leaseDirectory.delete();
+        leaseDirectory.mkdirs();
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        final File[] leaseFiles = leaseDirectory.listFiles();
+        if (leaseFiles != null) {
+            for (final File leaseFile : leaseFiles) {
+                leaseFile.delete();
+            }
+        }
+        leaseDirectory.delete();
+    }
+
+    @Test
+    public void testOnlyFirstClusterMemberAcquiresLease() {
+        final NotificationLeaseManager node1 = new NotificationLeaseManager(leaseDirectory, TimeUnit.HOURS.toMillis(1));
+        final NotificationLeaseManager node2 = new NotificationLeaseManager(leaseDirectory, TimeUnit.HOURS.toMillis(1));
+
+        assertTrue(node1.tryAcquire("42", "start", "1111"));
+        assertFalse(node2.tryAcquire("42", "start", "1111"));
+        assertFalse(node1.tryAcquire("42", "start", "1111"));
+    }
+
+    @Test
+    public void testLeasesAreIndependentPerTriggerAndRoom() {
+        final NotificationLeaseManager leaseManager = new NotificationLeaseManager(leaseDirectory, TimeUnit.HOURS.toMillis(1));
+
+        assertTrue(leaseManager.tryAcquire("42", "start", "1111"));
+        assertTrue(leaseManager.tryAcquire("42", "success", "1111"));
+        assertTrue(leaseManager.tryAcquire("42", "start", "2222"));
+        assertTrue(leaseManager.tryAcquire("43", "start", "1111"));
+    }
+
+    @Test
+    public void testRoomNamesAreEscapedInLeaseFileName() {
+        assertEquals(NotificationLeaseManager.toLeaseFileName("42", "start", "Ops/Room 1"), "42-start-Ops%002fRoom%00201.lease");
+    }
+
+    @Test
+    public void testEscapedRoomNamesDoNotCollide() {
+        // with variable width escapes, a dagger and control character 2 followed by "020" would both be %2020
+        assertNotEquals(NotificationLeaseManager.toLeaseFileName("42", "start", "\u2020"),
+                NotificationLeaseManager.toLeaseFileName("42", "start", "\u0002020"));
+    }
+
+    @Test
+    public void testExpiredLeasesAreSwept() {
+        final NotificationLeaseManager leaseManager = new NotificationLeaseManager(leaseDirectory, TimeUnit.MINUTES.toMillis(1));
+        leaseManager.tryAcquire("42", "start", "1111");
+
+        final File leaseFile = new File(leaseDirectory, NotificationLeaseManager.toLeaseFileName("42", "start", "1111"));
+        leaseFile.setLastModified(System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(2));
+        leaseManager.sweepExpiredLeases();
+
+        assertFalse(leaseFile.exists());
+    }
+
+}
@@ -0,0 +1,75 @@
+package com.hbakkum.rundeck.plugins.hipchat.delivery;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class DeferredStartNotificationsUnitTest {
+
+    private HashedWheelTimer timer;
+
+    private DeferredStartNotifications deferredStartNotifications;
+
+    @BeforeMethod
+    public void setUp() {
+        timer = new HashedWheelTimer(10, TimeUnit.MILLISECONDS, 64);
+        deferredStartNotifications = new DeferredStartNotifications(timer);
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        timer.stop();
+    }
+
+    @Test
+    public void testStartNotificationIsSentWhenJobIsStillRunningAfterDelay() throws Exception {
+        final CountDownLatch startNotificationSent = new CountDownLatch(1);
+
+        deferredStartNotifications.defer("1|https://hipchat|room", new CountDownNotification(startNotificationSent), 50);
+
+        assertTrue(startNotificationSent.await(5, TimeUnit.SECONDS));
+        assertEquals(deferredStartNotifications.getPendingCount(), 0);
+        assertFalse(deferredStartNotifications.cancel("1|https://hipchat|room"));
+    }
+
+    @Test
+    public void testStartNotificationIsDroppedWhenJobFinishesFirst() throws Exception {
+        final CountDownLatch startNotificationSent = new CountDownLatch(1);
+        final CountDownLatch otherStartNotificationSent = new CountDownLatch(1);
+
+        deferredStartNotifications.defer("1|https://hipchat|room", new CountDownNotification(startNotificationSent), 50);
+        deferredStartNotifications.defer("2|https://hipchat|room", new CountDownNotification(otherStartNotificationSent), 100);
+
+        assertTrue(deferredStartNotifications.cancel("1|https://hipchat|room"));
+        assertTrue(otherStartNotificationSent.await(5, TimeUnit.SECONDS));
+        assertEquals(startNotificationSent.getCount(), 1);
+    }
+
+    @Test
+    public void testCancellingUnknownKeyHasNoEffect() {
+        assertFalse(deferredStartNotifications.cancel("unknown"));
+    }
+
+    private static final class CountDownNotification implements Runnable {
+
+        private final CountDownLatch latch;
+
+        private CountDownNotification(final CountDownLatch latch) {
+            this.latch = latch;
+        }
+
+        @Override
+        public void run() {
+            latch.countDown();
+        }
+
+    }
+
+}
@@ -0,0 +1,111 @@
+package com.hbakkum.rundeck.plugins.hipchat.delivery;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class HashedWheelTimerUnitTest {
+
+    private HashedWheelTimer timer;
+
+    @BeforeMethod
+    public void setUp() {
+        timer = new HashedWheelTimer(10, TimeUnit.MILLISECONDS, 8);
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        timer.stop();
+    }
+
+    @Test
+    public void testTaskRunsAfterDelay() throws Exception {
+        final CountDownLatch taskRun = new CountDownLatch(1);
+        final long startNanos = System.nanoTime();
+
+        final HashedWheelTimer.Timeout timeout = timer.schedule(new CountDownTask(taskRun), 50, TimeUnit.MILLISECONDS);
+
+        assertTrue(taskRun.await(5, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - startNanos >= TimeUnit.MILLISECONDS.toNanos(50));
+        assertTrue(timeout.isExpired());
+    }
+
+    @Test
+    public void testTaskLongerThanOneTurnOfTheWheelRunsAfterDelay() throws Exception {
+        final CountDownLatch taskRun = new CountDownLatch(1);
+        final long startNanos = System.nanoTime();
+
+        // 8 ticks of 10ms per turn
+        timer.schedule(new CountDownTask(taskRun), 250, TimeUnit.MILLISECONDS);
+
+        assertTrue(taskRun.await(5, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - startNanos >= TimeUnit.MILLISECONDS.toNanos(250));
+    }
+
+    @Test
+    public void testCancelledTaskDoesNotRun() throws Exception {
+        final CountDownLatch cancelledTaskRun = new CountDownLatch(1);
+        final CountDownLatch laterTaskRun = new CountDownLatch(1);
+
+        final HashedWheelTimer.Timeout timeout = timer.schedule(new CountDownTask(cancelledTaskRun), 30, TimeUnit.MILLISECONDS);
+        timer.schedule(new CountDownTask(laterTaskRun), 100, TimeUnit.MILLISECONDS);
+
+        assertTrue(timeout.cancel());
+        assertTrue(laterTaskRun.await(5, TimeUnit.SECONDS));
+        assertEquals(cancelledTaskRun.getCount(), 1);
+        assertTrue(timeout.isCancelled());
+    }
+
+    @Test
+    public void testExpiredTaskCannotBeCancelled() throws Exception {
+        final CountDownLatch taskRun = new CountDownLatch(1);
+        final HashedWheelTimer.Timeout timeout = timer.schedule(new CountDownTask(taskRun), 10, TimeUnit.MILLISECONDS);
+
+        assertTrue(taskRun.await(5, TimeUnit.SECONDS));
+
+        assertFalse(timeout.cancel());
+    }
+
+    @Test
+    public void testManyTasksAllRun() throws Exception {
+        final AtomicInteger tasksRun = new AtomicInteger();
+        final CountDownLatch allTasksRun = new CountDownLatch(1000);
+
+        for (int i = 0; i < 1000; i++) {
+            timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    tasksRun.incrementAndGet();
+                    allTasksRun.countDown();
+                }
+            }, i % 200, TimeUnit.MILLISECONDS);
+        }
+
+        assertTrue(allTasksRun.await(5, TimeUnit.SECONDS));
+        assertEquals(tasksRun.get(), 1000);
+    }
+
+    private static final class CountDownTask implements Runnable {
+
+        private final CountDownLatch latch;
+
+        private CountDownTask(final CountDownLatch latch) {
+            this.latch = latch;
+        }
+
+        @Override
+        public void run() {
+            latch.countDown();
+        }
+
+    }
+
+}
@@ -0,0 +1,166 @@
+package com.hbakkum.rundeck.plugins.hipchat.delivery;
+
+import com.hbakkum.rundeck.plugins.hipchat.HipChatNotificationPluginException;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.fail;
+
+public class ProjectFairDeliverySchedulerUnitTest {
+
+    private StripedDeliveryEngine deliveryEngine;
+
+    private ProjectFairDeliveryScheduler deliveryScheduler;
+
+    private CountDownLatch blockerReleased;
+
+    @BeforeMethod
+    public void setUp() {
+        deliveryEngine = new StripedDeliveryEngine(8, 2);
+        deliveryScheduler = new ProjectFairDeliveryScheduler(deliveryEngine, 1);
+        blockerReleased = new CountDownLatch(1);
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        blockerReleased.countDown();
+        deliveryEngine.shutdown();
+    }
+
+    @Test
+    public void testProjectsAreServedInProportionToTheirWeights() throws Exception {
+        deliveryScheduler.configure("noisy:1, ops:3", null);
+        final List<String> deliveryOrder = Collections.synchronizedList(new ArrayList<String>());
+
+        // hold the only in-flight slot while both projects queue up
+        deliveryScheduler.submit("blocker", "room-0", new BlockingDelivery());
+        final List<Future<String>> results = new ArrayList<Future<String>>();
+        for (int i = 1; i <= 10; i++) {
+            results.add(deliveryScheduler.submit("noisy", "room-" + i, new RecordingDelivery("noisy-" + i, deliveryOrder)));
+        }
+        for (int i = 1; i <= 6; i++) {
+            results.add(deliveryScheduler.submit("ops", "room-" + i, new RecordingDelivery("ops-" + i, deliveryOrder)));
+        }
+        blockerReleased.countDown();
+
+        for (final Future<String> result : results) {
+            result.get(5, TimeUnit.SECONDS);
+        }
+        assertEquals(deliveryOrder.subList(0, 9),
+                Arrays.asList("noisy-1", "ops-1", "ops-2", "ops-3", "noisy-2", "ops-4", "ops-5", "ops-6", "noisy-3"));
+    }
+
+    @Test
+    public void testDeliveryIsRejectedWhenProjectQueueIsFull() throws Exception {
+        deliveryScheduler.configure(null, "noisy:2, 10");
+
+        deliveryScheduler.submit("blocker", "room-0", new BlockingDelivery());
+        deliveryScheduler.submit("noisy", "room-1", new RecordingDelivery("noisy-1", null));
+        deliveryScheduler.submit("noisy", "room-1", new RecordingDelivery("noisy-2", null));
+        try {
+            deliveryScheduler.submit("noisy", "room-1", new RecordingDelivery("noisy-3", null));
+            fail("Expected the third queued delivery to be rejected");
+        } catch (HipChatNotificationPluginException expected) {
+        }
+        deliveryScheduler.submit("ops", "room-1", new RecordingDelivery("ops-1", null));
+
+        assertEquals(deliveryScheduler.getRejectedCount("noisy"), 1);
+        assertEquals(deliveryScheduler.getRejectedCount("ops"), 0);
+    }
+
+    @Test
+    public void testQueueDepthIsReportedPerProject() throws Exception {
+        deliveryScheduler.submit("blocker", "room-0", new BlockingDelivery());
+        deliveryScheduler.submit("noisy", "room-1", new RecordingDelivery("noisy-1", null));
+        final Future<String> lastNoisyDelivery = deliveryScheduler.submit("noisy", "room-1", new RecordingDelivery("noisy-2", null));
+        final Future<String> lastOpsDelivery = deliveryScheduler.submit("ops", "room-1", new RecordingDelivery("ops-1", null));
+
+        final Map<String, Integer> queueDepths = deliveryScheduler.getQueueDepths();
+        assertEquals(queueDepths.get("blocker").intValue(), 0);
+        assertEquals(queueDepths.get("noisy").intValue(), 2);
+        assertEquals(queueDepths.get("ops").intValue(), 1);
+        assertEquals(deliveryScheduler.getInFlight(), 1);
+
+        blockerReleased.countDown();
+        lastNoisyDelivery.get(5, TimeUnit.SECONDS);
+        lastOpsDelivery.get(5, TimeUnit.SECONDS);
+        assertEquals(deliveryScheduler.getQueueDepth("noisy"), 0);
+        assertEquals(deliveryScheduler.getQueueDepth("ops"), 0);
+    }
+
+    @Test
+    public void testHungDeliveryGivesUpItsSlotAfterSlotTimeout() throws Exception {
+        deliveryScheduler.setSlotTimeout(200);
+
+        final Future<String> hungDelivery = deliveryScheduler.submit("blocker", "room-0", new BlockingDelivery());
+        final Future<String> nextDelivery = deliveryScheduler.submit("ops", "room-1", new RecordingDelivery("ops-1", null));
+
+        assertEquals(nextDelivery.get(5, TimeUnit.SECONDS), "ops-1");
+        assertFalse(hungDelivery.isDone());
+        assertEquals(deliveryScheduler.getSlotTimeoutCount(), 1);
+
+        blockerReleased.countDown();
+        hungDelivery.get(5, TimeUnit.SECONDS);
+        // the hung delivery already gave up its slot, so completing doesn't free it again
+        final long deadlineMillis = System.currentTimeMillis() + 5000;
+        while (deliveryScheduler.getInFlight() != 0 && System.currentTimeMillis() < deadlineMillis) {
+            Thread.sleep(10);
+        }
+        assertEquals(deliveryScheduler.getInFlight(), 0);
+    }
+
+    @Test
+    public void testProjectSettingsAreParsed() {
+        final Map<String, Integer> projectSettings = ProjectFairDeliveryScheduler.parseProjectSettings("ops:4, nightly:reports:2, 3, broken:x");
+
+        assertEquals(projectSettings.get("ops").intValue(), 4);
+        assertEquals(projectSettings.get("nightly:reports").intValue(), 2);
+        assertEquals(projectSettings.get("").intValue(), 3);
+        assertEquals(projectSettings.size(), 3);
+    }
+
+    private final class BlockingDelivery implements Callable<String> {
+
+        @Override
+        public String call() throws Exception {
+            blockerReleased.await(5, TimeUnit.SECONDS);
+            return "blocker";
+        }
+
+    }
+
+    private static final class RecordingDelivery implements Callable<String> {
+
+        private final String name;
+
+        private final List<String> deliveryOrder;
+
+        private RecordingDelivery(final String name, final List<String> deliveryOrder) {
+            this.name = name;
+            this.deliveryOrder = deliveryOrder;
+        }
+
+        @Override
+        public String call() {
+            if (deliveryOrder != null) {
+                deliveryOrder.add(name);
+            }
+            return name;
+        }
+
+    }
+
+}
@@ -0,0 +1,100 @@
+package com.hbakkum.rundeck.plugins.hipchat.delivery;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotEquals;
+import static org.testng.Assert.assertTrue;
+
+public class StripedDeliveryEngineUnitTest {
+
+    private StripedDeliveryEngine deliveryEngine;
+
+    @BeforeMethod
+    public void setUp() {
+        deliveryEngine = new StripedDeliveryEngine(8, 4);
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        deliveryEngine.shutdown();
+    }
+
+    @Test
+    public void testLaneCountIsRoundedUpToPowerOfTwo() {
+        assertEquals(new StripedDeliveryEngine(5, 1).getLaneCount(), 8);
+        assertEquals(new StripedDeliveryEngine(1, 1).getLaneCount(), 1);
+    }
+
+    @Test
+    public void testDeliveriesToSameKeyCompleteInSubmissionOrder() throws Exception {
+        final List<Integer> deliveryOrder = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+
+        for (int i = 0; i < 200; i++) {
+            final int deliveryNumber = i;
+            results.add(deliveryEngine.submit("room-1", new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    deliveryOrder.add(deliveryNumber);
+                    return deliveryNumber;
+                }
+            }));
+        }
+
+        for (int i = 0; i < results.size(); i++) {
+            assertEquals(results.get(i).get(5, TimeUnit.SECONDS).intValue(), i);
+        }
+        for (int i = 0; i < deliveryOrder.size(); i++) {
+            assertEquals(deliveryOrder.get(i).intValue(), i);
+        }
+    }
+
+    @Test
+    public void testBlockedLaneDoesNotBlockOtherLanes() throws Exception {
+        final String blockedKey = "room-1";
+        String otherKey = "room-2";
+        for (int i = 3; deliveryEngine.laneIndexFor(otherKey) == deliveryEngine.laneIndexFor(blockedKey); i++) {
+            otherKey = "room-" + i;
+        }
+        assertNotEquals(deliveryEngine.laneIndexFor(otherKey), deliveryEngine.laneIndexFor(blockedKey));
+
+        final CountDownLatch release = new CountDownLatch(1);
+        final Future<Boolean> blockedDelivery = deliveryEngine.submit(blockedKey, new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return release.await(5, TimeUnit.SECONDS);
+            }
+        });
+        deliveryEngine.submit(blockedKey, new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return true;
+            }
+        });
+
+        final Future<Boolean> otherDelivery = deliveryEngine.submit(otherKey, new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return true;
+            }
+        });
+
+        assertTrue(otherDelivery.get(5, TimeUnit.SECONDS));
+        assertEquals(deliveryEngine.getQueueDepth(deliveryEngine.laneIndexFor(blockedKey)), 1);
+
+        release.countDown();
+        assertTrue(blockedDelivery.get(5, TimeUnit.SECONDS));
+    }
+
+}
@@ -0,0 +1,102 @@
+package com.hbakkum.rundeck.plugins.hipchat.duration;
+
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class DurationSketchUnitTest {
+
+    @Test
+    public void testBucketsCoverEveryDurationWithinRelativeError() {
+        for (long durationMillis = 1; durationMillis < TimeUnit.DAYS.toMillis(1); durationMillis = durationMillis * 3 / 2 + 1) {
+            final int index = DurationSketch.bucketIndex(durationMillis);
+            final long lowerBound = DurationSketch.bucketLowerBoundMillis(index);
+            final long upperBound = DurationSketch.bucketLowerBoundMillis(index + 1) - 1;
+
+            assertTrue(lowerBound <= durationMillis && durationMillis <= upperBound, "duration " + durationMillis);
+            assertTrue(upperBound - lowerBound <= Math.max(0, lowerBound / 16), "duration " + durationMillis);
+        }
+    }
+
+    @Test
+    public void testQuantilesAreWithinRelativeError() {
+        final DurationSketch sketch = new DurationSketch();
+        // 1s to 100s, evenly
+        for (int i = 1; i <= 100; i++) {
+            sketch.add(i * 1000L);
+        }
+
+        assertWithinRelativeError(sketch.getQuantileMillis(0.5), 50000);
+        assertWithinRelativeError(sketch.getQuantileMillis(0.95), 95000);
+        assertWithinRelativeError(sketch.getQuantileMillis(1), 100000);
+    }
+
+    @Test
+    public void testPercentileOfDuration() {
+        final DurationSketch sketch = new DurationSketch();
+        for (int i = 1; i <= 100; i++) {
+            sketch.add(i * 1000L);
+        }
+
+        assertEquals(sketch.getPercentileOf(500), 0);
+        assertTrue(Math.abs(sketch.getPercentileOf(50000) - 49) <= 4, "" + sketch.getPercentileOf(50000));
+        assertEquals(sketch.getPercentileOf(1000000), 100);
+    }
+
+    @Test
+    public void testOnlyDurationsBeyondQuantileAreLonger() {
+        final DurationSketch sketch = new DurationSketch();
+        final Random random = new Random(42);
+        for (int i = 0; i < 500; i++) {
+            sketch.add(60000 + random.nextInt(6000));
+        }
+
+        assertFalse(sketch.isLongerThanQuantile(63000, 0.95));
+        assertTrue(sketch.isLongerThanQuantile(90000, 0.95));
+    }
+
+    @Test
+    public void testOldDurationsAreHalvedAway() {
+        final DurationSketch sketch = new DurationSketch();
+        for (int i = 0; i < DurationSketch.MAX_WEIGHT * 4; i++) {
+            sketch.add(i < DurationSketch.MAX_WEIGHT ? 1000 : 60000);
+        }
+
+        assertTrue(sketch.getWeight() < DurationSketch.MAX_WEIGHT);
+        assertWithinRelativeError(sketch.getQuantileMillis(0.05), 60000);
+    }
+
+    @Test
+    public void testSketchRoundTripsThroughBinaryForm() throws IOException {
+        final DurationSketch sketch = new DurationSketch();
+        for (int i = 0; i < 300; i++) {
+            sketch.add(5000 + i * 97);
+        }
+        sketch.add(2);
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        sketch.writeTo(new DataOutputStream(bytes));
+        final DurationSketch read = DurationSketch.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+        assertEquals(read.getWeight(), sketch.getWeight());
+        assertEquals(read.getQuantileMillis(0.5), sketch.getQuantileMillis(0.5));
+        assertEquals(read.getQuantileMillis(0.001), sketch.getQuantileMillis(0.001));
+        // a few dozen buckets between 2ms and 34s
+        assertTrue(bytes.size() < 256, "" + bytes.size());
+    }
+
+    private static void assertWithinRelativeError(final long actualMillis, final long expectedMillis) {
+        assertTrue(Math.abs(actualMillis - expectedMillis) <= expectedMillis / 16, actualMillis + " vs " + expectedMillis);
+    }
+
+}
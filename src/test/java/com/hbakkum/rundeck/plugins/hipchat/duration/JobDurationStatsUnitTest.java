@@ -0,0 +1,101 @@
+package com.hbakkum.rundeck.plugins.hipchat.duration;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class JobDurationStatsUnitTest {
+
+    private static final String JOB_ID = "3f1a2b4c-0000-4000-8000-00000000abcd";
+
+    private File snapshotFile;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        snapshotFile = File.createTempFile("job-durations", ".dat");
+        snapshotFile.delete();
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        snapshotFile.delete();
+    }
+
+    @Test
+    public void testNothingIsAssessedWithoutEnoughHistory() {
+        final JobDurationStats stats = new JobDurationStats(null, 100);
+        for (int i = 0; i < JobDurationStats.MIN_EXECUTIONS_FOR_ASSESSMENT; i++) {
+            assertEquals(stats.recordExecution(JOB_ID, "exec-" + i, 600000, true, 95), DurationAssessment.UNKNOWN);
+        }
+    }
+
+    @Test
+    public void testSlowRunIsFlagged() {
+        final JobDurationStats stats = recordUsualExecutions(new JobDurationStats(null, 100));
+
+        final DurationAssessment usual = stats.recordExecution(JOB_ID, "usual", 61000, true, 95);
+        final DurationAssessment slow = stats.recordExecution(JOB_ID, "slow", 180000, false, 95);
+
+        assertFalse(usual.isSlowRun());
+        assertTrue(usual.getDurationPercentile() < 95, usual.toString());
+        assertTrue(slow.isSlowRun());
+        assertEquals(slow.getDurationPercentile(), 100);
+    }
+
+    @Test
+    public void testSameExecutionIsRecordedOnce() {
+        final JobDurationStats stats = recordUsualExecutions(new JobDurationStats(null, 100));
+
+        final DurationAssessment first = stats.recordExecution(JOB_ID, "slow", 180000, true, 95);
+        final DurationAssessment second = stats.recordExecution(JOB_ID, "slow", 180000, true, 95);
+
+        assertTrue(first.isSlowRun());
+        assertTrue(second == first);
+    }
+
+    @Test
+    public void testLeastRecentlyExecutedJobsAreEvicted() {
+        final JobDurationStats stats = new JobDurationStats(null, 3);
+        for (int i = 0; i < 10; i++) {
+            stats.recordExecution("job-" + i, "exec", 1000, true, 95);
+        }
+
+        assertEquals(stats.size(), 3);
+    }
+
+    @Test
+    public void testHistorySurvivesRestartThroughSnapshot() {
+        final JobDurationStats stats = recordUsualExecutions(new JobDurationStats(snapshotFile, 100));
+        stats.snapshot();
+
+        final JobDurationStats restarted = new JobDurationStats(snapshotFile, 100);
+
+        assertEquals(restarted.size(), 1);
+        assertTrue(restarted.recordExecution(JOB_ID, "slow", 180000, true, 95).isSlowRun());
+    }
+
+    @Test
+    public void testCorruptSnapshotIsIgnored() throws IOException {
+        final FileOutputStream out = new FileOutputStream(snapshotFile);
+        out.write(new byte[] { 1, 2, 3 });
+        out.close();
+
+        assertEquals(new JobDurationStats(snapshotFile, 100).size(), 0);
+    }
+
+    private static JobDurationStats recordUsualExecutions(final JobDurationStats stats) {
+        for (int i = 0; i < 50; i++) {
+            stats.recordExecution(JOB_ID, "exec-" + i, 55000 + (i % 10) * 1000, true, 95);
+        }
+        return stats;
+    }
+
+}
@@ -0,0 +1,88 @@
+package com.hbakkum.rundeck.plugins.hipchat.history;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class DeliveryHistoryReaderUnitTest {
+
+    private File historyFile;
+
+    private DeliveryHistory deliveryHistory;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        historyFile = File.createTempFile("hipchat-delivery-history", ".dat");
+        historyFile.delete();
+        deliveryHistory = new DeliveryHistory(historyFile, 1000);
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        historyFile.delete();
+    }
+
+    @Test
+    public void testSuccessRateIsComputedForWindow() throws Exception {
+        for (int i = 0; i < 90; i++) {
+            deliveryHistory.record(10000 + i, 1, 2, DeliveryHistory.STATUS_SENT, TimeUnit.MILLISECONDS.toNanos(100), 500);
+        }
+        for (int i = 0; i < 10; i++) {
+            deliveryHistory.record(10100 + i, 1, 2, DeliveryHistory.STATUS_UNAVAILABLE, TimeUnit.SECONDS.toNanos(30), 500);
+        }
+        // outside the window
+        deliveryHistory.record(20000, 1, 2, DeliveryHistory.STATUS_UNAVAILABLE, 0, 500);
+
+        final DeliveryHistoryReader.Summary summary = new DeliveryHistoryReader(historyFile).summarize(10000, 20000);
+
+        assertEquals(summary.getAttempts(), 100);
+        assertEquals(summary.getSuccessRate(), 0.9, 0.0001);
+        assertEquals(summary.getCount(DeliveryHistory.STATUS_UNAVAILABLE), 10);
+        assertTrue(summary.toString().contains("avgBytes=500"), summary.toString());
+    }
+
+    @Test
+    public void testLatencyPercentilesIgnoreUnansweredAttempts() throws Exception {
+        for (int i = 1; i <= 100; i++) {
+            deliveryHistory.record(10000, 1, 2, DeliveryHistory.STATUS_SENT, TimeUnit.MILLISECONDS.toNanos(i * 10), 500);
+        }
+        deliveryHistory.record(10000, 1, 2, DeliveryHistory.STATUS_NOT_PERMITTED, TimeUnit.SECONDS.toNanos(60), 500);
+
+        final DeliveryHistoryReader.Summary summary = new DeliveryHistoryReader(historyFile).summarize(0, Long.MAX_VALUE);
+
+        assertWithinBucket(summary.getLatencyPercentileMillis(50), 500);
+        assertWithinBucket(summary.getLatencyPercentileMillis(99), 990);
+        assertWithinBucket(summary.getLatencyPercentileMillis(100), 1000);
+    }
+
+    @Test
+    public void testEmptyWindowHasNoLatency() throws Exception {
+        final DeliveryHistoryReader.Summary summary = new DeliveryHistoryReader(historyFile).summarize(0, Long.MAX_VALUE);
+
+        assertEquals(summary.getAttempts(), 0);
+        assertEquals(summary.getSuccessRate(), 1.0);
+        assertEquals(summary.getLatencyPercentileMillis(50), -1);
+    }
+
+    @Test
+    public void testEachLatencyFallsWithinItsBucket() {
+        for (long latencyMicros = 0; latencyMicros < 100000000L; latencyMicros = latencyMicros * 3 / 2 + 1) {
+            final int bucketIndex = DeliveryHistoryReader.bucketIndex(latencyMicros);
+            assertTrue(latencyMicros <= DeliveryHistoryReader.bucketUpperBoundMicros(bucketIndex), "latency " + latencyMicros);
+            assertTrue(bucketIndex == 0 || latencyMicros > DeliveryHistoryReader.bucketUpperBoundMicros(bucketIndex - 1), "latency " + latencyMicros);
+        }
+        assertEquals(DeliveryHistoryReader.bucketIndex(Integer.MAX_VALUE), DeliveryHistoryReader.bucketIndex(Integer.MAX_VALUE - 1));
+    }
+
+    private static void assertWithinBucket(final long actualMillis, final long expectedMillis) {
+        assertTrue(actualMillis >= expectedMillis && actualMillis <= expectedMillis * 1.125, "expected about " + expectedMillis + "ms but was " + actualMillis + "ms");
+    }
+
+}
@@ -0,0 +1,136 @@
+package com.hbakkum.rundeck.plugins.hipchat.history;
+
+import com.hbakkum.rundeck.plugins.hipchat.HipChatNotificationPluginException;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+public class DeliveryHistoryUnitTest {
+
+    private File historyFile;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        historyFile = File.createTempFile("hipchat-delivery-history", ".dat");
+        historyFile.delete();
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        historyFile.delete();
+    }
+
+    @Test
+    public void testHistoryIsDisabledWhenFileCannotBeOpened() {
+        final String unwritableHistoryFile = new File(historyFile, "no-such-directory/history.dat").getPath();
+
+        assertNull(DeliveryHistory.forFile(unwritableHistoryFile, 100));
+        assertNull(DeliveryHistory.forFile(unwritableHistoryFile, 100));
+    }
+
+    @Test
+    public void testFileIsSizedForCapacity() {
+        final DeliveryHistory deliveryHistory = new DeliveryHistory(historyFile, 100);
+
+        assertEquals(deliveryHistory.getCapacity(), 100);
+        assertEquals(historyFile.length(), DeliveryHistory.HEADER_SIZE + 100 * DeliveryHistory.RECORD_SIZE);
+    }
+
+    @Test
+    public void testOldestRecordsAreOverwrittenOnceFull() throws Exception {
+        final DeliveryHistory deliveryHistory = new DeliveryHistory(historyFile, 10);
+        for (int i = 0; i < 25; i++) {
+            deliveryHistory.record(1000 + i, 1, 2, DeliveryHistory.STATUS_SENT, 0, 100);
+        }
+
+        final DeliveryHistoryReader.Summary summary = new DeliveryHistoryReader(historyFile).summarize(0, Long.MAX_VALUE);
+        assertEquals(summary.getAttempts(), 10);
+        assertEquals(new DeliveryHistoryReader(historyFile).summarize(0, 1015).getAttempts(), 0);
+    }
+
+    @Test
+    public void testRecordingContinuesAfterReopening() throws Exception {
+        final DeliveryHistory deliveryHistory = new DeliveryHistory(historyFile, 10);
+        for (int i = 0; i < 13; i++) {
+            deliveryHistory.record(1000 + i, 1, 2, DeliveryHistory.STATUS_SENT, 0, 100);
+        }
+        deliveryHistory.force();
+
+        // a larger capacity only applies to new files
+        final DeliveryHistory reopenedHistory = new DeliveryHistory(historyFile, 1000);
+        reopenedHistory.record(2000, 1, 2, DeliveryHistory.STATUS_UNAVAILABLE, 0, 100);
+
+        assertEquals(reopenedHistory.getCapacity(), 10);
+        assertEquals(reopenedHistory.getRecordCount(), 14);
+        final DeliveryHistoryReader.Summary summary = new DeliveryHistoryReader(historyFile).summarize(0, Long.MAX_VALUE);
+        assertEquals(summary.getAttempts(), 10);
+        assertEquals(summary.getCount(DeliveryHistory.STATUS_UNAVAILABLE), 1);
+        // the record at offset 3 (the 4th attempt, recorded at 1003) was overwritten
+        assertEquals(new DeliveryHistoryReader(historyFile).summarize(1003, 1004).getAttempts(), 0);
+    }
+
+    @Test
+    public void testFileWithUnknownFormatIsLeftUntouched() throws Exception {
+        final String content = "not a delivery history file at all, just some text";
+        final RandomAccessFile file = new RandomAccessFile(historyFile, "rw");
+        try {
+            file.writeBytes(content);
+        } finally {
+            file.close();
+        }
+
+        assertNull(DeliveryHistory.forFile(historyFile.getPath(), 4));
+
+        final byte[] contentAfter = new byte[(int) historyFile.length()];
+        final RandomAccessFile fileAfter = new RandomAccessFile(historyFile, "r");
+        try {
+            fileAfter.readFully(contentAfter);
+        } finally {
+            fileAfter.close();
+        }
+        assertEquals(new String(contentAfter, "US-ASCII"), content);
+    }
+
+    @Test(expectedExceptions = HipChatNotificationPluginException.class)
+    public void testHistoryFileOfAnotherCapacityIsNotResized() throws Exception {
+        new DeliveryHistory(historyFile, 10).force();
+        final RandomAccessFile file = new RandomAccessFile(historyFile, "rw");
+        try {
+            file.setLength(historyFile.length() + DeliveryHistory.RECORD_SIZE);
+        } finally {
+            file.close();
+        }
+
+        new DeliveryHistory(historyFile, 10);
+    }
+
+    @Test
+    public void testConcurrentRecordsAreAllKept() throws Exception {
+        final DeliveryHistory deliveryHistory = new DeliveryHistory(historyFile, 10000);
+        final CountDownLatch done = new CountDownLatch(4);
+        for (int t = 0; t < 4; t++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 1000; i++) {
+                        deliveryHistory.record(5000, i, 1, DeliveryHistory.STATUS_SENT, TimeUnit.MILLISECONDS.toNanos(5), 10);
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await(10, TimeUnit.SECONDS);
+
+        assertEquals(new DeliveryHistoryReader(historyFile).summarize(0, Long.MAX_VALUE).getCount(DeliveryHistory.STATUS_SENT), 4000);
+    }
+
+}
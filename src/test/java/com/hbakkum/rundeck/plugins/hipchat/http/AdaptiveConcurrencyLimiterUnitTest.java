@@ -0,0 +1,90 @@
+package com.hbakkum.rundeck.plugins.hipchat.http;
+
+import org.testng.annotations.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class AdaptiveConcurrencyLimiterUnitTest {
+
+    private static final long RTT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    @Test
+    public void testRequestsOverLimitAreRejectedWhenFailingFast() throws InterruptedException {
+        final AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter("test", 1, 2, 0);
+
+        assertTrue(limiter.tryAcquire());
+        assertTrue(limiter.tryAcquire());
+        assertFalse(limiter.tryAcquire());
+        assertEquals(limiter.getRejectedCount(), 1);
+    }
+
+    @Test
+    public void testQueuedRequestProceedsWhenSlotIsReleased() throws InterruptedException {
+        final AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter("test", 1, 1, 5000);
+        assertTrue(limiter.tryAcquire());
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                limiter.onSuccess(RTT_NANOS);
+            }
+        }).start();
+
+        assertTrue(limiter.tryAcquire());
+    }
+
+    @Test
+    public void testLimitBacksOffOnErrorsDownToFloor() throws InterruptedException {
+        final AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter("test", 2, 16, 0);
+
+        for (int i = 0; i < 20; i++) {
+            limiter.tryAcquire();
+            limiter.onDropped();
+        }
+
+        assertEquals(limiter.getLimit(), 2);
+    }
+
+    @Test
+    public void testLimitBacksOffWhenLatencyRisesAndRecoversWhenItFalls() throws InterruptedException {
+        final AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter("test", 1, 10, 0);
+        limiter.tryAcquire();
+        limiter.onSuccess(RTT_NANOS);
+
+        for (int i = 0; i < 30; i++) {
+            limiter.tryAcquire();
+            limiter.onSuccess(RTT_NANOS * 5);
+        }
+        final int congestedLimit = limiter.getLimit();
+        assertTrue(congestedLimit < 10);
+
+        for (int i = 0; i < 100; i++) {
+            limiter.tryAcquire();
+            limiter.onSuccess(RTT_NANOS);
+        }
+        assertEquals(limiter.getLimit(), 10);
+    }
+
+    @Test
+    public void testLimitIsNotReducedByLatencyJitter() throws InterruptedException {
+        final AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter("test", 1, 10, 0);
+
+        for (int i = 0; i < 200; i++) {
+            limiter.tryAcquire();
+            limiter.onSuccess(i % 5 == 4 ? RTT_NANOS * 3 : RTT_NANOS);
+        }
+
+        assertEquals(limiter.getLimit(), 10);
+    }
+
+    @Test
+    public void testHostIsParsedFromUrl() {
+        assertEquals(ConcurrencyLimitingHttpRequestExecutor.getHost("https://api.hipchat.com/v2/room/1/notification?auth_token=x"), "api.hipchat.com");
+        assertEquals(ConcurrencyLimitingHttpRequestExecutor.getHost("http://hipchat:8080?x"), "hipchat:8080");
+    }
+
+}
@@ -0,0 +1,106 @@
+package com.hbakkum.rundeck.plugins.hipchat.http;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import javax.net.ssl.HttpsURLConnection;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class ConnectionRacerUnitTest {
+
+    private ServerSocket serverSocket;
+
+    private InetAddress listeningAddress;
+
+    // nothing listens on this loopback address, so connecting to it is refused
+    private InetAddress refusingAddress;
+
+    private HostAddressCache hostAddressCache;
+
+    private ConnectionRacer connectionRacer;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        listeningAddress = InetAddress.getByName("127.0.0.1");
+        refusingAddress = InetAddress.getByName("127.0.0.2");
+        serverSocket = new ServerSocket(0, 50, listeningAddress);
+
+        hostAddressCache = new HostAddressCache(60000) {
+            @Override
+            protected InetAddress[] lookup(final String host) throws UnknownHostException {
+                return new InetAddress[] { refusingAddress, listeningAddress };
+            }
+        };
+        connectionRacer = new ConnectionRacer(hostAddressCache, 100);
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        serverSocket.close();
+    }
+
+    @Test
+    public void testNextAddressIsTriedWhenConnectionIsRefused() throws IOException {
+        final Socket socket = connectionRacer.connect(new InetAddress[] { refusingAddress, listeningAddress }, serverSocket.getLocalPort(), 5000);
+        try {
+            assertEquals(socket.getInetAddress(), listeningAddress);
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void testLastFailureIsThrownWhenNoAddressConnects() throws IOException {
+        try {
+            connectionRacer.connect(new InetAddress[] { refusingAddress, InetAddress.getByName("127.0.0.3") }, serverSocket.getLocalPort(), 5000);
+            fail("Expected connecting to fail");
+        } catch (ConnectException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testAddressThatConnectedIsPreferredNextTime() throws IOException {
+        connectionRacer.connect("hipchat.example", serverSocket.getLocalPort(), 5000).close();
+
+        assertEquals(hostAddressCache.resolve("hipchat.example")[0], listeningAddress);
+    }
+
+    @Test
+    public void testRacedSocketDelegatesToWinningConnection() throws IOException {
+        final RacingSSLSocketFactory socketFactory = new RacingSSLSocketFactory(HttpsURLConnection.getDefaultSSLSocketFactory(), connectionRacer);
+
+        final Socket socket = socketFactory.createSocket();
+        socket.setSoTimeout(1234);
+        assertFalse(socket.isConnected());
+
+        socket.connect(InetSocketAddress.createUnresolved("hipchat.example", serverSocket.getLocalPort()), 5000);
+        final Socket accepted = serverSocket.accept();
+        try {
+            assertTrue(socket.isConnected());
+            assertEquals(socket.getInetAddress(), listeningAddress);
+            assertEquals(socket.getSoTimeout(), 1234);
+
+            socket.getOutputStream().write(42);
+            socket.getOutputStream().flush();
+            assertEquals(accepted.getInputStream().read(), 42);
+        } finally {
+            accepted.close();
+            socket.close();
+        }
+        assertTrue(socket.isClosed());
+    }
+
+}
@@ -0,0 +1,123 @@
+package com.hbakkum.rundeck.plugins.hipchat.http;
+
+import org.testng.annotations.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.fail;
+
+public class HostAddressCacheUnitTest {
+
+    @Test
+    public void testAddressesAreCachedForTtl() throws Exception {
+        final StubHostAddressCache hostAddressCache = new StubHostAddressCache(60000, address("10.0.0.1"));
+
+        hostAddressCache.resolve("hipchat.example");
+        hostAddressCache.resolve("hipchat.example");
+
+        assertEquals(hostAddressCache.lookups.get(), 1);
+    }
+
+    @Test
+    public void testAddressesAreResolvedAgainOnceTtlHasPassed() throws Exception {
+        final StubHostAddressCache hostAddressCache = new StubHostAddressCache(0, address("10.0.0.1"));
+
+        hostAddressCache.resolve("hipchat.example");
+        hostAddressCache.resolve("hipchat.example");
+
+        assertEquals(hostAddressCache.lookups.get(), 2);
+    }
+
+    @Test
+    public void testExpiredAddressesAreUsedWhenResolvingFails() throws Exception {
+        final StubHostAddressCache hostAddressCache = new StubHostAddressCache(50, address("10.0.0.1"));
+        hostAddressCache.resolve("hipchat.example");
+        Thread.sleep(100);
+
+        hostAddressCache.failLookups = true;
+
+        assertEquals(hostAddressCache.resolve("hipchat.example"), new InetAddress[] { address("10.0.0.1") });
+    }
+
+    @Test
+    public void testResolvingFailsOnceExpiredAddressesAreTooOld() throws Exception {
+        final StubHostAddressCache hostAddressCache = new StubHostAddressCache(1, address("10.0.0.1"));
+        hostAddressCache.resolve("hipchat.example");
+        Thread.sleep(50);
+
+        hostAddressCache.failLookups = true;
+
+        try {
+            hostAddressCache.resolve("hipchat.example");
+            fail("Expected resolving to fail");
+        } catch (UnknownHostException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testAddressFamiliesAreInterleaved() throws Exception {
+        final InetAddress[] interleaved = HostAddressCache.interleaveAddressFamilies(new InetAddress[] {
+            address("2001:db8::1"), address("2001:db8::2"), address("2001:db8::3"), address("10.0.0.1"), address("10.0.0.2")
+        });
+
+        assertEquals(interleaved, new InetAddress[] {
+            address("2001:db8::1"), address("10.0.0.1"), address("2001:db8::2"), address("10.0.0.2"), address("2001:db8::3")
+        });
+    }
+
+    @Test
+    public void testPreferredAddressIsMovedToFront() throws Exception {
+        final StubHostAddressCache hostAddressCache = new StubHostAddressCache(60000,
+                address("10.0.0.1"), address("10.0.0.2"), address("10.0.0.3"));
+        hostAddressCache.resolve("hipchat.example");
+
+        hostAddressCache.preferAddress("hipchat.example", address("10.0.0.3"));
+
+        assertEquals(hostAddressCache.resolve("hipchat.example"), new InetAddress[] {
+            address("10.0.0.3"), address("10.0.0.1"), address("10.0.0.2")
+        });
+    }
+
+    @Test
+    public void testUnknownPreferredAddressIsIgnored() throws Exception {
+        final StubHostAddressCache hostAddressCache = new StubHostAddressCache(60000, address("10.0.0.1"), address("10.0.0.2"));
+        hostAddressCache.resolve("hipchat.example");
+
+        hostAddressCache.preferAddress("hipchat.example", address("10.0.0.9"));
+
+        assertEquals(hostAddressCache.resolve("hipchat.example"), new InetAddress[] { address("10.0.0.1"), address("10.0.0.2") });
+    }
+
+    private static InetAddress address(final String literal) throws UnknownHostException {
+        return InetAddress.getByName(literal);
+    }
+
+    private static final class StubHostAddressCache extends HostAddressCache {
+
+        private final InetAddress[] addresses;
+
+        private final AtomicInteger lookups = new AtomicInteger();
+
+        private volatile boolean failLookups;
+
+        private StubHostAddressCache(final long ttlMillis, final InetAddress... addresses) {
+            super(ttlMillis);
+            this.addresses = addresses;
+        }
+
+        @Override
+        protected InetAddress[] lookup(final String host) throws UnknownHostException {
+            lookups.incrementAndGet();
+            if (failLookups) {
+                throw new UnknownHostException(host);
+            }
+            return addresses.clone();
+        }
+
+    }
+
+}
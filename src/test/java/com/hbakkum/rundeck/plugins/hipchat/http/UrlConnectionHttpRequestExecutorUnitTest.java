@@ -0,0 +1,157 @@
+package com.hbakkum.rundeck.plugins.hipchat.http;
+
+import com.hbakkum.rundeck.plugins.hipchat.HipChatNotificationPluginException;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class UrlConnectionHttpRequestExecutorUnitTest {
+
+    private HttpServer server;
+
+    private String baseUrl;
+
+    private volatile String lastRequestMethod;
+
+    private volatile String lastRequestBody;
+
+    private UrlConnectionHttpRequestExecutor requestExecutor;
+
+    private CountDownLatch hangReleased;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/ok", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                lastRequestMethod = exchange.getRequestMethod();
+                lastRequestBody = read(exchange.getRequestBody());
+                respond(exchange, 200, "{ \"status\": \"sent\" }");
+            }
+        });
+        server.createContext("/error", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                respond(exchange, 401, "{ \"error\": { \"message\": \"Invalid token\" } }");
+            }
+        });
+        server.createContext("/hang", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                try {
+                    hangReleased.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException interruptedEx) {
+                    Thread.currentThread().interrupt();
+                }
+                respond(exchange, 200, "{}");
+            }
+        });
+        server.start();
+
+        baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+        requestExecutor = new UrlConnectionHttpRequestExecutor();
+        hangReleased = new CountDownLatch(1);
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        hangReleased.countDown();
+        server.stop(0);
+    }
+
+    @Test
+    public void testGetRequestReturnsResponse() {
+        final HttpResponse httpResponse = requestExecutor.execute(baseUrl + "/ok");
+
+        assertEquals(lastRequestMethod, "GET");
+        assertEquals(httpResponse.getResponseCode(), 200);
+        assertEquals(httpResponse.getContentType(), HttpResponse.CONTENT_TYPE__JSON);
+        assertEquals(httpResponse.getResponseBody(), "{ \"status\": \"sent\" }");
+    }
+
+    @Test
+    public void testPostRequestSendsJsonBody() {
+        requestExecutor.execute(baseUrl + "/ok", "{\"message\":\"Hello World\"}");
+
+        assertEquals(lastRequestMethod, "POST");
+        assertEquals(lastRequestBody, "{\"message\":\"Hello World\"}");
+    }
+
+    @Test
+    public void testErrorResponseBodyIsReturned() {
+        final HttpResponse httpResponse = requestExecutor.execute(baseUrl + "/error", "{}");
+
+        assertEquals(httpResponse.getResponseCode(), 401);
+        assertEquals(httpResponse.getResponseBody(), "{ \"error\": { \"message\": \"Invalid token\" } }");
+    }
+
+    @Test(expectedExceptions = HipChatNotificationPluginException.class)
+    public void testHipChatExceptionThrownWhenConnectionFails() {
+        server.stop(0);
+
+        requestExecutor.execute(baseUrl + "/ok");
+    }
+
+    @Test
+    public void testRequestFailsWhenResponseIsNotReadInTime() {
+        requestExecutor.setTimeouts(1000, 200);
+
+        final long startNanos = System.nanoTime();
+        try {
+            requestExecutor.execute(baseUrl + "/hang", "{}");
+            fail("Expected the request to time out.");
+        } catch (HipChatNotificationPluginException timeoutEx) {
+            assertTrue(timeoutEx.getMessage().contains("timed out"), timeoutEx.getMessage());
+        }
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos) < 4000);
+    }
+
+    @Test
+    public void testAuthTokenIsRedactedFromConnectionErrors() {
+        try {
+            requestExecutor.execute("no-protocol/v2/room/1111/notification?auth_token=secret-token");
+            fail("Expected the malformed URL to fail.");
+        } catch (HipChatNotificationPluginException connectionEx) {
+            assertTrue(connectionEx.getMessage().contains("auth_token=REDACTED"), connectionEx.getMessage());
+            assertFalse(connectionEx.getMessage().contains("secret-token"));
+            assertFalse(connectionEx.getCause().getMessage().contains("secret-token"));
+        }
+    }
+
+    private static void respond(final HttpExchange exchange, final int responseCode, final String responseBody) throws IOException {
+        final byte[] responseBytes = responseBody.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", HttpResponse.CONTENT_TYPE__JSON);
+        exchange.sendResponseHeaders(responseCode, responseBytes.length);
+        final OutputStream outputStream = exchange.getResponseBody();
+        outputStream.write(responseBytes);
+        outputStream.close();
+    }
+
+    private static String read(final InputStream inputStream) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[1024];
+        int read;
+        while ((read = inputStream.read(buffer)) != -1) {
+            bytes.write(buffer, 0, read);
+        }
+        return bytes.toString("UTF-8");
+    }
+
+}
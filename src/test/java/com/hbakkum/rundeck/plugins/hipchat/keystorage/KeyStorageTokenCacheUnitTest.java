@@ -0,0 +1,170 @@
+package com.hbakkum.rundeck.plugins.hipchat.keystorage;
+
+import com.hbakkum.rundeck.plugins.hipchat.HipChatNotificationPluginException;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class KeyStorageTokenCacheUnitTest {
+
+    private InMemoryKeyStorage keyStorage;
+
+    private QueuedExecutor refreshExecutor;
+
+    @BeforeMethod
+    public void setUp() {
+        keyStorage = new InMemoryKeyStorage();
+        keyStorage.keys.put("keys/hipchat/ops", "ops-token");
+        refreshExecutor = new QueuedExecutor();
+    }
+
+    @Test
+    public void testTokensThatAreNotKeyStoragePathsAreReturnedAsIs() {
+        final KeyStorageTokenCache cache = new KeyStorageTokenCache(keyStorage, 60000, 10, refreshExecutor);
+
+        assertEquals(cache.resolve("TT0Xj1dPMP4rOKbza4hq"), "TT0Xj1dPMP4rOKbza4hq");
+        assertEquals(cache.resolve(null), null);
+        assertEquals(keyStorage.readCount, 0);
+        assertTrue(KeyStorageTokenCache.isKeyStoragePath("keys/hipchat/ops"));
+        assertFalse(KeyStorageTokenCache.isKeyStoragePath("hipchat/ops"));
+    }
+
+    @Test
+    public void testTokenIsReadOnceWithinTtl() {
+        final KeyStorageTokenCache cache = new KeyStorageTokenCache(keyStorage, 60000, 10, refreshExecutor);
+
+        assertEquals(cache.resolve("keys/hipchat/ops"), "ops-token");
+        assertEquals(cache.resolve("keys/hipchat/ops"), "ops-token");
+
+        assertEquals(keyStorage.readCount, 1);
+        assertTrue(refreshExecutor.tasks.isEmpty());
+    }
+
+    @Test
+    public void testTokenIsRefreshedInBackgroundAfterHalfTheTtl() throws InterruptedException {
+        final KeyStorageTokenCache cache = new KeyStorageTokenCache(keyStorage, 400, 10, refreshExecutor);
+        cache.resolve("keys/hipchat/ops");
+        keyStorage.keys.put("keys/hipchat/ops", "rotated-token");
+        Thread.sleep(250);
+
+        assertEquals(cache.resolve("keys/hipchat/ops"), "ops-token");
+        assertEquals(cache.resolve("keys/hipchat/ops"), "ops-token");
+        assertEquals(refreshExecutor.tasks.size(), 1);
+        assertEquals(keyStorage.readCount, 1);
+
+        refreshExecutor.runAll();
+        assertEquals(cache.resolve("keys/hipchat/ops"), "rotated-token");
+        assertEquals(keyStorage.readCount, 2);
+    }
+
+    @Test
+    public void testExpiredTokenIsReadAgain() {
+        final KeyStorageTokenCache cache = new KeyStorageTokenCache(keyStorage, 0, 10, refreshExecutor);
+        cache.resolve("keys/hipchat/ops");
+        keyStorage.keys.put("keys/hipchat/ops", "rotated-token");
+
+        assertEquals(cache.resolve("keys/hipchat/ops"), "rotated-token");
+        assertEquals(keyStorage.readCount, 2);
+    }
+
+    @Test
+    public void testLastTokenReadIsUsedWhenKeyStorageFails() {
+        final KeyStorageTokenCache cache = new KeyStorageTokenCache(keyStorage, 0, 10, refreshExecutor);
+        cache.resolve("keys/hipchat/ops");
+        keyStorage.failing = true;
+
+        assertEquals(cache.resolve("keys/hipchat/ops"), "ops-token");
+    }
+
+    @Test(expectedExceptions = HipChatNotificationPluginException.class)
+    public void testMissingKeyFailsWhenNeverRead() {
+        final KeyStorageTokenCache cache = new KeyStorageTokenCache(keyStorage, 60000, 10, refreshExecutor);
+
+        cache.resolve("keys/hipchat/missing");
+    }
+
+    @Test(expectedExceptions = HipChatNotificationPluginException.class)
+    public void testKeyStorageTokensAreNotReadWithoutAllowedPathPrefix() {
+        KeyStorageTokenCache.forStorageDir(System.getProperty("java.io.tmpdir"), "").resolve("keys/hipchat/ops");
+    }
+
+    @Test
+    public void testCachesAreKeptPerAllowedPathPrefix() {
+        final String storageDir = System.getProperty("java.io.tmpdir");
+
+        assertTrue(KeyStorageTokenCache.forStorageDir(storageDir, "keys/hipchat/") == KeyStorageTokenCache.forStorageDir(storageDir, "keys/hipchat/"));
+        assertFalse(KeyStorageTokenCache.forStorageDir(storageDir, "keys/hipchat/") == KeyStorageTokenCache.forStorageDir(storageDir, "keys/"));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedTokensAreDroppedBeyondMaxEntries() {
+        final KeyStorageTokenCache cache = new KeyStorageTokenCache(keyStorage, 60000, 2, refreshExecutor);
+        keyStorage.keys.put("keys/hipchat/dev", "dev-token");
+        keyStorage.keys.put("keys/hipchat/qa", "qa-token");
+
+        cache.resolve("keys/hipchat/ops");
+        cache.resolve("keys/hipchat/dev");
+        cache.resolve("keys/hipchat/ops");
+        cache.resolve("keys/hipchat/qa");
+        assertEquals(cache.size(), 2);
+        assertEquals(keyStorage.readCount, 3);
+
+        cache.resolve("keys/hipchat/ops");
+        assertEquals(keyStorage.readCount, 3);
+        cache.resolve("keys/hipchat/dev");
+        assertEquals(keyStorage.readCount, 4);
+    }
+
+    private static final class InMemoryKeyStorage implements KeyStorage {
+
+        private final Map<String, String> keys = new HashMap<String, String>();
+
+        private int readCount;
+
+        private boolean failing;
+
+        @Override
+        public String readKey(final String path) throws IOException {
+            readCount++;
+            if (failing) {
+                throw new IOException("Key Storage unavailable");
+            }
+            final String key = keys.get(path);
+            if (key == null) {
+                throw new FileNotFoundException(path);
+            }
+            return key;
+        }
+
+    }
+
+    private static final class QueuedExecutor implements Executor {
+
+        private final List<Runnable> tasks = new ArrayList<Runnable>();
+
+        @Override
+        public void execute(final Runnable task) {
+            tasks.add(task);
+        }
+
+        private void runAll() {
+            for (final Runnable task : tasks) {
+                task.run();
+            }
+            tasks.clear();
+        }
+
+    }
+
+}
@@ -0,0 +1,34 @@
+package com.hbakkum.rundeck.plugins.hipchat.logtail;
+
+import org.testng.annotations.Test;
+
+import java.io.File;
+
+import static org.testng.Assert.assertEquals;
+
+public class ExecutionLogExcerptUnitTest {
+
+    private final File rdlogFile = new File(this.getClass().getResource("/logs/failed-execution.rdlog").getFile());
+
+    @Test
+    public void testRdlogFramingIsStrippedFromExcerpt() {
+        final ExecutionLogExcerpt logExcerpt = new ExecutionLogExcerpt(rdlogFile, new ReverseLogTailReader(20, 65536));
+
+        assertEquals(logExcerpt.getAsString(),
+                "Deploying build 42 to web01\n" +
+                "Copying artifact &lt;app.war&gt;\n" +
+                "Upload failed:\n" +
+                "disk quota exceeded on /opt/app ^ retry with C:\\deploy\n" +
+                "Failed: NonZeroResultCode: Result code was 1");
+    }
+
+    @Test
+    public void testRdlogExcerptStartingPartWayThroughMessageKeepsItsEnd() {
+        final ExecutionLogExcerpt logExcerpt = new ExecutionLogExcerpt(rdlogFile, new ReverseLogTailReader(5, 65536));
+
+        assertEquals(logExcerpt.getAsString(),
+                "disk quota exceeded on /opt/app ^ retry with C:\\deploy\n" +
+                "Failed: NonZeroResultCode: Result code was 1");
+    }
+
+}
@@ -0,0 +1,88 @@
+package com.hbakkum.rundeck.plugins.hipchat.logtail;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.testng.Assert.assertEquals;
+
+public class ReverseLogTailReaderUnitTest {
+
+    private File logFile;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        logFile = File.createTempFile("hipchat-log-tail", ".log");
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        logFile.delete();
+    }
+
+    @Test
+    public void testLastLinesAreReturned() throws IOException {
+        writeLog("line 1\nline 2\nline 3\nline 4\n");
+
+        assertEquals(new ReverseLogTailReader(2, 1024).readLastLines(logFile), "line 3\nline 4");
+    }
+
+    @Test
+    public void testWholeFileIsReturnedWhenItHasFewerLines() throws IOException {
+        writeLog("line 1\nline 2");
+
+        assertEquals(new ReverseLogTailReader(5, 1024).readLastLines(logFile), "line 1\nline 2");
+    }
+
+    @Test
+    public void testWindowsLineBreaksAreNormalised() throws IOException {
+        writeLog("line 1\r\nline 2\r\nline 3\r\n");
+
+        assertEquals(new ReverseLogTailReader(2, 1024).readLastLines(logFile), "line 2\nline 3");
+    }
+
+    @Test
+    public void testPartialLineIsDroppedWhenByteLimitIsReached() throws IOException {
+        writeLog("a very long first line\nline 2\nline 3\n");
+
+        assertEquals(new ReverseLogTailReader(10, 20).readLastLines(logFile), "line 2\nline 3");
+    }
+
+    @Test
+    public void testLinesSpanningSeveralChunksAreReturned() throws IOException {
+        final StringBuilder log = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            log.append("line ").append(i).append('\n');
+        }
+        writeLog(log.toString());
+
+        assertEquals(new ReverseLogTailReader(3, 1024 * 1024).readLastLines(logFile), "line 99997\nline 99998\nline 99999");
+        assertEquals(new ReverseLogTailReader(5000, 1024 * 1024).readLastLines(logFile).split("\n").length, 5000);
+    }
+
+    @Test
+    public void testMultiByteCharactersAreDecoded() throws IOException {
+        writeLog("première\ndeuxième\n");
+
+        assertEquals(new ReverseLogTailReader(1, 1024).readLastLines(logFile), "deuxième");
+    }
+
+    @Test
+    public void testEmptyFileGivesEmptyExcerpt() throws IOException {
+        assertEquals(new ReverseLogTailReader(5, 1024).readLastLines(logFile), "");
+    }
+
+    private void writeLog(final String content) throws IOException {
+        final FileOutputStream out = new FileOutputStream(logFile);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+}
@@ -0,0 +1,30 @@
+package com.hbakkum.rundeck.plugins.hipchat.replay;
+
+import org.testng.annotations.Test;
+
+import java.util.Map;
+
+import static org.testng.Assert.assertEquals;
+
+public class CommandLineOptionsUnitTest {
+
+    @Test
+    public void testOptionValuesAreParsed() {
+        final Map<String, String> options = CommandLineOptions.parseOptions(new String[] {"--input", "workload.ndjson", "--iterations", "5"});
+
+        assertEquals(options.get("input"), "workload.ndjson");
+        assertEquals(CommandLineOptions.getOption(options, "iterations", "10"), "5");
+        assertEquals(CommandLineOptions.getOption(options, "warmup-iterations", "2"), "2");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testOptionWithoutValueIsRejected() {
+        CommandLineOptions.parseOptions(new String[] {"--input", "workload.ndjson", "--iterations"});
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testArgumentThatIsNotAnOptionIsRejected() {
+        CommandLineOptions.parseOptions(new String[] {"workload.ndjson"});
+    }
+
+}
@@ -0,0 +1,92 @@
+package com.hbakkum.rundeck.plugins.hipchat.replay;
+
+import com.hbakkum.rundeck.plugins.hipchat.HipChatApiAuthTokenManager;
+import com.hbakkum.rundeck.plugins.hipchat.HipChatServerUnavailableException;
+import com.hbakkum.rundeck.plugins.hipchat.roomnotifier.HipChatRoomNotifier;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Scanner;
+
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class NotificationReplayToolUnitTest {
+
+    private static final String RECORDS =
+            "{\"room\": \"1111\", \"message\": \"first\", \"color\": \"red\", \"notify\": true, \"baseUrl\": \"https://hipchat\", \"apiVersion\": \"v2\"}\n" +
+            "{\"room\": \"2222\", \"message\": \"second\", \"color\": \"green\", \"notify\": false, \"baseUrl\": \"https://hipchat\", \"apiVersion\": \"v2\"}\n" +
+            "{\"room\": \"3333\", \"message\": \"third\"}\n";
+
+    private HipChatRoomNotifier roomNotifier;
+
+    private NotificationReplayTool replayTool;
+
+    @BeforeMethod
+    public void setUp() {
+        roomNotifier = mock(HipChatRoomNotifier.class);
+        replayTool = new NotificationReplayTool(new HipChatApiAuthTokenManager("2222:roomtoken, defaulttoken"), 1, 0, null, null) {
+            @Override
+            protected HipChatRoomNotifier getRoomNotifier(final String apiVersion) {
+                return roomNotifier;
+            }
+        };
+    }
+
+    @Test
+    public void testEveryRecordIsSent() throws Exception {
+        replayTool.replay(new StringReader(RECORDS), 0, null, null);
+
+        verify(roomNotifier).sendRoomNotification("https://hipchat", "1111", "first", "red", "defaulttoken", true);
+        verify(roomNotifier).sendRoomNotification("https://hipchat", "2222", "second", "green", "roomtoken", false);
+        verify(roomNotifier).sendRoomNotification("https://api.hipchat.com", "3333", "third", "yellow", "defaulttoken", false);
+        assertEquals(replayTool.getSentCount(), 3);
+        assertEquals(replayTool.getCheckpointOffset(), 3);
+    }
+
+    @Test
+    public void testRecordsBeforeStartOffsetAreSkipped() throws Exception {
+        replayTool.replay(new StringReader(RECORDS), 2, null, null);
+
+        verify(roomNotifier, never()).sendRoomNotification(anyString(), eq("1111"), anyString(), anyString(), anyString(), anyBoolean());
+        verify(roomNotifier, never()).sendRoomNotification(anyString(), eq("2222"), anyString(), anyString(), anyString(), anyBoolean());
+        verify(roomNotifier).sendRoomNotification("https://api.hipchat.com", "3333", "third", "yellow", "defaulttoken", false);
+    }
+
+    @Test
+    public void testResultOfEachRecordIsLogged() throws Exception {
+        doThrow(new HipChatServerUnavailableException("connection refused"))
+                .when(roomNotifier).sendRoomNotification(anyString(), eq("2222"), anyString(), anyString(), anyString(), anyBoolean());
+        final StringWriter resultLog = new StringWriter();
+
+        replayTool.replay(new StringReader(RECORDS), 0, resultLog, null);
+
+        final String[] results = resultLog.toString().split("\n");
+        assertEquals(results.length, 3);
+        assertEquals(results[0], "{\"offset\":0,\"room\":\"1111\",\"status\":\"sent\"}");
+        assertEquals(results[1], "{\"offset\":1,\"room\":\"2222\",\"status\":\"failed\",\"error\":\"connection refused\"}");
+        assertEquals(replayTool.getFailedCount(), 1);
+    }
+
+    @Test
+    public void testCheckpointIsWritten() throws Exception {
+        final File checkpointFile = File.createTempFile("hipchat-replay", ".checkpoint");
+        checkpointFile.deleteOnExit();
+
+        replayTool.replay(new StringReader(RECORDS), 1, null, checkpointFile);
+
+        assertTrue(checkpointFile.exists());
+        assertEquals(new Scanner(checkpointFile).nextLong(), 3);
+    }
+
+}
@@ -0,0 +1,69 @@
+package com.hbakkum.rundeck.plugins.hipchat.replay;
+
+import com.hbakkum.rundeck.plugins.hipchat.roomnotifier.HipChatRoomNotifier;
+import org.codehaus.jackson.JsonNode;
+import org.testng.annotations.Test;
+
+import java.io.StringReader;
+import java.util.List;
+
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.contains;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class WorkloadReplayBenchmarkUnitTest {
+
+    private static final String EXECUTION =
+            "{\"href\": \"http://rundeck/execution/1/show\", " +
+            "\"job\": {\"href\": \"http://rundeck/job/1\", \"group\": \"ops\", \"name\": \"deploy\"}, " +
+            "\"context\": {\"job\": {\"username\": \"hbakkum\", \"execid\": \"1\"}}}";
+
+    private static final String CAPTURE =
+            "{\"trigger\": \"failure\", \"roomCount\": 2, \"execution\": " + EXECUTION + ", \"config\": {}}\n" +
+            "\n" +
+            "{\"trigger\": \"success\", \"roomCount\": 1, \"truncatedChars\": 100000}\n" +
+            "{\"trigger\": \"success\", \"roomCount\": 1, \"execution\": " + EXECUTION + ", \"config\": {}}\n";
+
+    @Test
+    public void testTruncatedSnapshotsAreSkipped() throws Exception {
+        final List<JsonNode> snapshots = WorkloadReplayBenchmark.readSnapshots(new StringReader(CAPTURE));
+
+        assertEquals(snapshots.size(), 2);
+    }
+
+    @Test
+    public void testSnapshotsAreRenderedAndSentToEachRoom() throws Exception {
+        final HipChatRoomNotifier roomNotifier = mock(HipChatRoomNotifier.class);
+        final WorkloadReplayBenchmark benchmark = new WorkloadReplayBenchmark(null, "http://localhost", "v2", "token") {
+            @Override
+            protected HipChatRoomNotifier getRoomNotifier() {
+                return roomNotifier;
+            }
+        };
+
+        benchmark.replay(WorkloadReplayBenchmark.readSnapshots(new StringReader(CAPTURE)));
+
+        assertEquals(benchmark.getRenderCount(), 2);
+        assertEquals(benchmark.getSendCount(), 3);
+        verify(roomNotifier, times(2)).sendRoomNotification(eq("http://localhost"), anyString(), contains("<b>failed</b>"), anyString(), eq("token"), anyBoolean());
+        verify(roomNotifier).sendRoomNotification(eq("http://localhost"), anyString(), contains("<b>succeeded</b>"), anyString(), eq("token"), anyBoolean());
+    }
+
+    @Test
+    public void testOnlyRenderingIsMeasuredWithoutBaseUrl() throws Exception {
+        final WorkloadReplayBenchmark benchmark = new WorkloadReplayBenchmark(null, null, "v1", "");
+
+        benchmark.replay(WorkloadReplayBenchmark.readSnapshots(new StringReader(CAPTURE)));
+
+        assertEquals(benchmark.getRenderCount(), 2);
+        assertEquals(benchmark.getSendCount(), 0);
+        assertTrue(benchmark.getReport(1000000).startsWith("Rendered 2 messages"));
+    }
+
+}
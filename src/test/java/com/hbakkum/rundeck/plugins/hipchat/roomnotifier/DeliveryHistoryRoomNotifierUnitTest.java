@@ -0,0 +1,75 @@
+package com.hbakkum.rundeck.plugins.hipchat.roomnotifier;
+
+import com.hbakkum.rundeck.plugins.hipchat.HipChatNotificationPluginException;
+import com.hbakkum.rundeck.plugins.hipchat.HipChatServerUnavailableException;
+import com.hbakkum.rundeck.plugins.hipchat.circuitbreaker.CallNotPermittedException;
+import com.hbakkum.rundeck.plugins.hipchat.history.DeliveryHistory;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.fail;
+
+public class DeliveryHistoryRoomNotifierUnitTest {
+
+    private HipChatRoomNotifier delegate;
+
+    private DeliveryHistory deliveryHistory;
+
+    private DeliveryHistoryRoomNotifier deliveryHistoryRoomNotifier;
+
+    @BeforeMethod
+    public void setUp() {
+        delegate = mock(HipChatRoomNotifier.class);
+        when(delegate.getSupportedApiVersion()).thenReturn("v2");
+        deliveryHistory = mock(DeliveryHistory.class);
+        deliveryHistoryRoomNotifier = new DeliveryHistoryRoomNotifier(delegate);
+        deliveryHistoryRoomNotifier.setDeliveryHistory(deliveryHistory);
+    }
+
+    @Test
+    public void testSuccessfulSendIsRecorded() {
+        deliveryHistoryRoomNotifier.sendRoomNotification("https://hipchat", "1111", "caf\u00e9", "green", "token", false);
+
+        verify(deliveryHistory).record(anyLong(), anyInt(), eq(2), eq(DeliveryHistory.STATUS_SENT), anyLong(), eq(5));
+    }
+
+    @Test
+    public void testFailedSendsAreRecordedByCause() {
+        doThrow(new CallNotPermittedException("open")).when(delegate).sendRoomNotification(anyString(), eq("1"), anyString(), anyString(), anyString(), anyBoolean());
+        doThrow(new HipChatServerUnavailableException("down")).when(delegate).sendRoomNotification(anyString(), eq("2"), anyString(), anyString(), anyString(), anyBoolean());
+        doThrow(new HipChatNotificationPluginException("bad request")).when(delegate).sendRoomNotification(anyString(), eq("3"), anyString(), anyString(), anyString(), anyBoolean());
+
+        for (final String room : new String[] { "1", "2", "3" }) {
+            try {
+                deliveryHistoryRoomNotifier.sendRoomNotification("https://hipchat", room, "message", "red", "token", false);
+                fail("Expected the send to room " + room + " to fail");
+            } catch (HipChatNotificationPluginException expected) {
+            }
+        }
+
+        verify(deliveryHistory).record(anyLong(), anyInt(), eq(2), eq(DeliveryHistory.STATUS_NOT_PERMITTED), anyLong(), anyInt());
+        verify(deliveryHistory).record(anyLong(), anyInt(), eq(2), eq(DeliveryHistory.STATUS_UNAVAILABLE), anyLong(), anyInt());
+        verify(deliveryHistory).record(anyLong(), anyInt(), eq(2), eq(DeliveryHistory.STATUS_REJECTED), anyLong(), anyInt());
+    }
+
+    @Test
+    public void testNothingIsRecordedWithoutHistory() {
+        deliveryHistoryRoomNotifier.setDeliveryHistory(null);
+
+        deliveryHistoryRoomNotifier.sendRoomNotification("https://hipchat", "1111", "message", "green", "token", false);
+
+        verify(delegate).sendRoomNotification("https://hipchat", "1111", "message", "green", "token", false);
+        verifyZeroInteractions(deliveryHistory);
+    }
+
+}
@@ -0,0 +1,99 @@
+package com.hbakkum.rundeck.plugins.hipchat.roomnotifier;
+
+import com.hbakkum.rundeck.plugins.hipchat.HipChatNotificationPluginException;
+import com.hbakkum.rundeck.plugins.hipchat.HipChatServerUnavailableException;
+import com.hbakkum.rundeck.plugins.hipchat.http.ConcurrencyLimitExceededException;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+public class FailoverRoomNotifierUnitTest {
+
+    private static final String PRIMARY_BASE_URL = "https://hipchat-a.example.com";
+    private static final String SECONDARY_BASE_URL = "https://hipchat-b.example.com";
+    private static final String MIRRORED_BASE_URLS = PRIMARY_BASE_URL + ", " + SECONDARY_BASE_URL;
+
+    private HipChatRoomNotifier delegate;
+
+    @BeforeMethod
+    public void setUp() {
+        delegate = mock(HipChatRoomNotifier.class);
+    }
+
+    @Test
+    public void testSecondaryEndpointIsUsedWhenPrimaryIsUnavailable() {
+        doThrow(new HipChatServerUnavailableException("connection refused"))
+                .when(delegate).sendRoomNotification(eq(PRIMARY_BASE_URL), anyString(), anyString(), anyString(), anyString(), anyBoolean());
+
+        new FailoverRoomNotifier(delegate, false).sendRoomNotification(MIRRORED_BASE_URLS, "1111", "Hello World", "red", "abcdef", true);
+
+        verify(delegate).sendRoomNotification(SECONDARY_BASE_URL, "1111", "Hello World", "red", "abcdef", true);
+    }
+
+    @Test(expectedExceptions = HipChatNotificationPluginException.class)
+    public void testApiErrorsDoNotFailOver() {
+        doThrow(new HipChatNotificationPluginException("Invalid token"))
+                .when(delegate).sendRoomNotification(eq(PRIMARY_BASE_URL), anyString(), anyString(), anyString(), anyString(), anyBoolean());
+
+        try {
+            new FailoverRoomNotifier(delegate, false).sendRoomNotification(MIRRORED_BASE_URLS, "1111", "Hello World", "red", "abcdef", true);
+        } finally {
+            verify(delegate, never()).sendRoomNotification(eq(SECONDARY_BASE_URL), anyString(), anyString(), anyString(), anyString(), anyBoolean());
+        }
+    }
+
+    @Test(expectedExceptions = ConcurrencyLimitExceededException.class)
+    public void testLocalConcurrencyLimitDoesNotFailOver() {
+        doThrow(new ConcurrencyLimitExceededException("Concurrency limit reached"))
+                .when(delegate).sendRoomNotification(eq(PRIMARY_BASE_URL), anyString(), anyString(), anyString(), anyString(), anyBoolean());
+
+        try {
+            new FailoverRoomNotifier(delegate, false).sendRoomNotification(MIRRORED_BASE_URLS, "1111", "Hello World", "red", "abcdef", true);
+        } finally {
+            verify(delegate, never()).sendRoomNotification(eq(SECONDARY_BASE_URL), anyString(), anyString(), anyString(), anyString(), anyBoolean());
+        }
+    }
+
+    @Test(expectedExceptions = HipChatServerUnavailableException.class)
+    public void testExceptionThrownWhenAllEndpointsAreUnavailable() {
+        doThrow(new HipChatServerUnavailableException("connection refused"))
+                .when(delegate).sendRoomNotification(anyString(), anyString(), anyString(), anyString(), anyString(), anyBoolean());
+
+        new FailoverRoomNotifier(delegate, false).sendRoomNotification(MIRRORED_BASE_URLS, "1111", "Hello World", "red", "abcdef", true);
+    }
+
+    @Test
+    public void testSlowPrimaryIsHedgedWithSecondaryEndpoint() {
+        final String primaryBaseUrl = "https://hipchat-hedge-a.example.com";
+        final String secondaryBaseUrl = "https://hipchat-hedge-b.example.com";
+        for (int i = 0; i < 50; i++) {
+            EndpointLatencyStats.forEndpoint(primaryBaseUrl).record(TimeUnit.MILLISECONDS.toNanos(5));
+        }
+
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(final InvocationOnMock invocation) throws Throwable {
+                Thread.sleep(2000);
+                return null;
+            }
+        }).when(delegate).sendRoomNotification(eq(primaryBaseUrl), anyString(), anyString(), anyString(), anyString(), anyBoolean());
+
+        new FailoverRoomNotifier(delegate, true).sendRoomNotification(primaryBaseUrl + "," + secondaryBaseUrl, "1111", "Hello World", "red", "abcdef", true);
+
+        verify(delegate, timeout(1000)).sendRoomNotification(secondaryBaseUrl, "1111", "Hello World", "red", "abcdef", true);
+    }
+
+}
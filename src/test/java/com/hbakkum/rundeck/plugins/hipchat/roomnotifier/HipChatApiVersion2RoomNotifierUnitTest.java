@@ -1,6 +1,7 @@
 package com.hbakkum.rundeck.plugins.hipchat.roomnotifier;
 
 import com.hbakkum.rundeck.plugins.hipchat.HipChatNotificationPluginException;
+import com.hbakkum.rundeck.plugins.hipchat.HipChatRoomNotFoundException;
 import com.hbakkum.rundeck.plugins.hipchat.http.HttpRequestExecutor;
 import com.hbakkum.rundeck.plugins.hipchat.http.HttpResponse;
 import org.mockito.ArgumentCaptor;
@@ -188,6 +189,24 @@ public class HipChatApiVersion2RoomNotifierUnitTest {
         );
     }
 
+    @Test(expectedExceptions = HipChatRoomNotFoundException.class)
+    public void testRoomNotFoundExceptionThrownWhenHipChatAPICannotFindRoom() {
+        final HttpResponse httpResponse = mock(HttpResponse.class);
+        when(httpResponse.getResponseCode()).thenReturn(HttpResponse.STATUS__NOT_FOUND);
+        when(httpResponse.getContentType()).thenReturn(HttpResponse.CONTENT_TYPE__JSON);
+        when(httpResponse.getResponseBody()).thenReturn("{ \"error\": { \"code\": 404, \"message\": \"Room not found\" } }");
+        when(requestExecutor.execute(anyString(), anyString())).thenReturn(httpResponse);
+
+        roomNotifier.sendRoomNotification(
+                HIPCHAT_BASE_URL,
+                HIPCHAT_ROOM_NAME,
+                HIPCHAT_MESSAGE,
+                HIPCHAT_COLOR,
+                HIPCHAT_AUTH_TOKEN,
+                true
+        );
+    }
+
     private String captureHipChatUrl() {
         return captureRequestExecutorArgs().get(0);
     }
@@ -0,0 +1,201 @@
+package com.hbakkum.rundeck.plugins.hipchat.roomnotifier;
+
+import com.hbakkum.rundeck.plugins.hipchat.HipChatApiAuthTokenRejectedException;
+import com.hbakkum.rundeck.plugins.hipchat.HipChatRoomNotFoundException;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class NegativeCachingRoomNotifierUnitTest {
+
+    private static final String BASE_URL = "https://api.hipchat.com";
+
+    private HipChatRoomNotifier delegate;
+
+    private PermanentFailureCache permanentFailureCache;
+
+    private NegativeCachingRoomNotifier negativeCachingRoomNotifier;
+
+    @BeforeMethod
+    public void setUp() {
+        delegate = mock(HipChatRoomNotifier.class);
+        permanentFailureCache = new PermanentFailureCache(60000);
+        negativeCachingRoomNotifier = new NegativeCachingRoomNotifier(delegate, permanentFailureCache);
+    }
+
+    @Test
+    public void testRevokedTokenIsNotSentAgain() {
+        doThrow(new HipChatApiAuthTokenRejectedException("Invalid token", 401))
+                .when(delegate).sendRoomNotification(anyString(), anyString(), anyString(), anyString(), anyString(), anyBoolean());
+
+        final HipChatApiAuthTokenRejectedException first = send("ops", "token-a");
+        final HipChatApiAuthTokenRejectedException second = send("ops", "token-a");
+
+        assertFalse(NegativeCachingRoomNotifier.isSuppressed(first));
+        assertTrue(NegativeCachingRoomNotifier.isSuppressed(second));
+        assertEquals(second.getResponseCode(), 401);
+        verify(delegate, times(1)).sendRoomNotification(BASE_URL, "ops", "message", "red", "token-a", true);
+    }
+
+    @Test
+    public void testOtherTokensAndRoomsAreStillSent() {
+        doThrow(new HipChatApiAuthTokenRejectedException("Invalid token", 401))
+                .when(delegate).sendRoomNotification(BASE_URL, "ops", "message", "red", "token-a", true);
+        send("ops", "token-a");
+
+        negativeCachingRoomNotifier.sendRoomNotification(BASE_URL, "ops", "message", "red", "token-b", true);
+        negativeCachingRoomNotifier.sendRoomNotification(BASE_URL, "dev", "message", "red", "token-a", true);
+
+        verify(delegate).sendRoomNotification(BASE_URL, "ops", "message", "red", "token-b", true);
+        verify(delegate).sendRoomNotification(BASE_URL, "dev", "message", "red", "token-a", true);
+    }
+
+    @Test
+    public void testRateLimitedTokenIsNotRemembered() {
+        doThrow(new HipChatApiAuthTokenRejectedException("Rate limited", 429))
+                .when(delegate).sendRoomNotification(anyString(), anyString(), anyString(), anyString(), anyString(), anyBoolean());
+
+        send("ops", "token-a");
+        send("ops", "token-a");
+
+        assertEquals(permanentFailureCache.size(), 0);
+        verify(delegate, times(2)).sendRoomNotification(BASE_URL, "ops", "message", "red", "token-a", true);
+    }
+
+    @Test
+    public void testMissingRoomIsNotSentAgain() {
+        doThrow(new HipChatRoomNotFoundException("Room not found"))
+                .when(delegate).sendRoomNotification(anyString(), anyString(), anyString(), anyString(), anyString(), anyBoolean());
+
+        try {
+            negativeCachingRoomNotifier.sendRoomNotification(BASE_URL, "deleted", "message", "red", "token-a", true);
+            fail("Expected the room not to be found");
+        } catch (HipChatRoomNotFoundException expected) {
+            assertFalse(NegativeCachingRoomNotifier.isSuppressed(expected));
+        }
+        try {
+            negativeCachingRoomNotifier.sendRoomNotification(BASE_URL, "deleted", "message", "red", "token-a", true);
+            fail("Expected the room not to be found");
+        } catch (HipChatRoomNotFoundException expected) {
+            assertTrue(NegativeCachingRoomNotifier.isSuppressed(expected));
+        }
+        verify(delegate, times(1)).sendRoomNotification(BASE_URL, "deleted", "message", "red", "token-a", true);
+    }
+
+    @Test
+    public void testNewTokenConfigurationForgetsFailures() {
+        permanentFailureCache.onApiAuthTokenConfiguration(BASE_URL, "project/job-1/failure", "token-a");
+        permanentFailureCache.recordFailure(BASE_URL, "ops", "token-a", 401, "Invalid token");
+
+        permanentFailureCache.onApiAuthTokenConfiguration(BASE_URL, "project/job-1/failure", "token-a");
+        assertEquals(permanentFailureCache.size(), 1);
+
+        permanentFailureCache.onApiAuthTokenConfiguration(BASE_URL, "project/job-1/failure", "token-a|token-b");
+        assertEquals(permanentFailureCache.size(), 0);
+    }
+
+    @Test
+    public void testSwitchingBackToEarlierTokenConfigurationForgetsFailures() {
+        permanentFailureCache.onApiAuthTokenConfiguration(BASE_URL, "project/job-1/failure", "token-a");
+        permanentFailureCache.onApiAuthTokenConfiguration(BASE_URL, "project/job-1/failure", "token-b");
+        permanentFailureCache.recordFailure(BASE_URL, "ops", "token-b", 401, "Invalid token");
+
+        permanentFailureCache.onApiAuthTokenConfiguration(BASE_URL, "project/job-1/failure", "token-a");
+        assertEquals(permanentFailureCache.size(), 0);
+    }
+
+    @Test
+    public void testOtherNotificationsTokenConfigurationKeepsFailures() {
+        permanentFailureCache.onApiAuthTokenConfiguration(BASE_URL, "project/job-1/failure", "token-a");
+        permanentFailureCache.recordFailure(BASE_URL, "ops", "token-a", 401, "Invalid token");
+
+        permanentFailureCache.onApiAuthTokenConfiguration(BASE_URL, "project/job-2/failure", "token-b");
+        permanentFailureCache.onApiAuthTokenConfiguration(BASE_URL, "project/job-1/failure", "token-a");
+        assertEquals(permanentFailureCache.size(), 1);
+    }
+
+    @Test
+    public void testTokenConfigurationChangeOnlyForgetsFailuresAtItsBaseUrl() {
+        permanentFailureCache.onApiAuthTokenConfiguration(BASE_URL, "project/job-1/failure", "token-a");
+        permanentFailureCache.recordFailure(BASE_URL, "ops", "token-a", 401, "Invalid token");
+        permanentFailureCache.recordFailure("https://hipchat.example.com", "ops", "token-a", 401, "Invalid token");
+
+        permanentFailureCache.onApiAuthTokenConfiguration(BASE_URL, "project/job-1/failure", "token-b");
+
+        assertEquals(permanentFailureCache.size(), 1);
+        assertNotNull(permanentFailureCache.getFailure("https://hipchat.example.com", "ops", "token-a"));
+    }
+
+    @Test
+    public void testTokenConfigurationChangeForgetsFailuresAtEveryFailoverEndpoint() {
+        final String baseURLs = BASE_URL + ", https://hipchat.example.com";
+        permanentFailureCache.onApiAuthTokenConfiguration(baseURLs, "project/job-1/failure", "token-a");
+        permanentFailureCache.recordFailure(BASE_URL, "ops", "token-a", 401, "Invalid token");
+        permanentFailureCache.recordFailure("https://hipchat.example.com", "ops", "token-a", 401, "Invalid token");
+
+        permanentFailureCache.onApiAuthTokenConfiguration(baseURLs, "project/job-1/failure", "token-b");
+
+        assertEquals(permanentFailureCache.size(), 0);
+    }
+
+    @Test
+    public void testRepeatedFailureExtendsTtlExponentially() {
+        permanentFailureCache.recordFailure(BASE_URL, "ops", "token-a", 401, "Invalid token");
+        final long firstTtlMillis = permanentFailureCache.getFailure(BASE_URL, "ops", "token-a").getExpiresAtMillis() - System.currentTimeMillis();
+
+        for (int i = 0; i < 10; i++) {
+            permanentFailureCache.recordFailure(BASE_URL, "ops", "token-a", 401, "Invalid token");
+        }
+        final long lastTtlMillis = permanentFailureCache.getFailure(BASE_URL, "ops", "token-a").getExpiresAtMillis() - System.currentTimeMillis();
+
+        assertTrue(firstTtlMillis <= 60000 && firstTtlMillis > 59000);
+        assertTrue(lastTtlMillis <= 60000L * PermanentFailureCache.MAX_TTL_MULTIPLIER && lastTtlMillis > 60000L * (PermanentFailureCache.MAX_TTL_MULTIPLIER - 1));
+    }
+
+    @Test
+    public void testSuccessForgetsFailure() {
+        permanentFailureCache.recordFailure(BASE_URL, "ops", "token-a", 401, "Invalid token");
+        permanentFailureCache.setTtlMillis(0);
+        permanentFailureCache.setTtlMillis(60000);
+        assertEquals(permanentFailureCache.size(), 0);
+
+        permanentFailureCache.recordFailure(BASE_URL, "ops", "token-a", 401, "Invalid token");
+        permanentFailureCache.recordSuccess(BASE_URL, "ops", "token-a");
+
+        assertEquals(permanentFailureCache.size(), 0);
+    }
+
+    @Test
+    public void testDisabledCacheSendsEverything() {
+        permanentFailureCache.setTtlMillis(0);
+        doThrow(new HipChatApiAuthTokenRejectedException("Invalid token", 401))
+                .when(delegate).sendRoomNotification(anyString(), anyString(), anyString(), anyString(), anyString(), anyBoolean());
+
+        send("ops", "token-a");
+        send("ops", "token-a");
+
+        verify(delegate, times(2)).sendRoomNotification(BASE_URL, "ops", "message", "red", "token-a", true);
+    }
+
+    private HipChatApiAuthTokenRejectedException send(final String room, final String authToken) {
+        try {
+            negativeCachingRoomNotifier.sendRoomNotification(BASE_URL, room, "message", "red", authToken, true);
+        } catch (HipChatApiAuthTokenRejectedException tokenRejectedEx) {
+            return tokenRejectedEx;
+        }
+        fail("Expected the token to be rejected");
+        return null;
+    }
+
+}
@@ -0,0 +1,224 @@
+package com.hbakkum.rundeck.plugins.hipchat.sidecar;
+
+import com.hbakkum.rundeck.plugins.hipchat.HipChatApiAuthTokenRejectedException;
+import com.hbakkum.rundeck.plugins.hipchat.roomnotifier.HipChatRoomNotifier;
+import com.hbakkum.rundeck.plugins.hipchat.sidecar.SidecarProtocol.NotificationRecord;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.SkipException;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class SenderSidecarUnitTest {
+
+    private static final String BASE_URL = "https://api.hipchat.com";
+
+    private File socketFile;
+
+    private HipChatRoomNotifier sidecarRoomNotifier;
+
+    private HipChatRoomNotifier inProcessRoomNotifier;
+
+    private SenderSidecar sidecar;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        if (!SidecarSupport.isAvailable()) {
+            throw new SkipException("Unix domain sockets are not supported by this JVM.");
+        }
+        socketFile = File.createTempFile("hipchat-sidecar", ".sock");
+        sidecarRoomNotifier = mock(HipChatRoomNotifier.class);
+        inProcessRoomNotifier = mock(HipChatRoomNotifier.class);
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        if (sidecar != null) {
+            sidecar.stop();
+            sidecar = null;
+        }
+    }
+
+    @Test
+    public void testNotificationIsDeliveredBySidecar() throws IOException {
+        startSidecar(10);
+
+        createRoomNotifier().sendRoomNotification(BASE_URL, "ops", "message", "red", "token", true);
+
+        verify(sidecarRoomNotifier).sendRoomNotification(BASE_URL, "ops", "message", "red", "token", true);
+        verify(inProcessRoomNotifier, never()).sendRoomNotification(anyString(), anyString(), anyString(), anyString(), anyString(), anyBoolean());
+    }
+
+    @Test
+    public void testSidecarFailureIsRaisedInPlugin() throws IOException {
+        doThrow(new HipChatApiAuthTokenRejectedException("Rate limited", 429))
+                .when(sidecarRoomNotifier).sendRoomNotification(anyString(), anyString(), anyString(), anyString(), anyString(), anyBoolean());
+        startSidecar(10);
+
+        try {
+            createRoomNotifier().sendRoomNotification(BASE_URL, "ops", "message", "red", "token", true);
+            fail("Expected token rejection");
+        } catch (HipChatApiAuthTokenRejectedException tokenRejectedEx) {
+            assertEquals(tokenRejectedEx.getResponseCode(), 429);
+        }
+        verify(inProcessRoomNotifier, never()).sendRoomNotification(anyString(), anyString(), anyString(), anyString(), anyString(), anyBoolean());
+    }
+
+    @Test
+    public void testNotificationIsSentInProcessWithoutSidecar() {
+        createRoomNotifier().sendRoomNotification(BASE_URL, "ops", "message", "red", "token", true);
+
+        verify(inProcessRoomNotifier).sendRoomNotification(BASE_URL, "ops", "message", "red", "token", true);
+    }
+
+    @Test
+    public void testNotificationIsSentInProcessWhenSidecarQueueIsFull() throws Exception {
+        final CountDownLatch deliveryStarted = new CountDownLatch(1);
+        final CountDownLatch releaseDelivery = new CountDownLatch(1);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(final InvocationOnMock invocation) throws InterruptedException {
+                deliveryStarted.countDown();
+                releaseDelivery.await(10, TimeUnit.SECONDS);
+                return null;
+            }
+        }).when(sidecarRoomNotifier).sendRoomNotification(anyString(), anyString(), anyString(), anyString(), anyString(), anyBoolean());
+        startSidecar(1);
+        final HipChatRoomNotifier roomNotifier = createRoomNotifier();
+
+        final Thread first = sendInBackground(roomNotifier, "first");
+        assertTrue(deliveryStarted.await(10, TimeUnit.SECONDS));
+        final Thread second = sendInBackground(roomNotifier, "second");
+        for (int i = 0; i < 100 && sidecar.getQueuedCount() == 0; i++) {
+            Thread.sleep(20);
+        }
+        assertEquals(sidecar.getQueuedCount(), 1);
+
+        roomNotifier.sendRoomNotification(BASE_URL, "third", "message", "red", "token", true);
+        verify(inProcessRoomNotifier).sendRoomNotification(BASE_URL, "third", "message", "red", "token", true);
+
+        releaseDelivery.countDown();
+        first.join(10000);
+        second.join(10000);
+        verify(sidecarRoomNotifier).sendRoomNotification(BASE_URL, "second", "message", "red", "token", true);
+        verify(inProcessRoomNotifier, never()).sendRoomNotification(BASE_URL, "second", "message", "red", "token", true);
+    }
+
+    @Test
+    public void testNotificationIsSentInProcessWhenSidecarCannotSendItBeforeAckTimeout() throws Exception {
+        final CountDownLatch deliveryStarted = new CountDownLatch(1);
+        final CountDownLatch releaseDelivery = new CountDownLatch(1);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(final InvocationOnMock invocation) throws InterruptedException {
+                deliveryStarted.countDown();
+                releaseDelivery.await(10, TimeUnit.SECONDS);
+                return null;
+            }
+        }).when(sidecarRoomNotifier).sendRoomNotification(BASE_URL, "first", "message", "red", "token", true);
+        // one send a second, so with the first notification sending the second waits a second and the third two
+        startSidecar(10, 1);
+        final HipChatRoomNotifier roomNotifier = createRoomNotifier(1500);
+
+        final Thread first = sendInBackground(roomNotifier, "first");
+        assertTrue(deliveryStarted.await(10, TimeUnit.SECONDS));
+        final Thread second = sendInBackground(roomNotifier, "second");
+        for (int i = 0; i < 100 && sidecar.getQueuedCount() == 0; i++) {
+            Thread.sleep(20);
+        }
+
+        roomNotifier.sendRoomNotification(BASE_URL, "third", "message", "red", "token", true);
+        verify(inProcessRoomNotifier).sendRoomNotification(BASE_URL, "third", "message", "red", "token", true);
+
+        releaseDelivery.countDown();
+        first.join(10000);
+        second.join(10000);
+        verify(sidecarRoomNotifier).sendRoomNotification(BASE_URL, "second", "message", "red", "token", true);
+        verify(sidecarRoomNotifier, never()).sendRoomNotification(BASE_URL, "third", "message", "red", "token", true);
+    }
+
+    @Test
+    public void testNotificationIsSentInProcessWhenSidecarStopsReading() throws IOException {
+        // a sidecar that accepts connections but never reads from them
+        final ServerSocketChannel stalledSidecar = UnixDomainSockets.bind(socketFile);
+        try {
+            final StringBuilder message = new StringBuilder();
+            while (message.length() < SidecarProtocol.MAX_FRAME_BYTES - 1024) {
+                message.append("message ");
+            }
+            final long startMillis = System.currentTimeMillis();
+
+            createRoomNotifier(500).sendRoomNotification(BASE_URL, "ops", message.toString(), "red", "token", true);
+
+            verify(inProcessRoomNotifier).sendRoomNotification(BASE_URL, "ops", message.toString(), "red", "token", true);
+            assertTrue(System.currentTimeMillis() - startMillis < 5000);
+        } finally {
+            stalledSidecar.close();
+        }
+    }
+
+    @Test
+    public void testNotificationIsSentInProcessAfterSidecarStops() throws IOException {
+        startSidecar(10);
+        final HipChatRoomNotifier roomNotifier = createRoomNotifier();
+        roomNotifier.sendRoomNotification(BASE_URL, "ops", "message", "red", "token", true);
+
+        sidecar.stop();
+        roomNotifier.sendRoomNotification(BASE_URL, "dev", "message", "red", "token", true);
+
+        verify(inProcessRoomNotifier, timeout(5000)).sendRoomNotification(BASE_URL, "dev", "message", "red", "token", true);
+    }
+
+    private void startSidecar(final int queueCapacity) throws IOException {
+        startSidecar(queueCapacity, 0);
+    }
+
+    private void startSidecar(final int queueCapacity, final double sendsPerSecond) throws IOException {
+        sidecar = new SenderSidecar(socketFile, queueCapacity, 10, 1, sendsPerSecond) {
+            @Override
+            protected HipChatRoomNotifier getRoomNotifier(final NotificationRecord record) {
+                return sidecarRoomNotifier;
+            }
+        };
+        sidecar.start();
+    }
+
+    private HipChatRoomNotifier createRoomNotifier() {
+        return createRoomNotifier(10000);
+    }
+
+    private HipChatRoomNotifier createRoomNotifier(final long ackTimeoutMillis) {
+        return new SidecarRoomNotifier(new SidecarConnection(socketFile, 16), inProcessRoomNotifier, "v2", null, null, ackTimeoutMillis);
+    }
+
+    private static Thread sendInBackground(final HipChatRoomNotifier roomNotifier, final String room) {
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                roomNotifier.sendRoomNotification(BASE_URL, room, "message", "red", "token", true);
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+}
@@ -0,0 +1,127 @@
+package com.hbakkum.rundeck.plugins.hipchat.sidecar;
+
+import com.hbakkum.rundeck.plugins.hipchat.HipChatApiAuthTokenRejectedException;
+import com.hbakkum.rundeck.plugins.hipchat.HipChatNotificationPluginException;
+import com.hbakkum.rundeck.plugins.hipchat.HipChatRoomNotFoundException;
+import com.hbakkum.rundeck.plugins.hipchat.sidecar.SidecarProtocol.Acknowledgement;
+import com.hbakkum.rundeck.plugins.hipchat.sidecar.SidecarProtocol.NotificationRecord;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class SidecarProtocolUnitTest {
+
+    @Test
+    public void testNotificationRecordRoundTrips() throws IOException {
+        final NotificationRecord record = new NotificationRecord(42, 30000, "https://api.hipchat.com", "v2", null, null, "ops",
+                "Execution of job <b>failed</b> – café", "red", "token", true);
+
+        final NotificationRecord decoded = SidecarProtocol.decodeNotificationRecord(readFrames(SidecarProtocol.encode(record)).get(0));
+
+        assertEquals(decoded.getId(), 42);
+        assertEquals(decoded.getAckTimeoutMillis(), 30000);
+        assertEquals(decoded.getBaseURL(), "https://api.hipchat.com");
+        assertEquals(decoded.getApiVersion(), "v2");
+        assertNull(decoded.getProxyHost());
+        assertNull(decoded.getProxyPort());
+        assertEquals(decoded.getRoom(), "ops");
+        assertEquals(decoded.getMessage(), "Execution of job <b>failed</b> – café");
+        assertEquals(decoded.getColor(), "red");
+        assertEquals(decoded.getAuthToken(), "token");
+        assertTrue(decoded.isSendUserNotification());
+    }
+
+    @Test
+    public void testFramesAreReadInOrderUntilEndOfStream() throws IOException {
+        final List<ByteBuffer> payloads = readFrames(
+                SidecarProtocol.encode(Acknowledgement.delivered(1)), SidecarProtocol.encode(Acknowledgement.busy(2)));
+
+        assertEquals(payloads.size(), 2);
+        assertEquals(SidecarProtocol.decodeAcknowledgement(payloads.get(0)).getId(), 1);
+        final Acknowledgement busy = SidecarProtocol.decodeAcknowledgement(payloads.get(1));
+        assertEquals(busy.getId(), 2);
+        assertTrue(busy.isBusy());
+    }
+
+    @Test
+    public void testFailedAcknowledgementRaisesSameKindOfException() throws IOException {
+        final Acknowledgement tokenRejected = roundTrip(Acknowledgement.failed(1, new HipChatApiAuthTokenRejectedException("Invalid token", 401)));
+        final Acknowledgement roomNotFound = roundTrip(Acknowledgement.failed(2, new HipChatRoomNotFoundException("No such room")));
+
+        try {
+            tokenRejected.throwIfFailed();
+            fail("Expected token rejection");
+        } catch (HipChatApiAuthTokenRejectedException tokenRejectedEx) {
+            assertEquals(tokenRejectedEx.getResponseCode(), 401);
+            assertEquals(tokenRejectedEx.getMessage(), "Invalid token");
+        }
+        try {
+            roomNotFound.throwIfFailed();
+            fail("Expected room not found");
+        } catch (HipChatRoomNotFoundException roomNotFoundEx) {
+            assertEquals(roomNotFoundEx.getMessage(), "No such room");
+        }
+        assertFalse(roundTrip(Acknowledgement.delivered(3)).isBusy());
+        roundTrip(Acknowledgement.delivered(3)).throwIfFailed();
+    }
+
+    @Test(expectedExceptions = EOFException.class)
+    public void testTruncatedFrameFails() throws IOException {
+        final ByteBuffer frame = SidecarProtocol.encode(Acknowledgement.delivered(1));
+        final byte[] truncated = new byte[frame.remaining() - 1];
+        frame.get(truncated);
+
+        SidecarProtocol.readFrame(Channels.newChannel(new ByteArrayInputStream(truncated)));
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testOversizedFrameLengthIsRejected() throws IOException {
+        final ByteBuffer frame = ByteBuffer.allocate(4).putInt(SidecarProtocol.MAX_FRAME_BYTES + 1);
+
+        SidecarProtocol.readFrame(Channels.newChannel(new ByteArrayInputStream(frame.array())));
+    }
+
+    @Test(expectedExceptions = HipChatNotificationPluginException.class)
+    public void testOversizedRecordIsNotEncoded() {
+        final StringBuilder message = new StringBuilder();
+        while (message.length() <= SidecarProtocol.MAX_FRAME_BYTES) {
+            message.append("0123456789");
+        }
+
+        SidecarProtocol.encode(new NotificationRecord(1, 30000, "https://api.hipchat.com", "v2", null, null, "ops", message.toString(), "red", "token", false));
+    }
+
+    private static Acknowledgement roundTrip(final Acknowledgement acknowledgement) throws IOException {
+        return SidecarProtocol.decodeAcknowledgement(readFrames(SidecarProtocol.encode(acknowledgement)).get(0));
+    }
+
+    private static List<ByteBuffer> readFrames(final ByteBuffer... frames) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (final ByteBuffer frame : frames) {
+            SidecarProtocol.writeFrame(Channels.newChannel(bytes), frame);
+        }
+
+        final ReadableByteChannel channel = Channels.newChannel(new ByteArrayInputStream(bytes.toByteArray()));
+        final List<ByteBuffer> payloads = new ArrayList<ByteBuffer>();
+        ByteBuffer payload;
+        while ((payload = SidecarProtocol.readFrame(channel)) != null) {
+            payloads.add(payload);
+        }
+        return payloads;
+    }
+
+}
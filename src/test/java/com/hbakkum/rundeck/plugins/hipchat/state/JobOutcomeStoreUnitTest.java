@@ -0,0 +1,129 @@
+package com.hbakkum.rundeck.plugins.hipchat.state;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.UUID;
+
+import static com.hbakkum.rundeck.plugins.hipchat.state.JobOutcomeStore.OUTCOME_FAILURE;
+import static com.hbakkum.rundeck.plugins.hipchat.state.JobOutcomeStore.OUTCOME_SUCCESS;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class JobOutcomeStoreUnitTest {
+
+    private static final String JOB_ID = "6b5a8a7e-4c8e-4c5e-9a57-2c1b7c0f7d1e";
+    private static final String DESTINATION = "https://hipchat|ops";
+
+    private File stateFile;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        stateFile = File.createTempFile("hipchat-job-outcomes", ".state");
+        stateFile.delete();
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        stateFile.delete();
+        new File(stateFile.getPath() + ".compact").delete();
+    }
+
+    @Test
+    public void testConsecutiveOutcomesAreCounted() {
+        final JobOutcomeStore store = new JobOutcomeStore(null);
+
+        assertEquals(store.recordOutcome(JOB_ID, DESTINATION, OUTCOME_SUCCESS), 1);
+        assertEquals(store.recordOutcome(JOB_ID, DESTINATION, OUTCOME_SUCCESS), 2);
+        assertEquals(store.recordOutcome(JOB_ID, DESTINATION, OUTCOME_FAILURE), 1);
+        assertEquals(store.recordOutcome(JOB_ID, DESTINATION, OUTCOME_FAILURE), 2);
+        assertEquals(store.recordOutcome(JOB_ID, DESTINATION, OUTCOME_FAILURE), 3);
+        assertEquals(store.recordOutcome(JOB_ID, DESTINATION, OUTCOME_SUCCESS), 1);
+    }
+
+    @Test
+    public void testSuccessIsRememberedThroughLaterFailures() {
+        final JobOutcomeStore store = new JobOutcomeStore(null);
+
+        store.recordOutcome(JOB_ID, DESTINATION, OUTCOME_FAILURE);
+        assertFalse(store.hasSucceeded(JOB_ID, DESTINATION));
+
+        store.recordOutcome(JOB_ID, DESTINATION, OUTCOME_SUCCESS);
+        assertEquals(store.recordOutcome(JOB_ID, DESTINATION, OUTCOME_FAILURE), 1);
+        assertEquals(store.recordOutcome(JOB_ID, DESTINATION, OUTCOME_FAILURE), 2);
+        assertTrue(store.hasSucceeded(JOB_ID, DESTINATION));
+        assertFalse(store.hasSucceeded(JOB_ID, "https://hipchat|dev"));
+    }
+
+    @Test
+    public void testDestinationsAndJobsAreTrackedSeparately() {
+        final JobOutcomeStore store = new JobOutcomeStore(null);
+
+        store.recordOutcome(JOB_ID, DESTINATION, OUTCOME_FAILURE);
+
+        assertEquals(store.recordOutcome(JOB_ID, "https://hipchat|dev", OUTCOME_FAILURE), 1);
+        assertEquals(store.recordOutcome("nightly-report", DESTINATION, OUTCOME_FAILURE), 1);
+        assertEquals(store.getLastOutcome(JOB_ID, DESTINATION), OUTCOME_FAILURE);
+        assertEquals(store.getLastOutcome("unknown", DESTINATION), 0);
+    }
+
+    @Test
+    public void testStoreGrowsBeyondInitialCapacity() {
+        final JobOutcomeStore store = new JobOutcomeStore(null);
+
+        for (int i = 0; i < 10000; i++) {
+            store.recordOutcome(new UUID(i, i).toString(), DESTINATION, i % 2 == 0 ? OUTCOME_SUCCESS : OUTCOME_FAILURE);
+        }
+
+        assertEquals(store.size(), 10000);
+        for (int i = 0; i < 10000; i++) {
+            assertEquals(store.getLastOutcome(new UUID(i, i).toString(), DESTINATION), i % 2 == 0 ? OUTCOME_SUCCESS : OUTCOME_FAILURE);
+        }
+    }
+
+    @Test
+    public void testStateSurvivesRestart() {
+        final JobOutcomeStore store = new JobOutcomeStore(stateFile);
+        store.recordOutcome(JOB_ID, DESTINATION, OUTCOME_FAILURE);
+        store.recordOutcome(JOB_ID, DESTINATION, OUTCOME_FAILURE);
+        store.close();
+
+        final JobOutcomeStore restartedStore = new JobOutcomeStore(stateFile);
+
+        assertEquals(restartedStore.recordOutcome(JOB_ID, DESTINATION, OUTCOME_FAILURE), 3);
+    }
+
+    @Test
+    public void testTruncatedRecordIsIgnoredOnLoad() throws IOException {
+        final JobOutcomeStore store = new JobOutcomeStore(stateFile);
+        store.recordOutcome(JOB_ID, DESTINATION, OUTCOME_SUCCESS);
+        store.close();
+        final FileOutputStream out = new FileOutputStream(stateFile, true);
+        out.write(new byte[]{1, 2, 3});
+        out.close();
+
+        final JobOutcomeStore restartedStore = new JobOutcomeStore(stateFile);
+
+        assertEquals(restartedStore.getLastOutcome(JOB_ID, DESTINATION), OUTCOME_SUCCESS);
+        assertEquals(stateFile.length() % 20, 0);
+    }
+
+    @Test
+    public void testStateFileIsCompacted() {
+        final JobOutcomeStore store = new JobOutcomeStore(stateFile);
+        for (int i = 0; i < 5000; i++) {
+            store.recordOutcome(JOB_ID, DESTINATION, i % 3 == 0 ? OUTCOME_SUCCESS : OUTCOME_FAILURE);
+        }
+        store.close();
+
+        assertTrue(store.getRecordsInFile() < 1100, "records in file: " + store.getRecordsInFile());
+        assertEquals(stateFile.length(), store.getRecordsInFile() * 20);
+        assertEquals(new JobOutcomeStore(stateFile).getLastOutcome(JOB_ID, DESTINATION), OUTCOME_FAILURE);
+    }
+
+}
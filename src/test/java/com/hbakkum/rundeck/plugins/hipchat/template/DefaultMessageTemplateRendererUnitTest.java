@@ -0,0 +1,176 @@
+package com.hbakkum.rundeck.plugins.hipchat.template;
+
+import com.hbakkum.rundeck.plugins.hipchat.HipChatNotificationMessageGenerator;
+import com.hbakkum.rundeck.plugins.hipchat.HipChatNotificationPluginException;
+import com.hbakkum.rundeck.plugins.hipchat.NotificationMessageRequest;
+import com.hbakkum.rundeck.plugins.hipchat.duration.DurationAssessment;
+import com.hbakkum.rundeck.plugins.hipchat.logtail.ExecutionLogExcerpt;
+import com.hbakkum.rundeck.plugins.hipchat.logtail.ReverseLogTailReader;
+import freemarker.template.TemplateModelException;
+import freemarker.template.TemplateScalarModel;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/**
+ * Checks that the renderer produces exactly what FreeMarker makes of the bundled default template.
+ */
+public class DefaultMessageTemplateRendererUnitTest {
+
+    private static final String[] TRIGGERS = { "start", "success", "failure", "avgduration" };
+
+    private static final DurationAssessment[] DURATION_ASSESSMENTS = {
+        DurationAssessment.UNKNOWN, new DurationAssessment(40, false), new DurationAssessment(97, true)
+    };
+
+    private HipChatNotificationMessageGenerator messageGenerator;
+
+    private String freeMarkerTemplateLocation;
+
+    @BeforeMethod
+    public void setUp() {
+        messageGenerator = new HipChatNotificationMessageGenerator();
+        // a template location makes the generator merge the same template with FreeMarker
+        freeMarkerTemplateLocation = getClass().getResource("/templates/" + DefaultMessageTemplateRenderer.TEMPLATE_NAME).getFile();
+    }
+
+    @DataProvider(name = "executions")
+    public Object[][] executions() {
+        return new Object[][] {
+            { executionData("ops", "deploy", "alice", "42") },
+            { executionData("", "deploy", "alice", "42") },
+            { executionData(null, "deploy", "alice", "42") },
+            { executionData("ops/eu", "deploy <prod> & \"smoke\"", "bob", "7") },
+            { executionData("café", "déploy 🚀", "émilie", "1234567") },
+            { executionData("ops", "", "", "") }
+        };
+    }
+
+    @Test(dataProvider = "executions")
+    public void testOutputMatchesFreeMarkerForEveryTrigger(final Map executionData) throws IOException {
+        for (final String trigger : TRIGGERS) {
+            for (final DurationAssessment durationAssessment : DURATION_ASSESSMENTS) {
+                assertRenderedAsByFreeMarker(trigger, executionData, ExecutionLogExcerpt.EMPTY, durationAssessment);
+            }
+        }
+    }
+
+    @Test(dataProvider = "executions")
+    public void testOutputMatchesFreeMarkerWithLogExcerpt(final Map executionData) throws IOException {
+        for (final String trigger : TRIGGERS) {
+            assertRenderedAsByFreeMarker(trigger, executionData, logExcerpt("step 2 failed: exit code <1>\nretrying"), DURATION_ASSESSMENTS[2]);
+        }
+    }
+
+    @Test
+    public void testOutputMatchesFreeMarkerWhenValuesAreNotStrings() throws IOException {
+        final Map<String, Object> executionData = executionData("ops", "deploy", "alice", "42");
+        ((Map<String, Object>) ((Map<String, Object>) executionData.get("context")).get("job")).put("execid", 1234567L);
+
+        assertNull(DefaultMessageTemplateRenderer.INSTANCE.render("success", executionData, ExecutionLogExcerpt.EMPTY, DurationAssessment.UNKNOWN, Integer.MAX_VALUE));
+        assertEquals(
+                messageGenerator.generateMessage(null, DefaultMessageTemplateRenderer.TEMPLATE_NAME, "success", executionData, null),
+                messageGenerator.generateMessage(freeMarkerTemplateLocation, DefaultMessageTemplateRenderer.TEMPLATE_NAME, "success", executionData, null));
+    }
+
+    @Test
+    public void testMissingValueFailsAsWithFreeMarker() {
+        final Map<String, Object> executionData = executionData("ops", "deploy", "alice", "42");
+        executionData.remove("href");
+
+        assertNull(DefaultMessageTemplateRenderer.INSTANCE.render("success", executionData, ExecutionLogExcerpt.EMPTY, DurationAssessment.UNKNOWN, Integer.MAX_VALUE));
+        try {
+            messageGenerator.generateMessage(null, DefaultMessageTemplateRenderer.TEMPLATE_NAME, "success", executionData, null);
+            fail("Expected merging the default template to fail");
+        } catch (HipChatNotificationPluginException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testOutputOverBudgetIsLeftToFreeMarker() {
+        final Map<String, Object> executionData = executionData("ops", "deploy", "alice", "42");
+
+        assertNull(DefaultMessageTemplateRenderer.INSTANCE.render("success", executionData, ExecutionLogExcerpt.EMPTY, DurationAssessment.UNKNOWN, 50));
+    }
+
+    @Test
+    public void testLogExcerptIsOnlyReadOnFailure() throws TemplateModelException {
+        final TemplateScalarModel logExcerpt = mock(TemplateScalarModel.class);
+        when(logExcerpt.getAsString()).thenReturn("boom");
+
+        DefaultMessageTemplateRenderer.INSTANCE.render("success", executionData("ops", "deploy", "alice", "42"), logExcerpt,
+                DurationAssessment.UNKNOWN, Integer.MAX_VALUE);
+        verify(logExcerpt, never()).getAsString();
+
+        final String message = DefaultMessageTemplateRenderer.INSTANCE.render("failure", executionData("ops", "deploy", "alice", "42"),
+                logExcerpt, DurationAssessment.UNKNOWN, Integer.MAX_VALUE);
+        assertTrue(message.contains("<pre>boom</pre>\n"), message);
+    }
+
+    private void assertRenderedAsByFreeMarker(
+            final String trigger,
+            final Map executionData,
+            final ExecutionLogExcerpt logExcerpt,
+            final DurationAssessment durationAssessment) {
+        assertNotNull(DefaultMessageTemplateRenderer.INSTANCE.render(trigger, executionData, logExcerpt, durationAssessment, Integer.MAX_VALUE));
+
+        final String expected = messageGenerator.generateMessage(new NotificationMessageRequest(freeMarkerTemplateLocation,
+                DefaultMessageTemplateRenderer.TEMPLATE_NAME, trigger, executionData, null)
+                .withLogExcerpt(logExcerpt)
+                .withDurationAssessment(durationAssessment));
+        final String actual = messageGenerator.generateMessage(new NotificationMessageRequest(null,
+                DefaultMessageTemplateRenderer.TEMPLATE_NAME, trigger, executionData, null)
+                .withLogExcerpt(logExcerpt)
+                .withDurationAssessment(durationAssessment));
+
+        assertEquals(actual, expected, "trigger " + trigger + ", " + durationAssessment);
+    }
+
+    private static ExecutionLogExcerpt logExcerpt(final String logTail) throws IOException {
+        final File logFile = File.createTempFile("execution", ".log");
+        logFile.deleteOnExit();
+        final ReverseLogTailReader tailReader = mock(ReverseLogTailReader.class);
+        when(tailReader.readLastLines(any(File.class))).thenReturn(logTail);
+        return new ExecutionLogExcerpt(logFile, tailReader);
+    }
+
+    private static Map<String, Object> executionData(final String group, final String name, final String username, final String execId) {
+        final Map<String, Object> job = new HashMap<String, Object>();
+        job.put("href", "http://rundeck/project/ops/job/show/" + name.length());
+        if (group != null) {
+            job.put("group", group);
+        }
+        job.put("name", name);
+
+        final Map<String, Object> contextJob = new HashMap<String, Object>();
+        contextJob.put("username", username);
+        contextJob.put("execid", execId);
+
+        final Map<String, Object> context = new HashMap<String, Object>();
+        context.put("job", contextJob);
+
+        final Map<String, Object> executionData = new HashMap<String, Object>();
+        executionData.put("job", job);
+        executionData.put("context", context);
+        executionData.put("href", "http://rundeck/project/ops/execution/show/" + execId);
+        return executionData;
+    }
+
+}
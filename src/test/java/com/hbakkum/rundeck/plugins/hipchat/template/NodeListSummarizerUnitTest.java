@@ -0,0 +1,83 @@
+package com.hbakkum.rundeck.plugins.hipchat.template;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class NodeListSummarizerUnitTest {
+
+    private final NodeListSummarizer summarizer = new NodeListSummarizer(NodeListSummarizer.DEFAULT_MAX_LENGTH);
+
+    @Test
+    public void testConsecutiveNumberedNodesAreCollapsedIntoRange() {
+        assertEquals(summarizer.summarize(numberedNodes("web", 1, 340, 3)), "web[001-340]");
+    }
+
+    @Test
+    public void testGapsSplitRanges() {
+        assertEquals(summarizer.summarize(Arrays.asList("web01", "web02", "web03", "web05", "web07", "web08")), "web[01-03,05,07-08]");
+    }
+
+    @Test
+    public void testUnpaddedNumbersAreNotPadded() {
+        assertEquals(summarizer.summarize(Arrays.asList("node9", "node10", "node11")), "node[9-11]");
+    }
+
+    @Test
+    public void testSuffixIsKeptAfterRange() {
+        assertEquals(summarizer.summarize(Arrays.asList("app1.prod", "app2.prod", "app3.prod")), "app[1-3].prod");
+    }
+
+    @Test
+    public void testNamedNodesAreGroupedByCommonPrefix() {
+        assertEquals(summarizer.summarize(Arrays.asList("db-eu-alpha", "db-eu-beta", "db-eu-gamma", "backup")), "db-eu-*: 3, backup");
+    }
+
+    @Test
+    public void testSingleNodesAreShownByName() {
+        assertEquals(summarizer.summarize(Arrays.asList("web01", "db-eu-alpha")), "web01, db-eu-alpha");
+    }
+
+    @Test
+    public void testSparseNumbersAreCollapsed() {
+        assertEquals(summarizer.summarize(Arrays.asList("host1000000", "host5", "host6", "host7")), "host[5-7,1000000]");
+    }
+
+    @Test
+    public void testGroupWhoseRangesDoNotFitIsShownAsCount() {
+        final List<String> nodes = new ArrayList<String>();
+        for (int i = 0; i < 2000; i += 2) {
+            nodes.add("web" + i);
+        }
+
+        assertEquals(new NodeListSummarizer(50).summarize(nodes), "web*: 1000");
+    }
+
+    @Test
+    public void testSummaryNeverExceedsMaxLength() {
+        final List<String> nodes = new ArrayList<String>();
+        for (int i = 0; i < 2000; i++) {
+            nodes.add("rack" + i + "-node");
+            nodes.add("standalone" + (char) ('a' + i % 26) + i % 7 + "x");
+        }
+
+        final String summary = new NodeListSummarizer(100).summarize(nodes);
+
+        assertTrue(summary.length() <= 100, summary);
+        assertTrue(summary.endsWith(" more"), summary);
+    }
+
+    private static List<String> numberedNodes(final String prefix, final int from, final int to, final int width) {
+        final List<String> nodes = new ArrayList<String>();
+        for (int i = from; i <= to; i++) {
+            nodes.add(prefix + String.format("%0" + width + "d", i));
+        }
+        return nodes;
+    }
+
+}
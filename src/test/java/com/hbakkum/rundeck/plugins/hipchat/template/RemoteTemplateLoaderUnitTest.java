@@ -0,0 +1,226 @@
+package com.hbakkum.rundeck.plugins.hipchat.template;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+public class RemoteTemplateLoaderUnitTest {
+
+    private HttpServer server;
+
+    private String baseUrl;
+
+    private volatile String templateContent;
+
+    private volatile String templateEtag;
+
+    private final List<String> ifNoneMatchHeaders = new ArrayList<String>();
+
+    private final List<String> hostHeaders = new ArrayList<String>();
+
+    private QueuedExecutor revalidationExecutor;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        templateContent = "Hello ${name}";
+        templateEtag = "\"v1\"";
+        ifNoneMatchHeaders.clear();
+        hostHeaders.clear();
+        revalidationExecutor = new QueuedExecutor();
+
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/templates/", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                final String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+                synchronized (ifNoneMatchHeaders) {
+                    ifNoneMatchHeaders.add(ifNoneMatch);
+                    hostHeaders.add(exchange.getRequestHeaders().getFirst("Host"));
+                }
+                if (!exchange.getRequestURI().getPath().endsWith("/message.ftl")) {
+                    exchange.sendResponseHeaders(404, -1);
+                } else if (templateEtag.equals(ifNoneMatch)) {
+                    exchange.sendResponseHeaders(304, -1);
+                } else {
+                    final byte[] body = templateContent.getBytes("UTF-8");
+                    exchange.getResponseHeaders().add("ETag", templateEtag);
+                    exchange.sendResponseHeaders(200, body.length);
+                    final OutputStream out = exchange.getResponseBody();
+                    out.write(body);
+                    out.close();
+                }
+                exchange.close();
+            }
+        });
+        server.start();
+        baseUrl = "http://127.0.0.1:" + server.getAddress().getPort() + "/templates/";
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void testRemoteTemplateLocationsAreRecognised() {
+        assertTrue(RemoteTemplateLoader.isRemoteTemplateLocation("https://artifacts.example.com/hipchat/message.ftl"));
+        assertTrue(RemoteTemplateLoader.isRemoteTemplateLocation("http://artifacts.example.com/hipchat/message.ftl"));
+        assertFalse(RemoteTemplateLoader.isRemoteTemplateLocation("/etc/rundeck/templates/message.ftl"));
+        assertFalse(RemoteTemplateLoader.isRemoteTemplateLocation(null));
+    }
+
+    @Test
+    public void testTemplateIsFetchedInBackgroundOnFirstLookup() throws IOException {
+        final RemoteTemplateLoader loader = new RemoteTemplateLoader(baseUrl, Proxy.NO_PROXY, 60000, revalidationExecutor);
+
+        assertNull(loader.findTemplateSource("message.ftl"));
+        assertFalse(loader.isTemplateAvailable("message.ftl"));
+        assertEquals(revalidationExecutor.tasks.size(), 1);
+        assertTrue(ifNoneMatchHeaders.isEmpty());
+
+        revalidationExecutor.runAll();
+        final Object source = loader.findTemplateSource("message.ftl");
+
+        assertEquals(read(loader, source), "Hello ${name}");
+        assertTrue(loader.isTemplateAvailable("message.ftl"));
+    }
+
+    @Test
+    public void testTemplateIsFetchedOnceWithinRevalidationInterval() throws IOException {
+        final RemoteTemplateLoader loader = new RemoteTemplateLoader(baseUrl, Proxy.NO_PROXY, 60000, revalidationExecutor);
+
+        final Object source = fetchFirstVersion(loader, "message.ftl");
+
+        assertSame(loader.findTemplateSource("message.ftl"), source);
+        assertEquals(ifNoneMatchHeaders.size(), 1);
+        assertTrue(revalidationExecutor.tasks.isEmpty());
+    }
+
+    @Test
+    public void testUnchangedTemplateIsRevalidatedInBackground() throws IOException {
+        final RemoteTemplateLoader loader = new RemoteTemplateLoader(baseUrl, Proxy.NO_PROXY, 0, revalidationExecutor);
+        final Object source = fetchFirstVersion(loader, "message.ftl");
+
+        assertSame(loader.findTemplateSource("message.ftl"), source);
+        assertEquals(ifNoneMatchHeaders.size(), 1);
+
+        revalidationExecutor.runAll();
+        assertEquals(ifNoneMatchHeaders.get(1), "\"v1\"");
+        assertSame(loader.findTemplateSource("message.ftl"), source);
+    }
+
+    @Test
+    public void testChangedTemplateIsUsedOnceRevalidated() throws IOException {
+        final RemoteTemplateLoader loader = new RemoteTemplateLoader(baseUrl, Proxy.NO_PROXY, 0, revalidationExecutor);
+        final Object source = fetchFirstVersion(loader, "message.ftl");
+        templateContent = "Goodbye ${name}";
+        templateEtag = "\"v2\"";
+
+        assertSame(loader.findTemplateSource("message.ftl"), source);
+        revalidationExecutor.runAll();
+
+        final Object changedSource = loader.findTemplateSource("message.ftl");
+        assertNotSame(changedSource, source);
+        assertEquals(read(loader, changedSource), "Goodbye ${name}");
+    }
+
+    @Test
+    public void testLastGoodTemplateIsUsedWhenServerIsUnreachable() throws IOException {
+        final RemoteTemplateLoader loader = new RemoteTemplateLoader(baseUrl, Proxy.NO_PROXY, 0, revalidationExecutor);
+        final Object source = fetchFirstVersion(loader, "message.ftl");
+        server.stop(0);
+
+        loader.findTemplateSource("message.ftl");
+        revalidationExecutor.runAll();
+
+        assertSame(loader.findTemplateSource("message.ftl"), source);
+        assertEquals(read(loader, source), "Hello ${name}");
+    }
+
+    @Test
+    public void testMissingTemplateIsNotFound() {
+        final RemoteTemplateLoader loader = new RemoteTemplateLoader(baseUrl, Proxy.NO_PROXY, 60000, revalidationExecutor);
+
+        assertNull(fetchFirstVersion(loader, "missing.ftl"));
+        assertTrue(revalidationExecutor.tasks.isEmpty());
+    }
+
+    @Test
+    public void testFailedFirstFetchIsRetriedAtRevalidationInterval() {
+        server.stop(0);
+        final RemoteTemplateLoader loader = new RemoteTemplateLoader(baseUrl, Proxy.NO_PROXY, 60000, revalidationExecutor);
+
+        assertNull(fetchFirstVersion(loader, "message.ftl"));
+        assertNull(loader.findTemplateSource("message.ftl"));
+        assertTrue(revalidationExecutor.tasks.isEmpty());
+    }
+
+    @Test
+    public void testTemplateIsFetchedThroughProxy() throws IOException {
+        final Proxy proxy = new Proxy(Proxy.Type.HTTP, InetSocketAddress.createUnresolved("127.0.0.1", server.getAddress().getPort()));
+        final RemoteTemplateLoader loader = new RemoteTemplateLoader("http://templates.invalid/templates/", proxy, 60000, revalidationExecutor);
+
+        final Object source = fetchFirstVersion(loader, "message.ftl");
+
+        assertEquals(read(loader, source), "Hello ${name}");
+        assertEquals(hostHeaders.get(0), "templates.invalid");
+    }
+
+    /**
+     * Looks the template up, runs the fetch this starts and looks it up again.
+     */
+    private Object fetchFirstVersion(final RemoteTemplateLoader loader, final String name) {
+        assertNull(loader.findTemplateSource(name));
+        revalidationExecutor.runAll();
+        return loader.findTemplateSource(name);
+    }
+
+    private static String read(final RemoteTemplateLoader loader, final Object source) throws IOException {
+        final Reader reader = loader.getReader(source, "UTF-8");
+        final StringBuilder content = new StringBuilder();
+        int c;
+        while ((c = reader.read()) != -1) {
+            content.append((char) c);
+        }
+        return content.toString();
+    }
+
+    private static final class QueuedExecutor implements Executor {
+
+        private final List<Runnable> tasks = new ArrayList<Runnable>();
+
+        @Override
+        public void execute(final Runnable task) {
+            tasks.add(task);
+        }
+
+        private void runAll() {
+            for (final Runnable task : new ArrayList<Runnable>(tasks)) {
+                task.run();
+            }
+            tasks.clear();
+        }
+
+    }
+
+}
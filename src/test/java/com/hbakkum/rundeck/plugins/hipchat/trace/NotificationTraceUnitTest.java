@@ -0,0 +1,63 @@
+package com.hbakkum.rundeck.plugins.hipchat.trace;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.util.Map;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+public class NotificationTraceUnitTest {
+
+    @AfterMethod
+    public void tearDown() {
+        NotificationTrace.detach();
+    }
+
+    @Test
+    public void testTraceIsBoundToCallingThreadUntilEnded() {
+        final NotificationTrace trace = NotificationTrace.begin("start", "42");
+        assertSame(NotificationTrace.current(), trace);
+
+        trace.end(-1);
+        assertNull(NotificationTrace.current());
+    }
+
+    @Test
+    public void testPhaseBreakdownContainsEachRecordedPhase() {
+        final NotificationTrace trace = NotificationTrace.begin("failure", "42");
+
+        trace.recordPhase(NotificationTrace.PHASE_TEMPLATE_RENDER, "hipchat-message.ftl", System.nanoTime());
+        trace.recordPhase(NotificationTrace.PHASE_TOKEN_RESOLUTION, null, System.nanoTime());
+        NotificationTrace.recordHttpRequest("api.hipchat.com", 204, 1000000L, 2000000L, 3000000L);
+
+        final String phaseBreakdown = trace.getPhaseBreakdown();
+        assertTrue(phaseBreakdown.contains("template-render[hipchat-message.ftl]="), phaseBreakdown);
+        assertTrue(phaseBreakdown.contains("token-resolution="), phaseBreakdown);
+        assertTrue(phaseBreakdown.contains("http-request[api.hipchat.com -> 204]=3ms (connect=1ms, firstByte=2ms)"), phaseBreakdown);
+    }
+
+    @Test
+    public void testPhaseMillisSumRepeatedPhases() {
+        final NotificationTrace trace = NotificationTrace.begin("failure", "42");
+
+        trace.recordPhase(NotificationTrace.PHASE_TEMPLATE_RENDER, null, System.nanoTime());
+        NotificationTrace.recordHttpRequest("api.hipchat.com", 500, 0, 0, 3000000L);
+        NotificationTrace.recordHttpRequest("backup.hipchat.com", 204, 0, 0, 4000000L);
+
+        final Map<String, Long> phaseMillis = trace.getPhaseMillis();
+        assertEquals(phaseMillis.keySet().toString(), "[template-render, http-request]");
+        assertEquals(phaseMillis.get(NotificationTrace.PHASE_HTTP_REQUEST), Long.valueOf(7));
+    }
+
+    @Test
+    public void testHttpRequestWithoutTraceIsIgnored() {
+        NotificationTrace.recordHttpRequest("api.hipchat.com", 204, 0, 0, 0);
+
+        assertNull(NotificationTrace.current());
+    }
+
+}
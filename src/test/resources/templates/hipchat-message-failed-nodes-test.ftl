@@ -0,0 +1 @@
+<#if execution.failedNodeList??>Failed on ${summarizeNodes(execution.failedNodeList)}</#if>
\ No newline at end of file
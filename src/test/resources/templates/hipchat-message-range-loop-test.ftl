@@ -0,0 +1 @@
+<#list 1..100000000 as i><#assign last = i></#list>${last}
@@ -0,0 +1 @@
+<#function fib n><#if n < 2><#return n></#if><#return fib(n - 1) + fib(n - 2)></#function>${fib(40)}
@@ -0,0 +1 @@
+<#list execution.nodes as node><#list execution.nodes as other>${node}-${other} </#list></#list>